@@ -0,0 +1,104 @@
+package org.pojava.persistence.benchmarks;
+
+/*
+ Copyright 2008-14 John Pile
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.pojava.persistence.sql.TableMap;
+import org.pojava.persistence.util.DaoTool;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of DaoTool.batchInsert at several batch sizes.
+ *
+ * @author John Pile
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BatchInsertBenchmark {
+
+    /**
+     * Rows present before each iteration.
+     */
+    private static final int STORED_ROWS = 10000;
+
+    @Param({"10", "100", "1000"})
+    public int batchSize;
+
+    private TableMap<WideRow> map;
+
+    private Connection conn;
+
+    private List<WideRow> batch;
+
+    private int nextId;
+
+    @Setup(Level.Trial)
+    public void openDatabase() throws SQLException {
+        map = BenchmarkDatabase.open();
+        conn = BenchmarkDatabase.connect();
+        BenchmarkDatabase.fill(conn, map, STORED_ROWS);
+        batch = new ArrayList<WideRow>(batchSize);
+        for (int i = 0; i < batchSize; i++) {
+            batch.add(WideRow.sample(STORED_ROWS + 1 + i));
+        }
+    }
+
+    /**
+     * Discard the rows written during an iteration, so every iteration starts alike.
+     */
+    @Setup(Level.Iteration)
+    public void resetRows() throws SQLException {
+        BenchmarkDatabase.clear(conn, STORED_ROWS);
+        nextId = STORED_ROWS + 1;
+    }
+
+    @TearDown(Level.Trial)
+    public void closeDatabase() throws SQLException {
+        BenchmarkDatabase.clear(conn, 0);
+        conn.close();
+    }
+
+    @Benchmark
+    public int[] batchInsert() {
+        for (int i = 0; i < batch.size(); i++) {
+            batch.get(i).setId(Integer.valueOf(nextId++));
+        }
+        return DaoTool.batchInsert(conn, map, batch);
+    }
+
+}
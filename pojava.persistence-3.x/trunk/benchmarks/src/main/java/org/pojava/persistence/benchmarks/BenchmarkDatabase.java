@@ -0,0 +1,139 @@
+package org.pojava.persistence.benchmarks;
+
+/*
+ Copyright 2008-14 John Pile
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+import org.pojava.persistence.jndi.DriverManagerDataSource;
+import org.pojava.persistence.sql.DatabaseCache;
+import org.pojava.persistence.sql.TableMap;
+import org.pojava.persistence.sql.TransConnection;
+import org.pojava.persistence.util.DaoTool;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The in-process H2 database the benchmarks run against. The wide_row table is created once
+ * per JVM; each benchmark state fills it with the rows it needs.
+ *
+ * @author John Pile
+ */
+public class BenchmarkDatabase {
+
+    public static final String DS_NAME = "pojava_bench";
+
+    public static final String TABLE_NAME = "wide_row";
+
+    private static final String URL = "jdbc:h2:mem:pojava_bench;DB_CLOSE_DELAY=-1;"
+            + "DATABASE_TO_LOWER=TRUE";
+
+    private static final String DDL = "CREATE TABLE wide_row (id INTEGER PRIMARY KEY, "
+            + "name VARCHAR(40), description VARCHAR(200), code VARCHAR(10), "
+            + "category VARCHAR(20), quantity INTEGER, stock BIGINT, price DECIMAL(12,2), "
+            + "cost DECIMAL(12,2), ratio DOUBLE PRECISION, weight DOUBLE PRECISION, "
+            + "active BOOLEAN, archived BOOLEAN, created TIMESTAMP, updated TIMESTAMP, "
+            + "notes VARCHAR(200))";
+
+    /**
+     * Rows are inserted in batches of this size when filling the table.
+     */
+    private static final int FILL_BATCH = 1000;
+
+    private static boolean created = false;
+
+    /**
+     * Register the DataSource and create the table, if not already done.
+     *
+     * @return TableMap of WideRow
+     * @throws SQLException
+     */
+    public static synchronized TableMap<WideRow> open() throws SQLException {
+        if (!created) {
+            DatabaseCache.registerDataSource(DS_NAME, new DriverManagerDataSource(URL, "sa",
+                    ""));
+            DatabaseCache.setStatementCacheSize(DS_NAME, 64);
+            Connection conn = connect();
+            try {
+                Statement stmt = conn.createStatement();
+                try {
+                    stmt.execute(DDL);
+                } finally {
+                    stmt.close();
+                }
+            } finally {
+                conn.close();
+            }
+            created = true;
+        }
+        return DatabaseCache.getTableMap(WideRow.class, TABLE_NAME, DS_NAME);
+    }
+
+    /**
+     * Open an auto-commit connection to the benchmark database, caching prepared statements
+     * as a DatabaseTransaction would.
+     *
+     * @return a new connection, closed along with its cached statements
+     * @throws SQLException
+     */
+    public static Connection connect() throws SQLException {
+        TransConnection conn = new TransConnection(DatabaseCache.getDataSource(DS_NAME)
+                .getConnection(), DatabaseCache.newStatementCache(DS_NAME));
+        conn.setCloseAllowed(true);
+        conn.setAutoCommit(true);
+        return conn;
+    }
+
+    /**
+     * Replace the contents of the table with rows numbered from 1 to count.
+     *
+     * @param conn  connection to the benchmark database
+     * @param map   TableMap of WideRow
+     * @param count rows to insert
+     * @throws SQLException
+     */
+    public static void fill(Connection conn, TableMap<WideRow> map, int count)
+            throws SQLException {
+        clear(conn, 0);
+        List<WideRow> batch = new ArrayList<WideRow>(FILL_BATCH);
+        for (int id = 1; id <= count; id++) {
+            batch.add(WideRow.sample(id));
+            if (batch.size() == FILL_BATCH || id == count) {
+                DaoTool.batchInsert(conn, map, batch);
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * Delete the rows whose id exceeds a floor.
+     *
+     * @param conn  connection to the benchmark database
+     * @param floor highest id kept
+     * @throws SQLException
+     */
+    public static void clear(Connection conn, int floor) throws SQLException {
+        Statement stmt = conn.createStatement();
+        try {
+            stmt.executeUpdate("DELETE FROM wide_row WHERE id > " + floor);
+        } finally {
+            stmt.close();
+        }
+    }
+
+}
@@ -0,0 +1,42 @@
+package org.pojava.persistence.benchmarks;
+
+/*
+ Copyright 2008-14 John Pile
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Run the benchmarks with the GC profiler attached, so that allocation rates per operation are
+ * reported alongside times. The first argument, if given, is a regular expression selecting
+ * the benchmarks to run, such as "MappingBenchmark".
+ *
+ * @author John Pile
+ */
+public class BenchmarkRunner {
+
+    public static void main(String[] args) throws RunnerException {
+        String include = args.length > 0 ? args[0] : BenchmarkRunner.class.getPackage()
+                .getName() + ".*";
+        Options options = new OptionsBuilder().include(include).addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+
+}
@@ -0,0 +1,112 @@
+package org.pojava.persistence.benchmarks;
+
+/*
+ Copyright 2008-14 John Pile
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.pojava.lang.BoundString;
+import org.pojava.persistence.sql.ReadPlan;
+import org.pojava.persistence.sql.TableMap;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the work TableMap does apart from the database: extracting a bean from a wide
+ * row already fetched by the driver, and generating INSERT and UPDATE statements for a bean.
+ * <p/>
+ * The ResultSet stays on one row, so the extraction benchmarks repeatedly read the same
+ * values without advancing it.
+ *
+ * @author John Pile
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MappingBenchmark {
+
+    private TableMap<WideRow> map;
+
+    private Connection conn;
+
+    private PreparedStatement pstmt;
+
+    private ResultSet rs;
+
+    private ReadPlan<WideRow> plan;
+
+    private WideRow bean;
+
+    @Setup(Level.Trial)
+    public void openDatabase() throws SQLException {
+        map = BenchmarkDatabase.open();
+        conn = BenchmarkDatabase.connect();
+        BenchmarkDatabase.fill(conn, map, 1);
+        pstmt = conn.prepareStatement(map.getSelectSql());
+        rs = pstmt.executeQuery();
+        if (!rs.next()) {
+            throw new IllegalStateException("The benchmark row was not found.");
+        }
+        plan = map.readPlan(rs.getMetaData());
+        bean = WideRow.sample(2);
+    }
+
+    @TearDown(Level.Trial)
+    public void closeDatabase() throws SQLException {
+        rs.close();
+        pstmt.close();
+        BenchmarkDatabase.clear(conn, 0);
+        conn.close();
+    }
+
+    @Benchmark
+    public WideRow extractObject() {
+        return map.extractObject(rs);
+    }
+
+    @Benchmark
+    public WideRow readPlan() {
+        return plan.read(rs);
+    }
+
+    @Benchmark
+    public BoundString sqlInsert() {
+        return map.sqlInsert(bean);
+    }
+
+    @Benchmark
+    public BoundString sqlUpdate() {
+        return map.sqlUpdate(bean);
+    }
+
+}
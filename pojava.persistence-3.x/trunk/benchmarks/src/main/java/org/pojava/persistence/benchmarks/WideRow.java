@@ -0,0 +1,202 @@
+package org.pojava.persistence.benchmarks;
+
+/*
+ Copyright 2008-14 John Pile
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+import org.pojava.datetime.DateTime;
+
+import java.math.BigDecimal;
+
+/**
+ * A bean of sixteen properties of mixed types, mapped to the wide_row table.
+ *
+ * @author John Pile
+ */
+public class WideRow {
+
+    private Integer id;
+    private String name;
+    private String description;
+    private String code;
+    private String category;
+    private Integer quantity;
+    private Long stock;
+    private BigDecimal price;
+    private BigDecimal cost;
+    private Double ratio;
+    private Double weight;
+    private Boolean active;
+    private Boolean archived;
+    private DateTime created;
+    private DateTime updated;
+    private String notes;
+
+    /**
+     * Populate a row with values derived from its id.
+     *
+     * @param id primary key
+     * @return new row
+     */
+    public static WideRow sample(int id) {
+        WideRow row = new WideRow();
+        row.setId(Integer.valueOf(id));
+        row.setName("Row " + id);
+        row.setDescription("A sample row used to measure the cost of mapping wide rows, #" + id);
+        row.setCode(Integer.toString(id % 100000));
+        row.setCategory("category-" + (id % 17));
+        row.setQuantity(Integer.valueOf(id % 1000));
+        row.setStock(Long.valueOf(id * 31L));
+        row.setPrice(BigDecimal.valueOf(id % 10000, 2));
+        row.setCost(BigDecimal.valueOf(id % 7000, 2));
+        row.setRatio(Double.valueOf(id / 7.0));
+        row.setWeight(Double.valueOf(id % 500 / 3.0));
+        row.setActive(Boolean.valueOf(id % 2 == 0));
+        row.setArchived(Boolean.valueOf(id % 5 == 0));
+        row.setCreated(new DateTime(1400000000000L + id * 1000L));
+        row.setUpdated(new DateTime(1400000000000L + id * 2000L));
+        row.setNotes(id % 3 == 0 ? null : "notes for " + id);
+        return row;
+    }
+
+    public Integer getId() {
+        return id;
+    }
+
+    public void setId(Integer id) {
+        this.id = id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    public void setDescription(String description) {
+        this.description = description;
+    }
+
+    public String getCode() {
+        return code;
+    }
+
+    public void setCode(String code) {
+        this.code = code;
+    }
+
+    public String getCategory() {
+        return category;
+    }
+
+    public void setCategory(String category) {
+        this.category = category;
+    }
+
+    public Integer getQuantity() {
+        return quantity;
+    }
+
+    public void setQuantity(Integer quantity) {
+        this.quantity = quantity;
+    }
+
+    public Long getStock() {
+        return stock;
+    }
+
+    public void setStock(Long stock) {
+        this.stock = stock;
+    }
+
+    public BigDecimal getPrice() {
+        return price;
+    }
+
+    public void setPrice(BigDecimal price) {
+        this.price = price;
+    }
+
+    public BigDecimal getCost() {
+        return cost;
+    }
+
+    public void setCost(BigDecimal cost) {
+        this.cost = cost;
+    }
+
+    public Double getRatio() {
+        return ratio;
+    }
+
+    public void setRatio(Double ratio) {
+        this.ratio = ratio;
+    }
+
+    public Double getWeight() {
+        return weight;
+    }
+
+    public void setWeight(Double weight) {
+        this.weight = weight;
+    }
+
+    public Boolean getActive() {
+        return active;
+    }
+
+    public void setActive(Boolean active) {
+        this.active = active;
+    }
+
+    public Boolean getArchived() {
+        return archived;
+    }
+
+    public void setArchived(Boolean archived) {
+        this.archived = archived;
+    }
+
+    public DateTime getCreated() {
+        return created;
+    }
+
+    public void setCreated(DateTime created) {
+        this.created = created;
+    }
+
+    public DateTime getUpdated() {
+        return updated;
+    }
+
+    public void setUpdated(DateTime updated) {
+        this.updated = updated;
+    }
+
+    public String getNotes() {
+        return notes;
+    }
+
+    public void setNotes(String notes) {
+        this.notes = notes;
+    }
+
+}
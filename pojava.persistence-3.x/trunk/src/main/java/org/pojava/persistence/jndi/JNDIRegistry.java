@@ -16,6 +16,8 @@ package org.pojava.persistence.jndi;
  limitations under the License.
  */
 
+import org.pojava.persistence.sql.DatabaseCache;
+
 import javax.naming.Context;
 import javax.naming.InitialContext;
 import javax.naming.NamingException;
@@ -134,7 +136,8 @@ public class JNDIRegistry {
     }
 
     /**
-     * Extract a JDBC DataSource from a property object.
+     * Extract a JDBC DataSource from a property object. If "${dsName}.pool.maxSize" is
+     * specified, the DataSource is wrapped in a PooledDataSource.
      * @param props Properties retrieved from a property file
      * @param dsName Name identifying a DataSource
      * @return DataSource
@@ -146,7 +149,7 @@ public class JNDIRegistry {
         String password=props.getProperty(dsName + ".password");
         String driver=props.getProperty(dsName + ".driver");
         Class.forName(driver);
-        return new DriverManagerDataSource(url, user, password);
+        return PooledDataSource.configure(props, dsName, new DriverManagerDataSource(url, user, password));
     }
 
     /**
@@ -165,6 +168,7 @@ public class JNDIRegistry {
         Context context=JNDIRegistry.getInitialContext();
         for (String propName : propNames) {
             DataSource ds = extractDataSource(dataSourceProps, propName);
+            DatabaseCache.configureStatementCache(dataSourceProps, propName);
             context.bind("java:comp/env/jdbc/" + propName, ds);
         }
     }
@@ -0,0 +1,457 @@
+package org.pojava.persistence.jndi;
+
+/*
+ Copyright 2008-14 John Pile
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Executor;
+import java.util.logging.Logger;
+
+/**
+ * A PoolConnection is the borrower's view of a pooled physical connection. Closing it returns
+ * the physical connection to its PooledDataSource rather than closing it, after closing the
+ * statements created through it, so that no borrower can execute on a connection lent to the
+ * next. Those statements answer getConnection with this PoolConnection.
+ *
+ * @author John Pile
+ */
+final class PoolConnection implements Connection {
+
+    private final PooledDataSource pool;
+
+    private PooledDataSource.PoolEntry entry;
+
+    /**
+     * Flags for connection state the borrower changed, which must be reset on return.
+     */
+    private int dirty = 0;
+
+    /**
+     * Physical statements created through this connection and not yet closed.
+     */
+    private final List<Statement> statements = new ArrayList<Statement>();
+
+    private static final Logger logger = Logger.getLogger("persistence.PoolConnection");
+
+    PoolConnection(PooledDataSource pool, PooledDataSource.PoolEntry entry) {
+        this.pool = pool;
+        this.entry = entry;
+    }
+
+    /**
+     * Return the physical connection, or fail if this connection has been closed.
+     */
+    private Connection conn() throws SQLException {
+        PooledDataSource.PoolEntry current = entry;
+        if (current == null) {
+            throw new SQLException("Connection has already been returned to the pool.");
+        }
+        return current.conn;
+    }
+
+    /**
+     * Return the physical connection to the pool.
+     */
+    public void close() throws SQLException {
+        PooledDataSource.PoolEntry current;
+        Statement[] open;
+        synchronized (this) {
+            current = entry;
+            entry = null;
+            open = statements.toArray(new Statement[statements.size()]);
+            statements.clear();
+        }
+        for (int i = 0; i < open.length; i++) {
+            try {
+                open[i].close();
+            } catch (SQLException ex) {
+                logger.warning("Failed to close a statement left open: " + ex.getMessage());
+            }
+        }
+        if (current != null) {
+            pool.release(current, dirty);
+        }
+    }
+
+    /**
+     * Track a physical statement, handing out a view of it belonging to this connection.
+     */
+    private <S extends Statement> S track(S stmt, Class<S> type) {
+        synchronized (this) {
+            statements.add(stmt);
+        }
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type},
+                new StatementHandler(stmt)));
+    }
+
+    private synchronized void untrack(Statement stmt) {
+        statements.remove(stmt);
+    }
+
+    /**
+     * Passes calls to a physical statement, answering getConnection with this connection and
+     * forgetting the statement once it is closed.
+     */
+    private final class StatementHandler implements InvocationHandler {
+
+        private final Statement stmt;
+
+        StatementHandler(Statement stmt) {
+            this.stmt = stmt;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            int arity = args == null ? 0 : args.length;
+            if (arity == 0 && name.equals("getConnection")) {
+                return PoolConnection.this;
+            }
+            if (arity == 1 && name.equals("equals")) {
+                return Boolean.valueOf(proxy == args[0]);
+            }
+            if (arity == 0 && name.equals("hashCode")) {
+                return Integer.valueOf(System.identityHashCode(proxy));
+            }
+            if (arity == 0 && name.equals("close")) {
+                untrack(stmt);
+            }
+            try {
+                return method.invoke(stmt, args);
+            } catch (InvocationTargetException ex) {
+                throw ex.getCause();
+            }
+        }
+    }
+
+    /**
+     * Return true if this connection has been returned or the physical connection is closed.
+     */
+    public boolean isClosed() throws SQLException {
+        PooledDataSource.PoolEntry current = entry;
+        return current == null || current.conn.isClosed();
+    }
+
+    public void abort(Executor executor) throws SQLException {
+        conn().abort(executor);
+    }
+
+    public void clearWarnings() throws SQLException {
+        conn().clearWarnings();
+    }
+
+    public void commit() throws SQLException {
+        conn().commit();
+    }
+
+    public Array createArrayOf(String typeName, Object[] elements) throws SQLException {
+        return conn().createArrayOf(typeName, elements);
+    }
+
+    public Blob createBlob() throws SQLException {
+        return conn().createBlob();
+    }
+
+    public Clob createClob() throws SQLException {
+        return conn().createClob();
+    }
+
+    public NClob createNClob() throws SQLException {
+        return conn().createNClob();
+    }
+
+    public SQLXML createSQLXML() throws SQLException {
+        return conn().createSQLXML();
+    }
+
+    public Statement createStatement() throws SQLException {
+        return track(conn().createStatement(), Statement.class);
+    }
+
+    public Statement createStatement(int resultSetType, int resultSetConcurrency)
+            throws SQLException {
+        return track(conn().createStatement(resultSetType, resultSetConcurrency), Statement.class);
+    }
+
+    public Statement createStatement(int resultSetType, int resultSetConcurrency,
+                                     int resultSetHoldability) throws SQLException {
+        return track(conn().createStatement(resultSetType, resultSetConcurrency,
+                resultSetHoldability), Statement.class);
+    }
+
+    public Struct createStruct(String typeName, Object[] attributes) throws SQLException {
+        return conn().createStruct(typeName, attributes);
+    }
+
+    public boolean getAutoCommit() throws SQLException {
+        return conn().getAutoCommit();
+    }
+
+    public String getCatalog() throws SQLException {
+        return conn().getCatalog();
+    }
+
+    public Properties getClientInfo() throws SQLException {
+        return conn().getClientInfo();
+    }
+
+    public String getClientInfo(String name) throws SQLException {
+        return conn().getClientInfo(name);
+    }
+
+    public int getHoldability() throws SQLException {
+        return conn().getHoldability();
+    }
+
+    public DatabaseMetaData getMetaData() throws SQLException {
+        return conn().getMetaData();
+    }
+
+    public int getNetworkTimeout() throws SQLException {
+        return conn().getNetworkTimeout();
+    }
+
+    public String getSchema() throws SQLException {
+        return conn().getSchema();
+    }
+
+    public int getTransactionIsolation() throws SQLException {
+        return conn().getTransactionIsolation();
+    }
+
+    public Map<String, Class<?>> getTypeMap() throws SQLException {
+        return conn().getTypeMap();
+    }
+
+    public SQLWarning getWarnings() throws SQLException {
+        return conn().getWarnings();
+    }
+
+    public boolean isReadOnly() throws SQLException {
+        return conn().isReadOnly();
+    }
+
+    public boolean isValid(int timeout) throws SQLException {
+        return conn().isValid(timeout);
+    }
+
+    public String nativeSQL(String sql) throws SQLException {
+        return conn().nativeSQL(sql);
+    }
+
+    public CallableStatement prepareCall(String sql) throws SQLException {
+        return track(conn().prepareCall(sql), CallableStatement.class);
+    }
+
+    public CallableStatement prepareCall(String sql, int resultSetType, int resultSetConcurrency)
+            throws SQLException {
+        return track(conn().prepareCall(sql, resultSetType, resultSetConcurrency),
+                CallableStatement.class);
+    }
+
+    public CallableStatement prepareCall(String sql, int resultSetType,
+                                         int resultSetConcurrency, int resultSetHoldability) throws SQLException {
+        return track(conn().prepareCall(sql, resultSetType, resultSetConcurrency,
+                resultSetHoldability), CallableStatement.class);
+    }
+
+    public PreparedStatement prepareStatement(String sql) throws SQLException {
+        return track(conn().prepareStatement(sql), PreparedStatement.class);
+    }
+
+    public PreparedStatement prepareStatement(String sql, int autoGeneratedKeys)
+            throws SQLException {
+        return track(conn().prepareStatement(sql, autoGeneratedKeys), PreparedStatement.class);
+    }
+
+    public PreparedStatement prepareStatement(String sql, int[] columnIndexes)
+            throws SQLException {
+        return track(conn().prepareStatement(sql, columnIndexes), PreparedStatement.class);
+    }
+
+    public PreparedStatement prepareStatement(String sql, String[] columnNames)
+            throws SQLException {
+        return track(conn().prepareStatement(sql, columnNames), PreparedStatement.class);
+    }
+
+    public PreparedStatement prepareStatement(String sql, int resultSetType,
+                                              int resultSetConcurrency) throws SQLException {
+        return track(conn().prepareStatement(sql, resultSetType, resultSetConcurrency),
+                PreparedStatement.class);
+    }
+
+    public PreparedStatement prepareStatement(String sql, int resultSetType,
+                                              int resultSetConcurrency, int resultSetHoldability) throws SQLException {
+        return track(conn().prepareStatement(sql, resultSetType, resultSetConcurrency,
+                resultSetHoldability), PreparedStatement.class);
+    }
+
+    public void releaseSavepoint(Savepoint savepoint) throws SQLException {
+        conn().releaseSavepoint(savepoint);
+    }
+
+    public void rollback() throws SQLException {
+        conn().rollback();
+    }
+
+    public void rollback(Savepoint savepoint) throws SQLException {
+        conn().rollback(savepoint);
+    }
+
+    public void setAutoCommit(boolean autoCommit) throws SQLException {
+        dirty |= PooledDataSource.AUTOCOMMIT_CHANGED;
+        conn().setAutoCommit(autoCommit);
+    }
+
+    public void setCatalog(String catalog) throws SQLException {
+        dirty |= PooledDataSource.CATALOG_CHANGED;
+        conn().setCatalog(catalog);
+    }
+
+    public void setClientInfo(Properties properties) throws SQLClientInfoException {
+        PooledDataSource.PoolEntry current = entry;
+        if (current == null) {
+            throw new SQLClientInfoException();
+        }
+        dirty |= PooledDataSource.CLIENT_INFO_CHANGED;
+        current.conn.setClientInfo(properties);
+    }
+
+    public void setClientInfo(String name, String value) throws SQLClientInfoException {
+        PooledDataSource.PoolEntry current = entry;
+        if (current == null) {
+            throw new SQLClientInfoException();
+        }
+        dirty |= PooledDataSource.CLIENT_INFO_CHANGED;
+        current.conn.setClientInfo(name, value);
+    }
+
+    public void setHoldability(int holdability) throws SQLException {
+        dirty |= PooledDataSource.HOLDABILITY_CHANGED;
+        conn().setHoldability(holdability);
+    }
+
+    public void setNetworkTimeout(Executor executor, int milliseconds) throws SQLException {
+        conn().setNetworkTimeout(executor, milliseconds);
+    }
+
+    public void setReadOnly(boolean readOnly) throws SQLException {
+        dirty |= PooledDataSource.READONLY_CHANGED;
+        conn().setReadOnly(readOnly);
+    }
+
+    public Savepoint setSavepoint() throws SQLException {
+        return conn().setSavepoint();
+    }
+
+    public Savepoint setSavepoint(String name) throws SQLException {
+        return conn().setSavepoint(name);
+    }
+
+    public void setSchema(String schema) throws SQLException {
+        dirty |= PooledDataSource.SCHEMA_CHANGED;
+        conn().setSchema(schema);
+    }
+
+    public void setTransactionIsolation(int level) throws SQLException {
+        dirty |= PooledDataSource.ISOLATION_CHANGED;
+        conn().setTransactionIsolation(level);
+    }
+
+    public void setTypeMap(Map<String, Class<?>> map) throws SQLException {
+        dirty |= PooledDataSource.TYPE_MAP_CHANGED;
+        conn().setTypeMap(map);
+    }
+
+    public boolean isWrapperFor(Class<?> type) throws SQLException {
+        return type.isInstance(this) || conn().isWrapperFor(type);
+    }
+
+    /**
+     * Return this connection, or a view of the driver's connection implementing a vendor
+     * interface. The view is closed with this connection, and its close method returns the
+     * physical connection to the pool, so that the borrower cannot close it under the pool.
+     */
+    public <T> T unwrap(Class<T> type) throws SQLException {
+        if (type.isInstance(this)) {
+            return type.cast(this);
+        }
+        Connection conn = conn();
+        Object target = type.isInstance(conn) ? conn : conn.unwrap(type);
+        if (!(target instanceof Connection)) {
+            return type.cast(target);
+        }
+        if (!type.isInterface()) {
+            throw new SQLException("Cannot unwrap a pooled connection to " + type.getName()
+                    + "; unwrap to an interface instead.");
+        }
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type},
+                new UnwrappedHandler(target)));
+    }
+
+    /**
+     * Passes calls to the driver's connection while it is borrowed, returning it to the pool
+     * rather than closing it.
+     */
+    private final class UnwrappedHandler implements InvocationHandler {
+
+        private final Object target;
+
+        UnwrappedHandler(Object target) {
+            this.target = target;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            int arity = args == null ? 0 : args.length;
+            if (arity == 1 && name.equals("equals")) {
+                return Boolean.valueOf(proxy == args[0]);
+            }
+            if (arity == 0 && name.equals("hashCode")) {
+                return Integer.valueOf(System.identityHashCode(proxy));
+            }
+            if (arity == 0 && name.equals("close")) {
+                PoolConnection.this.close();
+                return null;
+            }
+            if (arity == 0 && name.equals("isClosed")) {
+                return Boolean.valueOf(PoolConnection.this.isClosed());
+            }
+            conn();
+            try {
+                return method.invoke(target, args);
+            } catch (InvocationTargetException ex) {
+                throw ex.getCause();
+            }
+        }
+    }
+
+    /**
+     * Identifies the underlying physical connection.
+     */
+    public String toString() {
+        PooledDataSource.PoolEntry current = entry;
+        return "PoolConnection[" + (current == null ? "returned" : current.conn.toString()) + "]";
+    }
+
+}
@@ -0,0 +1,744 @@
+package org.pojava.persistence.jndi;
+
+/*
+ Copyright 2008-14 John Pile
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+import javax.sql.DataSource;
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * PooledDataSource keeps a bounded set of physical connections from another DataSource (such
+ * as a DriverManagerDataSource) open for reuse.
+ * <p/>
+ * Borrowing first tries a non-blocking permit and an idle connection, so an uncontended borrow
+ * never takes a lock. When the pool is exhausted, callers wait in arrival order for up to
+ * borrowTimeout milliseconds. Idle connections are validated on borrow, and connections that
+ * sit idle too long or outlive their maximum lifetime are evicted by a background thread.
+ * <p/>
+ * Closing a Connection obtained from this DataSource returns it to the pool.
+ *
+ * @author John Pile
+ */
+public class PooledDataSource implements DataSource {
+
+    private static Logger LOGGER = Logger.getLogger("org.pojava.persistence.jndi.PooledDataSource");
+
+    /**
+     * Property suffixes recognized by configure(), each prefixed by "${dsName}.pool."
+     */
+    public static final String MAX_SIZE = "maxSize";
+    public static final String BORROW_TIMEOUT = "borrowTimeout";
+    public static final String IDLE_TIMEOUT = "idleTimeout";
+    public static final String MAX_LIFETIME = "maxLifetime";
+    public static final String VALIDATION_QUERY = "validationQuery";
+    public static final String VALIDATION_TIMEOUT = "validationTimeout";
+    public static final String VALIDATION_INTERVAL = "validationInterval";
+    public static final String EVICTION_INTERVAL = "evictionInterval";
+
+    /**
+     * Flags marking connection state altered by a borrower.
+     */
+    static final int AUTOCOMMIT_CHANGED = 1;
+    static final int READONLY_CHANGED = 2;
+    static final int ISOLATION_CHANGED = 4;
+    static final int CATALOG_CHANGED = 8;
+    static final int SCHEMA_CHANGED = 16;
+    static final int HOLDABILITY_CHANGED = 32;
+    static final int TYPE_MAP_CHANGED = 64;
+    static final int CLIENT_INFO_CHANGED = 128;
+
+    /**
+     * The DataSource producing physical connections.
+     */
+    private final DataSource source;
+    /**
+     * Maximum number of physical connections, borrowed or idle.
+     */
+    private final int maxSize;
+    /**
+     * One permit per connection that may be borrowed. Fair, so waiters are served in order.
+     */
+    private final Semaphore permits;
+    /**
+     * Connections ready to be borrowed.
+     */
+    private final ConcurrentLinkedQueue<PoolEntry> idle = new ConcurrentLinkedQueue<PoolEntry>();
+
+    /**
+     * Milliseconds to wait for a connection before giving up.
+     */
+    private volatile long borrowTimeout = 30000;
+    /**
+     * Milliseconds a connection may sit idle before it is evicted (0=never).
+     */
+    private volatile long idleTimeout = 600000;
+    /**
+     * Milliseconds a physical connection may live before it is retired (0=forever).
+     */
+    private volatile long maxLifetime = 1800000;
+    /**
+     * Query used to validate a connection. When null, Connection.isValid is used.
+     */
+    private volatile String validationQuery = null;
+    /**
+     * Seconds allowed for validation.
+     */
+    private volatile int validationTimeout = 5;
+    /**
+     * Connections returned more recently than this many milliseconds are not re-validated.
+     */
+    private volatile long validationInterval = 0;
+    /**
+     * Milliseconds between eviction sweeps (0=no background eviction).
+     */
+    private volatile long evictionInterval = 30000;
+
+    private final AtomicInteger activeCount = new AtomicInteger();
+    private final AtomicInteger idleCount = new AtomicInteger();
+    private final AtomicLong borrowCount = new AtomicLong();
+    private final AtomicLong borrowNanos = new AtomicLong();
+    private final AtomicLong maxBorrowNanos = new AtomicLong();
+    private final AtomicLong timeoutCount = new AtomicLong();
+    private final AtomicLong createdCount = new AtomicLong();
+    private final AtomicLong destroyedCount = new AtomicLong();
+
+    private ScheduledExecutorService evictor = null;
+    private volatile boolean closed = false;
+
+    /**
+     * Create a pool holding at most maxSize connections from the given DataSource.
+     *
+     * @param source  DataSource producing physical connections
+     * @param maxSize maximum number of connections
+     */
+    public PooledDataSource(DataSource source, int maxSize) {
+        if (source == null) {
+            throw new IllegalArgumentException("Cannot pool a null DataSource.");
+        }
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("Pool maxSize must be at least 1.");
+        }
+        this.source = source;
+        this.maxSize = maxSize;
+        this.permits = new Semaphore(maxSize, true);
+    }
+
+    /**
+     * Wrap a DataSource in a pool if "${dsName}.pool.maxSize" is present in the properties.
+     * Other settings are read from "${dsName}.pool.borrowTimeout", "idleTimeout",
+     * "maxLifetime", "validationQuery", "validationTimeout", "validationInterval" and
+     * "evictionInterval".
+     *
+     * @param props  Properties retrieved from a property file
+     * @param dsName Name identifying a DataSource
+     * @param ds     DataSource producing physical connections
+     * @return a PooledDataSource, or the original DataSource if no pool is configured
+     */
+    public static DataSource configure(Properties props, String dsName, DataSource ds) {
+        String prefix = dsName.trim() + ".pool.";
+        String size = props.getProperty(prefix + MAX_SIZE);
+        if (size == null || size.trim().length() == 0) {
+            return ds;
+        }
+        PooledDataSource pool = new PooledDataSource(ds, Integer.parseInt(size.trim()));
+        String value = props.getProperty(prefix + BORROW_TIMEOUT);
+        if (value != null) {
+            pool.setBorrowTimeout(Long.parseLong(value.trim()));
+        }
+        value = props.getProperty(prefix + IDLE_TIMEOUT);
+        if (value != null) {
+            pool.setIdleTimeout(Long.parseLong(value.trim()));
+        }
+        value = props.getProperty(prefix + MAX_LIFETIME);
+        if (value != null) {
+            pool.setMaxLifetime(Long.parseLong(value.trim()));
+        }
+        value = props.getProperty(prefix + VALIDATION_QUERY);
+        if (value != null && value.trim().length() > 0) {
+            pool.setValidationQuery(value.trim());
+        }
+        value = props.getProperty(prefix + VALIDATION_TIMEOUT);
+        if (value != null) {
+            pool.setValidationTimeout(Integer.parseInt(value.trim()));
+        }
+        value = props.getProperty(prefix + VALIDATION_INTERVAL);
+        if (value != null) {
+            pool.setValidationInterval(Long.parseLong(value.trim()));
+        }
+        value = props.getProperty(prefix + EVICTION_INTERVAL);
+        if (value != null) {
+            pool.setEvictionInterval(Long.parseLong(value.trim()));
+        }
+        return pool;
+    }
+
+    /**
+     * Borrow a connection from the pool, waiting up to borrowTimeout if none are available.
+     */
+    public Connection getConnection() throws SQLException {
+        if (closed) {
+            throw new SQLException("PooledDataSource has been closed.");
+        }
+        long start = System.nanoTime();
+        acquirePermit();
+        try {
+            PoolEntry entry = borrowIdle();
+            if (entry == null) {
+                entry = create();
+            }
+            activeCount.incrementAndGet();
+            recordBorrow(System.nanoTime() - start);
+            return new PoolConnection(this, entry);
+        } catch (SQLException ex) {
+            permits.release();
+            throw ex;
+        } catch (RuntimeException ex) {
+            permits.release();
+            throw ex;
+        }
+    }
+
+    /**
+     * Connections for a specific user bypass the pool.
+     */
+    public Connection getConnection(String userName, String password) throws SQLException {
+        return source.getConnection(userName, password);
+    }
+
+    /**
+     * Take a permit, first without waiting, then waiting in line. Both attempts are timed, as
+     * an untimed tryAcquire would let a new arrival take a permit ahead of the queued waiters.
+     *
+     * @throws SQLException if no connection became available within borrowTimeout
+     */
+    private void acquirePermit() throws SQLException {
+        try {
+            if (permits.tryAcquire(0, TimeUnit.MILLISECONDS)) {
+                return;
+            }
+            ensureEvictor();
+            if (permits.tryAcquire(borrowTimeout, TimeUnit.MILLISECONDS)) {
+                return;
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a pooled connection.");
+        }
+        timeoutCount.incrementAndGet();
+        throw new SQLException("Timed out after " + borrowTimeout
+                + "ms waiting for a pooled connection (maxSize=" + maxSize + ").");
+    }
+
+    /**
+     * Poll the idle queue for a live connection, discarding any that are stale or invalid.
+     *
+     * @return a usable entry, or null if none are idle
+     */
+    private PoolEntry borrowIdle() {
+        PoolEntry entry;
+        while ((entry = idle.poll()) != null) {
+            idleCount.decrementAndGet();
+            long now = System.currentTimeMillis();
+            if (isExpired(entry, now) || !isValid(entry, now)) {
+                destroy(entry);
+            } else {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Open a new physical connection.
+     *
+     * @return new entry
+     * @throws SQLException
+     */
+    private PoolEntry create() throws SQLException {
+        ensureEvictor();
+        Connection conn = source.getConnection();
+        createdCount.incrementAndGet();
+        try {
+            return new PoolEntry(conn);
+        } catch (SQLException ex) {
+            discard(conn);
+            throw ex;
+        } catch (RuntimeException ex) {
+            discard(conn);
+            throw ex;
+        }
+    }
+
+    /**
+     * Close a physical connection that never entered the pool.
+     */
+    private void discard(Connection conn) {
+        destroyedCount.incrementAndGet();
+        try {
+            conn.close();
+        } catch (SQLException ex) {
+            LOGGER.log(Level.FINE, "Failed to close connection.", ex);
+        }
+    }
+
+    /**
+     * Called when a PoolConnection is closed.
+     *
+     * @param entry the entry being returned
+     * @param dirty flags for connection state altered by the borrower
+     */
+    void release(PoolEntry entry, int dirty) {
+        activeCount.decrementAndGet();
+        try {
+            long now = System.currentTimeMillis();
+            if (closed || isExpired(entry, now) || !reset(entry, dirty)) {
+                destroy(entry);
+            } else {
+                entry.lastUsed = now;
+                idleCount.incrementAndGet();
+                idle.offer(entry);
+            }
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * Restore a connection to the defaults it had when created.
+     *
+     * @return false if the connection could not be reset
+     */
+    private boolean reset(PoolEntry entry, int dirty) {
+        Connection conn = entry.conn;
+        try {
+            if (conn.isClosed()) {
+                return false;
+            }
+            if (!conn.getAutoCommit()) {
+                // Discard anything the borrower neither committed nor rolled back.
+                conn.rollback();
+            }
+            if ((dirty & entry.unknown) != 0) {
+                // State was changed whose original value the driver would not report.
+                return false;
+            }
+            if ((dirty & AUTOCOMMIT_CHANGED) != 0 && conn.getAutoCommit() != entry.autoCommit) {
+                conn.setAutoCommit(entry.autoCommit);
+            }
+            if ((dirty & READONLY_CHANGED) != 0) {
+                conn.setReadOnly(entry.readOnly);
+            }
+            if ((dirty & ISOLATION_CHANGED) != 0) {
+                conn.setTransactionIsolation(entry.isolation);
+            }
+            if ((dirty & CATALOG_CHANGED) != 0) {
+                conn.setCatalog(entry.catalog);
+            }
+            if ((dirty & SCHEMA_CHANGED) != 0) {
+                conn.setSchema(entry.schema);
+            }
+            if ((dirty & HOLDABILITY_CHANGED) != 0) {
+                conn.setHoldability(entry.holdability);
+            }
+            if ((dirty & TYPE_MAP_CHANGED) != 0) {
+                conn.setTypeMap(entry.typeMap);
+            }
+            if ((dirty & CLIENT_INFO_CHANGED) != 0) {
+                conn.setClientInfo(entry.clientInfo);
+            }
+            conn.clearWarnings();
+            return true;
+        } catch (SQLException ex) {
+            LOGGER.log(Level.FINE, "Discarding connection that could not be reset.", ex);
+            return false;
+        }
+    }
+
+    private boolean isExpired(PoolEntry entry, long now) {
+        return (maxLifetime > 0 && now - entry.created >= maxLifetime)
+                || (idleTimeout > 0 && now - entry.lastUsed >= idleTimeout);
+    }
+
+    /**
+     * Validate a connection unless it was returned within the validationInterval.
+     */
+    private boolean isValid(PoolEntry entry, long now) {
+        if (validationInterval > 0 && now - entry.lastUsed < validationInterval) {
+            return true;
+        }
+        try {
+            if (validationQuery == null) {
+                return entry.conn.isValid(validationTimeout);
+            }
+            Statement stmt = entry.conn.createStatement();
+            try {
+                stmt.setQueryTimeout(validationTimeout);
+                stmt.execute(validationQuery);
+            } finally {
+                stmt.close();
+            }
+            return true;
+        } catch (SQLException ex) {
+            LOGGER.log(Level.FINE, "Pooled connection failed validation.", ex);
+            return false;
+        } catch (AbstractMethodError err) {
+            // Pre-JDBC4 driver without isValid; trust the connection.
+            return true;
+        }
+    }
+
+    private void destroy(PoolEntry entry) {
+        destroyedCount.incrementAndGet();
+        try {
+            entry.conn.close();
+        } catch (SQLException ex) {
+            LOGGER.log(Level.FINE, "Failed to close pooled connection.", ex);
+        }
+    }
+
+    /**
+     * Track borrow latency without locking.
+     */
+    private void recordBorrow(long nanos) {
+        borrowCount.incrementAndGet();
+        borrowNanos.addAndGet(nanos);
+        long max = maxBorrowNanos.get();
+        while (nanos > max && !maxBorrowNanos.compareAndSet(max, nanos)) {
+            max = maxBorrowNanos.get();
+        }
+    }
+
+    /**
+     * Remove idle connections that have expired.
+     */
+    void evict() {
+        long now = System.currentTimeMillis();
+        for (Iterator<PoolEntry> it = idle.iterator(); it.hasNext(); ) {
+            PoolEntry entry = it.next();
+            // remove() only succeeds for one thread, so a borrower cannot also claim it.
+            if (isExpired(entry, now) && idle.remove(entry)) {
+                idleCount.decrementAndGet();
+                destroy(entry);
+            }
+        }
+    }
+
+    /**
+     * Start the background eviction thread on first use.
+     */
+    private synchronized void ensureEvictor() {
+        if (evictor != null || evictionInterval <= 0 || closed) {
+            return;
+        }
+        evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "PooledDataSource-evictor");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        evictor.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    evict();
+                } catch (RuntimeException ex) {
+                    LOGGER.log(Level.WARNING, "Pool eviction failed.", ex);
+                }
+            }
+        }, evictionInterval, evictionInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Close all idle connections and stop the evictor. Borrowed connections are closed as
+     * they are returned.
+     */
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            if (evictor != null) {
+                evictor.shutdownNow();
+                evictor = null;
+            }
+        }
+        PoolEntry entry;
+        while ((entry = idle.poll()) != null) {
+            idleCount.decrementAndGet();
+            destroy(entry);
+        }
+    }
+
+    /**
+     * @return the DataSource producing physical connections
+     */
+    public DataSource getSource() {
+        return source;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public long getBorrowTimeout() {
+        return borrowTimeout;
+    }
+
+    public void setBorrowTimeout(long borrowTimeout) {
+        this.borrowTimeout = borrowTimeout;
+    }
+
+    public long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    public void setIdleTimeout(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    public long getMaxLifetime() {
+        return maxLifetime;
+    }
+
+    public void setMaxLifetime(long maxLifetime) {
+        this.maxLifetime = maxLifetime;
+    }
+
+    public String getValidationQuery() {
+        return validationQuery;
+    }
+
+    public void setValidationQuery(String validationQuery) {
+        this.validationQuery = validationQuery;
+    }
+
+    public int getValidationTimeout() {
+        return validationTimeout;
+    }
+
+    public void setValidationTimeout(int validationTimeout) {
+        this.validationTimeout = validationTimeout;
+    }
+
+    public long getValidationInterval() {
+        return validationInterval;
+    }
+
+    public void setValidationInterval(long validationInterval) {
+        this.validationInterval = validationInterval;
+    }
+
+    public long getEvictionInterval() {
+        return evictionInterval;
+    }
+
+    /**
+     * Set the milliseconds between eviction sweeps. Takes effect before the first borrow.
+     */
+    public void setEvictionInterval(long evictionInterval) {
+        this.evictionInterval = evictionInterval;
+    }
+
+    /**
+     * @return number of connections currently borrowed
+     */
+    public int getActiveCount() {
+        return activeCount.get();
+    }
+
+    /**
+     * @return number of connections waiting in the pool
+     */
+    public int getIdleCount() {
+        return idleCount.get();
+    }
+
+    /**
+     * @return approximate number of threads waiting for a connection
+     */
+    public int getWaitingCount() {
+        return permits.getQueueLength();
+    }
+
+    /**
+     * @return number of successful borrows
+     */
+    public long getBorrowCount() {
+        return borrowCount.get();
+    }
+
+    /**
+     * @return total nanoseconds spent in successful borrows
+     */
+    public long getBorrowNanos() {
+        return borrowNanos.get();
+    }
+
+    /**
+     * @return the slowest successful borrow in nanoseconds
+     */
+    public long getMaxBorrowNanos() {
+        return maxBorrowNanos.get();
+    }
+
+    /**
+     * @return number of borrows that timed out
+     */
+    public long getTimeoutCount() {
+        return timeoutCount.get();
+    }
+
+    /**
+     * @return number of physical connections opened
+     */
+    public long getCreatedCount() {
+        return createdCount.get();
+    }
+
+    /**
+     * @return number of physical connections closed by the pool
+     */
+    public long getDestroyedCount() {
+        return destroyedCount.get();
+    }
+
+    public int getLoginTimeout() throws SQLException {
+        return source.getLoginTimeout();
+    }
+
+    public void setLoginTimeout(int seconds) throws SQLException {
+        source.setLoginTimeout(seconds);
+    }
+
+    public PrintWriter getLogWriter() throws SQLException {
+        return source.getLogWriter();
+    }
+
+    public void setLogWriter(PrintWriter logWriter) throws SQLException {
+        source.setLogWriter(logWriter);
+    }
+
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        return LOGGER;
+    }
+
+    /**
+     * Unwrap to this pool or the DataSource it wraps.
+     */
+    public <T> T unwrap(Class<T> type) throws SQLException {
+        if (type.isInstance(this)) {
+            return type.cast(this);
+        }
+        return source.unwrap(type);
+    }
+
+    public boolean isWrapperFor(Class<?> type) throws SQLException {
+        return type.isInstance(this) || source.isWrapperFor(type);
+    }
+
+    /**
+     * A physical connection along with the state it had when it was opened.
+     */
+    static final class PoolEntry {
+        final Connection conn;
+        final long created;
+        final boolean autoCommit;
+        final boolean readOnly;
+        final int isolation;
+        final String catalog;
+        final String schema;
+        final int holdability;
+        final Map<String, Class<?>> typeMap;
+        final Properties clientInfo;
+        /**
+         * Flags for state whose original value could not be read, so cannot be reset.
+         */
+        final int unknown;
+        volatile long lastUsed;
+
+        PoolEntry(Connection conn) throws SQLException {
+            this.conn = conn;
+            this.created = System.currentTimeMillis();
+            this.lastUsed = this.created;
+            this.autoCommit = conn.getAutoCommit();
+            this.readOnly = conn.isReadOnly();
+            this.isolation = conn.getTransactionIsolation();
+            int missing = 0;
+            String originalCatalog = null;
+            try {
+                originalCatalog = conn.getCatalog();
+            } catch (SQLException ex) {
+                // Left null, and marked unknown below.
+            }
+            if (originalCatalog == null) {
+                missing |= CATALOG_CHANGED;
+            }
+            String originalSchema = null;
+            try {
+                originalSchema = conn.getSchema();
+            } catch (SQLException ex) {
+                // Left null, and marked unknown below.
+            } catch (AbstractMethodError ex) {
+                // A driver older than JDBC 4.1.
+            }
+            if (originalSchema == null) {
+                missing |= SCHEMA_CHANGED;
+            }
+            int originalHoldability = 0;
+            try {
+                originalHoldability = conn.getHoldability();
+            } catch (SQLException ex) {
+                missing |= HOLDABILITY_CHANGED;
+            }
+            Map<String, Class<?>> originalTypeMap = null;
+            try {
+                originalTypeMap = conn.getTypeMap();
+            } catch (SQLException ex) {
+                missing |= TYPE_MAP_CHANGED;
+            }
+            Properties originalClientInfo = null;
+            try {
+                originalClientInfo = conn.getClientInfo();
+            } catch (SQLException ex) {
+                missing |= CLIENT_INFO_CHANGED;
+            }
+            this.catalog = originalCatalog;
+            this.schema = originalSchema;
+            this.holdability = originalHoldability;
+            this.typeMap = originalTypeMap == null ? new HashMap<String, Class<?>>()
+                    : new HashMap<String, Class<?>>(originalTypeMap);
+            this.clientInfo = originalClientInfo == null ? new Properties() : originalClientInfo;
+            this.unknown = missing;
+        }
+    }
+
+}
@@ -0,0 +1,408 @@
+package org.pojava.persistence.processor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A ColumnBatch holds the rows of a query column by column, each in a primitive array, so that
+ * millions of rows may be read without constructing an object per row. Integer columns are held
+ * as int or long, decimal columns as double, and character columns as int codes into a
+ * dictionary of the distinct strings seen. SQL NULL is recorded in a bitmap per column, and
+ * reads as zero (or null for a string).
+ *
+ * @author John Pile
+ */
+public class ColumnBatch {
+
+    /**
+     * Column held as int values.
+     */
+    public static final int INT = 0;
+
+    /**
+     * Column held as long values.
+     */
+    public static final int LONG = 1;
+
+    /**
+     * Column held as double values.
+     */
+    public static final int DOUBLE = 2;
+
+    /**
+     * Column held as codes into a dictionary of strings.
+     */
+    public static final int STRING = 3;
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final Column[] columns;
+
+    private final Map<String, Column> byName = new HashMap<String, Column>();
+
+    private int rows = 0;
+
+    /**
+     * Construct an empty batch of the given columns.
+     *
+     * @param names names of the columns
+     * @param types INT, LONG, DOUBLE or STRING for each column
+     */
+    public ColumnBatch(String[] names, int[] types) {
+        if (names.length != types.length) {
+            throw new IllegalArgumentException("Each column requires a name and a type.");
+        }
+        this.columns = new Column[names.length];
+        for (int i = 0; i < names.length; i++) {
+            columns[i] = new Column(names[i], types[i]);
+            byName.put(names[i].toLowerCase(Locale.ENGLISH), columns[i]);
+        }
+    }
+
+    /**
+     * Complete a row, once a value or null has been appended to every column.
+     */
+    void endRow() {
+        rows++;
+    }
+
+    /**
+     * @return number of rows held
+     */
+    public int getRowCount() {
+        return rows;
+    }
+
+    /**
+     * @return number of columns held
+     */
+    public int getColumnCount() {
+        return columns.length;
+    }
+
+    /**
+     * @param index position of the column, from zero
+     * @return the column
+     */
+    public Column getColumn(int index) {
+        return columns[index];
+    }
+
+    /**
+     * @param name name of the column, in any case
+     * @return the column, or null if no column has that name
+     */
+    public Column getColumn(String name) {
+        return byName.get(name.toLowerCase(Locale.ENGLISH));
+    }
+
+    /**
+     * The values of one column, in a primitive array grown as rows are appended.
+     */
+    public static final class Column {
+
+        private final String name;
+
+        private final int type;
+
+        private int size = 0;
+
+        private int[] ints;
+
+        private long[] longs;
+
+        private double[] doubles;
+
+        private long[] nulls = new long[INITIAL_CAPACITY / 64];
+
+        private int nullCount = 0;
+
+        private List<String> dictionary;
+
+        private Map<String, Integer> codes;
+
+        Column(String name, int type) {
+            this.name = name;
+            this.type = type;
+            switch (type) {
+                case INT:
+                    ints = new int[INITIAL_CAPACITY];
+                    break;
+                case LONG:
+                    longs = new long[INITIAL_CAPACITY];
+                    break;
+                case DOUBLE:
+                    doubles = new double[INITIAL_CAPACITY];
+                    break;
+                case STRING:
+                    ints = new int[INITIAL_CAPACITY];
+                    dictionary = new ArrayList<String>();
+                    codes = new HashMap<String, Integer>();
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown column type " + type);
+            }
+        }
+
+        /**
+         * Make room for one more value.
+         */
+        private void grow() {
+            int capacity = type == LONG ? longs.length : type == DOUBLE ? doubles.length
+                    : ints.length;
+            if (size == capacity) {
+                capacity *= 2;
+                if (ints != null) {
+                    int[] larger = new int[capacity];
+                    System.arraycopy(ints, 0, larger, 0, size);
+                    ints = larger;
+                } else if (longs != null) {
+                    long[] larger = new long[capacity];
+                    System.arraycopy(longs, 0, larger, 0, size);
+                    longs = larger;
+                } else {
+                    double[] larger = new double[capacity];
+                    System.arraycopy(doubles, 0, larger, 0, size);
+                    doubles = larger;
+                }
+            }
+            if (size >> 6 >= nulls.length) {
+                long[] larger = new long[nulls.length * 2];
+                System.arraycopy(nulls, 0, larger, 0, nulls.length);
+                nulls = larger;
+            }
+        }
+
+        void appendInt(int value) {
+            grow();
+            ints[size++] = value;
+        }
+
+        void appendLong(long value) {
+            grow();
+            longs[size++] = value;
+        }
+
+        void appendDouble(double value) {
+            grow();
+            doubles[size++] = value;
+        }
+
+        void appendString(String value) {
+            if (value == null) {
+                appendNull();
+                return;
+            }
+            Integer code = codes.get(value);
+            if (code == null) {
+                code = Integer.valueOf(dictionary.size());
+                dictionary.add(value);
+                codes.put(value, code);
+            }
+            grow();
+            ints[size++] = code.intValue();
+        }
+
+        void appendNull() {
+            grow();
+            nulls[size >> 6] |= 1L << (size & 63);
+            nullCount++;
+            size++;
+        }
+
+        /**
+         * @return name of the column
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return INT, LONG, DOUBLE or STRING
+         */
+        public int getType() {
+            return type;
+        }
+
+        /**
+         * @param row position of the row, from zero
+         * @return true if the column is NULL in that row
+         */
+        public boolean isNull(int row) {
+            checkRow(row);
+            return (nulls[row >> 6] & (1L << (row & 63))) != 0;
+        }
+
+        /**
+         * @return number of rows in which the column is NULL
+         */
+        public int getNullCount() {
+            return nullCount;
+        }
+
+        /**
+         * @param row position of the row, from zero
+         * @return value of an INT column, or the dictionary code of a STRING column
+         */
+        public int getInt(int row) {
+            checkRow(row);
+            if (ints == null) {
+                throw new IllegalStateException("Column " + name + " is not held as int.");
+            }
+            return ints[row];
+        }
+
+        /**
+         * @param row position of the row, from zero
+         * @return value of an INT or LONG column
+         */
+        public long getLong(int row) {
+            checkRow(row);
+            if (type == INT) {
+                return ints[row];
+            }
+            if (type != LONG) {
+                throw new IllegalStateException("Column " + name + " is not held as long.");
+            }
+            return longs[row];
+        }
+
+        /**
+         * @param row position of the row, from zero
+         * @return value of an INT, LONG or DOUBLE column
+         */
+        public double getDouble(int row) {
+            checkRow(row);
+            if (type == DOUBLE) {
+                return doubles[row];
+            }
+            return getLong(row);
+        }
+
+        /**
+         * @param row position of the row, from zero
+         * @return value of a STRING column, or null
+         */
+        public String getString(int row) {
+            if (type != STRING) {
+                throw new IllegalStateException("Column " + name + " is not held as String.");
+            }
+            return isNull(row) ? null : dictionary.get(ints[row]);
+        }
+
+        /**
+         * @return distinct strings of a STRING column, indexed by code
+         */
+        public List<String> getDictionary() {
+            if (type != STRING) {
+                throw new IllegalStateException("Column " + name + " is not held as String.");
+            }
+            return Collections.unmodifiableList(dictionary);
+        }
+
+        /**
+         * @return copy of the values of an INT column, or the codes of a STRING column
+         */
+        public int[] toIntArray() {
+            if (ints == null) {
+                throw new IllegalStateException("Column " + name + " is not held as int.");
+            }
+            int[] copy = new int[size];
+            System.arraycopy(ints, 0, copy, 0, size);
+            return copy;
+        }
+
+        /**
+         * @return copy of the values of a LONG column
+         */
+        public long[] toLongArray() {
+            if (type != LONG) {
+                throw new IllegalStateException("Column " + name + " is not held as long.");
+            }
+            long[] copy = new long[size];
+            System.arraycopy(longs, 0, copy, 0, size);
+            return copy;
+        }
+
+        /**
+         * @return copy of the values of a DOUBLE column
+         */
+        public double[] toDoubleArray() {
+            if (type != DOUBLE) {
+                throw new IllegalStateException("Column " + name + " is not held as double.");
+            }
+            double[] copy = new double[size];
+            System.arraycopy(doubles, 0, copy, 0, size);
+            return copy;
+        }
+
+        /**
+         * @return least value of a numeric column, ignoring NULL, or NaN if there is none
+         */
+        public double min() {
+            double min = Double.NaN;
+            for (int row = 0; row < size; row++) {
+                if (!isNull(row)) {
+                    double value = getDouble(row);
+                    if (min != min || value < min) {
+                        min = value;
+                    }
+                }
+            }
+            return min;
+        }
+
+        /**
+         * @return greatest value of a numeric column, ignoring NULL, or NaN if there is none
+         */
+        public double max() {
+            double max = Double.NaN;
+            for (int row = 0; row < size; row++) {
+                if (!isNull(row)) {
+                    double value = getDouble(row);
+                    if (max != max || value > max) {
+                        max = value;
+                    }
+                }
+            }
+            return max;
+        }
+
+        /**
+         * @return sum of a numeric column, in which NULL counts as zero
+         */
+        public double sum() {
+            double sum = 0;
+            for (int row = 0; row < size; row++) {
+                sum += getDouble(row);
+            }
+            return sum;
+        }
+
+        /**
+         * @return exact sum of an INT or LONG column, in which NULL counts as zero
+         */
+        public long longSum() {
+            long sum = 0;
+            for (int row = 0; row < size; row++) {
+                sum += getLong(row);
+            }
+            return sum;
+        }
+
+        private void checkRow(int row) {
+            if (row < 0 || row >= size) {
+                throw new IndexOutOfBoundsException("Row " + row + " of " + size);
+            }
+        }
+
+        public String toString() {
+            return name + "[" + size + "]";
+        }
+    }
+
+}
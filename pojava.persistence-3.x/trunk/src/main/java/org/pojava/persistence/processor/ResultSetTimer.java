@@ -0,0 +1,21 @@
+package org.pojava.persistence.processor;
+
+/**
+ * A ResultSetTimer is a ResultSetProcessor that measures the time it spends waiting on the
+ * driver for rows apart from the time it spends extracting beans from them.
+ *
+ * @author John Pile
+ */
+public interface ResultSetTimer extends ResultSetProcessor {
+
+    /**
+     * @return nanoseconds spent advancing the ResultSet in the last call to process
+     */
+    long getFetchNanos();
+
+    /**
+     * @return nanoseconds spent extracting beans from rows in the last call to process
+     */
+    long getMappingNanos();
+
+}
@@ -0,0 +1,254 @@
+package org.pojava.persistence.processor;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+
+/**
+ * Process a data set into a ColumnBatch, reading each selected column with its typed getter
+ * straight into a primitive array, so that no object is constructed per row. DATE and
+ * TIMESTAMP columns are the exception: JDBC offers no getter of a date as a primitive, and
+ * drivers refuse getLong on them, so each such value is read as a Timestamp and kept as its
+ * milliseconds.
+ * <p/>
+ * Column types follow the SQL type: INTEGER, SMALLINT, TINYINT, BOOLEAN and BIT are held as
+ * int; BIGINT, and DATE and TIMESTAMP as milliseconds since the epoch, as long; NUMERIC and
+ * DECIMAL of scale zero and a declared precision of 1 to 18 digits as long, and other numbers,
+ * including those of unknown precision, as double; anything else as a string.
+ *
+ * @author John Pile
+ */
+public class ResultSetToColumns implements ResultSetTimer {
+
+    private static final int INT = 0;
+    private static final int BOOLEAN = 1;
+    private static final int LONG = 2;
+    private static final int TIMESTAMP = 3;
+    private static final int DOUBLE = 4;
+    private static final int STRING = 5;
+
+    private final String[] selected;
+
+    private ColumnBatch batch = null;
+
+    private long fetchNanos = 0;
+
+    private long mappingNanos = 0;
+
+    /**
+     * This processor reads every column of the result set.
+     */
+    public ResultSetToColumns() {
+        this.selected = null;
+    }
+
+    /**
+     * This processor reads the named columns of the result set.
+     *
+     * @param columns labels of the columns read, in any case
+     */
+    public ResultSetToColumns(String[] columns) {
+        if (columns == null || columns.length == 0) {
+            throw new IllegalArgumentException(
+                    "Cannot construct a ResultSetToColumns without columns.");
+        }
+        this.selected = columns;
+    }
+
+    /**
+     * Read each row into the columns of a new batch, timing this call alone.
+     */
+    public int process(ResultSet rs) throws SQLException {
+        ResultSetMetaData rsMeta = rs.getMetaData();
+        int[] positions = positions(rsMeta);
+        int[] readers = new int[positions.length];
+        int[] types = new int[positions.length];
+        String[] names = new String[positions.length];
+        for (int i = 0; i < positions.length; i++) {
+            names[i] = label(rsMeta, positions[i]);
+            readers[i] = chooseReader(rsMeta, positions[i]);
+            types[i] = columnType(readers[i]);
+        }
+        ColumnBatch columns = new ColumnBatch(names, types);
+        ColumnBatch.Column[] targets = new ColumnBatch.Column[positions.length];
+        for (int i = 0; i < targets.length; i++) {
+            targets[i] = columns.getColumn(i);
+        }
+        int rows = 0;
+        long fetching = 0;
+        long mapping = 0;
+        long start = System.nanoTime();
+        while (rs.next()) {
+            rows++;
+            long fetched = System.nanoTime();
+            for (int i = 0; i < positions.length; i++) {
+                read(rs, positions[i], readers[i], targets[i]);
+            }
+            columns.endRow();
+            fetching += fetched - start;
+            start = System.nanoTime();
+            mapping += start - fetched;
+        }
+        this.fetchNanos = fetching + System.nanoTime() - start;
+        this.mappingNanos = mapping;
+        this.batch = columns;
+        return rows;
+    }
+
+    /**
+     * Find the positions of the selected columns.
+     */
+    private int[] positions(ResultSetMetaData rsMeta) throws SQLException {
+        int cols = rsMeta.getColumnCount();
+        if (selected == null) {
+            int[] all = new int[cols];
+            for (int i = 0; i < cols; i++) {
+                all[i] = i + 1;
+            }
+            return all;
+        }
+        int[] found = new int[selected.length];
+        for (int i = 0; i < selected.length; i++) {
+            for (int column = 1; column <= cols && found[i] == 0; column++) {
+                if (label(rsMeta, column).equalsIgnoreCase(selected[i])) {
+                    found[i] = column;
+                }
+            }
+            if (found[i] == 0) {
+                throw new SQLException("Column " + selected[i] + " is not in the result set.");
+            }
+        }
+        return found;
+    }
+
+    private static String label(ResultSetMetaData rsMeta, int column) throws SQLException {
+        String label = rsMeta.getColumnLabel(column);
+        return label == null ? rsMeta.getColumnName(column) : label;
+    }
+
+    private static int chooseReader(ResultSetMetaData rsMeta, int column) throws SQLException {
+        switch (rsMeta.getColumnType(column)) {
+            case Types.INTEGER:
+            case Types.SMALLINT:
+            case Types.TINYINT:
+                return INT;
+            case Types.BOOLEAN:
+            case Types.BIT:
+                return BOOLEAN;
+            case Types.BIGINT:
+                return LONG;
+            case Types.DATE:
+            case Types.TIMESTAMP:
+                return TIMESTAMP;
+            case Types.NUMERIC:
+            case Types.DECIMAL: {
+                // Drivers report a precision of 0 for a NUMERIC declared without one.
+                int precision = rsMeta.getPrecision(column);
+                return precision > 0 && precision <= 18 && rsMeta.getScale(column) == 0 ? LONG
+                        : DOUBLE;
+            }
+            case Types.DOUBLE:
+            case Types.FLOAT:
+            case Types.REAL:
+                return DOUBLE;
+            default:
+                return STRING;
+        }
+    }
+
+    private static int columnType(int reader) {
+        switch (reader) {
+            case INT:
+            case BOOLEAN:
+                return ColumnBatch.INT;
+            case LONG:
+            case TIMESTAMP:
+                return ColumnBatch.LONG;
+            case DOUBLE:
+                return ColumnBatch.DOUBLE;
+            default:
+                return ColumnBatch.STRING;
+        }
+    }
+
+    /**
+     * Append one column of the current row.
+     */
+    private static void read(ResultSet rs, int column, int reader, ColumnBatch.Column target)
+            throws SQLException {
+        switch (reader) {
+            case INT: {
+                int value = rs.getInt(column);
+                if (rs.wasNull()) {
+                    target.appendNull();
+                } else {
+                    target.appendInt(value);
+                }
+                break;
+            }
+            case BOOLEAN: {
+                boolean value = rs.getBoolean(column);
+                if (rs.wasNull()) {
+                    target.appendNull();
+                } else {
+                    target.appendInt(value ? 1 : 0);
+                }
+                break;
+            }
+            case LONG: {
+                long value = rs.getLong(column);
+                if (rs.wasNull()) {
+                    target.appendNull();
+                } else {
+                    target.appendLong(value);
+                }
+                break;
+            }
+            case TIMESTAMP: {
+                // The one allocation per value; see the class comment.
+                Timestamp ts = rs.getTimestamp(column);
+                if (ts == null) {
+                    target.appendNull();
+                } else {
+                    target.appendLong(ts.getTime());
+                }
+                break;
+            }
+            case DOUBLE: {
+                double value = rs.getDouble(column);
+                if (rs.wasNull()) {
+                    target.appendNull();
+                } else {
+                    target.appendDouble(value);
+                }
+                break;
+            }
+            default:
+                target.appendString(rs.getString(column));
+        }
+    }
+
+    /**
+     * @return columns read by the last call to process, or null if none was made
+     */
+    public ColumnBatch getBatch() {
+        return batch;
+    }
+
+    /**
+     * @return nanoseconds spent advancing the ResultSet in the last call to process
+     */
+    public long getFetchNanos() {
+        return fetchNanos;
+    }
+
+    /**
+     * @return nanoseconds spent reading columns in the last call to process
+     */
+    public long getMappingNanos() {
+        return mappingNanos;
+    }
+
+}
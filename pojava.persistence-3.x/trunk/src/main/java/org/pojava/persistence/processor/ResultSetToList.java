@@ -1,5 +1,6 @@
 package org.pojava.persistence.processor;
 
+import org.pojava.persistence.sql.ReadPlan;
 import org.pojava.persistence.sql.TableMap;
 
 import java.sql.ResultSet;
@@ -11,12 +12,16 @@ import java.util.List;
  *
  * @author John Pile
  */
-public class ResultSetToList<T> implements ResultSetProcessor {
+public class ResultSetToList<T> implements ResultSetTimer {
 
     private List<T> list = null;
 
     private TableMap<T> map = null;
 
+    private long fetchNanos = 0;
+
+    private long mappingNanos = 0;
+
     /**
      * This processor populates a list from the result set.
      *
@@ -41,11 +46,28 @@ public class ResultSetToList<T> implements ResultSetProcessor {
      */
     public int process(ResultSet rs) throws SQLException {
         int rows = 0;
+        fetchNanos = 0;
+        mappingNanos = 0;
+        ReadPlan<T> plan = map.readPlan(rs.getMetaData());
+        long start = System.nanoTime();
         while (rs.next()) {
             rows++;
-            list.add(map.extractObject(rs));
+            long fetched = System.nanoTime();
+            list.add(plan.read(rs));
+            fetchNanos += fetched - start;
+            start = System.nanoTime();
+            mappingNanos += start - fetched;
         }
+        fetchNanos += System.nanoTime() - start;
         return rows;
     }
 
+    public long getFetchNanos() {
+        return fetchNanos;
+    }
+
+    public long getMappingNanos() {
+        return mappingNanos;
+    }
+
 }
@@ -1,6 +1,7 @@
 package org.pojava.persistence.processor;
 
 import org.pojava.lang.Processor;
+import org.pojava.persistence.sql.ReadPlan;
 import org.pojava.persistence.sql.TableMap;
 
 import java.sql.ResultSet;
@@ -11,10 +12,12 @@ import java.sql.SQLException;
  *
  * @author John Pile
  */
-public class ResultSetToProcessor<T> implements ResultSetProcessor {
+public class ResultSetToProcessor<T> implements ResultSetTimer {
 
     private TableMap<T> map = null;
     private Processor<T> processor = null;
+    private long fetchNanos = 0;
+    private long mappingNanos = 0;
 
     /**
      * Constructor mapping a TableMap to a Processor.
@@ -40,11 +43,33 @@ public class ResultSetToProcessor<T> implements ResultSetProcessor {
      */
     public int process(ResultSet rs) throws SQLException {
         int rows = 0;
+        fetchNanos = 0;
+        mappingNanos = 0;
+        ReadPlan<T> plan = map.readPlan(rs.getMetaData());
+        long start = System.nanoTime();
         while (rs.next()) {
             rows++;
-            processor.process(map.extractObject(rs));
+            long fetched = System.nanoTime();
+            T bean = plan.read(rs);
+            long mapped = System.nanoTime();
+            fetchNanos += fetched - start;
+            mappingNanos += mapped - fetched;
+            processor.process(bean);
+            start = System.nanoTime();
         }
+        fetchNanos += System.nanoTime() - start;
         return rows;
     }
 
+    /**
+     * @return nanoseconds spent advancing the ResultSet, excluding time in the Processor
+     */
+    public long getFetchNanos() {
+        return fetchNanos;
+    }
+
+    public long getMappingNanos() {
+        return mappingNanos;
+    }
+
 }
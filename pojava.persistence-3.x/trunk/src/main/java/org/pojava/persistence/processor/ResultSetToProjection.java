@@ -0,0 +1,71 @@
+package org.pojava.persistence.processor;
+
+import org.pojava.persistence.query.Projection;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * Process a data set into a list of projected rows.
+ *
+ * @author John Pile
+ */
+public class ResultSetToProjection<R> implements ResultSetTimer {
+
+    private List<R> list = null;
+
+    private Projection<R> projection = null;
+
+    private long fetchNanos = 0;
+
+    private long mappingNanos = 0;
+
+    /**
+     * This processor populates a list from the result set.
+     *
+     * @param projection Columns read and the result they populate
+     * @param list List of rows
+     */
+    public ResultSetToProjection(Projection<R> projection, List<R> list) {
+        if (projection == null) {
+            throw new IllegalArgumentException(
+                    "Cannot construct a ResultSetToProjection with a null projection.");
+        }
+        if (list == null) {
+            throw new IllegalArgumentException(
+                    "Cannot construct a ResultSetToProjection with a null list.");
+        }
+        this.list = list;
+        this.projection = projection;
+    }
+
+    /**
+     * Populate each row into a projected result, added to a list.
+     */
+    public int process(ResultSet rs) throws SQLException {
+        int rows = 0;
+        fetchNanos = 0;
+        mappingNanos = 0;
+        long start = System.nanoTime();
+        while (rs.next()) {
+            rows++;
+            long fetched = System.nanoTime();
+            list.add(projection.read(rs));
+            fetchNanos += fetched - start;
+            start = System.nanoTime();
+            mappingNanos += start - fetched;
+        }
+        fetchNanos += System.nanoTime() - start;
+        return rows;
+    }
+
+    public long getFetchNanos() {
+        return fetchNanos;
+    }
+
+    public long getMappingNanos() {
+        return mappingNanos;
+    }
+
+}
@@ -50,11 +50,36 @@ package org.pojava.persistence.query;
  */
 public abstract class AbstractQuery {
 
+    /**
+     * Cache the results of this query for the default time of the query cache.
+     */
+    public static final long CACHE_DEFAULT = -1;
+
+    /**
+     * Never cache the results of this query.
+     */
+    public static final long CACHE_NEVER = 0;
+
     /**
      * Maximum number of rows permitted before the driver cuts you off (0=unlimited).
      */
     private int maxRows = 0;
 
+    /**
+     * Number of rows the driver should fetch per round trip (0=driver default).
+     */
+    private int fetchSize = 0;
+
+    /**
+     * Seconds the driver should wait for the query to execute (0=unlimited).
+     */
+    private int queryTimeout = 0;
+
+    /**
+     * Milliseconds the results may be held by a query cache.
+     */
+    private long cacheTtlMillis = CACHE_DEFAULT;
+
     /**
      * Default constructor
      */
@@ -79,4 +104,60 @@ public abstract class AbstractQuery {
         this.maxRows = maxRows;
     }
 
+    /**
+     * Show the number of rows the driver is asked to fetch per round trip.
+     *
+     * @return fetch size hint, or 0 for the driver default
+     */
+    public int getFetchSize() {
+        return fetchSize;
+    }
+
+    /**
+     * Suggest the number of rows the driver should fetch per round trip. Larger values reduce
+     * round trips, while smaller values reduce the memory held by the driver.
+     *
+     * @param fetchSize fetch size hint, or 0 for the driver default
+     */
+    public void setFetchSize(int fetchSize) {
+        this.fetchSize = fetchSize;
+    }
+
+    /**
+     * Show the number of seconds the driver will wait for the query to execute.
+     *
+     * @return query timeout in seconds, or 0 for unlimited
+     */
+    public int getQueryTimeout() {
+        return queryTimeout;
+    }
+
+    /**
+     * Limit the number of seconds the driver will wait for the query to execute.
+     *
+     * @param queryTimeout query timeout in seconds, or 0 for unlimited
+     */
+    public void setQueryTimeout(int queryTimeout) {
+        this.queryTimeout = queryTimeout;
+    }
+
+    /**
+     * Show how long the results of this query may be held by a query cache.
+     *
+     * @return milliseconds, CACHE_DEFAULT or CACHE_NEVER
+     */
+    public long getCacheTtlMillis() {
+        return cacheTtlMillis;
+    }
+
+    /**
+     * Override how long the results of this query may be held by a query cache, if one is in
+     * use.
+     *
+     * @param cacheTtlMillis milliseconds, CACHE_DEFAULT or CACHE_NEVER
+     */
+    public void setCacheTtlMillis(long cacheTtlMillis) {
+        this.cacheTtlMillis = cacheTtlMillis;
+    }
+
 }
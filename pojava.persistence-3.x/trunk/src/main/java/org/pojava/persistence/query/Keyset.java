@@ -0,0 +1,295 @@
+package org.pojava.persistence.query;
+
+/*
+ Copyright 2008-14 John Pile
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+import org.pojava.datetime.DateTime;
+import org.pojava.lang.BoundString;
+import org.pojava.persistence.sql.FieldMap;
+import org.pojava.persistence.sql.TableMap;
+import org.pojava.util.EncodingTool;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A Keyset describes the ordering of a keyset (seek) paginated query: the columns it is
+ * ordered by, their directions, and the number of rows per page. Rather than skipping rows with
+ * OFFSET, each page begins after the ordering values of the last row of the previous page, so
+ * every page costs the same no matter how deep it lies.
+ * <p/>
+ * The ordering columns must identify a row uniquely and must not be null, as is the case for a
+ * primary key. Continuation tokens carry the ordering values as text, so only properties of
+ * simple types (numbers, strings, characters, booleans and dates) can be used.
+ *
+ * @author John Pile
+ */
+public class Keyset {
+
+    private final FieldMap<?, ?, ?>[] fields;
+
+    private final boolean[] descending;
+
+    private final int pageSize;
+
+    /**
+     * Identifies the ordering, so a token cannot be applied to a differently ordered query.
+     */
+    private final String signature;
+
+    /**
+     * Construct a keyset ordering.
+     *
+     * @param map        TableMap of the rows paged through
+     * @param pageSize   rows per page
+     * @param properties properties ordered by, each optionally followed by " DESC", or null to
+     *                   order by the key fields
+     */
+    public Keyset(TableMap<?> map, int pageSize, String[] properties) {
+        if (pageSize < 1) {
+            throw new IllegalArgumentException("A page must hold at least one row.");
+        }
+        List<FieldMap<?, ?, ?>> fieldList = new ArrayList<FieldMap<?, ?, ?>>();
+        List<Boolean> descList = new ArrayList<Boolean>();
+        if (properties == null || properties.length == 0) {
+            for (Iterator<? extends FieldMap<?, ?, ?>> it = map.getKeyFields().iterator(); it
+                    .hasNext(); ) {
+                fieldList.add(it.next());
+                descList.add(Boolean.FALSE);
+            }
+        } else {
+            for (int i = 0; i < properties.length; i++) {
+                String property = properties[i].trim();
+                boolean desc = false;
+                String upper = property.toUpperCase(Locale.ENGLISH);
+                if (upper.endsWith(" DESC")) {
+                    property = property.substring(0, property.length() - 5).trim();
+                    desc = true;
+                } else if (upper.endsWith(" ASC")) {
+                    property = property.substring(0, property.length() - 4).trim();
+                }
+                FieldMap<?, ?, ?> field = map.getAllFields().get(property);
+                if (field == null) {
+                    throw new IllegalArgumentException("Cannot page by property " + property
+                            + ", which is not mapped for " + map.getTableName() + ".");
+                }
+                fieldList.add(field);
+                descList.add(Boolean.valueOf(desc));
+            }
+        }
+        if (fieldList.isEmpty()) {
+            throw new IllegalArgumentException("Cannot page through " + map.getTableName()
+                    + " without ordering properties or key fields.");
+        }
+        this.fields = fieldList.toArray(new FieldMap<?, ?, ?>[fieldList.size()]);
+        this.descending = new boolean[fields.length];
+        StringBuffer sig = new StringBuffer(map.getTableName());
+        for (int i = 0; i < fields.length; i++) {
+            descending[i] = descList.get(i).booleanValue();
+            sig.append(descending[i] ? " -" : " +");
+            sig.append(fields[i].getColumnName());
+        }
+        this.pageSize = pageSize;
+        this.signature = sig.toString();
+    }
+
+    /**
+     * @return rows per page
+     */
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * Produce the ORDER BY clause of this ordering.
+     *
+     * @return column list, without the ORDER BY keywords
+     */
+    public String orderBy() {
+        StringBuffer sb = new StringBuffer();
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(fields[i].getColumnName());
+            if (descending[i]) {
+                sb.append(" DESC");
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Produce the predicate selecting rows that follow the given ordering values, expanded as
+     * (a &gt; ?) OR (a = ? AND b &gt; ?) so that it works on every platform.
+     *
+     * @param values ordering values of the last row already read
+     * @return predicate with its bindings
+     */
+    public BoundString after(Object[] values) {
+        BoundString bs = new BoundString();
+        for (int i = 0; i < fields.length; i++) {
+            bs.append(i == 0 ? "(" : " OR (");
+            for (int j = 0; j < i; j++) {
+                bs.append(fields[j].getColumnName());
+                bs.append("=? AND ");
+                bind(bs, j, values[j]);
+            }
+            bs.append(fields[i].getColumnName());
+            bs.append(descending[i] ? "<?)" : ">?)");
+            bind(bs, i, values[i]);
+        }
+        return bs;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void bind(BoundString bs, int i, Object value) {
+        bs.addBinding((Class<Object>) fields[i].getPropertyClass(), value);
+    }
+
+    /**
+     * Produce the continuation token for the page following the given row.
+     *
+     * @param bean last row of a page
+     * @return opaque token
+     */
+    public String token(Object bean) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeUTF(signature);
+            for (int i = 0; i < fields.length; i++) {
+                Object value = fields[i].getPropertyValue(bean);
+                if (value == null) {
+                    throw new IllegalArgumentException("Cannot continue after a null value of "
+                            + fields[i].getProperty() + ".");
+                }
+                out.writeUTF(encode(value));
+            }
+            out.close();
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex.getMessage());
+        }
+        return EncodingTool.base64Encode(bytes.toByteArray());
+    }
+
+    /**
+     * Recover the ordering values carried by a continuation token.
+     *
+     * @param token token produced by this ordering
+     * @return ordering values of the last row of the previous page
+     */
+    public Object[] values(String token) {
+        Object[] values = new Object[fields.length];
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(EncodingTool
+                    .base64Decode(token)));
+            if (!signature.equals(in.readUTF())) {
+                throw new IllegalArgumentException(
+                        "Continuation token belongs to a differently ordered query.");
+            }
+            for (int i = 0; i < fields.length; i++) {
+                values[i] = decode(fields[i].getPropertyClass(), in.readUTF());
+            }
+        } catch (IOException ex) {
+            throw new IllegalArgumentException("Malformed continuation token.");
+        } catch (IndexOutOfBoundsException ex) {
+            throw new IllegalArgumentException("Malformed continuation token.");
+        }
+        return values;
+    }
+
+    private static String encode(Object value) {
+        if (value instanceof Timestamp) {
+            Timestamp ts = (Timestamp) value;
+            return ts.getTime() + ":" + ts.getNanos();
+        }
+        if (value instanceof java.util.Date) {
+            return Long.toString(((java.util.Date) value).getTime());
+        }
+        if (value instanceof DateTime) {
+            return Long.toString(((DateTime) value).toMillis());
+        }
+        return value.toString();
+    }
+
+    private static Object decode(Class<?> type, String text) {
+        if (type == String.class) {
+            return text;
+        }
+        if (type == Character.class || type == char.class) {
+            return Character.valueOf(text.charAt(0));
+        }
+        if (type == Timestamp.class) {
+            int colon = text.indexOf(':');
+            Timestamp ts = new Timestamp(Long.parseLong(text.substring(0, colon)));
+            ts.setNanos(Integer.parseInt(text.substring(colon + 1)));
+            return ts;
+        }
+        if (type == DateTime.class) {
+            return new DateTime(Long.parseLong(text));
+        }
+        Class<?> wrapper = wrap(type);
+        try {
+            if (java.util.Date.class.isAssignableFrom(wrapper)) {
+                Constructor<?> constructor = wrapper.getConstructor(new Class[] { long.class });
+                return constructor.newInstance(new Object[] { Long.valueOf(text) });
+            }
+            Constructor<?> constructor = wrapper.getConstructor(new Class[] { String.class });
+            return constructor.newInstance(new Object[] { text });
+        } catch (NoSuchMethodException ex) {
+            throw new IllegalArgumentException("Cannot page by a property of type "
+                    + type.getName() + ".");
+        } catch (Exception ex) {
+            throw new IllegalArgumentException("Malformed continuation token.");
+        }
+    }
+
+    private static Class<?> wrap(Class<?> type) {
+        if (!type.isPrimitive()) {
+            return type;
+        }
+        if (type == int.class) {
+            return Integer.class;
+        }
+        if (type == long.class) {
+            return Long.class;
+        }
+        if (type == short.class) {
+            return Short.class;
+        }
+        if (type == byte.class) {
+            return Byte.class;
+        }
+        if (type == double.class) {
+            return Double.class;
+        }
+        if (type == float.class) {
+            return Float.class;
+        }
+        return Boolean.class;
+    }
+
+}
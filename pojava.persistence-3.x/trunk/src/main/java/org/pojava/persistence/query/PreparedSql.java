@@ -38,6 +38,14 @@ public class PreparedSql {
      * alter the SQL statement under certain conditions.
      */
     int maxRows = 0;
+    /**
+     * fetchSize suggests the number of rows fetched per round trip (0=driver default).
+     */
+    int fetchSize = 0;
+    /**
+     * queryTimeout limits the seconds spent executing the statement (0=unlimited).
+     */
+    int queryTimeout = 0;
 
     /**
      * Create PreparedSql from SQL stored in a BoundString with unlimited maxRows.
@@ -59,6 +67,21 @@ public class PreparedSql {
         this.maxRows = maxRows;
     }
 
+    /**
+     * Create PreparedSql from SQL stored in a BoundString with driver hints.
+     *
+     * @param sql Bound SQL statement
+     * @param maxRows Row limit
+     * @param fetchSize Rows fetched per round trip
+     * @param queryTimeout Seconds allowed for execution
+     */
+    public PreparedSql(BoundString sql, int maxRows, int fetchSize, int queryTimeout) {
+        this.sql = sql;
+        this.maxRows = maxRows;
+        this.fetchSize = fetchSize;
+        this.queryTimeout = queryTimeout;
+    }
+
     /**
      * Get SQL.
      *
@@ -77,4 +100,22 @@ public class PreparedSql {
         return maxRows;
     }
 
+    /**
+     * Get number of rows fetched per round trip.
+     *
+     * @return fetch size hint for JDBC driver, or 0 for its default
+     */
+    public int getFetchSize() {
+        return fetchSize;
+    }
+
+    /**
+     * Get number of seconds allowed for execution.
+     *
+     * @return query timeout in seconds, or 0 for unlimited
+     */
+    public int getQueryTimeout() {
+        return queryTimeout;
+    }
+
 }
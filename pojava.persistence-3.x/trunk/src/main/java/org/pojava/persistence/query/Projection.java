@@ -0,0 +1,431 @@
+package org.pojava.persistence.query;
+
+/*
+ Copyright 2008-14 John Pile
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+import org.pojava.exception.PersistenceException;
+import org.pojava.lang.Binding;
+import org.pojava.lang.BoundString;
+import org.pojava.persistence.sql.FieldMap;
+import org.pojava.persistence.sql.TableMap;
+import org.pojava.transformation.BindingAdaptor;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A Projection selects some of the mapped properties of a table, or arbitrary SQL expressions,
+ * and reads each row into a lightweight result rather than the full bean of the TableMap.
+ * <p/>
+ * A row is read into an Object[] when the result class is Object[]. Otherwise it is passed to
+ * a public constructor taking one argument per column, in the order given, so that immutable
+ * value classes need no setters. Failing such a constructor, the result is constructed empty
+ * and each column is passed to the public setter named after its property or alias.
+ * <p/>
+ * Mapped properties are converted by their field's adaptor, as the bean would be. Expressions
+ * are converted to the type given for them where they are numbers or strings.
+ *
+ * @author John Pile
+ */
+public class Projection<R> {
+
+    private static final Map<Class<?>, Class<?>> WRAPPERS = new HashMap<Class<?>, Class<?>>();
+
+    static {
+        WRAPPERS.put(Boolean.TYPE, Boolean.class);
+        WRAPPERS.put(Byte.TYPE, Byte.class);
+        WRAPPERS.put(Character.TYPE, Character.class);
+        WRAPPERS.put(Short.TYPE, Short.class);
+        WRAPPERS.put(Integer.TYPE, Integer.class);
+        WRAPPERS.put(Long.TYPE, Long.class);
+        WRAPPERS.put(Float.TYPE, Float.class);
+        WRAPPERS.put(Double.TYPE, Double.class);
+    }
+
+    private final TableMap<?> map;
+
+    private final Class<R> resultClass;
+
+    /**
+     * SQL of each selected column.
+     */
+    private final List<String> columns = new ArrayList<String>();
+
+    /**
+     * Property name or alias of each selected column.
+     */
+    private final List<String> names = new ArrayList<String>();
+
+    /**
+     * Type of each selected column, as read.
+     */
+    private final List<Class<?>> types = new ArrayList<Class<?>>();
+
+    /**
+     * Mapped field of each selected property, or null for an expression.
+     */
+    private final List<FieldMap<?, ?, ?>> fields = new ArrayList<FieldMap<?, ?, ?>>();
+
+    /**
+     * How rows are read, compiled on first read after a change of the selected columns and
+     * never modified once published.
+     */
+    private volatile Plan<R> plan = null;
+
+    /**
+     * Project rows of a table onto the given result class.
+     *
+     * @param map         TableMap of the table queried
+     * @param resultClass class of each row read, or Object[].class
+     */
+    public Projection(TableMap<?> map, Class<R> resultClass) {
+        if (map == null) {
+            throw new IllegalArgumentException("Cannot project rows without a TableMap.");
+        }
+        if (resultClass == null) {
+            throw new IllegalArgumentException("Cannot project rows without a result class.");
+        }
+        this.map = map;
+        this.resultClass = resultClass;
+    }
+
+    /**
+     * Project rows of a table onto an Object[] per row.
+     *
+     * @param map TableMap of the table queried
+     * @return an empty projection
+     */
+    public static Projection<Object[]> rows(TableMap<?> map) {
+        return new Projection<Object[]>(map, Object[].class);
+    }
+
+    /**
+     * Select a mapped property.
+     *
+     * @param property name of the property in the TableMap
+     * @return this projection
+     */
+    public synchronized Projection<R> property(String property) {
+        FieldMap<?, ?, ?> field = map.getAllFields().get(property);
+        if (field == null) {
+            throw new IllegalArgumentException("Cannot project property " + property
+                    + ", which is not mapped for " + map.getTableName() + ".");
+        }
+        return add(field.getColumnName(), property, field.getPropertyClass(), field);
+    }
+
+    /**
+     * Select several mapped properties.
+     *
+     * @param properties names of the properties in the TableMap
+     * @return this projection
+     */
+    public Projection<R> properties(String[] properties) {
+        for (int i = 0; i < properties.length; i++) {
+            property(properties[i]);
+        }
+        return this;
+    }
+
+    /**
+     * Select an SQL expression, such as an aggregate or a computed column.
+     *
+     * @param sql   expression selected
+     * @param alias name of the column, matching a setter of the result class if used
+     * @param type  type the value is read as
+     * @return this projection
+     */
+    public synchronized Projection<R> expression(String sql, String alias, Class<?> type) {
+        if (sql == null || alias == null || type == null) {
+            throw new IllegalArgumentException(
+                    "An expression requires its SQL, an alias and a type.");
+        }
+        return add(sql + " AS " + alias, alias, type, null);
+    }
+
+    private Projection<R> add(String column, String name, Class<?> type,
+                              FieldMap<?, ?, ?> field) {
+        columns.add(column);
+        names.add(name);
+        types.add(type);
+        fields.add(field);
+        plan = null;
+        return this;
+    }
+
+    /**
+     * Form a SELECT of the projected columns, to which query criteria may be appended.
+     *
+     * @return SQL select statement
+     */
+    public synchronized BoundString sqlSelect() {
+        if (columns.isEmpty()) {
+            throw new IllegalStateException("Nothing is projected from " + map.getTableName()
+                    + ".");
+        }
+        StringBuffer sb = new StringBuffer("SELECT ");
+        for (int i = 0; i < columns.size(); i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(columns.get(i));
+        }
+        sb.append(" FROM ");
+        sb.append(map.getTableName());
+        return new BoundString(sb.toString());
+    }
+
+    /**
+     * Read the current row of a ResultSet formed by sqlSelect.
+     *
+     * @param rs ResultSet already advanced to a row
+     * @return result populated from the row
+     * @throws SQLException
+     */
+    public R read(ResultSet rs) throws SQLException {
+        Plan<R> current = plan;
+        if (current == null) {
+            current = compile();
+        }
+        return current.read(rs);
+    }
+
+    /**
+     * Convert the value of an expression to the number or string type requested of it.
+     */
+    private static Object convert(Object value, Class<?> type) {
+        if (value == null || type.isInstance(value)) {
+            return value;
+        }
+        if (type == String.class) {
+            return value.toString();
+        }
+        if (value instanceof Number) {
+            Number number = (Number) value;
+            if (type == Integer.class) {
+                return Integer.valueOf(number.intValue());
+            }
+            if (type == Long.class) {
+                return Long.valueOf(number.longValue());
+            }
+            if (type == Double.class) {
+                return Double.valueOf(number.doubleValue());
+            }
+            if (type == Float.class) {
+                return Float.valueOf(number.floatValue());
+            }
+            if (type == Short.class) {
+                return Short.valueOf(number.shortValue());
+            }
+            if (type == BigDecimal.class) {
+                return new BigDecimal(number.toString());
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Convert the value of a mapped property through its field's adaptor.
+     */
+    @SuppressWarnings("unchecked")
+    private static <PROP, COL> Object inbound(FieldMap<?, PROP, COL> field, Object value) {
+        BindingAdaptor<PROP, COL> adaptor = field.getAdaptor();
+        if (adaptor == null) {
+            return value;
+        }
+        return adaptor.inbound(new Binding<COL>(field.getColumnClass(), (COL) value)).getObj();
+    }
+
+    /**
+     * Choose how rows are hydrated, once per change of the selected columns.
+     */
+    @SuppressWarnings("unchecked")
+    private synchronized Plan<R> compile() {
+        if (plan != null) {
+            return plan;
+        }
+        if (columns.isEmpty()) {
+            throw new IllegalStateException("Nothing is projected from " + map.getTableName()
+                    + ".");
+        }
+        Constructor<R> constructor = null;
+        Constructor<R> empty = null;
+        Method[] setters = null;
+        if (resultClass != Object[].class) {
+            Constructor<?>[] candidates = resultClass.getConstructors();
+            for (int i = 0; i < candidates.length && constructor == null; i++) {
+                if (accepts(candidates[i].getParameterTypes())) {
+                    constructor = (Constructor<R>) candidates[i];
+                }
+            }
+            if (constructor == null) {
+                setters = findSetters();
+                try {
+                    empty = resultClass.getConstructor();
+                } catch (NoSuchMethodException ex) {
+                    throw new IllegalArgumentException("Cannot project onto "
+                            + resultClass.getName() + ", which has neither a constructor "
+                            + "taking " + types + " nor a public no-argument constructor.");
+                }
+            }
+        }
+        plan = new Plan<R>(resultClass, types.toArray(new Class<?>[types.size()]), fields
+                .toArray(new FieldMap<?, ?, ?>[fields.size()]), constructor, empty, setters);
+        return plan;
+    }
+
+    /**
+     * Tell whether parameters of these types accept the selected columns, in order.
+     */
+    private boolean accepts(Class<?>[] params) {
+        if (params.length != types.size()) {
+            return false;
+        }
+        for (int i = 0; i < params.length; i++) {
+            if (!wrap(params[i]).isAssignableFrom(wrap(types.get(i)))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Method[] findSetters() {
+        Method[] methods = resultClass.getMethods();
+        Method[] found = new Method[names.size()];
+        for (int i = 0; i < found.length; i++) {
+            String name = names.get(i);
+            name = name.substring(name.lastIndexOf('.') + 1);
+            String setter = "set" + Character.toUpperCase(name.charAt(0)) + name.substring(1);
+            for (int m = 0; m < methods.length && found[i] == null; m++) {
+                if (methods[m].getName().equals(setter)
+                        && !Modifier.isStatic(methods[m].getModifiers())
+                        && methods[m].getParameterTypes().length == 1
+                        && wrap(methods[m].getParameterTypes()[0]).isAssignableFrom(
+                        wrap(types.get(i)))) {
+                    found[i] = methods[m];
+                }
+            }
+            if (found[i] == null) {
+                throw new IllegalArgumentException("Cannot project onto "
+                        + resultClass.getName() + ", which has neither a constructor taking "
+                        + types + " nor a setter " + setter + "(" + types.get(i).getName()
+                        + ").");
+            }
+        }
+        return found;
+    }
+
+    private static Class<?> wrap(Class<?> type) {
+        Class<?> wrapper = WRAPPERS.get(type);
+        return wrapper == null ? type : wrapper;
+    }
+
+    /**
+     * The compiled reading of a row: the type and field of each column, and the constructor
+     * or setters receiving them.
+     */
+    private static final class Plan<R> {
+
+        private final Class<R> resultClass;
+
+        private final Class<?>[] types;
+
+        private final FieldMap<?, ?, ?>[] fields;
+
+        private final Constructor<R> constructor;
+
+        private final Constructor<R> empty;
+
+        private final Method[] setters;
+
+        Plan(Class<R> resultClass, Class<?>[] types, FieldMap<?, ?, ?>[] fields,
+             Constructor<R> constructor, Constructor<R> empty, Method[] setters) {
+            this.resultClass = resultClass;
+            this.types = types;
+            this.fields = fields;
+            this.constructor = constructor;
+            this.empty = empty;
+            this.setters = setters;
+        }
+
+        @SuppressWarnings("unchecked")
+        R read(ResultSet rs) throws SQLException {
+            Object[] values = new Object[types.length];
+            for (int i = 0; i < values.length; i++) {
+                Object value = rs.getObject(i + 1);
+                values[i] = fields[i] == null ? convert(value, types[i]) : inbound(fields[i],
+                        value);
+            }
+            if (resultClass == Object[].class) {
+                return (R) values;
+            }
+            try {
+                if (constructor != null) {
+                    return constructor.newInstance(values);
+                }
+                R result = empty.newInstance();
+                for (int i = 0; i < values.length; i++) {
+                    setters[i].invoke(result, new Object[]{values[i]});
+                }
+                return result;
+            } catch (InstantiationException ex) {
+                throw new PersistenceException("Cannot construct " + resultClass.getName()
+                        + ": " + ex.getMessage(), ex);
+            } catch (IllegalAccessException ex) {
+                throw new PersistenceException("Cannot construct " + resultClass.getName()
+                        + ": " + ex.getMessage(), ex);
+            } catch (IllegalArgumentException ex) {
+                throw new PersistenceException("Cannot populate " + resultClass.getName()
+                        + ": " + ex.getMessage(), ex);
+            } catch (InvocationTargetException ex) {
+                throw new PersistenceException("Cannot populate " + resultClass.getName()
+                        + ": " + ex.getCause(), ex.getCause());
+            }
+        }
+
+    }
+
+    /**
+     * @return TableMap of the table queried
+     */
+    public TableMap<?> getTableMap() {
+        return map;
+    }
+
+    /**
+     * @return class of each row read
+     */
+    public Class<R> getResultClass() {
+        return resultClass;
+    }
+
+    /**
+     * @return number of columns selected
+     */
+    public synchronized int getColumnCount() {
+        return columns.size();
+    }
+
+}
@@ -1,7 +1,10 @@
 package org.pojava.persistence.query;
 
 import org.pojava.lang.BoundString;
+import org.pojava.persistence.sql.DataSourceMetadata;
+import org.pojava.persistence.sql.TableMap;
 
+import java.util.List;
 import java.util.Locale;
 
 /**
@@ -23,6 +26,16 @@ public class SqlQuery extends AbstractQuery implements PreparedSqlProvider {
      */
     protected String sqlOrderBy = null;
 
+    /**
+     * Ordering of a keyset paginated query, or null if the query is not paginated.
+     */
+    private Keyset keyset = null;
+
+    /**
+     * Ordering values of the last row of the previous page, or null for the first page.
+     */
+    private Object[] seekValues = null;
+
     /**
      * Default constructor.
      */
@@ -116,6 +129,73 @@ public class SqlQuery extends AbstractQuery implements PreparedSqlProvider {
         sql.append(predicate);
     }
 
+    /**
+     * Page through the results by key fields, pageSize rows at a time. See seek(TableMap, int,
+     * String[]).
+     *
+     * @param map      TableMap of the rows paged through
+     * @param pageSize rows per page
+     * @return this query
+     */
+    public SqlQuery seek(TableMap<?> map, int pageSize) {
+        return seek(map, pageSize, null);
+    }
+
+    /**
+     * Page through the results in the order of the given properties, pageSize rows at a time.
+     * Each page is read by listing this query after setting the continuation token produced
+     * from the previous page, so deep pages cost no more than the first. The ordering replaces
+     * any ORDER BY clause, and the query criteria must be empty or begin with WHERE.
+     *
+     * @param map        TableMap of the rows paged through
+     * @param pageSize   rows per page
+     * @param properties properties that together identify a row, each optionally followed by
+     *                   " DESC", or null for the key fields
+     * @return this query
+     */
+    public SqlQuery seek(TableMap<?> map, int pageSize, String[] properties) {
+        this.keyset = new Keyset(map, pageSize, properties);
+        this.seekValues = null;
+        return this;
+    }
+
+    /**
+     * Continue a paginated query from a token produced by continuationToken.
+     *
+     * @param token continuation token, or null for the first page
+     * @return this query
+     */
+    public SqlQuery after(String token) {
+        if (keyset == null) {
+            throw new IllegalStateException("Call seek before continuing a query.");
+        }
+        this.seekValues = token == null || token.length() == 0 ? null : keyset.values(token);
+        return this;
+    }
+
+    /**
+     * Produce the token continuing after a page read by this query.
+     *
+     * @param page rows returned for the current page
+     * @return token for the next page, or null if this was the last page
+     */
+    public String continuationToken(List<?> page) {
+        if (keyset == null) {
+            throw new IllegalStateException("Call seek before paging through a query.");
+        }
+        if (page == null || page.size() < keyset.getPageSize()) {
+            return null;
+        }
+        return keyset.token(page.get(page.size() - 1));
+    }
+
+    /**
+     * @return ordering of a paginated query, or null if the query is not paginated
+     */
+    public Keyset getKeyset() {
+        return keyset;
+    }
+
     /**
      * Generate a PreparedSql statement from your prefix (such as "SELECT * from table") and
      * this query.
@@ -131,9 +211,52 @@ public class SqlQuery extends AbstractQuery implements PreparedSqlProvider {
      * Generate Prepared SQL ready for execution.
      */
     public PreparedSql generatePreparedSql(BoundString prefix) {
+        return generatePreparedSql(prefix, null);
+    }
+
+    /**
+     * Generate Prepared SQL ready for execution, limiting a paginated query with the row limit
+     * syntax of the given platform.
+     *
+     * @param prefix   A portion of SQL before the WHERE clause
+     * @param metadata Description of the target platform, or null to rely on maxRows alone
+     * @return SQL statement ready for execution
+     */
+    public PreparedSql generatePreparedSql(BoundString prefix, DataSourceMetadata metadata) {
         BoundString bs = new BoundString();
         bs.append(prefix);
         bs.append(" ");
+        if (keyset != null) {
+            appendSeek(bs);
+            String limit = metadata == null ? null : metadata.rowLimitClause(keyset
+                    .getPageSize());
+            if (limit != null) {
+                bs.append(limit);
+            }
+            return new PreparedSql(bs, keyset.getPageSize(), super.getFetchSize(), super
+                    .getQueryTimeout());
+        }
+        return unpaged(bs);
+    }
+
+    /**
+     * Generate Prepared SQL from a prefix and the criteria of this query, ignoring any keyset
+     * pagination, as for counting or deleting all the rows matched rather than reading a page.
+     *
+     * @param prefix A portion of SQL before the WHERE clause, such as "DELETE FROM table"
+     * @return SQL statement ready for execution
+     */
+    public PreparedSql generateUnpagedSql(String prefix) {
+        BoundString bs = new BoundString();
+        bs.append(prefix);
+        bs.append(" ");
+        return unpaged(bs);
+    }
+
+    /**
+     * Append the criteria and ORDER BY clause to a prefix.
+     */
+    private PreparedSql unpaged(BoundString bs) {
         bs.append(sql);
         if (sqlOrderBy != null && sqlOrderBy.trim().length() > 0) {
             String verify = sqlOrderBy.toUpperCase(Locale.ENGLISH).replace('\t', ' ').trim();
@@ -144,7 +267,33 @@ public class SqlQuery extends AbstractQuery implements PreparedSqlProvider {
             }
             bs.append(sqlOrderBy.trim());
         }
-        return new PreparedSql(bs, super.getMaxRows());
+        return new PreparedSql(bs, super.getMaxRows(), super.getFetchSize(), super
+                .getQueryTimeout());
+    }
+
+    /**
+     * Append the criteria, restricted to rows after the previous page, and the keyset ordering.
+     */
+    private void appendSeek(BoundString bs) {
+        String criteria = sql.getString().trim();
+        if (seekValues == null) {
+            bs.append(sql);
+        } else if (criteria.length() == 0) {
+            bs.append("WHERE ");
+            bs.append(keyset.after(seekValues));
+        } else if (criteria.toUpperCase(Locale.ENGLISH).startsWith("WHERE ")) {
+            BoundString where = new BoundString("WHERE (" + criteria.substring(6).trim()
+                    + ") AND (");
+            where.addBindings(sql.getBindings());
+            bs.append(where);
+            bs.append(keyset.after(seekValues));
+            bs.append(")");
+        } else {
+            throw new IllegalStateException(
+                    "Keyset pagination requires query criteria that are empty or begin with WHERE.");
+        }
+        bs.append(" ORDER BY ");
+        bs.append(keyset.orderBy());
     }
 
 }
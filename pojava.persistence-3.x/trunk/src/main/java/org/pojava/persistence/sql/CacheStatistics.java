@@ -0,0 +1,104 @@
+package org.pojava.persistence.sql;
+
+/*
+ Copyright 2008-14 John Pile
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters describing the effectiveness of a cache of database results.
+ *
+ * @author John Pile
+ */
+public class CacheStatistics {
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    private final AtomicLong expirations = new AtomicLong();
+
+    void recordHit() {
+        hits.incrementAndGet();
+    }
+
+    void recordMiss() {
+        misses.incrementAndGet();
+    }
+
+    void recordEviction() {
+        evictions.incrementAndGet();
+    }
+
+    void recordExpiration() {
+        expirations.incrementAndGet();
+    }
+
+    /**
+     * @return number of lookups answered from the cache
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return number of lookups that had to query the database
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return number of entries discarded to make room for others
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * @return number of entries discarded because they outlived their time to live
+     */
+    public long getExpirations() {
+        return expirations.get();
+    }
+
+    /**
+     * @return fraction of lookups answered from the cache, or zero if there were none
+     */
+    public double getHitRatio() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total == 0 ? 0.0 : (double) h / total;
+    }
+
+    /**
+     * Reset all counters to zero.
+     */
+    public void reset() {
+        hits.set(0);
+        misses.set(0);
+        evictions.set(0);
+        expirations.set(0);
+    }
+
+    public String toString() {
+        return "hits=" + getHits() + ", misses=" + getMisses() + ", evictions="
+                + getEvictions() + ", expirations=" + getExpirations();
+    }
+
+}
@@ -0,0 +1,641 @@
+package org.pojava.persistence.sql;
+
+import java.io.InputStream;
+import java.io.Reader;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.net.URL;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+
+/**
+ * A CachedPreparedStatement is the caller's view of a statement held by a StatementCache.
+ * Closing it closes the result sets it opened, then returns the underlying statement to the
+ * cache instead of closing it. Those result sets answer getStatement with this statement, so
+ * the underlying one is never exposed to be closed under the cache.
+ * <p/>
+ * Limits a caller sets (maxRows, queryTimeout, fetchSize, maxFieldSize and fetchDirection) are
+ * restored before the statement is cached again. Other settings, such as a cursor name, make
+ * the statement unfit for reuse, so it is closed rather than cached.
+ *
+ * @author John Pile
+ */
+final class CachedPreparedStatement implements PreparedStatement {
+
+    private final StatementCache cache;
+
+    private final StatementCache.Key key;
+
+    private final Connection owner;
+
+    private PreparedStatement stmt;
+
+    private boolean reusable = true;
+
+    private boolean batched = false;
+
+    /**
+     * Result sets opened through this statement and not yet closed.
+     */
+    private final List<ResultSet> results = new ArrayList<ResultSet>();
+
+    /**
+     * Original values of the limits changed by the caller, or null if none were changed.
+     */
+    private int[] limits = null;
+
+    private static final int MAX_ROWS = 0;
+
+    private static final int QUERY_TIMEOUT = 1;
+
+    private static final int FETCH_SIZE = 2;
+
+    private static final int MAX_FIELD_SIZE = 3;
+
+    private static final int FETCH_DIRECTION = 4;
+
+    CachedPreparedStatement(StatementCache cache, StatementCache.Key key, Connection owner,
+                            PreparedStatement stmt) {
+        this.cache = cache;
+        this.key = key;
+        this.owner = owner;
+        this.stmt = stmt;
+    }
+
+    /**
+     * Return the underlying statement, or fail if this statement has been closed.
+     */
+    private PreparedStatement stmt() throws SQLException {
+        PreparedStatement current = stmt;
+        if (current == null) {
+            throw new SQLException("Statement has already been closed.");
+        }
+        return current;
+    }
+
+    /**
+     * Remember the original values of the limits before the caller changes one.
+     */
+    private PreparedStatement changingLimits() throws SQLException {
+        PreparedStatement current = stmt();
+        if (limits == null) {
+            int[] original = new int[5];
+            original[MAX_ROWS] = current.getMaxRows();
+            original[QUERY_TIMEOUT] = current.getQueryTimeout();
+            original[FETCH_SIZE] = current.getFetchSize();
+            original[MAX_FIELD_SIZE] = current.getMaxFieldSize();
+            original[FETCH_DIRECTION] = current.getFetchDirection();
+            limits = original;
+        }
+        return current;
+    }
+
+    /**
+     * Restore limits the caller changed.
+     */
+    private void restoreLimits(PreparedStatement current) throws SQLException {
+        if (limits != null) {
+            current.setMaxRows(limits[MAX_ROWS]);
+            current.setQueryTimeout(limits[QUERY_TIMEOUT]);
+            current.setFetchSize(limits[FETCH_SIZE]);
+            current.setMaxFieldSize(limits[MAX_FIELD_SIZE]);
+            current.setFetchDirection(limits[FETCH_DIRECTION]);
+        }
+    }
+
+    /**
+     * Hand out a result set of the underlying statement, to be closed along with this one.
+     */
+    private ResultSet track(ResultSet rs) {
+        if (rs == null) {
+            return null;
+        }
+        synchronized (results) {
+            if (!results.contains(rs)) {
+                results.add(rs);
+            }
+        }
+        return (ResultSet) Proxy.newProxyInstance(ResultSet.class.getClassLoader(),
+                new Class<?>[]{ResultSet.class}, new ResultSetHandler(rs));
+    }
+
+    /**
+     * Close the result sets still open, returning true if all closed cleanly.
+     */
+    private boolean closeResults() {
+        ResultSet[] open;
+        synchronized (results) {
+            open = results.toArray(new ResultSet[results.size()]);
+            results.clear();
+        }
+        boolean clean = true;
+        for (int i = 0; i < open.length; i++) {
+            try {
+                open[i].close();
+            } catch (SQLException ex) {
+                clean = false;
+            }
+        }
+        return clean;
+    }
+
+    /**
+     * Passes calls to a result set of the underlying statement, answering getStatement with
+     * this statement and forgetting the result set once it is closed.
+     */
+    private final class ResultSetHandler implements InvocationHandler {
+
+        private final ResultSet rs;
+
+        ResultSetHandler(ResultSet rs) {
+            this.rs = rs;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            int arity = args == null ? 0 : args.length;
+            if (arity == 0 && name.equals("getStatement")) {
+                return CachedPreparedStatement.this;
+            }
+            if (arity == 1 && name.equals("equals")) {
+                return Boolean.valueOf(proxy == args[0]);
+            }
+            if (arity == 0 && name.equals("hashCode")) {
+                return Integer.valueOf(System.identityHashCode(proxy));
+            }
+            if (arity == 0 && name.equals("close")) {
+                synchronized (results) {
+                    results.remove(rs);
+                }
+            }
+            try {
+                return method.invoke(rs, args);
+            } catch (InvocationTargetException ex) {
+                throw ex.getCause();
+            }
+        }
+    }
+
+    /**
+     * Close the result sets opened through this statement, and return the underlying
+     * statement to the cache, or close it if it cannot be reused.
+     */
+    public void close() throws SQLException {
+        PreparedStatement current;
+        synchronized (this) {
+            current = stmt;
+            stmt = null;
+        }
+        if (current == null) {
+            return;
+        }
+        boolean cached = false;
+        if (closeResults() && reusable) {
+            try {
+                current.clearParameters();
+                if (batched) {
+                    current.clearBatch();
+                }
+                current.clearWarnings();
+                restoreLimits(current);
+                cached = cache.checkin(key, current);
+            } catch (SQLException ex) {
+                cached = false;
+            }
+        }
+        if (!cached) {
+            current.close();
+        }
+    }
+
+    /**
+     * Return true if this statement has been closed (or returned to the cache).
+     */
+    public boolean isClosed() throws SQLException {
+        PreparedStatement current = stmt;
+        return current == null || current.isClosed();
+    }
+
+    /**
+     * Return the connection that prepared this statement.
+     */
+    public Connection getConnection() throws SQLException {
+        stmt();
+        return owner;
+    }
+
+    public void addBatch() throws SQLException {
+        batched = true;
+        stmt().addBatch();
+    }
+
+    public void addBatch(String sql) throws SQLException {
+        batched = true;
+        stmt().addBatch(sql);
+    }
+
+    public boolean isPoolable() throws SQLException {
+        stmt();
+        return reusable;
+    }
+
+    public void setPoolable(boolean poolable) throws SQLException {
+        stmt();
+        reusable = reusable && poolable;
+    }
+
+    public void closeOnCompletion() throws SQLException {
+        reusable = false;
+        stmt().closeOnCompletion();
+    }
+
+    public void setCursorName(String name) throws SQLException {
+        reusable = false;
+        stmt().setCursorName(name);
+    }
+
+    public void setEscapeProcessing(boolean enable) throws SQLException {
+        reusable = false;
+        stmt().setEscapeProcessing(enable);
+    }
+
+    public void setFetchDirection(int direction) throws SQLException {
+        changingLimits().setFetchDirection(direction);
+    }
+
+    public void setFetchSize(int rows) throws SQLException {
+        changingLimits().setFetchSize(rows);
+    }
+
+    public void setMaxFieldSize(int max) throws SQLException {
+        changingLimits().setMaxFieldSize(max);
+    }
+
+    public void setMaxRows(int max) throws SQLException {
+        changingLimits().setMaxRows(max);
+    }
+
+    public void setQueryTimeout(int seconds) throws SQLException {
+        changingLimits().setQueryTimeout(seconds);
+    }
+
+    public boolean isWrapperFor(Class<?> iface) throws SQLException {
+        return iface.isInstance(this) || stmt().isWrapperFor(iface);
+    }
+
+    /**
+     * Return the underlying statement (or an object it wraps) implementing the interface.
+     */
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        PreparedStatement current = stmt();
+        if (iface.isInstance(current)) {
+            return iface.cast(current);
+        }
+        if (iface.isInstance(this)) {
+            return iface.cast(this);
+        }
+        return current.unwrap(iface);
+    }
+
+    public void cancel() throws SQLException {
+        stmt().cancel();
+    }
+
+    public void clearBatch() throws SQLException {
+        stmt().clearBatch();
+    }
+
+    public void clearParameters() throws SQLException {
+        stmt().clearParameters();
+    }
+
+    public void clearWarnings() throws SQLException {
+        stmt().clearWarnings();
+    }
+
+    public boolean execute() throws SQLException {
+        return stmt().execute();
+    }
+
+    public boolean execute(String sql) throws SQLException {
+        return stmt().execute(sql);
+    }
+
+    public boolean execute(String sql, int autoGeneratedKeys) throws SQLException {
+        return stmt().execute(sql, autoGeneratedKeys);
+    }
+
+    public boolean execute(String sql, int[] columnIndexes) throws SQLException {
+        return stmt().execute(sql, columnIndexes);
+    }
+
+    public boolean execute(String sql, String[] columnNames) throws SQLException {
+        return stmt().execute(sql, columnNames);
+    }
+
+    public int[] executeBatch() throws SQLException {
+        return stmt().executeBatch();
+    }
+
+    public ResultSet executeQuery() throws SQLException {
+        return track(stmt().executeQuery());
+    }
+
+    public ResultSet executeQuery(String sql) throws SQLException {
+        return track(stmt().executeQuery(sql));
+    }
+
+    public int executeUpdate() throws SQLException {
+        return stmt().executeUpdate();
+    }
+
+    public int executeUpdate(String sql) throws SQLException {
+        return stmt().executeUpdate(sql);
+    }
+
+    public int executeUpdate(String sql, int autoGeneratedKeys) throws SQLException {
+        return stmt().executeUpdate(sql, autoGeneratedKeys);
+    }
+
+    public int executeUpdate(String sql, int[] columnIndexes) throws SQLException {
+        return stmt().executeUpdate(sql, columnIndexes);
+    }
+
+    public int executeUpdate(String sql, String[] columnNames) throws SQLException {
+        return stmt().executeUpdate(sql, columnNames);
+    }
+
+    public int getFetchDirection() throws SQLException {
+        return stmt().getFetchDirection();
+    }
+
+    public int getFetchSize() throws SQLException {
+        return stmt().getFetchSize();
+    }
+
+    public ResultSet getGeneratedKeys() throws SQLException {
+        return track(stmt().getGeneratedKeys());
+    }
+
+    public int getMaxFieldSize() throws SQLException {
+        return stmt().getMaxFieldSize();
+    }
+
+    public int getMaxRows() throws SQLException {
+        return stmt().getMaxRows();
+    }
+
+    public ResultSetMetaData getMetaData() throws SQLException {
+        return stmt().getMetaData();
+    }
+
+    public boolean getMoreResults() throws SQLException {
+        return stmt().getMoreResults();
+    }
+
+    public boolean getMoreResults(int current) throws SQLException {
+        return stmt().getMoreResults(current);
+    }
+
+    public ParameterMetaData getParameterMetaData() throws SQLException {
+        return stmt().getParameterMetaData();
+    }
+
+    public int getQueryTimeout() throws SQLException {
+        return stmt().getQueryTimeout();
+    }
+
+    public ResultSet getResultSet() throws SQLException {
+        return track(stmt().getResultSet());
+    }
+
+    public int getResultSetConcurrency() throws SQLException {
+        return stmt().getResultSetConcurrency();
+    }
+
+    public int getResultSetHoldability() throws SQLException {
+        return stmt().getResultSetHoldability();
+    }
+
+    public int getResultSetType() throws SQLException {
+        return stmt().getResultSetType();
+    }
+
+    public int getUpdateCount() throws SQLException {
+        return stmt().getUpdateCount();
+    }
+
+    public SQLWarning getWarnings() throws SQLException {
+        return stmt().getWarnings();
+    }
+
+    public boolean isCloseOnCompletion() throws SQLException {
+        return stmt().isCloseOnCompletion();
+    }
+
+    public void setArray(int parameterIndex, Array x) throws SQLException {
+        stmt().setArray(parameterIndex, x);
+    }
+
+    public void setAsciiStream(int parameterIndex, InputStream x) throws SQLException {
+        stmt().setAsciiStream(parameterIndex, x);
+    }
+
+    public void setAsciiStream(int parameterIndex, InputStream x, int length) throws SQLException {
+        stmt().setAsciiStream(parameterIndex, x, length);
+    }
+
+    public void setAsciiStream(int parameterIndex, InputStream x, long length) throws SQLException {
+        stmt().setAsciiStream(parameterIndex, x, length);
+    }
+
+    public void setBigDecimal(int parameterIndex, BigDecimal x) throws SQLException {
+        stmt().setBigDecimal(parameterIndex, x);
+    }
+
+    public void setBinaryStream(int parameterIndex, InputStream x) throws SQLException {
+        stmt().setBinaryStream(parameterIndex, x);
+    }
+
+    public void setBinaryStream(int parameterIndex, InputStream x, long length)
+            throws SQLException {
+        stmt().setBinaryStream(parameterIndex, x, length);
+    }
+
+    public void setBinaryStream(int parameterIndex, InputStream x, int length) throws SQLException {
+        stmt().setBinaryStream(parameterIndex, x, length);
+    }
+
+    public void setBlob(int parameterIndex, Blob x) throws SQLException {
+        stmt().setBlob(parameterIndex, x);
+    }
+
+    public void setBlob(int parameterIndex, InputStream x) throws SQLException {
+        stmt().setBlob(parameterIndex, x);
+    }
+
+    public void setBlob(int parameterIndex, InputStream x, long length) throws SQLException {
+        stmt().setBlob(parameterIndex, x, length);
+    }
+
+    public void setBoolean(int parameterIndex, boolean x) throws SQLException {
+        stmt().setBoolean(parameterIndex, x);
+    }
+
+    public void setByte(int parameterIndex, byte x) throws SQLException {
+        stmt().setByte(parameterIndex, x);
+    }
+
+    public void setBytes(int parameterIndex, byte[] x) throws SQLException {
+        stmt().setBytes(parameterIndex, x);
+    }
+
+    public void setCharacterStream(int parameterIndex, Reader x) throws SQLException {
+        stmt().setCharacterStream(parameterIndex, x);
+    }
+
+    public void setCharacterStream(int parameterIndex, Reader x, int length) throws SQLException {
+        stmt().setCharacterStream(parameterIndex, x, length);
+    }
+
+    public void setCharacterStream(int parameterIndex, Reader x, long length) throws SQLException {
+        stmt().setCharacterStream(parameterIndex, x, length);
+    }
+
+    public void setClob(int parameterIndex, Clob x) throws SQLException {
+        stmt().setClob(parameterIndex, x);
+    }
+
+    public void setClob(int parameterIndex, Reader x) throws SQLException {
+        stmt().setClob(parameterIndex, x);
+    }
+
+    public void setClob(int parameterIndex, Reader x, long length) throws SQLException {
+        stmt().setClob(parameterIndex, x, length);
+    }
+
+    public void setDate(int parameterIndex, Date x) throws SQLException {
+        stmt().setDate(parameterIndex, x);
+    }
+
+    public void setDate(int parameterIndex, Date x, Calendar cal) throws SQLException {
+        stmt().setDate(parameterIndex, x, cal);
+    }
+
+    public void setDouble(int parameterIndex, double x) throws SQLException {
+        stmt().setDouble(parameterIndex, x);
+    }
+
+    public void setFloat(int parameterIndex, float x) throws SQLException {
+        stmt().setFloat(parameterIndex, x);
+    }
+
+    public void setInt(int parameterIndex, int x) throws SQLException {
+        stmt().setInt(parameterIndex, x);
+    }
+
+    public void setLong(int parameterIndex, long x) throws SQLException {
+        stmt().setLong(parameterIndex, x);
+    }
+
+    public void setNCharacterStream(int parameterIndex, Reader x) throws SQLException {
+        stmt().setNCharacterStream(parameterIndex, x);
+    }
+
+    public void setNCharacterStream(int parameterIndex, Reader x, long length) throws SQLException {
+        stmt().setNCharacterStream(parameterIndex, x, length);
+    }
+
+    public void setNClob(int parameterIndex, Reader x) throws SQLException {
+        stmt().setNClob(parameterIndex, x);
+    }
+
+    public void setNClob(int parameterIndex, NClob x) throws SQLException {
+        stmt().setNClob(parameterIndex, x);
+    }
+
+    public void setNClob(int parameterIndex, Reader x, long length) throws SQLException {
+        stmt().setNClob(parameterIndex, x, length);
+    }
+
+    public void setNString(int parameterIndex, String x) throws SQLException {
+        stmt().setNString(parameterIndex, x);
+    }
+
+    public void setNull(int parameterIndex, int sqlType) throws SQLException {
+        stmt().setNull(parameterIndex, sqlType);
+    }
+
+    public void setNull(int parameterIndex, int sqlType, String typeName) throws SQLException {
+        stmt().setNull(parameterIndex, sqlType, typeName);
+    }
+
+    public void setObject(int parameterIndex, Object x) throws SQLException {
+        stmt().setObject(parameterIndex, x);
+    }
+
+    public void setObject(int parameterIndex, Object x, int targetSqlType) throws SQLException {
+        stmt().setObject(parameterIndex, x, targetSqlType);
+    }
+
+    public void setObject(int parameterIndex, Object x, int targetSqlType, int scaleOrLength)
+            throws SQLException {
+        stmt().setObject(parameterIndex, x, targetSqlType, scaleOrLength);
+    }
+
+    public void setRef(int parameterIndex, Ref x) throws SQLException {
+        stmt().setRef(parameterIndex, x);
+    }
+
+    public void setRowId(int parameterIndex, RowId x) throws SQLException {
+        stmt().setRowId(parameterIndex, x);
+    }
+
+    public void setSQLXML(int parameterIndex, SQLXML x) throws SQLException {
+        stmt().setSQLXML(parameterIndex, x);
+    }
+
+    public void setShort(int parameterIndex, short x) throws SQLException {
+        stmt().setShort(parameterIndex, x);
+    }
+
+    public void setString(int parameterIndex, String x) throws SQLException {
+        stmt().setString(parameterIndex, x);
+    }
+
+    public void setTime(int parameterIndex, Time x) throws SQLException {
+        stmt().setTime(parameterIndex, x);
+    }
+
+    public void setTime(int parameterIndex, Time x, Calendar cal) throws SQLException {
+        stmt().setTime(parameterIndex, x, cal);
+    }
+
+    public void setTimestamp(int parameterIndex, Timestamp x) throws SQLException {
+        stmt().setTimestamp(parameterIndex, x);
+    }
+
+    public void setTimestamp(int parameterIndex, Timestamp x, Calendar cal) throws SQLException {
+        stmt().setTimestamp(parameterIndex, x, cal);
+    }
+
+    public void setURL(int parameterIndex, URL x) throws SQLException {
+        stmt().setURL(parameterIndex, x);
+    }
+
+    @SuppressWarnings("deprecation")
+    public void setUnicodeStream(int parameterIndex, InputStream x, int length)
+            throws SQLException {
+        stmt().setUnicodeStream(parameterIndex, x, length);
+    }
+
+    public String toString() {
+        return key.toString();
+    }
+
+}
@@ -3,6 +3,7 @@ package org.pojava.persistence.sql;
 import java.sql.Connection;
 import java.sql.DatabaseMetaData;
 import java.sql.SQLException;
+import java.util.Locale;
 
 /**
  * This class keeps some useful information about a DataSource without holding open a
@@ -12,6 +13,26 @@ import java.sql.SQLException;
  */
 public class DataSourceMetadata {
 
+    /**
+     * Upper bound on rows per multi-row INSERT, keeping statements to a moderate size.
+     */
+    private static final int MAX_MULTI_ROW_INSERT = 1000;
+
+    /**
+     * Upsert by INSERT ... ON CONFLICT, as in PostgreSQL 9.5 and later.
+     */
+    public static final String UPSERT_ON_CONFLICT = "ON CONFLICT";
+
+    /**
+     * Upsert by INSERT ... ON DUPLICATE KEY UPDATE, as in MySQL and MariaDB.
+     */
+    public static final String UPSERT_ON_DUPLICATE_KEY = "ON DUPLICATE KEY";
+
+    /**
+     * Upsert by the standard MERGE statement, as in H2, HSQLDB and DB2.
+     */
+    public static final String UPSERT_MERGE = "MERGE";
+
     /**
      * Platform is probably of the most interest of these fields.
      */
@@ -125,4 +146,128 @@ public class DataSourceMetadata {
         this.minorVersion = minorVersion;
     }
 
+    /**
+     * Translate a requested fetch size into the fetch size that makes this platform's driver
+     * stream rows rather than buffer the whole result. MySQL Connector/J only streams when the
+     * fetch size is Integer.MIN_VALUE.
+     *
+     * @param fetchSize requested rows per round trip
+     * @return fetch size to set on a forward-only, read-only statement
+     */
+    public int streamingFetchSize(int fetchSize) {
+        if ("MySQL".equalsIgnoreCase(platform)) {
+            return Integer.MIN_VALUE;
+        }
+        return fetchSize;
+    }
+
+    /**
+     * Return the number of rows a single multi-row INSERT ... VALUES (...), (...) statement
+     * may carry on this platform, bounded by the platform's limit on bind parameters. Platforms
+     * not known to support multi-row VALUES return 1.
+     *
+     * @param columns number of columns bound per row
+     * @return maximum rows per INSERT statement, at least 1
+     */
+    public int multiRowInsertLimit(int columns) {
+        if (platform == null || columns <= 0) {
+            return 1;
+        }
+        String name = platform.toLowerCase(Locale.ENGLISH);
+        int maxBindings;
+        if (name.startsWith("microsoft sql server")) {
+            maxBindings = 2000;
+        } else if (name.equals("sqlite")) {
+            maxBindings = 999;
+        } else if (name.equals("mysql") || name.equals("mariadb") || name.equals("postgresql")
+                || name.equals("h2") || name.startsWith("hsql") || name.equals("apache derby")
+                || name.startsWith("db2")) {
+            maxBindings = 32767;
+        } else {
+            return 1;
+        }
+        return Math.max(1, Math.min(MAX_MULTI_ROW_INSERT, maxBindings / columns));
+    }
+
+    /**
+     * PostgreSQL ignores the fetch size and buffers the whole result unless the statement runs
+     * inside a transaction.
+     *
+     * @return true if auto-commit must be off for the driver to honor the fetch size
+     */
+    public boolean isStreamingTransactional() {
+        return "PostgreSQL".equalsIgnoreCase(platform);
+    }
+
+    /**
+     * PostgreSQL loads rows fastest through COPY ... FROM STDIN, driven by the driver's
+     * CopyManager.
+     *
+     * @return true if the platform accepts COPY from a client stream
+     */
+    public boolean isCopySupported() {
+        return "PostgreSQL".equalsIgnoreCase(platform);
+    }
+
+    /**
+     * MySQL and MariaDB load rows fastest through LOAD DATA LOCAL INFILE, which their drivers
+     * can feed from a stream. The connection must allow local infile.
+     *
+     * @return true if the platform accepts LOAD DATA LOCAL INFILE
+     */
+    public boolean isLoadDataSupported() {
+        return "MySQL".equalsIgnoreCase(platform) || "MariaDB".equalsIgnoreCase(platform);
+    }
+
+    /**
+     * Return the single-statement upsert syntax of this platform, one of UPSERT_ON_CONFLICT,
+     * UPSERT_ON_DUPLICATE_KEY or UPSERT_MERGE.
+     *
+     * @return upsert syntax, or null if the platform is not known to have one
+     */
+    public String upsertStyle() {
+        if (platform == null) {
+            return null;
+        }
+        String name = platform.toLowerCase(Locale.ENGLISH);
+        if (name.equals("postgresql")) {
+            return majorVersion > 9 || (majorVersion == 9 && minorVersion >= 5)
+                    ? UPSERT_ON_CONFLICT : null;
+        }
+        if (name.equals("mysql") || name.equals("mariadb")) {
+            return UPSERT_ON_DUPLICATE_KEY;
+        }
+        if (name.equals("h2") || name.startsWith("hsql") || name.startsWith("db2")) {
+            return UPSERT_MERGE;
+        }
+        return null;
+    }
+
+    /**
+     * Return the clause limiting a query to a number of rows in this platform's dialect, to be
+     * appended after the ORDER BY clause. Platforms whose syntax is unknown return null, in
+     * which case the JDBC maxRows limit is relied upon instead.
+     *
+     * @param rows maximum rows returned
+     * @return " LIMIT n", " FETCH FIRST n ROWS ONLY" or similar, or null
+     */
+    public String rowLimitClause(int rows) {
+        if (platform == null || rows <= 0) {
+            return null;
+        }
+        String name = platform.toLowerCase(Locale.ENGLISH);
+        if (name.equals("mysql") || name.equals("mariadb") || name.equals("postgresql")
+                || name.equals("sqlite")) {
+            return " LIMIT " + rows;
+        }
+        if (name.equals("h2") || name.startsWith("hsql") || name.equals("apache derby")
+                || name.startsWith("db2") || (name.equals("oracle") && majorVersion >= 12)) {
+            return " FETCH FIRST " + rows + " ROWS ONLY";
+        }
+        if (name.startsWith("microsoft sql server") && majorVersion >= 11) {
+            return " OFFSET 0 ROWS FETCH NEXT " + rows + " ROWS ONLY";
+        }
+        return null;
+    }
+
 }
@@ -1,16 +1,34 @@
 package org.pojava.persistence.sql;
 
+import org.pojava.exception.InitializationException;
 import org.pojava.persistence.util.SqlTool;
 
 import javax.naming.Context;
 import javax.naming.InitialContext;
 import javax.naming.NamingException;
 import javax.sql.DataSource;
+import java.io.File;
+import java.io.IOException;
 import java.security.InvalidParameterException;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * This singleton caches object properties that facilitate interchange between Java and external
@@ -23,23 +41,61 @@ public class DatabaseCache {
     /**
      * Holds DataSourceMetadata objects by DataSource name.
      */
-    private static Map<String, DataSourceMetadata> dataSourceMetadataCache = new HashMap<String, DataSourceMetadata>();
+    private static Map<String, DataSourceMetadata> dataSourceMetadataCache = new ConcurrentHashMap<String, DataSourceMetadata>();
 
     /**
      * Holds DataSource objects by DataSource name.
      */
-    private static Map<String, DataSource> dataSourceCache = new HashMap<String, DataSource>();
+    private static Map<String, DataSource> dataSourceCache = new ConcurrentHashMap<String, DataSource>();
+
+    /**
+     * Holds the read replicas of a DataSource by the primary's name.
+     */
+    private static Map<String, ReplicaSet> replicaSets = new ConcurrentHashMap<String, ReplicaSet>();
 
     /**
      * Holds TableMap objects by Java class + table name.
      */
-    private static Map<String, TableMap<?>> tableMapCache = new HashMap<String, TableMap<?>>();
+    private static Map<String, TableMap<?>> tableMapCache = new ConcurrentHashMap<String, TableMap<?>>();
+
+    /**
+     * TableMaps declared for building by prewarmTableMaps, by the same key as tableMapCache.
+     */
+    private static Map<String, Declaration> declaredTableMaps = new ConcurrentHashMap<String, Declaration>();
+
+    /**
+     * Keys of TableMaps restored from a snapshot and not yet verified against the database.
+     */
+    private static Set<String> unverifiedTableMaps = Collections
+            .synchronizedSet(new HashSet<String>());
+
+    private static final Logger logger = Logger.getLogger("persistence.DatabaseCache");
 
     /**
      * Holds the names of DataSource objects used for locks.
      */
     private static Map<String, Object> dataSourceLocks = new HashMap<String, Object>();
 
+    /**
+     * Holds the statement cache capacity by DataSource name.
+     */
+    private static Map<String, Integer> statementCacheSizes = new HashMap<String, Integer>();
+
+    /**
+     * Holds statement cache counters by DataSource name.
+     */
+    private static Map<String, StatementCacheStatistics> statementCacheStatistics = new HashMap<String, StatementCacheStatistics>();
+
+    /**
+     * Shared cache of query results, or null if results are not cached.
+     */
+    private static volatile QueryCache queryCache = null;
+
+    /**
+     * Statistics recorded by instrumented connections, or null if not instrumented.
+     */
+    private static volatile SqlStatistics sqlStatistics = null;
+
     /**
      * Return the metadata for the named DataSource
      * 
@@ -53,22 +109,18 @@ public class DatabaseCache {
             return (DataSourceMetadata) dataSourceMetadataCache.get(dsName);
         }
         DataSourceMetadata metadata;
-        Object lock;
-        // Acquire a lock unique to the dsName
-        synchronized (dataSourceLocks) {
-            lock = dataSourceLocks.get(dsName);
-            if (lock == null) {
-                lock = new Object();
-                dataSourceLocks.put(dsName, lock);
-            }
-        }
+        Object lock = lockFor(dsName);
         // The lock allows one thread per DataSource name
         synchronized (lock) {
             metadata = (DataSourceMetadata) dataSourceMetadataCache.get(dsName);
             if (metadata == null) {
                 DataSource dataSource = getDataSource(dsName);
                 Connection conn = dataSource.getConnection();
-                metadata = new DataSourceMetadata(conn);
+                try {
+                    metadata = new DataSourceMetadata(conn);
+                } finally {
+                    conn.close();
+                }
                 dataSourceMetadataCache.put(dsName, metadata);
             }
         }
@@ -130,7 +182,7 @@ public class DatabaseCache {
      * @param tableMap Mapped fields
      */
     public static void registerTableMap(TableMap<?> tableMap) {
-        tableMapCache.put(tableMapKey(tableMap.getClass(), tableMap.getTableName(), tableMap
+        tableMapCache.put(tableMapKey(tableMap.getJavaClass(), tableMap.getTableName(), tableMap
                 .getDataSourceName()), tableMap);
     }
 
@@ -144,6 +196,26 @@ public class DatabaseCache {
         dataSourceCache.put(dataSourceName, dataSource);
     }
 
+    /**
+     * Register the read replicas of a DataSource, to which RoutingConnectionSource sends
+     * read-only work. Each replica must itself be a registered DataSource.
+     * 
+     * @param replicaSet replicas of the DataSource named by replicaSet.getPrimaryName()
+     */
+    public static void registerReplicaSet(ReplicaSet replicaSet) {
+        replicaSets.put(replicaSet.getPrimaryName(), replicaSet);
+    }
+
+    /**
+     * Retrieve the read replicas of a DataSource.
+     * 
+     * @param dataSourceName name of the primary DataSource
+     * @return ReplicaSet, or null if the DataSource has no replicas registered
+     */
+    public static ReplicaSet getReplicaSet(String dataSourceName) {
+        return replicaSets.get(dataSourceName);
+    }
+
     /**
      * Retrieve a tableMap
      * 
@@ -160,15 +232,7 @@ public class DatabaseCache {
         if (tableMapCache.containsKey(key)) {
             return (TableMap<T>) tableMapCache.get(key);
         }
-        Object lock;
-        // Acquire a lock unique to the key
-        synchronized (dataSourceLocks) {
-            lock = dataSourceLocks.get(key);
-            if (lock == null) {
-                lock = new Object();
-                dataSourceLocks.put(key, lock);
-            }
-        }
+        Object lock = lockFor(key);
         // The lock allows one thread per unique key
         TableMap<T> tableMap;
         synchronized (lock) {
@@ -182,4 +246,294 @@ public class DatabaseCache {
         return tableMap;
     }
 
+    /**
+     * Set the number of idle prepared statements cached per connection. A size of zero disables
+     * the cache.
+     * 
+     * @param dataSourceName Data Source name
+     * @param size maximum statements cached per connection
+     */
+    public static void setStatementCacheSize(String dataSourceName, int size) {
+        synchronized (statementCacheSizes) {
+            statementCacheSizes.put(dataSourceName, Integer.valueOf(size));
+        }
+    }
+
+    /**
+     * Get the number of idle prepared statements cached per connection.
+     * 
+     * @param dataSourceName Data Source name
+     * @return configured size, or StatementCache.DEFAULT_CAPACITY
+     */
+    public static int getStatementCacheSize(String dataSourceName) {
+        synchronized (statementCacheSizes) {
+            Integer size = statementCacheSizes.get(dataSourceName);
+            return size == null ? StatementCache.DEFAULT_CAPACITY : size.intValue();
+        }
+    }
+
+    /**
+     * Read the statement cache size from "${dsName}.statementCacheSize", if present.
+     * 
+     * @param props Properties retrieved from a property file
+     * @param dataSourceName Data Source name
+     */
+    public static void configureStatementCache(Properties props, String dataSourceName) {
+        String size = props.getProperty(dataSourceName + ".statementCacheSize");
+        if (size != null && size.trim().length() > 0) {
+            setStatementCacheSize(dataSourceName.trim(), Integer.parseInt(size.trim()));
+        }
+    }
+
+    /**
+     * Get the hit, miss and eviction counters of statement caches for a DataSource.
+     * 
+     * @param dataSourceName Data Source name
+     * @return counters shared by all connections of the DataSource
+     */
+    public static StatementCacheStatistics getStatementCacheStatistics(String dataSourceName) {
+        synchronized (statementCacheStatistics) {
+            StatementCacheStatistics statistics = statementCacheStatistics.get(dataSourceName);
+            if (statistics == null) {
+                statistics = new StatementCacheStatistics();
+                statementCacheStatistics.put(dataSourceName, statistics);
+            }
+            return statistics;
+        }
+    }
+
+    /**
+     * Create a statement cache for a new connection to a DataSource.
+     * 
+     * @param dataSourceName Data Source name
+     * @return StatementCache, or null if caching is disabled for the DataSource
+     */
+    public static StatementCache newStatementCache(String dataSourceName) {
+        int size = getStatementCacheSize(dataSourceName);
+        if (size <= 0) {
+            return null;
+        }
+        return new StatementCache(size, getStatementCacheStatistics(dataSourceName));
+    }
+
+    /**
+     * Cache the results of DaoTool.listByQuery and DaoTool.countByQuery.
+     * 
+     * @param cache QueryCache to consult, or null to stop caching results
+     */
+    public static void setQueryCache(QueryCache cache) {
+        queryCache = cache;
+    }
+
+    /**
+     * @return the QueryCache consulted by DaoTool, or null if results are not cached
+     */
+    public static QueryCache getQueryCache() {
+        return queryCache;
+    }
+
+    /**
+     * Instrument the statements of connections subsequently opened by a DatabaseTransaction,
+     * recording their executions in the given statistics.
+     *
+     * @param statistics SqlStatistics to record, or null to stop instrumenting
+     */
+    public static void setSqlStatistics(SqlStatistics statistics) {
+        sqlStatistics = statistics;
+    }
+
+    /**
+     * @return the SqlStatistics recorded by instrumented connections, or null
+     */
+    public static SqlStatistics getSqlStatistics() {
+        return sqlStatistics;
+    }
+
+    /**
+     * Declare a TableMap to be built by prewarmTableMaps.
+     * 
+     * @param javaClass Java Class
+     * @param tableName Table Name
+     * @param dataSourceName Data Source Name
+     */
+    public static void declareTableMap(Class<?> javaClass, String tableName,
+            String dataSourceName) {
+        declaredTableMaps.put(tableMapKey(javaClass, tableName, dataSourceName),
+                new Declaration(javaClass, tableName, dataSourceName));
+    }
+
+    /**
+     * Build every declared TableMap not already cached, using several threads so that the
+     * round trips to the database overlap. This returns once all maps are built.
+     * 
+     * @param threads number of maps built at once
+     * @return number of TableMaps built
+     */
+    public static int prewarmTableMaps(int threads) {
+        List<Declaration> pending = new ArrayList<Declaration>();
+        for (Iterator<Map.Entry<String, Declaration>> it = declaredTableMaps.entrySet()
+                .iterator(); it.hasNext();) {
+            Map.Entry<String, Declaration> entry = it.next();
+            if (!tableMapCache.containsKey(entry.getKey())) {
+                pending.add(entry.getValue());
+            }
+        }
+        if (pending.isEmpty()) {
+            return 0;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads,
+                pending.size())));
+        try {
+            List<Future<TableMap<?>>> futures = new ArrayList<Future<TableMap<?>>>();
+            for (Iterator<Declaration> it = pending.iterator(); it.hasNext();) {
+                final Declaration declaration = it.next();
+                futures.add(executor.submit(new Callable<TableMap<?>>() {
+                    public TableMap<?> call() {
+                        return getTableMap(declaration.javaClass, declaration.tableName,
+                                declaration.dataSourceName);
+                    }
+                }));
+            }
+            RuntimeException failure = null;
+            for (Iterator<Future<TableMap<?>>> it = futures.iterator(); it.hasNext();) {
+                try {
+                    it.next().get();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new InitializationException("Interrupted while building TableMaps.", ex);
+                } catch (ExecutionException ex) {
+                    if (failure == null) {
+                        Throwable cause = ex.getCause();
+                        failure = cause instanceof RuntimeException ? (RuntimeException) cause
+                                : new InitializationException(cause.getMessage(), cause);
+                    }
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            return pending.size();
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Record the mapping of every cached TableMap in a snapshot file.
+     * 
+     * @param file snapshot file
+     * @throws IOException
+     */
+    public static void saveTableMapSnapshot(File file) throws IOException {
+        TableMapSnapshot.capture(new ArrayList<TableMap<?>>(tableMapCache.values())).save(file);
+    }
+
+    /**
+     * Restore TableMaps from a snapshot file without consulting the database. Maps already
+     * cached are kept. Restored maps may be checked later with verifyTableMaps.
+     * 
+     * @param file snapshot file
+     * @return number of TableMaps restored
+     * @throws IOException
+     */
+    public static int loadTableMapSnapshot(File file) throws IOException {
+        int restored = 0;
+        List<TableMap<?>> maps = TableMapSnapshot.load(file).restore();
+        for (Iterator<TableMap<?>> it = maps.iterator(); it.hasNext();) {
+            TableMap<?> map = it.next();
+            String key = tableMapKey(map.getJavaClass(), map.getTableName(), map
+                    .getDataSourceName());
+            synchronized (lockFor(key)) {
+                if (!tableMapCache.containsKey(key)) {
+                    tableMapCache.put(key, map);
+                    unverifiedTableMaps.add(key);
+                    restored++;
+                }
+            }
+        }
+        return restored;
+    }
+
+    /**
+     * Compare each TableMap restored from a snapshot with a mapping freshly built from the
+     * database. A map that differs is updated in place, so DAOs holding it see the change.
+     * 
+     * @param executor runs the verification, typically in the background
+     * @return keys of the TableMaps that differed from the database
+     */
+    public static Future<List<String>> verifyTableMaps(ExecutorService executor) {
+        return executor.submit(new Callable<List<String>>() {
+            public List<String> call() {
+                List<String> changed = new ArrayList<String>();
+                List<String> keys;
+                synchronized (unverifiedTableMaps) {
+                    keys = new ArrayList<String>(unverifiedTableMaps);
+                }
+                for (Iterator<String> it = keys.iterator(); it.hasNext();) {
+                    String key = it.next();
+                    if (verifyTableMap(key, tableMapCache.get(key))) {
+                        changed.add(key);
+                    }
+                    unverifiedTableMaps.remove(key);
+                }
+                return changed;
+            }
+        });
+    }
+
+    /**
+     * @return true if the map differed from the database and was updated
+     */
+    private static <T> boolean verifyTableMap(String key, TableMap<T> map) {
+        if (map == null) {
+            return false;
+        }
+        try {
+            TableMap<T> fresh = SqlTool.autoGenerateTableMap(map.getJavaClass(), map
+                    .getTableName(), map.getDataSourceName());
+            if (TableMapSnapshot.sameMapping(map, fresh)) {
+                return false;
+            }
+            logger.warning("TableMap snapshot of " + key + " differs from database; updating.");
+            map.replaceFieldMaps(fresh);
+            return true;
+        } catch (RuntimeException ex) {
+            logger.log(Level.WARNING, "Cannot verify TableMap " + key, ex);
+            return false;
+        }
+    }
+
+    /**
+     * Acquire a lock unique to the key.
+     */
+    private static Object lockFor(String key) {
+        synchronized (dataSourceLocks) {
+            Object lock = dataSourceLocks.get(key);
+            if (lock == null) {
+                lock = new Object();
+                dataSourceLocks.put(key, lock);
+            }
+            return lock;
+        }
+    }
+
+    /**
+     * A TableMap declared for building by prewarmTableMaps.
+     */
+    private static final class Declaration {
+
+        final Class<?> javaClass;
+
+        final String tableName;
+
+        final String dataSourceName;
+
+        Declaration(Class<?> javaClass, String tableName, String dataSourceName) {
+            this.javaClass = javaClass;
+            this.tableName = tableName;
+            this.dataSourceName = dataSourceName;
+        }
+
+    }
+
 }
@@ -7,7 +7,12 @@ import java.sql.Connection;
 import java.sql.SQLException;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 
 /**
@@ -25,6 +30,26 @@ public class DatabaseTransaction implements Transaction, ConnectionSource {
 
     Logger log = Logger.getLogger("org.pojava.database");
 
+    private static final String VERIFY = "verify";
+
+    private static final String COMMIT = TransactionOutcome.COMMIT;
+
+    private static final String ROLLBACK = TransactionOutcome.ROLLBACK;
+
+    /**
+     * Executor committing connections concurrently, or null to commit one at a time.
+     */
+    private ExecutorService executor = null;
+
+    private boolean verifyBeforeCommit = false;
+
+    private int verifyTimeoutSeconds = 5;
+
+    /**
+     * Beans read or written within this transaction, or null if they are not held.
+     */
+    private IdentityMap identityMap = null;
+
     /**
      * Obtain a connection, reusing an existing transaction if possible. This is done to reduce
      * the risk of deadlock between two connections within the same transaction.
@@ -39,7 +64,10 @@ public class DatabaseTransaction implements Transaction, ConnectionSource {
             conn = (Connection) connections.get(dataSourceName);
         } else {
             try {
-                conn = new TransConnection(ds.getConnection());
+                TransConnection trans = new TransConnection(ds.getConnection(), DatabaseCache
+                        .newStatementCache(dataSourceName), DatabaseCache.getSqlStatistics());
+                trans.setIdentityMap(identityMap);
+                conn = trans;
                 connections.put(dataSourceName, conn);
                 setDefaults(conn);
             } catch (SQLException ex) {
@@ -63,34 +91,214 @@ public class DatabaseTransaction implements Transaction, ConnectionSource {
      * Rollback all transactions on all managed connections.
      */
     public void rollback() {
-        for (Iterator<Connection> it = connections.values().iterator(); it.hasNext(); ) {
-            Connection conn = it.next();
-            try {
-                conn.rollback();
-            } catch (SQLException ex) {
-                log.severe("Partial rollback failure: " + ex.getMessage());
-            }
-        }
-        closeConnections();
+        report(rollbackAll());
     }
 
     /**
      * Commit all transactions on all managed connections.
      */
     public void commit() {
-        for (Iterator<Connection> it = connections.values().iterator(); it.hasNext(); ) {
-            Connection conn = it.next();
+        report(commitAll());
+    }
+
+    /**
+     * Roll back all managed connections, reporting the outcome of each, then close them.
+     *
+     * @return outcome of the rollback on each connection
+     */
+    public TransactionOutcome rollbackAll() {
+        try {
+            TransactionOutcome outcome = new TransactionOutcome(TransactionOutcome.ROLLBACK,
+                    null);
+            perform(ROLLBACK, outcome);
+            return outcome;
+        } finally {
+            closeConnections();
+        }
+    }
+
+    /**
+     * Commit all managed connections, reporting the outcome of each, then close them. If
+     * verification is enabled, every connection is first checked to be alive, and if any is
+     * not, all are rolled back instead so that none commits.
+     *
+     * @return outcome of the commit (or of the rollback replacing it) on each connection
+     */
+    public TransactionOutcome commitAll() {
+        try {
+            if (verifyBeforeCommit && !connections.isEmpty()) {
+                TransactionOutcome verification = new TransactionOutcome(VERIFY, null);
+                perform(VERIFY, verification);
+                if (!verification.getFailures().isEmpty()) {
+                    TransactionOutcome outcome = new TransactionOutcome(
+                            TransactionOutcome.ROLLBACK, new LinkedHashMap<String, SQLException>(
+                                    verification.getFailures()));
+                    perform(ROLLBACK, outcome);
+                    return outcome;
+                }
+            }
+            TransactionOutcome outcome = new TransactionOutcome(TransactionOutcome.COMMIT, null);
+            perform(COMMIT, outcome);
+            return outcome;
+        } finally {
+            closeConnections();
+        }
+    }
+
+    /**
+     * Apply an action to every managed connection, concurrently if an executor is set and
+     * there is more than one connection.
+     */
+    private void perform(final String action, TransactionOutcome outcome) {
+        if (executor == null || connections.size() < 2) {
+            for (Iterator<Map.Entry<String, Connection>> it = connections.entrySet().iterator(); it
+                    .hasNext(); ) {
+                Map.Entry<String, Connection> entry = it.next();
+                try {
+                    apply(action, entry.getKey(), entry.getValue());
+                    outcome.recordCompleted(entry.getKey());
+                } catch (SQLException ex) {
+                    outcome.recordFailure(entry.getKey(), ex);
+                }
+            }
+            return;
+        }
+        Map<String, Future<Object>> pending = new LinkedHashMap<String, Future<Object>>();
+        for (Iterator<Map.Entry<String, Connection>> it = connections.entrySet().iterator(); it
+                .hasNext(); ) {
+            final Map.Entry<String, Connection> entry = it.next();
+            pending.put(entry.getKey(), executor.submit(new Callable<Object>() {
+                public Object call() throws SQLException {
+                    apply(action, entry.getKey(), entry.getValue());
+                    return null;
+                }
+            }));
+        }
+        for (Iterator<Map.Entry<String, Future<Object>>> it = pending.entrySet().iterator(); it
+                .hasNext(); ) {
+            Map.Entry<String, Future<Object>> entry = it.next();
             try {
-                conn.commit();
-            } catch (SQLException ex) {
-                log.severe("Partial commit failure: " + ex.getMessage());
+                entry.getValue().get();
+                outcome.recordCompleted(entry.getKey());
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                SQLException failure = new SQLException("Interrupted awaiting " + action
+                        + " of " + entry.getKey());
+                failure.initCause(ex);
+                outcome.recordFailure(entry.getKey(), failure);
+            } catch (ExecutionException ex) {
+                Throwable cause = ex.getCause();
+                if (cause instanceof SQLException) {
+                    outcome.recordFailure(entry.getKey(), (SQLException) cause);
+                } else {
+                    SQLException failure = new SQLException(action + " of " + entry.getKey()
+                            + " failed: " + cause);
+                    failure.initCause(cause);
+                    outcome.recordFailure(entry.getKey(), failure);
+                }
             }
         }
-        closeConnections();
+    }
+
+    private void apply(String action, String dataSourceName, Connection conn)
+            throws SQLException {
+        if (action == COMMIT) {
+            conn.commit();
+        } else if (action == ROLLBACK) {
+            conn.rollback();
+        } else if (!conn.isValid(verifyTimeoutSeconds)) {
+            throw new SQLException("Connection to " + dataSourceName
+                    + " failed verification before commit.");
+        }
     }
 
     /**
-     * This actually does close the connections (or returns them to a pool).
+     * Log the failures of an outcome, as commit and rollback have always done.
+     */
+    private void report(TransactionOutcome outcome) {
+        for (Iterator<Map.Entry<String, SQLException>> it = outcome.getVerificationFailures()
+                .entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, SQLException> entry = it.next();
+            log.severe("Commit abandoned; " + entry.getKey() + " failed verification: "
+                    + entry.getValue().getMessage());
+        }
+        String prefix = outcome.getAction() == TransactionOutcome.COMMIT ? "Partial commit failure: "
+                : "Partial rollback failure: ";
+        for (Iterator<Map.Entry<String, SQLException>> it = outcome.getFailures().entrySet()
+                .iterator(); it.hasNext(); ) {
+            Map.Entry<String, SQLException> entry = it.next();
+            log.severe(prefix + entry.getKey() + ": " + entry.getValue().getMessage());
+        }
+    }
+
+    /**
+     * Commit and roll back the connections concurrently on an executor. The executor should be
+     * bounded; it is not shut down by this transaction.
+     *
+     * @param executor executor to use, or null to act on one connection at a time
+     */
+    public void setExecutor(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * @return executor used to commit and roll back concurrently, or null
+     */
+    public ExecutorService getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Check that every connection is still alive before committing any of them, so that a
+     * lost connection causes a rollback everywhere rather than a partial commit.
+     *
+     * @param verifyBeforeCommit true to verify connections before commit
+     */
+    public void setVerifyBeforeCommit(boolean verifyBeforeCommit) {
+        this.verifyBeforeCommit = verifyBeforeCommit;
+    }
+
+    /**
+     * @return true if connections are verified before commit
+     */
+    public boolean isVerifyBeforeCommit() {
+        return verifyBeforeCommit;
+    }
+
+    /**
+     * Hold the beans read or written within this transaction, so that repeated calls to
+     * DaoTool.find for the same row return the same instance without a query. The beans are
+     * discarded when the transaction commits or rolls back.
+     *
+     * @param enabled true to hold beans, false to stop holding them
+     */
+    public void setIdentityMapEnabled(boolean enabled) {
+        if (enabled == (identityMap != null)) {
+            return;
+        }
+        identityMap = enabled ? new IdentityMap() : null;
+        for (Iterator<Connection> it = connections.values().iterator(); it.hasNext(); ) {
+            ((TransConnection) it.next()).setIdentityMap(identityMap);
+        }
+    }
+
+    /**
+     * @return beans held within this transaction, or null if they are not held
+     */
+    public IdentityMap getIdentityMap() {
+        return identityMap;
+    }
+
+    /**
+     * @param seconds time allowed for each connection to respond to verification
+     */
+    public void setVerifyTimeoutSeconds(int seconds) {
+        this.verifyTimeoutSeconds = seconds;
+    }
+
+    /**
+     * This actually does close the connections (or returns them to a pool), closing any
+     * statements they cached.
      */
     private void closeConnections() {
         for (Iterator<Connection> it = connections.values().iterator(); it.hasNext(); ) {
@@ -103,6 +311,9 @@ public class DatabaseTransaction implements Transaction, ConnectionSource {
             }
         }
         connections.clear();
+        if (identityMap != null) {
+            identityMap.clear();
+        }
     }
 
 }
@@ -0,0 +1,173 @@
+package org.pojava.persistence.sql;
+
+/*
+ Copyright 2008-14 John Pile
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A DirtyTracker holds, for each bean read from or written to the database, the column values
+ * last seen for it, so that an update can send only the columns that changed since.
+ * <p/>
+ * Beans are held by identity and weakly, so a tracked bean may still be collected, and a bean
+ * whose equals method follows its key is not confused with another copy of the same row. The
+ * values are those sent to the database after each field's adaptor, which are mostly immutable;
+ * arrays and dates are copied.
+ *
+ * @author John Pile
+ */
+final class DirtyTracker {
+
+    private final ReferenceQueue<Object> queue = new ReferenceQueue<Object>();
+
+    private final Map<BeanReference, Object[]> snapshots = new HashMap<BeanReference, Object[]>();
+
+    /**
+     * Record the column values of a bean, replacing any recorded before.
+     *
+     * @param bean   bean to track
+     * @param values column values, kept by the tracker
+     */
+    void put(Object bean, Object[] values) {
+        for (int i = 0; i < values.length; i++) {
+            values[i] = copyOf(values[i]);
+        }
+        synchronized (snapshots) {
+            purge();
+            snapshots.put(new BeanReference(bean, queue), values);
+        }
+    }
+
+    /**
+     * @param bean tracked bean
+     * @return column values last recorded for the bean, or null if it is not tracked
+     */
+    Object[] get(Object bean) {
+        synchronized (snapshots) {
+            purge();
+            return snapshots.get(new BeanReference(bean, null));
+        }
+    }
+
+    /**
+     * Forget the column values recorded for a bean.
+     *
+     * @param bean tracked bean
+     */
+    void remove(Object bean) {
+        synchronized (snapshots) {
+            purge();
+            snapshots.remove(new BeanReference(bean, null));
+        }
+    }
+
+    /**
+     * Forget the column values recorded for every bean.
+     */
+    void clear() {
+        synchronized (snapshots) {
+            purge();
+            snapshots.clear();
+        }
+    }
+
+    /**
+     * @return number of beans tracked
+     */
+    int size() {
+        synchronized (snapshots) {
+            purge();
+            return snapshots.size();
+        }
+    }
+
+    /**
+     * Compare a recorded column value with a current one.
+     *
+     * @param recorded value recorded in a snapshot
+     * @param current  value about to be sent to the database
+     * @return true if the values are the same
+     */
+    static boolean isSame(Object recorded, Object current) {
+        if (recorded == null || current == null) {
+            return recorded == current;
+        }
+        if (recorded instanceof byte[] && current instanceof byte[]) {
+            return Arrays.equals((byte[]) recorded, (byte[]) current);
+        }
+        return recorded.equals(current);
+    }
+
+    /**
+     * Copy a value that could be modified in place, sharing any other.
+     *
+     * @param value property or column value
+     * @return copy of an array or date, or the value itself
+     */
+    static Object copyOf(Object value) {
+        if (value instanceof byte[]) {
+            return ((byte[]) value).clone();
+        }
+        if (value instanceof Date) {
+            return ((Date) value).clone();
+        }
+        return value;
+    }
+
+    /**
+     * Drop the snapshots of collected beans.
+     */
+    private void purge() {
+        for (Reference<?> ref = queue.poll(); ref != null; ref = queue.poll()) {
+            snapshots.remove(ref);
+        }
+    }
+
+    /**
+     * A weak reference to a bean, equal to another only if both refer to the same instance.
+     */
+    private static final class BeanReference extends WeakReference<Object> {
+
+        private final int hash;
+
+        BeanReference(Object bean, ReferenceQueue<Object> queue) {
+            super(bean, queue);
+            this.hash = System.identityHashCode(bean);
+        }
+
+        public int hashCode() {
+            return hash;
+        }
+
+        public boolean equals(Object other) {
+            if (this == other) {
+                return true;
+            }
+            if (!(other instanceof BeanReference)) {
+                return false;
+            }
+            Object bean = get();
+            return bean != null && bean == ((BeanReference) other).get();
+        }
+    }
+
+}
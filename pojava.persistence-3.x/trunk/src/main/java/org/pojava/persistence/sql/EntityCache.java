@@ -0,0 +1,273 @@
+package org.pojava.persistence.sql;
+
+/*
+ Copyright 2008-14 John Pile
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * An EntityCache holds copies of beans of one TableMap, addressed by the values of their key
+ * fields. It is meant for hot, rarely changing rows such as lookup tables, sparing
+ * DaoTool.find a round trip to the database.
+ * <p/>
+ * The cache holds at most maxEntries beans, discarding the least recently used when full, and
+ * discards a bean once it has been held longer than its time to live. Beans are copied on the
+ * way in and on the way out, so a caller modifying a bean it found cannot alter the cached
+ * copy. Only mapped properties are copied.
+ * <p/>
+ * DaoTool invalidates entries as it writes to the table. A write through a connection whose
+ * commit DaoTool cannot see, one in manual commit mode that is not a TransConnection, also
+ * stops the cache from taking beans until that connection is closed or returns to auto-commit
+ * mode, so that a concurrent reader cannot cache the row as it was before the commit. Changes
+ * made by other means, such as another application, are seen only once the entry expires.
+ *
+ * @author John Pile
+ */
+public class EntityCache<POJO> {
+
+    private final TableMap<POJO> map;
+
+    private final int maxEntries;
+
+    private final long ttlMillis;
+
+    private final CacheStatistics statistics = new CacheStatistics();
+
+    /**
+     * Incremented on every invalidation, so that a bean read before a write is not cached
+     * after it.
+     */
+    private long generation = 0;
+
+    private final LinkedHashMap<RowKey, Entry<POJO>> entries;
+
+    /**
+     * Connections that wrote to the table and may not have committed yet.
+     */
+    private final Map<Connection, Boolean> writers = new WeakHashMap<Connection, Boolean>();
+
+    /**
+     * Construct a cache for the beans of a TableMap.
+     *
+     * @param map        TableMap describing the beans
+     * @param maxEntries maximum number of beans held
+     * @param ttlMillis  milliseconds a bean may be held, or 0 to hold until evicted
+     */
+    public EntityCache(TableMap<POJO> map, int maxEntries, long ttlMillis) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("An EntityCache must hold at least one entry.");
+        }
+        this.map = map;
+        this.maxEntries = maxEntries;
+        this.ttlMillis = ttlMillis;
+        this.entries = new LinkedHashMap<RowKey, Entry<POJO>>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            protected boolean removeEldestEntry(Map.Entry<RowKey, Entry<POJO>> eldest) {
+                if (size() > EntityCache.this.maxEntries) {
+                    statistics.recordEviction();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Return a copy of the cached bean having the same key values as the given bean.
+     *
+     * @param keyBean bean whose key fields identify the row
+     * @return copy of the cached bean, or null if it is not cached
+     */
+    public POJO get(POJO keyBean) {
+        RowKey key = RowKey.of(map, keyBean);
+        if (key == null) {
+            return null;
+        }
+        POJO cached = null;
+        synchronized (entries) {
+            Entry<POJO> entry = entries.get(key);
+            if (entry != null) {
+                if (entry.isExpired(System.currentTimeMillis())) {
+                    entries.remove(key);
+                    statistics.recordExpiration();
+                } else {
+                    cached = entry.bean;
+                }
+            }
+        }
+        if (cached == null) {
+            statistics.recordMiss();
+            return null;
+        }
+        statistics.recordHit();
+        return map.copy(cached);
+    }
+
+    /**
+     * Show the current generation, to be passed to put after loading a bean.
+     *
+     * @return generation counter
+     */
+    public long getGeneration() {
+        synchronized (entries) {
+            return generation;
+        }
+    }
+
+    /**
+     * Cache a copy of a bean loaded from the database, unless the cache has been invalidated
+     * since the load began.
+     *
+     * @param bean       bean loaded from the database
+     * @param generation value of getGeneration taken before the load
+     */
+    public void put(POJO bean, long generation) {
+        RowKey key = RowKey.of(map, bean);
+        if (key == null || isAwaitingCommit()) {
+            return;
+        }
+        long expires = ttlMillis <= 0 ? Long.MAX_VALUE : System.currentTimeMillis() + ttlMillis;
+        Entry<POJO> entry = new Entry<POJO>(map.copy(bean), expires);
+        synchronized (entries) {
+            if (generation == this.generation) {
+                entries.put(key, entry);
+            }
+        }
+    }
+
+    /**
+     * Discard the bean having the same key values as the given bean.
+     *
+     * @param keyBean bean whose key fields identify the row
+     */
+    public void invalidate(POJO keyBean) {
+        RowKey key = RowKey.of(map, keyBean);
+        synchronized (entries) {
+            generation++;
+            if (key != null) {
+                entries.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Take no beans until a connection that wrote to the table without committing is closed
+     * or returns to auto-commit mode.
+     *
+     * @param conn connection in manual commit mode
+     */
+    public void awaitCommit(Connection conn) {
+        synchronized (entries) {
+            generation++;
+            writers.put(conn, Boolean.TRUE);
+        }
+    }
+
+    /**
+     * Tell whether a connection that wrote to the table may still hold uncommitted changes,
+     * forgetting those that have ended.
+     */
+    private boolean isAwaitingCommit() {
+        Connection[] conns;
+        synchronized (entries) {
+            if (writers.isEmpty()) {
+                return false;
+            }
+            conns = writers.keySet().toArray(new Connection[writers.size()]);
+        }
+        boolean waiting = false;
+        for (int i = 0; i < conns.length; i++) {
+            Connection conn = conns[i];
+            boolean ended;
+            try {
+                ended = conn == null || conn.isClosed() || conn.getAutoCommit();
+            } catch (SQLException ex) {
+                ended = false;
+            }
+            if (!ended) {
+                waiting = true;
+            } else if (conn != null) {
+                synchronized (entries) {
+                    writers.remove(conn);
+                }
+            }
+        }
+        return waiting;
+    }
+
+    /**
+     * Discard all beans.
+     */
+    public void invalidateAll() {
+        synchronized (entries) {
+            generation++;
+            entries.clear();
+        }
+    }
+
+    /**
+     * @return number of beans held, including any that have expired but not been discarded
+     */
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * @return maximum number of beans held
+     */
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    /**
+     * @return milliseconds a bean may be held, or 0 if held until evicted
+     */
+    public long getTtlMillis() {
+        return ttlMillis;
+    }
+
+    /**
+     * @return hit, miss, eviction and expiration counters
+     */
+    public CacheStatistics getStatistics() {
+        return statistics;
+    }
+
+    private static final class Entry<POJO> {
+
+        final POJO bean;
+
+        final long expires;
+
+        Entry(POJO bean, long expires) {
+            this.bean = bean;
+            this.expires = expires;
+        }
+
+        boolean isExpired(long now) {
+            return now >= expires;
+        }
+
+    }
+
+}
@@ -45,6 +45,21 @@ public class FieldMap<POJO, PROP, COL> {
     private Method[] setters;
     private TableMap<POJO> tableMap;
 
+    /**
+     * Compiled form of the getter/setter chains, built when first used.
+     */
+    private volatile PropertyAccessor accessor;
+
+    /**
+     * True once compiling the accessor has been attempted.
+     */
+    private volatile boolean accessorCompiled = false;
+
+    /**
+     * Binder of property values to statements, resolved when first used.
+     */
+    private volatile ParameterBinder binder;
+
     /**
      * Construct an empty FieldMap.
      */
@@ -176,6 +191,9 @@ public class FieldMap<POJO, PROP, COL> {
      */
     public void setColumnName(String columnName) {
         this.columnName = columnName;
+        if (this.tableMap != null) {
+            this.tableMap.invalidateStatements();
+        }
     }
 
     /**
@@ -232,6 +250,7 @@ public class FieldMap<POJO, PROP, COL> {
      */
     public void setPropertyClass(Class<PROP> propertyClass) {
         this.propertyClass = propertyClass;
+        this.binder = null;
     }
 
     /**
@@ -248,6 +267,11 @@ public class FieldMap<POJO, PROP, COL> {
         if (this.adaptor != null) {
             value = this.adaptor.inbound(new Binding(this.getColumnClass(), value)).getObj();
         }
+        PropertyAccessor compiled = accessor();
+        if (compiled != null && compiled.isWritable()) {
+            compiled.set(obj, value);
+            return;
+        }
         try {
             ReflectionTool.setNestedValue(this.getters, this.setters, obj, value);
         } catch (IllegalAccessException ex) {
@@ -257,6 +281,48 @@ public class FieldMap<POJO, PROP, COL> {
         }
     }
 
+    /**
+     * Read the mapped property from a bean.
+     *
+     * @param bean bean holding the property
+     * @return property value. Primitives are converted to equivalent object.
+     */
+    public Object getPropertyValue(Object bean) {
+        PropertyAccessor compiled = accessor();
+        if (compiled != null) {
+            return compiled.get(bean);
+        }
+        return ReflectionTool.getNestedValue(this.getters, bean);
+    }
+
+    /**
+     * Return the compiled accessor, compiling it on first use.
+     *
+     * @return PropertyAccessor, or null if reflection must be used instead
+     */
+    PropertyAccessor accessor() {
+        if (!accessorCompiled) {
+            accessor = PropertyAccessor.compile(this.getters, this.setters);
+            accessorCompiled = true;
+        }
+        return accessor;
+    }
+
+    /**
+     * Return the binder of this field's property values, passing them through the adaptor on
+     * their way to the database.
+     *
+     * @return ParameterBinder resolved for the property class and adaptor
+     */
+    public ParameterBinder getBinder() {
+        ParameterBinder resolved = binder;
+        if (resolved == null) {
+            resolved = ParameterBinder.forField(this);
+            binder = resolved;
+        }
+        return resolved;
+    }
+
     /**
      * Get the array of getters that drill down to the property.
      *
@@ -273,6 +339,7 @@ public class FieldMap<POJO, PROP, COL> {
      */
     public void setGetters(Method[] getters) {
         this.getters = getters;
+        this.accessorCompiled = false;
     }
 
     /**
@@ -291,6 +358,7 @@ public class FieldMap<POJO, PROP, COL> {
      */
     public void setSetters(Method[] setters) {
         this.setters = setters;
+        this.accessorCompiled = false;
     }
 
     /**
@@ -309,6 +377,7 @@ public class FieldMap<POJO, PROP, COL> {
      */
     public void setAdaptor(BindingAdaptor<PROP, COL> adaptor) {
         this.adaptor = adaptor;
+        this.binder = null;
     }
 
     /**
@@ -328,4 +397,15 @@ public class FieldMap<POJO, PROP, COL> {
     public TableMap<POJO> getTableMap() {
         return this.tableMap;
     }
+
+    /**
+     * Create an array of FieldMaps of one bean class, which Java cannot create directly.
+     *
+     * @param size length of the array
+     * @return array of nulls
+     */
+    @SuppressWarnings("unchecked")
+    static <POJO> FieldMap<POJO, ?, ?>[] newArray(int size) {
+        return (FieldMap<POJO, ?, ?>[]) new FieldMap<?, ?, ?>[size];
+    }
 }
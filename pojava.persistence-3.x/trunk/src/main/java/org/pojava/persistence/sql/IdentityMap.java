@@ -0,0 +1,127 @@
+package org.pojava.persistence.sql;
+
+/*
+ Copyright 2008-14 John Pile
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * An IdentityMap holds the beans read or written within one transaction, addressed by their
+ * TableMap and the values of their key fields, so that repeated lookups of the same row return
+ * the same instance without querying the database again.
+ * <p/>
+ * Unlike an EntityCache, the beans are not copied, and are held only until the transaction
+ * commits or rolls back, so a lookup sees the transaction's own changes and is never staler
+ * than the transaction itself. DaoTool keeps the map current as it writes through the
+ * transaction's connection; changes made by other means are not seen.
+ *
+ * @author John Pile
+ */
+public class IdentityMap {
+
+    private final Map<RowKey, Object> beans = new HashMap<RowKey, Object>();
+
+    /**
+     * Return the bean held for the row having the same key values as the given bean.
+     *
+     * @param map     TableMap describing the bean
+     * @param keyBean bean whose key fields identify the row
+     * @return bean held, or null if none is held
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized <POJO> POJO get(TableMap<POJO> map, POJO keyBean) {
+        RowKey key = RowKey.of(map, keyBean);
+        return key == null ? null : (POJO) beans.get(key);
+    }
+
+    /**
+     * Hold a bean read from the database, unless a bean is already held for its row, in which
+     * case that bean is kept so that every lookup of the row sees the same instance.
+     *
+     * @param map  TableMap describing the bean
+     * @param bean bean read from the database
+     * @return the bean held for the row, or the given bean if it has no complete key
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized <POJO> POJO merge(TableMap<POJO> map, POJO bean) {
+        RowKey key = RowKey.of(map, bean);
+        if (key == null) {
+            return bean;
+        }
+        Object held = beans.get(key);
+        if (held != null) {
+            return (POJO) held;
+        }
+        beans.put(key, bean);
+        return bean;
+    }
+
+    /**
+     * Hold a bean just written to the database, replacing any bean held for its row.
+     *
+     * @param map  TableMap describing the bean
+     * @param bean bean written to the database
+     */
+    public synchronized <POJO> void put(TableMap<POJO> map, POJO bean) {
+        RowKey key = RowKey.of(map, bean);
+        if (key != null) {
+            beans.put(key, bean);
+        }
+    }
+
+    /**
+     * Stop holding the bean for the row having the same key values as the given bean.
+     *
+     * @param map     TableMap describing the bean
+     * @param keyBean bean whose key fields identify the row
+     */
+    public synchronized <POJO> void remove(TableMap<POJO> map, POJO keyBean) {
+        RowKey key = RowKey.of(map, keyBean);
+        if (key != null) {
+            beans.remove(key);
+        }
+    }
+
+    /**
+     * Stop holding the beans of a TableMap, as after a write to many of its rows.
+     *
+     * @param map TableMap describing the beans
+     */
+    public synchronized void removeAll(TableMap<?> map) {
+        for (Iterator<RowKey> it = beans.keySet().iterator(); it.hasNext(); ) {
+            if (it.next().isOf(map)) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Stop holding any bean.
+     */
+    public synchronized void clear() {
+        beans.clear();
+    }
+
+    /**
+     * @return number of beans held
+     */
+    public synchronized int size() {
+        return beans.size();
+    }
+
+}
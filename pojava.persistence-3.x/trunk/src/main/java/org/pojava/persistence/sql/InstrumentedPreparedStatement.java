@@ -0,0 +1,698 @@
+package org.pojava.persistence.sql;
+
+/*
+ Copyright 2008-14 John Pile
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+import org.pojava.lang.BoundString;
+import org.pojava.lang.UncheckedBinding;
+
+import java.io.InputStream;
+import java.io.Reader;
+import java.math.BigDecimal;
+import java.net.URL;
+import java.sql.*;
+import java.util.Calendar;
+
+/**
+ * An InstrumentedPreparedStatement times each execution of the statement it wraps and records
+ * it in SqlStatistics, along with the rows it affects. It remembers the values bound to it so
+ * that a slow execution can be logged with its bindings inlined.
+ *
+ * @author John Pile
+ */
+final class InstrumentedPreparedStatement implements PreparedStatement {
+
+    private final SqlStatistics statistics;
+
+    private final StatementStatistics stats;
+
+    private final String sql;
+
+    private final Connection owner;
+
+    private final PreparedStatement stmt;
+
+    /**
+     * Values bound by position, starting from index 0 for parameter 1.
+     */
+    private Object[] parameters = null;
+
+    private int batchSize = 0;
+
+    InstrumentedPreparedStatement(SqlStatistics statistics, String sql, Connection owner,
+                                  PreparedStatement stmt) {
+        this.statistics = statistics;
+        this.stats = statistics.forSql(sql);
+        this.sql = sql;
+        this.owner = owner;
+        this.stmt = stmt;
+    }
+
+    private void bind(int parameterIndex, Object value) {
+        if (parameterIndex < 1) {
+            return;
+        }
+        if (parameters == null || parameters.length < parameterIndex) {
+            Object[] grown = new Object[Math.max(parameterIndex, 8)];
+            if (parameters != null) {
+                System.arraycopy(parameters, 0, grown, 0, parameters.length);
+            }
+            parameters = grown;
+        }
+        parameters[parameterIndex - 1] = value;
+    }
+
+    /**
+     * Record an execution of this statement, logging it if slow.
+     */
+    private void executed(long start, long affected) {
+        long nanos = System.nanoTime() - start;
+        stats.recordExecution(nanos, affected);
+        if (statistics.isSlow(nanos)) {
+            statistics.recordSlow(nanos, inlined());
+        }
+    }
+
+    /**
+     * Record an execution of other SQL passed directly to this statement.
+     */
+    private void executed(String other, long start, long affected) {
+        long nanos = System.nanoTime() - start;
+        statistics.forSql(other).recordExecution(nanos, affected);
+        if (statistics.isSlow(nanos)) {
+            statistics.recordSlow(nanos, other);
+        }
+    }
+
+    /**
+     * Render the SQL with the values currently bound to it.
+     */
+    private String inlined() {
+        BoundString bs = new BoundString(sql);
+        int count = sql.length() - sql.replace("?", "").length();
+        for (int i = 0; i < count; i++) {
+            Object value = parameters == null || i >= parameters.length ? null : parameters[i];
+            bs.addBinding(new UncheckedBinding(value == null ? Object.class : value.getClass(),
+                    value));
+        }
+        String text = bs.toString();
+        return batchSize > 0 ? text + " [batch of " + batchSize + "]" : text;
+    }
+
+    private static long sum(int[] counts) {
+        long total = 0;
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] > 0) {
+                total += counts[i];
+            }
+        }
+        return total;
+    }
+
+    public boolean execute() throws SQLException {
+        long start = System.nanoTime();
+        try {
+            boolean result = stmt.execute();
+            executed(start, result ? -1 : stmt.getUpdateCount());
+            return result;
+        } catch (SQLException ex) {
+            stats.recordError();
+            throw ex;
+        }
+    }
+
+    public boolean execute(String sql) throws SQLException {
+        long start = System.nanoTime();
+        try {
+            boolean result = stmt.execute(sql);
+            executed(sql, start, -1);
+            return result;
+        } catch (SQLException ex) {
+            statistics.forSql(sql).recordError();
+            throw ex;
+        }
+    }
+
+    public boolean execute(String sql, int autoGeneratedKeys) throws SQLException {
+        long start = System.nanoTime();
+        try {
+            boolean result = stmt.execute(sql, autoGeneratedKeys);
+            executed(sql, start, -1);
+            return result;
+        } catch (SQLException ex) {
+            statistics.forSql(sql).recordError();
+            throw ex;
+        }
+    }
+
+    public boolean execute(String sql, int[] columnIndexes) throws SQLException {
+        long start = System.nanoTime();
+        try {
+            boolean result = stmt.execute(sql, columnIndexes);
+            executed(sql, start, -1);
+            return result;
+        } catch (SQLException ex) {
+            statistics.forSql(sql).recordError();
+            throw ex;
+        }
+    }
+
+    public boolean execute(String sql, String[] columnNames) throws SQLException {
+        long start = System.nanoTime();
+        try {
+            boolean result = stmt.execute(sql, columnNames);
+            executed(sql, start, -1);
+            return result;
+        } catch (SQLException ex) {
+            statistics.forSql(sql).recordError();
+            throw ex;
+        }
+    }
+
+    public int[] executeBatch() throws SQLException {
+        long start = System.nanoTime();
+        try {
+            int[] counts = stmt.executeBatch();
+            executed(start, sum(counts));
+            return counts;
+        } catch (SQLException ex) {
+            stats.recordError();
+            throw ex;
+        } finally {
+            batchSize = 0;
+        }
+    }
+
+    public ResultSet executeQuery() throws SQLException {
+        long start = System.nanoTime();
+        try {
+            ResultSet rs = stmt.executeQuery();
+            executed(start, -1);
+            return rs;
+        } catch (SQLException ex) {
+            stats.recordError();
+            throw ex;
+        }
+    }
+
+    public ResultSet executeQuery(String sql) throws SQLException {
+        long start = System.nanoTime();
+        try {
+            ResultSet rs = stmt.executeQuery(sql);
+            executed(sql, start, -1);
+            return rs;
+        } catch (SQLException ex) {
+            statistics.forSql(sql).recordError();
+            throw ex;
+        }
+    }
+
+    public int executeUpdate() throws SQLException {
+        long start = System.nanoTime();
+        try {
+            int count = stmt.executeUpdate();
+            executed(start, count);
+            return count;
+        } catch (SQLException ex) {
+            stats.recordError();
+            throw ex;
+        }
+    }
+
+    public int executeUpdate(String sql) throws SQLException {
+        long start = System.nanoTime();
+        try {
+            int count = stmt.executeUpdate(sql);
+            executed(sql, start, count);
+            return count;
+        } catch (SQLException ex) {
+            statistics.forSql(sql).recordError();
+            throw ex;
+        }
+    }
+
+    public int executeUpdate(String sql, int autoGeneratedKeys) throws SQLException {
+        long start = System.nanoTime();
+        try {
+            int count = stmt.executeUpdate(sql, autoGeneratedKeys);
+            executed(sql, start, count);
+            return count;
+        } catch (SQLException ex) {
+            statistics.forSql(sql).recordError();
+            throw ex;
+        }
+    }
+
+    public int executeUpdate(String sql, int[] columnIndexes) throws SQLException {
+        long start = System.nanoTime();
+        try {
+            int count = stmt.executeUpdate(sql, columnIndexes);
+            executed(sql, start, count);
+            return count;
+        } catch (SQLException ex) {
+            statistics.forSql(sql).recordError();
+            throw ex;
+        }
+    }
+
+    public int executeUpdate(String sql, String[] columnNames) throws SQLException {
+        long start = System.nanoTime();
+        try {
+            int count = stmt.executeUpdate(sql, columnNames);
+            executed(sql, start, count);
+            return count;
+        } catch (SQLException ex) {
+            statistics.forSql(sql).recordError();
+            throw ex;
+        }
+    }
+
+    public void close() throws SQLException {
+        stmt.close();
+    }
+
+    public boolean isClosed() throws SQLException {
+        return stmt.isClosed();
+    }
+
+    /**
+     * Return the connection that prepared this statement.
+     */
+    public Connection getConnection() throws SQLException {
+        return owner;
+    }
+
+    public boolean isWrapperFor(Class<?> iface) throws SQLException {
+        return iface.isInstance(this) || stmt.isWrapperFor(iface);
+    }
+
+    /**
+     * Return the underlying statement (or an object it wraps) implementing the interface.
+     */
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        if (iface.isInstance(stmt)) {
+            return iface.cast(stmt);
+        }
+        if (iface.isInstance(this)) {
+            return iface.cast(this);
+        }
+        return stmt.unwrap(iface);
+    }
+
+    public void addBatch() throws SQLException {
+        batchSize++;
+        stmt.addBatch();
+    }
+
+    public void addBatch(String sql) throws SQLException {
+        stmt.addBatch(sql);
+    }
+
+    public boolean isPoolable() throws SQLException {
+        return stmt.isPoolable();
+    }
+
+    public void setPoolable(boolean poolable) throws SQLException {
+        stmt.setPoolable(poolable);
+    }
+
+    public void closeOnCompletion() throws SQLException {
+        stmt.closeOnCompletion();
+    }
+
+    public void setCursorName(String name) throws SQLException {
+        stmt.setCursorName(name);
+    }
+
+    public void setEscapeProcessing(boolean enable) throws SQLException {
+        stmt.setEscapeProcessing(enable);
+    }
+
+    public void setFetchDirection(int direction) throws SQLException {
+        stmt.setFetchDirection(direction);
+    }
+
+    public void setFetchSize(int rows) throws SQLException {
+        stmt.setFetchSize(rows);
+    }
+
+    public void setMaxFieldSize(int max) throws SQLException {
+        stmt.setMaxFieldSize(max);
+    }
+
+    public void setMaxRows(int max) throws SQLException {
+        stmt.setMaxRows(max);
+    }
+
+    public void setQueryTimeout(int seconds) throws SQLException {
+        stmt.setQueryTimeout(seconds);
+    }
+
+    public void cancel() throws SQLException {
+        stmt.cancel();
+    }
+
+    public void clearBatch() throws SQLException {
+        batchSize = 0;
+        stmt.clearBatch();
+    }
+
+    public void clearParameters() throws SQLException {
+        parameters = null;
+        stmt.clearParameters();
+    }
+
+    public void clearWarnings() throws SQLException {
+        stmt.clearWarnings();
+    }
+
+    public int getFetchDirection() throws SQLException {
+        return stmt.getFetchDirection();
+    }
+
+    public int getFetchSize() throws SQLException {
+        return stmt.getFetchSize();
+    }
+
+    public ResultSet getGeneratedKeys() throws SQLException {
+        return stmt.getGeneratedKeys();
+    }
+
+    public int getMaxFieldSize() throws SQLException {
+        return stmt.getMaxFieldSize();
+    }
+
+    public int getMaxRows() throws SQLException {
+        return stmt.getMaxRows();
+    }
+
+    public ResultSetMetaData getMetaData() throws SQLException {
+        return stmt.getMetaData();
+    }
+
+    public boolean getMoreResults() throws SQLException {
+        return stmt.getMoreResults();
+    }
+
+    public boolean getMoreResults(int current) throws SQLException {
+        return stmt.getMoreResults(current);
+    }
+
+    public ParameterMetaData getParameterMetaData() throws SQLException {
+        return stmt.getParameterMetaData();
+    }
+
+    public int getQueryTimeout() throws SQLException {
+        return stmt.getQueryTimeout();
+    }
+
+    public ResultSet getResultSet() throws SQLException {
+        return stmt.getResultSet();
+    }
+
+    public int getResultSetConcurrency() throws SQLException {
+        return stmt.getResultSetConcurrency();
+    }
+
+    public int getResultSetHoldability() throws SQLException {
+        return stmt.getResultSetHoldability();
+    }
+
+    public int getResultSetType() throws SQLException {
+        return stmt.getResultSetType();
+    }
+
+    public int getUpdateCount() throws SQLException {
+        return stmt.getUpdateCount();
+    }
+
+    public SQLWarning getWarnings() throws SQLException {
+        return stmt.getWarnings();
+    }
+
+    public boolean isCloseOnCompletion() throws SQLException {
+        return stmt.isCloseOnCompletion();
+    }
+
+    public void setArray(int parameterIndex, Array x) throws SQLException {
+        bind(parameterIndex, x);
+        stmt.setArray(parameterIndex, x);
+    }
+
+    public void setAsciiStream(int parameterIndex, InputStream x) throws SQLException {
+        bind(parameterIndex, x);
+        stmt.setAsciiStream(parameterIndex, x);
+    }
+
+    public void setAsciiStream(int parameterIndex, InputStream x, int length) throws SQLException {
+        bind(parameterIndex, x);
+        stmt.setAsciiStream(parameterIndex, x, length);
+    }
+
+    public void setAsciiStream(int parameterIndex, InputStream x, long length) throws SQLException {
+        bind(parameterIndex, x);
+        stmt.setAsciiStream(parameterIndex, x, length);
+    }
+
+    public void setBigDecimal(int parameterIndex, BigDecimal x) throws SQLException {
+        bind(parameterIndex, x);
+        stmt.setBigDecimal(parameterIndex, x);
+    }
+
+    public void setBinaryStream(int parameterIndex, InputStream x) throws SQLException {
+        bind(parameterIndex, x);
+        stmt.setBinaryStream(parameterIndex, x);
+    }
+
+    public void setBinaryStream(int parameterIndex, InputStream x, long length)
+            throws SQLException {
+        bind(parameterIndex, x);
+        stmt.setBinaryStream(parameterIndex, x, length);
+    }
+
+    public void setBinaryStream(int parameterIndex, InputStream x, int length) throws SQLException {
+        bind(parameterIndex, x);
+        stmt.setBinaryStream(parameterIndex, x, length);
+    }
+
+    public void setBlob(int parameterIndex, Blob x) throws SQLException {
+        bind(parameterIndex, x);
+        stmt.setBlob(parameterIndex, x);
+    }
+
+    public void setBlob(int parameterIndex, InputStream x) throws SQLException {
+        bind(parameterIndex, x);
+        stmt.setBlob(parameterIndex, x);
+    }
+
+    public void setBlob(int parameterIndex, InputStream x, long length) throws SQLException {
+        bind(parameterIndex, x);
+        stmt.setBlob(parameterIndex, x, length);
+    }
+
+    public void setBoolean(int parameterIndex, boolean x) throws SQLException {
+        bind(parameterIndex, x);
+        stmt.setBoolean(parameterIndex, x);
+    }
+
+    public void setByte(int parameterIndex, byte x) throws SQLException {
+        bind(parameterIndex, x);
+        stmt.setByte(parameterIndex, x);
+    }
+
+    public void setBytes(int parameterIndex, byte[] x) throws SQLException {
+        bind(parameterIndex, x);
+        stmt.setBytes(parameterIndex, x);
+    }
+
+    public void setCharacterStream(int parameterIndex, Reader x) throws SQLException {
+        bind(parameterIndex, x);
+        stmt.setCharacterStream(parameterIndex, x);
+    }
+
+    public void setCharacterStream(int parameterIndex, Reader x, int length) throws SQLException {
+        bind(parameterIndex, x);
+        stmt.setCharacterStream(parameterIndex, x, length);
+    }
+
+    public void setCharacterStream(int parameterIndex, Reader x, long length) throws SQLException {
+        bind(parameterIndex, x);
+        stmt.setCharacterStream(parameterIndex, x, length);
+    }
+
+    public void setClob(int parameterIndex, Clob x) throws SQLException {
+        bind(parameterIndex, x);
+        stmt.setClob(parameterIndex, x);
+    }
+
+    public void setClob(int parameterIndex, Reader x) throws SQLException {
+        bind(parameterIndex, x);
+        stmt.setClob(parameterIndex, x);
+    }
+
+    public void setClob(int parameterIndex, Reader x, long length) throws SQLException {
+        bind(parameterIndex, x);
+        stmt.setClob(parameterIndex, x, length);
+    }
+
+    public void setDate(int parameterIndex, Date x) throws SQLException {
+        bind(parameterIndex, x);
+        stmt.setDate(parameterIndex, x);
+    }
+
+    public void setDate(int parameterIndex, Date x, Calendar cal) throws SQLException {
+        bind(parameterIndex, x);
+        stmt.setDate(parameterIndex, x, cal);
+    }
+
+    public void setDouble(int parameterIndex, double x) throws SQLException {
+        bind(parameterIndex, x);
+        stmt.setDouble(parameterIndex, x);
+    }
+
+    public void setFloat(int parameterIndex, float x) throws SQLException {
+        bind(parameterIndex, x);
+        stmt.setFloat(parameterIndex, x);
+    }
+
+    public void setInt(int parameterIndex, int x) throws SQLException {
+        bind(parameterIndex, x);
+        stmt.setInt(parameterIndex, x);
+    }
+
+    public void setLong(int parameterIndex, long x) throws SQLException {
+        bind(parameterIndex, x);
+        stmt.setLong(parameterIndex, x);
+    }
+
+    public void setNCharacterStream(int parameterIndex, Reader x) throws SQLException {
+        bind(parameterIndex, x);
+        stmt.setNCharacterStream(parameterIndex, x);
+    }
+
+    public void setNCharacterStream(int parameterIndex, Reader x, long length) throws SQLException {
+        bind(parameterIndex, x);
+        stmt.setNCharacterStream(parameterIndex, x, length);
+    }
+
+    public void setNClob(int parameterIndex, Reader x) throws SQLException {
+        bind(parameterIndex, x);
+        stmt.setNClob(parameterIndex, x);
+    }
+
+    public void setNClob(int parameterIndex, NClob x) throws SQLException {
+        bind(parameterIndex, x);
+        stmt.setNClob(parameterIndex, x);
+    }
+
+    public void setNClob(int parameterIndex, Reader x, long length) throws SQLException {
+        bind(parameterIndex, x);
+        stmt.setNClob(parameterIndex, x, length);
+    }
+
+    public void setNString(int parameterIndex, String x) throws SQLException {
+        bind(parameterIndex, x);
+        stmt.setNString(parameterIndex, x);
+    }
+
+    public void setNull(int parameterIndex, int sqlType) throws SQLException {
+        bind(parameterIndex, null);
+        stmt.setNull(parameterIndex, sqlType);
+    }
+
+    public void setNull(int parameterIndex, int sqlType, String typeName) throws SQLException {
+        bind(parameterIndex, null);
+        stmt.setNull(parameterIndex, sqlType, typeName);
+    }
+
+    public void setObject(int parameterIndex, Object x) throws SQLException {
+        bind(parameterIndex, x);
+        stmt.setObject(parameterIndex, x);
+    }
+
+    public void setObject(int parameterIndex, Object x, int targetSqlType) throws SQLException {
+        bind(parameterIndex, x);
+        stmt.setObject(parameterIndex, x, targetSqlType);
+    }
+
+    public void setObject(int parameterIndex, Object x, int targetSqlType, int scaleOrLength)
+            throws SQLException {
+        bind(parameterIndex, x);
+        stmt.setObject(parameterIndex, x, targetSqlType, scaleOrLength);
+    }
+
+    public void setRef(int parameterIndex, Ref x) throws SQLException {
+        bind(parameterIndex, x);
+        stmt.setRef(parameterIndex, x);
+    }
+
+    public void setRowId(int parameterIndex, RowId x) throws SQLException {
+        bind(parameterIndex, x);
+        stmt.setRowId(parameterIndex, x);
+    }
+
+    public void setSQLXML(int parameterIndex, SQLXML x) throws SQLException {
+        bind(parameterIndex, x);
+        stmt.setSQLXML(parameterIndex, x);
+    }
+
+    public void setShort(int parameterIndex, short x) throws SQLException {
+        bind(parameterIndex, x);
+        stmt.setShort(parameterIndex, x);
+    }
+
+    public void setString(int parameterIndex, String x) throws SQLException {
+        bind(parameterIndex, x);
+        stmt.setString(parameterIndex, x);
+    }
+
+    public void setTime(int parameterIndex, Time x) throws SQLException {
+        bind(parameterIndex, x);
+        stmt.setTime(parameterIndex, x);
+    }
+
+    public void setTime(int parameterIndex, Time x, Calendar cal) throws SQLException {
+        bind(parameterIndex, x);
+        stmt.setTime(parameterIndex, x, cal);
+    }
+
+    public void setTimestamp(int parameterIndex, Timestamp x) throws SQLException {
+        bind(parameterIndex, x);
+        stmt.setTimestamp(parameterIndex, x);
+    }
+
+    public void setTimestamp(int parameterIndex, Timestamp x, Calendar cal) throws SQLException {
+        bind(parameterIndex, x);
+        stmt.setTimestamp(parameterIndex, x, cal);
+    }
+
+    public void setURL(int parameterIndex, URL x) throws SQLException {
+        bind(parameterIndex, x);
+        stmt.setURL(parameterIndex, x);
+    }
+
+    @SuppressWarnings("deprecation")
+    public void setUnicodeStream(int parameterIndex, InputStream x, int length)
+            throws SQLException {
+        bind(parameterIndex, x);
+        stmt.setUnicodeStream(parameterIndex, x, length);
+    }
+
+    public String toString() {
+        return sql;
+    }
+
+}
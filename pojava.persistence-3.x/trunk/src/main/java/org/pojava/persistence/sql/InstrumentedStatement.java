@@ -0,0 +1,170 @@
+package org.pojava.persistence.sql;
+
+/*
+ Copyright 2008-14 John Pile
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.Statement;
+
+/**
+ * An InstrumentedStatement times each execution of a plain or callable statement and records
+ * it in SqlStatistics, along with the rows it affects. A plain statement is recorded under the
+ * SQL passed to it, and a callable statement under the call it was prepared with. Unlike an
+ * InstrumentedPreparedStatement, it does not remember bound values, so a slow call is logged
+ * without them.
+ * <p/>
+ * The wrapper is a dynamic proxy, as a CallableStatement has too many methods to delegate by
+ * hand for the few that are timed.
+ *
+ * @author John Pile
+ */
+final class InstrumentedStatement implements InvocationHandler {
+
+    private final SqlStatistics statistics;
+
+    /**
+     * SQL the statement was prepared with, or null for a plain statement.
+     */
+    private final String sql;
+
+    private final Connection owner;
+
+    private final Statement stmt;
+
+    /**
+     * First SQL added to the batch of a plain statement, under which the batch is recorded.
+     */
+    private String batchSql = null;
+
+    private InstrumentedStatement(SqlStatistics statistics, String sql, Connection owner,
+                                  Statement stmt) {
+        this.statistics = statistics;
+        this.sql = sql;
+        this.owner = owner;
+        this.stmt = stmt;
+    }
+
+    /**
+     * Wrap a plain statement to record its executions.
+     */
+    static Statement wrap(SqlStatistics statistics, Connection owner, Statement stmt) {
+        return (Statement) Proxy.newProxyInstance(Statement.class.getClassLoader(),
+                new Class<?>[]{Statement.class}, new InstrumentedStatement(statistics, null,
+                owner, stmt));
+    }
+
+    /**
+     * Wrap a callable statement to record its executions.
+     */
+    static CallableStatement wrap(SqlStatistics statistics, String sql, Connection owner,
+                                  CallableStatement stmt) {
+        return (CallableStatement) Proxy.newProxyInstance(CallableStatement.class
+                .getClassLoader(), new Class<?>[]{CallableStatement.class},
+                new InstrumentedStatement(statistics, sql, owner, stmt));
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        String name = method.getName();
+        int arity = args == null ? 0 : args.length;
+        if (arity == 0 && name.equals("getConnection")) {
+            return owner;
+        }
+        if (arity == 1 && name.equals("equals")) {
+            return Boolean.valueOf(proxy == args[0]);
+        }
+        if (arity == 0 && name.equals("hashCode")) {
+            return Integer.valueOf(System.identityHashCode(proxy));
+        }
+        if (arity == 0 && name.equals("toString")) {
+            return sql == null ? stmt.toString() : sql;
+        }
+        if (arity == 1 && name.equals("addBatch") && args[0] instanceof String
+                && batchSql == null) {
+            batchSql = (String) args[0];
+        } else if (arity == 0 && (name.equals("clearBatch") || name.equals("close"))) {
+            batchSql = null;
+        }
+        String text = sqlOf(name, args);
+        if (text == null) {
+            return delegate(method, args);
+        }
+        long start = System.nanoTime();
+        Object result;
+        try {
+            result = method.invoke(stmt, args);
+        } catch (InvocationTargetException ex) {
+            statistics.forSql(text).recordError();
+            throw ex.getCause();
+        } finally {
+            if (name.equals("executeBatch")) {
+                batchSql = null;
+            }
+        }
+        long nanos = System.nanoTime() - start;
+        statistics.forSql(text).recordExecution(nanos, affected(result));
+        if (statistics.isSlow(nanos)) {
+            statistics.recordSlow(nanos, text);
+        }
+        return result;
+    }
+
+    /**
+     * Return the SQL an execute method runs, or null if the method does not execute.
+     */
+    private String sqlOf(String name, Object[] args) {
+        if (!name.startsWith("execute")) {
+            return null;
+        }
+        if (args != null && args.length > 0 && args[0] instanceof String) {
+            return (String) args[0];
+        }
+        return name.equals("executeBatch") && sql == null ? batchSql : sql;
+    }
+
+    private Object delegate(Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(stmt, args);
+        } catch (InvocationTargetException ex) {
+            throw ex.getCause();
+        }
+    }
+
+    /**
+     * Count the rows affected by an execution, or -1 if it returned a ResultSet or flag.
+     */
+    private static long affected(Object result) {
+        if (result instanceof Number) {
+            return ((Number) result).longValue();
+        }
+        if (result instanceof int[]) {
+            int[] counts = (int[]) result;
+            long total = 0;
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] > 0) {
+                    total += counts[i];
+                }
+            }
+            return total;
+        }
+        return -1;
+    }
+
+}
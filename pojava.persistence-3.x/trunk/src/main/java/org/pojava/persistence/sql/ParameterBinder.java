@@ -0,0 +1,354 @@
+package org.pojava.persistence.sql;
+
+/*
+ Copyright 2008-14 John Pile
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+import org.pojava.datetime.DateTime;
+import org.pojava.lang.Binding;
+import org.pojava.persistence.adaptor.BigDecimalAdaptor;
+import org.pojava.persistence.adaptor.BooleanAdaptor;
+import org.pojava.persistence.adaptor.ByteAdaptor;
+import org.pojava.persistence.adaptor.CharAdaptor;
+import org.pojava.persistence.adaptor.DateTimeSqlAdaptor;
+import org.pojava.persistence.adaptor.DoubleAdaptor;
+import org.pojava.persistence.adaptor.FloatAdaptor;
+import org.pojava.persistence.adaptor.IntegerAdaptor;
+import org.pojava.persistence.adaptor.LongAdaptor;
+import org.pojava.persistence.adaptor.PassthroughAdaptor;
+import org.pojava.persistence.adaptor.TimeAdaptor;
+import org.pojava.persistence.adaptor.UtilDateSqlAdaptor;
+import org.pojava.transformation.BindingAdaptor;
+
+import java.math.BigDecimal;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A ParameterBinder sets one kind of value on a PreparedStatement placeholder using the JDBC
+ * setter specific to it, such as setInt or setTimestamp, with the SQL type used for nulls
+ * resolved in advance.
+ * <p/>
+ * A FieldMap resolves its binder once, folding in the outbound transformation of the standard
+ * adaptors, so a bean property can be bound without wrapping it in a Binding. Values reach the
+ * database as they would through the adaptor and setObject. Double and Float values are still
+ * sent by setObject as NUMERIC, as before, so the driver rounds them the same way.
+ *
+ * @author John Pile
+ */
+public abstract class ParameterBinder {
+
+    private static final long MILLIS_PER_DAY = 86400000;
+
+    private static final ParameterBinder INTEGER = new ParameterBinder(Types.INTEGER) {
+        void set(PreparedStatement pstmt, int position, Object value) throws SQLException {
+            pstmt.setInt(position, ((Number) value).intValue());
+        }
+    };
+
+    private static final ParameterBinder BIGINT = new ParameterBinder(Types.BIGINT) {
+        void set(PreparedStatement pstmt, int position, Object value) throws SQLException {
+            pstmt.setLong(position, ((Number) value).longValue());
+        }
+    };
+
+    private static final ParameterBinder TINYINT = new ParameterBinder(Types.TINYINT) {
+        void set(PreparedStatement pstmt, int position, Object value) throws SQLException {
+            pstmt.setByte(position, ((Number) value).byteValue());
+        }
+    };
+
+    private static final ParameterBinder BIT = new ParameterBinder(Types.BIT) {
+        void set(PreparedStatement pstmt, int position, Object value) throws SQLException {
+            pstmt.setBoolean(position, ((Boolean) value).booleanValue());
+        }
+    };
+
+    private static final ParameterBinder CHAR = new ParameterBinder(Types.CHAR) {
+        void set(PreparedStatement pstmt, int position, Object value) throws SQLException {
+            pstmt.setString(position, value.toString());
+        }
+    };
+
+    private static final ParameterBinder STRING = new ParameterBinder(Types.VARCHAR) {
+        void set(PreparedStatement pstmt, int position, Object value) throws SQLException {
+            pstmt.setString(position, (String) value);
+        }
+    };
+
+    private static final ParameterBinder DECIMAL = new ParameterBinder(Types.NUMERIC) {
+        void set(PreparedStatement pstmt, int position, Object value) throws SQLException {
+            pstmt.setBigDecimal(position, (BigDecimal) value);
+        }
+    };
+
+    private static final ParameterBinder DATE = new ParameterBinder(Types.DATE) {
+        void set(PreparedStatement pstmt, int position, Object value) throws SQLException {
+            pstmt.setDate(position, (Date) value);
+        }
+    };
+
+    private static final ParameterBinder TIME = new ParameterBinder(Types.TIME) {
+        void set(PreparedStatement pstmt, int position, Object value) throws SQLException {
+            pstmt.setTime(position, (Time) value);
+        }
+    };
+
+    private static final ParameterBinder TIMESTAMP = new ParameterBinder(Types.TIMESTAMP) {
+        void set(PreparedStatement pstmt, int position, Object value) throws SQLException {
+            if (value instanceof Timestamp) {
+                pstmt.setTimestamp(position, (Timestamp) value);
+            } else {
+                pstmt.setTimestamp(position, new Timestamp(((java.util.Date) value).getTime()));
+            }
+        }
+    };
+
+    /**
+     * Binder of the values of DateTimeSqlAdaptor.
+     */
+    private static final ParameterBinder DATETIME_TIMESTAMP = new ParameterBinder(
+            Types.TIMESTAMP) {
+        void set(PreparedStatement pstmt, int position, Object value) throws SQLException {
+            pstmt.setTimestamp(position, (Timestamp) outboundValue(value));
+        }
+
+        public Object outboundValue(Object value) {
+            return value == null ? null : new Timestamp(((DateTime) value).toMillis());
+        }
+    };
+
+    /**
+     * Binder of the values of UtilDateSqlAdaptor, which drops any nanoseconds.
+     */
+    private static final ParameterBinder DATE_TIMESTAMP = new ParameterBinder(Types.TIMESTAMP) {
+        void set(PreparedStatement pstmt, int position, Object value) throws SQLException {
+            pstmt.setTimestamp(position, (Timestamp) outboundValue(value));
+        }
+
+        public Object outboundValue(Object value) {
+            return value == null ? null : new Timestamp(((java.util.Date) value).getTime());
+        }
+    };
+
+    /**
+     * Binder of the values of TimeAdaptor, which keeps only the time of day.
+     */
+    private static final ParameterBinder TIME_OF_DAY = new ParameterBinder(Types.TIME) {
+        void set(PreparedStatement pstmt, int position, Object value) throws SQLException {
+            pstmt.setTime(position, (Time) outboundValue(value));
+        }
+
+        public Object outboundValue(Object value) {
+            if (value != null && value.getClass() == Time.class) {
+                long t = ((Time) value).getTime();
+                if (t >= MILLIS_PER_DAY || t < 0) {
+                    return new Time(t % MILLIS_PER_DAY);
+                }
+            }
+            return value;
+        }
+    };
+
+    /**
+     * Binders of the types without a specific JDBC setter, sent by setObject.
+     */
+    private static final ParameterBinder NUMERIC = new ObjectBinder(Types.NUMERIC);
+
+    private static final ParameterBinder DATETIME = new ObjectBinder(Types.TIMESTAMP);
+
+    private static final ParameterBinder VARCHAR = new ObjectBinder(Types.VARCHAR);
+
+    private static final Map<Class<?>, ParameterBinder> BINDERS =
+            new HashMap<Class<?>, ParameterBinder>();
+
+    /**
+     * Adaptors whose outbound transformation leaves the value as it is.
+     */
+    private static final Set<Class<?>> UNCHANGED = new HashSet<Class<?>>();
+
+    static {
+        BINDERS.put(Integer.class, INTEGER);
+        BINDERS.put(int.class, INTEGER);
+        BINDERS.put(Long.class, BIGINT);
+        BINDERS.put(long.class, BIGINT);
+        BINDERS.put(Boolean.class, BIT);
+        BINDERS.put(boolean.class, BIT);
+        BINDERS.put(Character.class, CHAR);
+        BINDERS.put(char.class, CHAR);
+        BINDERS.put(Date.class, DATE);
+        BINDERS.put(DateTime.class, DATETIME);
+        BINDERS.put(java.util.Date.class, TIMESTAMP);
+        BINDERS.put(Timestamp.class, TIMESTAMP);
+        BINDERS.put(Double.class, NUMERIC);
+        BINDERS.put(double.class, NUMERIC);
+        BINDERS.put(Float.class, NUMERIC);
+        BINDERS.put(float.class, NUMERIC);
+        BINDERS.put(BigDecimal.class, DECIMAL);
+        BINDERS.put(Time.class, TIME);
+        BINDERS.put(Byte.class, TINYINT);
+        BINDERS.put(byte.class, TINYINT);
+        BINDERS.put(String.class, STRING);
+        UNCHANGED.add(IntegerAdaptor.class);
+        UNCHANGED.add(LongAdaptor.class);
+        UNCHANGED.add(CharAdaptor.class);
+        UNCHANGED.add(DoubleAdaptor.class);
+        UNCHANGED.add(FloatAdaptor.class);
+        UNCHANGED.add(ByteAdaptor.class);
+        UNCHANGED.add(BigDecimalAdaptor.class);
+        UNCHANGED.add(PassthroughAdaptor.class);
+    }
+
+    private final int sqlType;
+
+    ParameterBinder(int sqlType) {
+        this.sqlType = sqlType;
+    }
+
+    /**
+     * Set a value that is not null.
+     */
+    abstract void set(PreparedStatement pstmt, int position, Object value) throws SQLException;
+
+    /**
+     * Bind a value to a placeholder.
+     *
+     * @param pstmt    statement holding the placeholder
+     * @param position position of the placeholder, starting at 1
+     * @param value    value to bind, or null
+     * @throws SQLException
+     */
+    public void bind(PreparedStatement pstmt, int position, Object value) throws SQLException {
+        if (value == null) {
+            pstmt.setNull(position, sqlType);
+        } else {
+            set(pstmt, position, value);
+        }
+    }
+
+    /**
+     * Return the value as it is sent to the database, after the transformation of the field's
+     * adaptor.
+     *
+     * @param value property value, or null
+     * @return value bound by this binder
+     */
+    public Object outboundValue(Object value) {
+        return value;
+    }
+
+    /**
+     * @return a Types constant, used to bind null
+     */
+    public int getSqlType() {
+        return sqlType;
+    }
+
+    /**
+     * Find the binder of values of a Java class, as they are bound without an adaptor.
+     *
+     * @param c Class of java object to persist
+     * @return binder for the class, binding unrecognized classes as VARCHAR
+     */
+    public static ParameterBinder forClass(Class<?> c) {
+        ParameterBinder binder = BINDERS.get(c);
+        return binder == null ? VARCHAR : binder;
+    }
+
+    /**
+     * Resolve the binder of a field's property values, including the outbound transformation
+     * of its adaptor. An adaptor other than the standard ones is applied to each value.
+     *
+     * @param field FieldMap describing the property
+     * @return binder for the field
+     */
+    @SuppressWarnings("unchecked")
+    public static ParameterBinder forField(FieldMap<?, ?, ?> field) {
+        BindingAdaptor adaptor = field.getAdaptor();
+        if (adaptor == null || UNCHANGED.contains(adaptor.getClass())) {
+            return forClass(field.getPropertyClass());
+        }
+        Class<?> adaptorClass = adaptor.getClass();
+        if (adaptorClass == BooleanAdaptor.class) {
+            return BIT;
+        }
+        if (adaptorClass == DateTimeSqlAdaptor.class) {
+            return DATETIME_TIMESTAMP;
+        }
+        if (adaptorClass == UtilDateSqlAdaptor.class) {
+            return DATE_TIMESTAMP;
+        }
+        if (adaptorClass == TimeAdaptor.class) {
+            return TIME_OF_DAY;
+        }
+        return new AdaptedBinder(adaptor, field.getPropertyClass());
+    }
+
+    /**
+     * Binder sending values by setObject with a target SQL type.
+     */
+    private static class ObjectBinder extends ParameterBinder {
+
+        ObjectBinder(int sqlType) {
+            super(sqlType);
+        }
+
+        void set(PreparedStatement pstmt, int position, Object value) throws SQLException {
+            pstmt.setObject(position, value, getSqlType());
+        }
+    }
+
+    /**
+     * Binder transforming each value with a custom adaptor, then binding the result by its
+     * type.
+     */
+    private static class AdaptedBinder extends ParameterBinder {
+
+        private final BindingAdaptor adaptor;
+
+        private final Class<?> propertyClass;
+
+        AdaptedBinder(BindingAdaptor adaptor, Class<?> propertyClass) {
+            super(forClass(adaptor.outboundType()).getSqlType());
+            this.adaptor = adaptor;
+            this.propertyClass = propertyClass;
+        }
+
+        @SuppressWarnings("unchecked")
+        public void bind(PreparedStatement pstmt, int position, Object value)
+                throws SQLException {
+            Binding binding = adaptor.outbound(new Binding(propertyClass, value));
+            forClass(binding.getType()).bind(pstmt, position, binding.getObj());
+        }
+
+        @SuppressWarnings("unchecked")
+        public Object outboundValue(Object value) {
+            return adaptor.outbound(new Binding(propertyClass, value)).getObj();
+        }
+
+        void set(PreparedStatement pstmt, int position, Object value) throws SQLException {
+            bind(pstmt, position, value);
+        }
+    }
+
+}
@@ -0,0 +1,194 @@
+package org.pojava.persistence.sql;
+
+/*
+ Copyright 2008-14 John Pile
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+import org.pojava.exception.ReflectionException;
+
+import java.lang.reflect.AccessibleObject;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * A PropertyAccessor reads and writes a (possibly nested) bean property through a getter and
+ * setter chain resolved once. Access checks are suppressed up front, the constructors used to
+ * create missing intermediate beans are looked up once, and neither reads nor writes allocate an
+ * argument array per call.
+ *
+ * @author John Pile
+ */
+final class PropertyAccessor {
+
+    private static final Object[] NO_ARGS = new Object[0];
+
+    /**
+     * One-element argument array reused by each thread for setter calls. Reflection unpacks the
+     * arguments before the setter runs, so a setter that writes another property through an
+     * accessor on the same thread does not disturb the outer call.
+     */
+    private static final ThreadLocal<Object[]> ONE_ARG = new ThreadLocal<Object[]>() {
+        protected Object[] initialValue() {
+            return new Object[1];
+        }
+    };
+
+    private final Method[] getters;
+
+    private final Method[] setters;
+
+    /**
+     * No-argument constructors for each intermediate bean, or null for the innermost property.
+     */
+    private final Constructor<?>[] constructors;
+
+    private final Method getter;
+
+    private final Method setter;
+
+    private PropertyAccessor(Method[] getters, Method[] setters, Constructor<?>[] constructors) {
+        this.getters = getters;
+        this.setters = setters;
+        this.constructors = constructors;
+        this.getter = getters[getters.length - 1];
+        this.setter = setters == null ? null : setters[setters.length - 1];
+    }
+
+    /**
+     * Compile an accessor from a getter chain and its matching setter chain.
+     *
+     * @param getters trail of getters leading to the property
+     * @param setters trail of setters matching the getters, or null for a read-only property
+     * @return PropertyAccessor, or null if the chain cannot be compiled
+     */
+    static PropertyAccessor compile(Method[] getters, Method[] setters) {
+        if (getters == null || getters.length == 0) {
+            return null;
+        }
+        if (setters != null && setters.length != getters.length) {
+            return null;
+        }
+        Constructor<?>[] constructors = new Constructor<?>[getters.length];
+        for (int i = 0; i < getters.length; i++) {
+            makeAccessible(getters[i]);
+            if (setters != null) {
+                makeAccessible(setters[i]);
+            }
+            if (i < getters.length - 1 && setters != null) {
+                try {
+                    constructors[i] = getters[i].getReturnType().getDeclaredConstructor();
+                    makeAccessible(constructors[i]);
+                } catch (NoSuchMethodException ex) {
+                    // Leave null; a missing intermediate bean will be reported when set.
+                }
+            }
+        }
+        return new PropertyAccessor(getters, setters, constructors);
+    }
+
+    private static void makeAccessible(AccessibleObject member) {
+        try {
+            member.setAccessible(true);
+        } catch (SecurityException ex) {
+            // Access checks remain; invocation still works for public members.
+        }
+    }
+
+    /**
+     * Read the property from a bean.
+     *
+     * @param bean root bean
+     * @return property value, or null if an intermediate bean is null
+     */
+    Object get(Object bean) {
+        Method method = getter;
+        try {
+            if (getters.length == 1) {
+                return getter.invoke(bean, NO_ARGS);
+            }
+            Object inner = bean;
+            for (int i = 0; i < getters.length; i++) {
+                if (inner == null) {
+                    return null;
+                }
+                method = getters[i];
+                inner = method.invoke(inner, NO_ARGS);
+            }
+            return inner;
+        } catch (IllegalAccessException ex) {
+            throw new ReflectionException("Failed to invoke getter " + method.getName() + ".",
+                    ex);
+        } catch (InvocationTargetException ex) {
+            throw new ReflectionException("Failed to invoke getter " + method.getName() + ".",
+                    ex);
+        }
+    }
+
+    /**
+     * Write the property of a bean, creating intermediate beans that do not yet exist.
+     *
+     * @param bean  root bean
+     * @param value new property value
+     */
+    void set(Object bean, Object value) {
+        if (setter == null) {
+            throw new ReflectionException("No setter for read-only property "
+                    + getter.getName() + ".", null);
+        }
+        Method method = setter;
+        Object[] args = ONE_ARG.get();
+        try {
+            Object inner = bean;
+            for (int i = 0; i < getters.length - 1; i++) {
+                method = getters[i];
+                Object child = method.invoke(inner, NO_ARGS);
+                if (child == null) {
+                    if (constructors[i] == null) {
+                        throw new ReflectionException("Cannot instantiate "
+                                + getters[i].getReturnType().getName() + " for "
+                                + setters[i].getName() + ".", null);
+                    }
+                    child = constructors[i].newInstance(NO_ARGS);
+                    method = setters[i];
+                    args[0] = child;
+                    method.invoke(inner, args);
+                }
+                inner = child;
+            }
+            method = setter;
+            args[0] = value;
+            setter.invoke(inner, args);
+        } catch (IllegalAccessException ex) {
+            throw new ReflectionException("Failed to invoke " + method.getName() + ".", ex);
+        } catch (InstantiationException ex) {
+            throw new ReflectionException("Failed to invoke " + method.getName() + ".", ex);
+        } catch (InvocationTargetException ex) {
+            throw new ReflectionException(ex.getMessage(), ex);
+        } catch (IllegalArgumentException ex) {
+            throw new ReflectionException(ex.getMessage(), ex);
+        } finally {
+            args[0] = null;
+        }
+    }
+
+    /**
+     * @return true if the property can be written
+     */
+    boolean isWritable() {
+        return setter != null;
+    }
+
+}
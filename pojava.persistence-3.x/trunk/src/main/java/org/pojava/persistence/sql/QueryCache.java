@@ -0,0 +1,408 @@
+package org.pojava.persistence.sql;
+
+/*
+ Copyright 2008-14 John Pile
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+import org.pojava.exception.PersistenceException;
+import org.pojava.lang.UncheckedBinding;
+import org.pojava.persistence.query.PreparedSql;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A QueryCache holds the results of queries, keyed by their SQL text, binding values and row
+ * limit. It is consulted by DaoTool.listByQuery and DaoTool.countByQuery once registered with
+ * DatabaseCache.setQueryCache.
+ * <p/>
+ * Each table of each data source has a generation counter, advanced whenever DaoTool writes to
+ * the table. A result is only served while its table remains at the generation under which it
+ * was loaded, so a write invalidates every cached query against that table at once. Results
+ * read from different data sources are held apart, even for the same class and SQL.
+ * <p/>
+ * The cache is bounded by the total number of rows it holds, discarding the least recently
+ * used results first. When several threads miss on the same query together, only one runs it
+ * and the others wait for its result.
+ *
+ * @author John Pile
+ */
+public class QueryCache {
+
+    /**
+     * Loads a result from the database on a cache miss.
+     */
+    public interface Loader<V> {
+        V load() throws SQLException;
+    }
+
+    private final int maxRows;
+
+    private final long defaultTtlMillis;
+
+    private final CacheStatistics statistics = new CacheStatistics();
+
+    private final Map<String, AtomicLong> generations = new ConcurrentHashMap<String, AtomicLong>();
+
+    private final Map<Key, Flight> flights = new HashMap<Key, Flight>();
+
+    /**
+     * Results in access order, guarded by synchronizing on itself.
+     */
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<Key, Entry>(16, 0.75f,
+            true);
+
+    /**
+     * Rows currently held, guarded by entries.
+     */
+    private int heldRows = 0;
+
+    /**
+     * Construct a query cache.
+     *
+     * @param maxRows          maximum number of rows held across all results
+     * @param defaultTtlMillis milliseconds a result may be held unless the query says
+     *                         otherwise, or 0 to hold until invalidated or evicted
+     */
+    public QueryCache(int maxRows, long defaultTtlMillis) {
+        if (maxRows < 1) {
+            throw new IllegalArgumentException("A QueryCache must hold at least one row.");
+        }
+        this.maxRows = maxRows;
+        this.defaultTtlMillis = defaultTtlMillis;
+    }
+
+    /**
+     * Return the beans listed by a query, loading them on a miss. The caller receives its own
+     * list of copies, so the cached beans cannot be altered.
+     *
+     * @param map       TableMap describing the beans
+     * @param sql       query whose text, bindings and row limit identify the result
+     * @param ttlMillis milliseconds the result may be held, or a negative value for the default
+     * @param loader    runs the query on a miss
+     * @return new list of beans
+     * @throws SQLException
+     */
+    public <T> List<T> list(TableMap<T> map, PreparedSql sql, long ttlMillis,
+                            Loader<List<T>> loader) throws SQLException {
+        List<T> cached = get(new Key("list", map, sql), map, ttlMillis, loader);
+        List<T> copies = new ArrayList<T>(cached.size());
+        for (Iterator<T> it = cached.iterator(); it.hasNext(); ) {
+            copies.add(map.copy(it.next()));
+        }
+        return copies;
+    }
+
+    /**
+     * Return the count produced by a query, loading it on a miss.
+     *
+     * @param map       TableMap of the table counted
+     * @param sql       query whose text, bindings and row limit identify the result
+     * @param ttlMillis milliseconds the result may be held, or a negative value for the default
+     * @param loader    runs the query on a miss
+     * @return count
+     * @throws SQLException
+     */
+    public int count(TableMap<?> map, PreparedSql sql, long ttlMillis, Loader<Integer> loader)
+            throws SQLException {
+        return get(new Key("count", map, sql), map, ttlMillis, loader).intValue();
+    }
+
+    /**
+     * Discard all results of queries against a table.
+     *
+     * @param dataSourceName name of the data source holding the table
+     * @param tableName      name of table written to
+     */
+    public void invalidateTable(String dataSourceName, String tableName) {
+        generation(dataSourceName, tableName).incrementAndGet();
+    }
+
+    /**
+     * Discard all results.
+     */
+    public void invalidateAll() {
+        for (Iterator<AtomicLong> it = generations.values().iterator(); it.hasNext(); ) {
+            it.next().incrementAndGet();
+        }
+        synchronized (entries) {
+            entries.clear();
+            heldRows = 0;
+        }
+    }
+
+    /**
+     * @return number of results held
+     */
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * @return number of rows held across all results
+     */
+    public int getHeldRows() {
+        synchronized (entries) {
+            return heldRows;
+        }
+    }
+
+    /**
+     * @return maximum number of rows held across all results
+     */
+    public int getMaxRows() {
+        return maxRows;
+    }
+
+    /**
+     * @return hit, miss, eviction and expiration counters
+     */
+    public CacheStatistics getStatistics() {
+        return statistics;
+    }
+
+    private AtomicLong generation(String dataSourceName, String tableName) {
+        String table = (dataSourceName == null ? "" : dataSourceName) + '\u0000'
+                + tableName.toLowerCase(Locale.ENGLISH);
+        AtomicLong generation = generations.get(table);
+        if (generation == null) {
+            synchronized (generations) {
+                generation = generations.get(table);
+                if (generation == null) {
+                    generation = new AtomicLong();
+                    generations.put(table, generation);
+                }
+            }
+        }
+        return generation;
+    }
+
+    @SuppressWarnings("unchecked")
+    private <V> V get(Key key, TableMap<?> map, long ttlMillis, final Loader<V> loader)
+            throws SQLException {
+        AtomicLong current = generation(map.getDataSourceName(), map.getTableName());
+        long generation = current.get();
+        long now = System.currentTimeMillis();
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                if (entry.generation == generation && now < entry.expires) {
+                    statistics.recordHit();
+                    return (V) entry.value;
+                }
+                if (entry.generation == generation) {
+                    statistics.recordExpiration();
+                }
+                remove(key, entry);
+            }
+        }
+        statistics.recordMiss();
+        Flight flight;
+        boolean owner = false;
+        synchronized (flights) {
+            flight = flights.get(key);
+            if (flight == null || flight.generation != generation) {
+                flight = new Flight(generation, new Callable<Object>() {
+                    public Object call() throws Exception {
+                        return loader.load();
+                    }
+                });
+                flights.put(key, flight);
+                owner = true;
+            }
+        }
+        Object value;
+        if (owner) {
+            try {
+                flight.task.run();
+                value = flight.result();
+            } finally {
+                synchronized (flights) {
+                    if (flights.get(key) == flight) {
+                        flights.remove(key);
+                    }
+                }
+            }
+            long ttl = ttlMillis < 0 ? defaultTtlMillis : ttlMillis;
+            store(key, value, current, generation, ttl <= 0 ? Long.MAX_VALUE
+                    : System.currentTimeMillis() + ttl);
+        } else {
+            value = flight.result();
+        }
+        return (V) value;
+    }
+
+    /**
+     * Hold a loaded result, unless its table was written to while it loaded.
+     */
+    private void store(Key key, Object value, AtomicLong current, long generation, long expires) {
+        int rows = value instanceof List ? ((List<?>) value).size() + 1 : 1;
+        if (rows > maxRows) {
+            return;
+        }
+        synchronized (entries) {
+            if (current.get() != generation) {
+                return;
+            }
+            Entry previous = entries.put(key, new Entry(value, rows, generation, expires));
+            if (previous != null) {
+                heldRows -= previous.rows;
+            }
+            heldRows += rows;
+            Iterator<Map.Entry<Key, Entry>> it = entries.entrySet().iterator();
+            while (heldRows > maxRows && it.hasNext()) {
+                Entry eldest = it.next().getValue();
+                it.remove();
+                heldRows -= eldest.rows;
+                statistics.recordEviction();
+            }
+        }
+    }
+
+    /**
+     * Remove an entry, called while synchronized on entries.
+     */
+    private void remove(Key key, Entry entry) {
+        entries.remove(key);
+        heldRows -= entry.rows;
+    }
+
+    /**
+     * Identifies a result by the kind of operation, the data source, the bean class, and the
+     * query.
+     */
+    private static final class Key {
+
+        private final String kind;
+
+        private final String dataSourceName;
+
+        private final Class<?> javaClass;
+
+        private final String sql;
+
+        private final List<Object> values;
+
+        private final int maxRows;
+
+        private final int hash;
+
+        Key(String kind, TableMap<?> map, PreparedSql preparedSql) {
+            this.kind = kind;
+            this.dataSourceName = map.getDataSourceName() == null ? "" : map
+                    .getDataSourceName();
+            this.javaClass = map.getJavaClass();
+            this.sql = preparedSql.getSql().getString();
+            List<UncheckedBinding> bindings = preparedSql.getSql().getBindings();
+            this.values = new ArrayList<Object>(bindings.size());
+            for (Iterator<UncheckedBinding> it = bindings.iterator(); it.hasNext(); ) {
+                values.add(it.next().getObj());
+            }
+            this.maxRows = preparedSql.getMaxRows();
+            int h = kind.hashCode();
+            h = 31 * h + dataSourceName.hashCode();
+            h = 31 * h + javaClass.hashCode();
+            h = 31 * h + sql.hashCode();
+            h = 31 * h + values.hashCode();
+            this.hash = 31 * h + maxRows;
+        }
+
+        public int hashCode() {
+            return hash;
+        }
+
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return hash == other.hash && maxRows == other.maxRows && kind.equals(other.kind)
+                    && dataSourceName.equals(other.dataSourceName)
+                    && javaClass == other.javaClass && sql.equals(other.sql)
+                    && values.equals(other.values);
+        }
+
+    }
+
+    private static final class Entry {
+
+        final Object value;
+
+        final int rows;
+
+        final long generation;
+
+        final long expires;
+
+        Entry(Object value, int rows, long generation, long expires) {
+            this.value = value;
+            this.rows = rows;
+            this.generation = generation;
+            this.expires = expires;
+        }
+
+    }
+
+    /**
+     * A load in progress, shared by the threads that miss on the same query together.
+     */
+    private static final class Flight {
+
+        final long generation;
+
+        final FutureTask<Object> task;
+
+        Flight(long generation, Callable<Object> loader) {
+            this.generation = generation;
+            this.task = new FutureTask<Object>(loader);
+        }
+
+        Object result() throws SQLException {
+            try {
+                return task.get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new PersistenceException("Interrupted while waiting for a query.", ex);
+            } catch (ExecutionException ex) {
+                Throwable cause = ex.getCause();
+                if (cause instanceof SQLException) {
+                    throw (SQLException) cause;
+                }
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new PersistenceException(cause.getMessage(), cause);
+            }
+        }
+
+    }
+
+}
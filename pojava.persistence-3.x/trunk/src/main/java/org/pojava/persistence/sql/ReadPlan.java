@@ -0,0 +1,282 @@
+package org.pojava.persistence.sql;
+
+/*
+ Copyright 2008-14 John Pile
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+import org.pojava.datetime.DateTime;
+import org.pojava.exception.PersistenceException;
+import org.pojava.persistence.adaptor.BigDecimalAdaptor;
+import org.pojava.persistence.adaptor.BooleanAdaptor;
+import org.pojava.persistence.adaptor.DateTimeSqlAdaptor;
+import org.pojava.persistence.adaptor.DoubleAdaptor;
+import org.pojava.persistence.adaptor.FloatAdaptor;
+import org.pojava.persistence.adaptor.IntegerAdaptor;
+import org.pojava.persistence.adaptor.LongAdaptor;
+import org.pojava.persistence.adaptor.PassthroughAdaptor;
+import org.pojava.persistence.adaptor.TimeAdaptor;
+import org.pojava.transformation.BindingAdaptor;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A ReadPlan extracts beans from the rows of a ResultSet of a particular shape. It is built once
+ * per query shape, matching each column label to a FieldMap of the TableMap, and choosing the
+ * typed ResultSet getter for each column whose adaptor performs only a standard conversion.
+ * Such columns are written straight to the property without allocating a Binding. Columns with
+ * other adaptors are read through the adaptor as before.
+ * <p/>
+ * If no column label matches a mapped column, columns are matched to fields by position.
+ *
+ * @author John Pile
+ */
+public class ReadPlan<POJO> {
+
+    private static final int ADAPTED = 0;
+    private static final int INT = 1;
+    private static final int LONG = 2;
+    private static final int DOUBLE = 3;
+    private static final int FLOAT = 4;
+    private static final int BOOLEAN = 5;
+    private static final int STRING = 6;
+    private static final int BIG_DECIMAL = 7;
+    private static final int DATETIME_TIMESTAMP = 8;
+    private static final int DATETIME_DATE = 9;
+    private static final int TIME = 10;
+
+    private final TableMap<POJO> map;
+
+    private final Class<POJO> javaClass;
+
+    private final int[] columns;
+
+    private final FieldMap<POJO, ?, ?>[] fields;
+
+    private final int[] readers;
+
+    private final PropertyAccessor[] accessors;
+
+    /**
+     * Build a plan for reading beans of a TableMap from a ResultSet.
+     *
+     * @param map    TableMap describing the bean
+     * @param rsMeta metadata of the ResultSet to read
+     * @throws SQLException
+     */
+    ReadPlan(TableMap<POJO> map, ResultSetMetaData rsMeta) throws SQLException {
+        this.map = map;
+        this.javaClass = map.getJavaClass();
+        FieldMap<POJO, ?, ?>[] mapped = map.statements().allFields;
+        Map<String, FieldMap<POJO, ?, ?>> byColumn = new HashMap<String, FieldMap<POJO, ?, ?>>();
+        for (int i = 0; i < mapped.length; i++) {
+            String key = mapped[i].getColumnName().toLowerCase(Locale.ENGLISH);
+            if (!byColumn.containsKey(key)) {
+                byColumn.put(key, mapped[i]);
+            }
+        }
+        int cols = rsMeta.getColumnCount();
+        int[] matchedColumns = new int[cols];
+        FieldMap<POJO, ?, ?>[] matchedFields = FieldMap.newArray(cols);
+        int matches = 0;
+        for (int column = 1; column <= cols; column++) {
+            FieldMap<POJO, ?, ?> field = byColumn.get(label(rsMeta, column).toLowerCase(
+                    Locale.ENGLISH));
+            if (field != null) {
+                matchedColumns[matches] = column;
+                matchedFields[matches++] = field;
+            }
+        }
+        if (matches == 0) {
+            // Unrecognized labels (such as computed aliases) fall back to column position.
+            matches = Math.min(cols, mapped.length);
+            for (int i = 0; i < matches; i++) {
+                matchedColumns[i] = i + 1;
+                matchedFields[i] = mapped[i];
+            }
+        }
+        this.columns = new int[matches];
+        this.fields = FieldMap.newArray(matches);
+        this.readers = new int[matches];
+        this.accessors = new PropertyAccessor[matches];
+        for (int i = 0; i < matches; i++) {
+            columns[i] = matchedColumns[i];
+            fields[i] = matchedFields[i];
+            PropertyAccessor accessor = fields[i].accessor();
+            if (accessor != null && accessor.isWritable()) {
+                accessors[i] = accessor;
+                readers[i] = chooseReader(fields[i], rsMeta.getColumnType(columns[i]));
+            } else {
+                readers[i] = ADAPTED;
+            }
+        }
+    }
+
+    private static String label(ResultSetMetaData rsMeta, int column) throws SQLException {
+        String label = rsMeta.getColumnLabel(column);
+        return label == null ? rsMeta.getColumnName(column) : label;
+    }
+
+    /**
+     * Choose a typed getter if the field's adaptor performs only the conversion that getter
+     * would perform.
+     */
+    private static int chooseReader(FieldMap<?, ?, ?> field, int sqlType) {
+        BindingAdaptor<?, ?> adaptor = field.getAdaptor();
+        Class<?> adaptorClass = adaptor == null ? null : adaptor.getClass();
+        Class<?> type = field.getPropertyClass();
+        if (adaptorClass == IntegerAdaptor.class && isInteger(sqlType)) {
+            return INT;
+        }
+        if (adaptorClass == LongAdaptor.class && isInteger(sqlType)) {
+            return LONG;
+        }
+        if (adaptorClass == DoubleAdaptor.class
+                && (sqlType == Types.DOUBLE || sqlType == Types.FLOAT || isInteger(sqlType))) {
+            return DOUBLE;
+        }
+        if (adaptorClass == FloatAdaptor.class && sqlType == Types.REAL) {
+            return FLOAT;
+        }
+        if (adaptorClass == BooleanAdaptor.class
+                && (sqlType == Types.BOOLEAN || sqlType == Types.BIT)) {
+            return BOOLEAN;
+        }
+        if (adaptorClass == BigDecimalAdaptor.class) {
+            return BIG_DECIMAL;
+        }
+        if (adaptorClass == TimeAdaptor.class && sqlType == Types.TIME) {
+            return TIME;
+        }
+        if (adaptorClass == DateTimeSqlAdaptor.class && type == DateTime.class) {
+            if (sqlType == Types.TIMESTAMP) {
+                return DATETIME_TIMESTAMP;
+            }
+            if (sqlType == Types.DATE) {
+                return DATETIME_DATE;
+            }
+        }
+        if ((adaptor == null || adaptorClass == PassthroughAdaptor.class) && type == String.class
+                && isCharacter(sqlType)) {
+            return STRING;
+        }
+        return ADAPTED;
+    }
+
+    private static boolean isInteger(int sqlType) {
+        switch (sqlType) {
+            case Types.INTEGER:
+            case Types.SMALLINT:
+            case Types.TINYINT:
+            case Types.BIGINT:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static boolean isCharacter(int sqlType) {
+        return sqlType == Types.CHAR || sqlType == Types.VARCHAR
+                || sqlType == Types.LONGVARCHAR || sqlType == Types.NCHAR
+                || sqlType == Types.NVARCHAR || sqlType == Types.LONGNVARCHAR
+                || sqlType == Types.CLOB;
+    }
+
+    /**
+     * Extract a bean from the current row.
+     *
+     * @param rs ResultSet already advanced to a row
+     * @return bean populated from the row
+     */
+    public POJO read(ResultSet rs) {
+        POJO obj = map.newBean();
+        try {
+            for (int i = 0; i < columns.length; i++) {
+                int column = columns[i];
+                if (readers[i] == ADAPTED) {
+                    fields[i].setPropertyValue(rs, column, obj);
+                } else {
+                    accessors[i].set(obj, readValue(rs, column, readers[i]));
+                }
+            }
+            map.markClean(obj);
+        } catch (SQLException ex) {
+            throw new PersistenceException("SQL error while constructing "
+                    + javaClass.getName() + ": " + ex.getMessage(), ex);
+        }
+        return obj;
+    }
+
+    /**
+     * Read a column with its typed getter, returning null for SQL NULL.
+     */
+    private static Object readValue(ResultSet rs, int column, int reader) throws SQLException {
+        switch (reader) {
+            case INT: {
+                int value = rs.getInt(column);
+                return rs.wasNull() ? null : Integer.valueOf(value);
+            }
+            case LONG: {
+                long value = rs.getLong(column);
+                return rs.wasNull() ? null : Long.valueOf(value);
+            }
+            case DOUBLE: {
+                double value = rs.getDouble(column);
+                return rs.wasNull() ? null : Double.valueOf(value);
+            }
+            case FLOAT: {
+                float value = rs.getFloat(column);
+                return rs.wasNull() ? null : Float.valueOf(value);
+            }
+            case BOOLEAN: {
+                boolean value = rs.getBoolean(column);
+                return rs.wasNull() ? null : Boolean.valueOf(value);
+            }
+            case STRING:
+                return rs.getString(column);
+            case BIG_DECIMAL:
+                return rs.getBigDecimal(column);
+            case DATETIME_TIMESTAMP: {
+                Timestamp ts = rs.getTimestamp(column);
+                return ts == null ? null : new DateTime(ts);
+            }
+            case DATETIME_DATE: {
+                java.sql.Date date = rs.getDate(column);
+                return date == null ? null : new DateTime(date.getTime());
+            }
+            case TIME: {
+                Time time = rs.getTime(column);
+                return time == null ? null : new Time(time.getTime() % 86400000);
+            }
+            default:
+                throw new IllegalStateException("Unknown reader " + reader);
+        }
+    }
+
+    /**
+     * @return number of columns read into the bean
+     */
+    public int getColumnCount() {
+        return columns.length;
+    }
+
+}
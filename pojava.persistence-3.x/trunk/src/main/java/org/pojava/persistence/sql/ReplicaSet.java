@@ -0,0 +1,317 @@
+package org.pojava.persistence.sql;
+
+/*
+ Copyright 2008-14 John Pile
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * A ReplicaSet names the read replicas of a primary DataSource, and chooses among them for each
+ * read-only connection a RoutingConnectionSource opens. Every replica is a DataSource
+ * registered in DatabaseCache under its own name.
+ * <p/>
+ * A replica is chosen in turn (ROUND_ROBIN), or as the one with the fewest connections open
+ * (LEAST_OUTSTANDING). A replica that fails to connect, or fails a health check, is ejected:
+ * it is skipped until ejectMillis have passed, after which it is tried again. When every
+ * replica is ejected, reads go to the primary.
+ * <p/>
+ * Each replica records the executions of its statements in its own SqlStatistics, so that the
+ * latency of one replica can be compared with another.
+ *
+ * @author John Pile
+ */
+public class ReplicaSet {
+
+    /**
+     * Choose each replica in turn.
+     */
+    public static final int ROUND_ROBIN = 0;
+
+    /**
+     * Choose the replica with the fewest connections open, taking them in turn on a tie.
+     */
+    public static final int LEAST_OUTSTANDING = 1;
+
+    /**
+     * Milliseconds a failed replica is skipped, unless otherwise specified.
+     */
+    public static final long DEFAULT_EJECT_MILLIS = 30000;
+
+    private static final Logger logger = Logger.getLogger("persistence.ReplicaSet");
+
+    private final String primaryName;
+
+    private final List<Replica> replicas;
+
+    private final int balancing;
+
+    private volatile long ejectMillis = DEFAULT_EJECT_MILLIS;
+
+    private final AtomicInteger turn = new AtomicInteger();
+
+    /**
+     * Describe the replicas of a primary DataSource.
+     *
+     * @param primaryName  name of the primary DataSource
+     * @param replicaNames names of the replica DataSources
+     * @param balancing    ROUND_ROBIN or LEAST_OUTSTANDING
+     */
+    public ReplicaSet(String primaryName, List<String> replicaNames, int balancing) {
+        if (balancing != ROUND_ROBIN && balancing != LEAST_OUTSTANDING) {
+            throw new IllegalArgumentException("Unknown balancing " + balancing);
+        }
+        this.primaryName = primaryName;
+        this.balancing = balancing;
+        List<Replica> list = new ArrayList<Replica>(replicaNames.size());
+        for (int i = 0; i < replicaNames.size(); i++) {
+            list.add(new Replica(replicaNames.get(i)));
+        }
+        this.replicas = Collections.unmodifiableList(list);
+    }
+
+    /**
+     * Open a read-only, auto-commit connection to a healthy replica, caching statements as a
+     * transaction would. A replica failing to connect is ejected and the next one tried.
+     *
+     * @return connection to a replica, releasing it when closed, or null if every replica is
+     *         ejected
+     */
+    public Connection openConnection() {
+        for (int attempt = 0; attempt < replicas.size(); attempt++) {
+            Replica replica = choose();
+            if (replica == null) {
+                return null;
+            }
+            try {
+                return replica.open();
+            } catch (SQLException ex) {
+                eject(replica, ex);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Check every replica, ejecting those not responding and restoring those that do.
+     *
+     * @param timeoutSeconds time allowed for each replica to respond
+     * @return number of healthy replicas
+     */
+    public int checkHealth(int timeoutSeconds) {
+        int healthy = 0;
+        for (int i = 0; i < replicas.size(); i++) {
+            Replica replica = replicas.get(i);
+            try {
+                Connection conn = replica.dataSource().getConnection();
+                try {
+                    if (!conn.isValid(timeoutSeconds)) {
+                        throw new SQLException("Replica " + replica.name + " is not valid.");
+                    }
+                } finally {
+                    conn.close();
+                }
+                replica.ejectedUntil = 0;
+                healthy++;
+            } catch (SQLException ex) {
+                eject(replica, ex);
+            }
+        }
+        return healthy;
+    }
+
+    /**
+     * Pick a replica that is not ejected, or null if none is available.
+     */
+    private Replica choose() {
+        long now = System.currentTimeMillis();
+        int size = replicas.size();
+        int start = (turn.getAndIncrement() & Integer.MAX_VALUE) % Math.max(1, size);
+        Replica best = null;
+        for (int i = 0; i < size; i++) {
+            Replica replica = replicas.get((start + i) % size);
+            if (replica.ejectedUntil > now) {
+                continue;
+            }
+            if (balancing == ROUND_ROBIN) {
+                return replica;
+            }
+            if (best == null || replica.outstanding.get() < best.outstanding.get()) {
+                best = replica;
+            }
+        }
+        return best;
+    }
+
+    private void eject(Replica replica, SQLException ex) {
+        replica.failures.incrementAndGet();
+        replica.ejectedUntil = System.currentTimeMillis() + ejectMillis;
+        logger.warning("Replica " + replica.name + " of " + primaryName + " ejected: "
+                + ex.getMessage());
+    }
+
+    /**
+     * @return name of the primary DataSource
+     */
+    public String getPrimaryName() {
+        return primaryName;
+    }
+
+    /**
+     * @return the replicas, in the order given
+     */
+    public List<Replica> getReplicas() {
+        return replicas;
+    }
+
+    /**
+     * @return ROUND_ROBIN or LEAST_OUTSTANDING
+     */
+    public int getBalancing() {
+        return balancing;
+    }
+
+    /**
+     * @return milliseconds a failed replica is skipped
+     */
+    public long getEjectMillis() {
+        return ejectMillis;
+    }
+
+    /**
+     * @param ejectMillis milliseconds a failed replica is skipped
+     */
+    public void setEjectMillis(long ejectMillis) {
+        this.ejectMillis = ejectMillis;
+    }
+
+    /**
+     * One replica DataSource and its counters.
+     */
+    public static final class Replica {
+
+        private final String name;
+
+        private final SqlStatistics statistics = new SqlStatistics();
+
+        private final AtomicInteger outstanding = new AtomicInteger();
+
+        private final AtomicLong connections = new AtomicLong();
+
+        private final AtomicLong failures = new AtomicLong();
+
+        private volatile long ejectedUntil = 0;
+
+        Replica(String name) {
+            this.name = name;
+        }
+
+        private DataSource dataSource() throws SQLException {
+            DataSource ds = DatabaseCache.getDataSource(name);
+            if (ds == null) {
+                throw new SQLException("DataSource " + name + " not found.");
+            }
+            return ds;
+        }
+
+        private Connection open() throws SQLException {
+            Connection physical = dataSource().getConnection();
+            outstanding.incrementAndGet();
+            connections.incrementAndGet();
+            TransConnection conn = new TransConnection(physical, DatabaseCache
+                    .newStatementCache(name), statistics) {
+                private boolean released = false;
+
+                public void close() throws SQLException {
+                    try {
+                        super.close();
+                    } finally {
+                        if (isCloseAllowed() && !released) {
+                            released = true;
+                            outstanding.decrementAndGet();
+                        }
+                    }
+                }
+            };
+            conn.setCloseAllowed(true);
+            conn.setReplica(true);
+            try {
+                conn.setAutoCommit(true);
+                conn.setReadOnly(true);
+            } catch (SQLException ex) {
+                conn.close();
+                throw ex;
+            }
+            return conn;
+        }
+
+        /**
+         * @return name of the replica DataSource
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return executions of the statements sent to this replica
+         */
+        public SqlStatistics getStatistics() {
+            return statistics;
+        }
+
+        /**
+         * @return connections now open to this replica
+         */
+        public int getOutstanding() {
+            return outstanding.get();
+        }
+
+        /**
+         * @return connections opened to this replica
+         */
+        public long getConnections() {
+            return connections.get();
+        }
+
+        /**
+         * @return failures to connect or to pass a health check
+         */
+        public long getFailures() {
+            return failures.get();
+        }
+
+        /**
+         * @return true if this replica is being skipped after a failure
+         */
+        public boolean isEjected() {
+            return ejectedUntil > System.currentTimeMillis();
+        }
+
+        public String toString() {
+            return name + ": outstanding=" + getOutstanding() + ", connections="
+                    + getConnections() + ", failures=" + getFailures() + ", ejected="
+                    + isEjected();
+        }
+    }
+
+}
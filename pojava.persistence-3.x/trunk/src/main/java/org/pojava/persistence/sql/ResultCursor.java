@@ -0,0 +1,238 @@
+package org.pojava.persistence.sql;
+
+/*
+ Copyright 2008-14 John Pile
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+import org.pojava.exception.PersistenceException;
+
+import java.io.Closeable;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A ResultCursor iterates over an open ResultSet, extracting each bean only as it is requested.
+ * Only the rows the driver has fetched are held in memory, so very large results can be walked
+ * without materializing a List.
+ * <p/>
+ * The ResultSet and its statement are closed as soon as the last row has been read. A caller
+ * that stops early must call close, typically from a finally block:
+ * <code>
+ * ResultCursor&lt;Widget&gt; cursor=WidgetDao.streamByQuery(trans, query);
+ * try {
+ * for (Widget widget : cursor) {
+ * ...
+ * }
+ * } finally {
+ * cursor.close();
+ * }
+ * </code>
+ * A ResultCursor can be iterated only once.
+ *
+ * @author John Pile
+ */
+public class ResultCursor<POJO> implements Iterator<POJO>, Iterable<POJO>, Closeable {
+
+    private final Connection conn;
+
+    private final Statement stmt;
+
+    private final ResultSet rs;
+
+    private final ReadPlan<POJO> plan;
+
+    /**
+     * True if auto-commit was turned off to stream and must be turned back on at close.
+     */
+    private final boolean restoreAutoCommit;
+
+    /**
+     * True if the ResultSet has been advanced to a row not yet returned.
+     */
+    private boolean fetched = false;
+
+    private boolean closed = false;
+
+    private int rows = 0;
+
+    /**
+     * Statistics recording the rows read, or null if none are kept.
+     */
+    private final SqlStatistics statistics;
+
+    private final String sql;
+
+    private long fetchNanos = 0;
+
+    private long mappingNanos = 0;
+
+    /**
+     * Construct a cursor over an executed query.
+     *
+     * @param conn              Connection the statement was prepared on
+     * @param stmt              statement to close with the ResultSet
+     * @param rs                ResultSet positioned before its first row
+     * @param plan              plan for reading beans from the ResultSet
+     * @param restoreAutoCommit true to turn auto-commit back on when closed
+     */
+    public ResultCursor(Connection conn, Statement stmt, ResultSet rs, ReadPlan<POJO> plan,
+                        boolean restoreAutoCommit) {
+        this(conn, stmt, rs, plan, restoreAutoCommit, null, null);
+    }
+
+    /**
+     * Construct a cursor over an executed query, recording the rows read when closed.
+     *
+     * @param conn              Connection the statement was prepared on
+     * @param stmt              statement to close with the ResultSet
+     * @param rs                ResultSet positioned before its first row
+     * @param plan              plan for reading beans from the ResultSet
+     * @param restoreAutoCommit true to turn auto-commit back on when closed
+     * @param statistics        statistics recording the rows read, or null
+     * @param sql               SQL text of the query
+     */
+    public ResultCursor(Connection conn, Statement stmt, ResultSet rs, ReadPlan<POJO> plan,
+                        boolean restoreAutoCommit, SqlStatistics statistics, String sql) {
+        this.conn = conn;
+        this.stmt = stmt;
+        this.rs = rs;
+        this.plan = plan;
+        this.restoreAutoCommit = restoreAutoCommit;
+        this.statistics = statistics;
+        this.sql = sql;
+    }
+
+    /**
+     * @return true if another bean is available
+     */
+    public boolean hasNext() {
+        if (closed) {
+            return false;
+        }
+        if (!fetched) {
+            long start = statistics == null ? 0 : System.nanoTime();
+            try {
+                fetched = rs.next();
+                if (statistics != null) {
+                    fetchNanos += System.nanoTime() - start;
+                }
+            } catch (SQLException ex) {
+                close();
+                throw new PersistenceException(ex.getMessage(), ex);
+            }
+            if (!fetched) {
+                close();
+            }
+        }
+        return fetched;
+    }
+
+    /**
+     * @return the bean extracted from the next row
+     */
+    public POJO next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        fetched = false;
+        rows++;
+        try {
+            if (statistics == null) {
+                return plan.read(rs);
+            }
+            long start = System.nanoTime();
+            POJO bean = plan.read(rs);
+            mappingNanos += System.nanoTime() - start;
+            return bean;
+        } catch (PersistenceException ex) {
+            close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Rows cannot be removed through a cursor.
+     */
+    public void remove() {
+        throw new UnsupportedOperationException("A ResultCursor is read-only.");
+    }
+
+    /**
+     * A cursor is its own iterator, allowing its use in a for-each loop.
+     *
+     * @return this cursor
+     */
+    public Iterator<POJO> iterator() {
+        return this;
+    }
+
+    /**
+     * Close the ResultSet and statement. Closing an already closed cursor has no effect.
+     */
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        fetched = false;
+        if (statistics != null) {
+            statistics.recordRead(sql, rows, fetchNanos, mappingNanos);
+        }
+        SQLException failure = null;
+        try {
+            rs.close();
+        } catch (SQLException ex) {
+            failure = ex;
+        }
+        try {
+            stmt.close();
+        } catch (SQLException ex) {
+            if (failure == null) {
+                failure = ex;
+            }
+        }
+        if (restoreAutoCommit) {
+            try {
+                conn.setAutoCommit(true);
+            } catch (SQLException ex) {
+                if (failure == null) {
+                    failure = ex;
+                }
+            }
+        }
+        if (failure != null) {
+            throw new PersistenceException(failure.getMessage(), failure);
+        }
+    }
+
+    /**
+     * @return true if the cursor has been closed, either explicitly or by exhaustion
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * @return number of beans returned so far
+     */
+    public int getRowCount() {
+        return rows;
+    }
+
+}
@@ -0,0 +1,198 @@
+package org.pojava.persistence.sql;
+
+/*
+ Copyright 2008-14 John Pile
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * A RoutingConnectionSource sends read-only work to the read replicas of a DataSource, and all
+ * other work to the DataSource itself (the primary) within a DatabaseTransaction.
+ * <p/>
+ * While the source is read-only, getConnection returns a replica connection for any DataSource
+ * having a ReplicaSet registered in DatabaseCache, so that a DAO given this source reads from a
+ * replica. Otherwise, getConnection returns the primary connection of the transaction, and
+ * getReadConnection may be used to send an individual read to a replica.
+ * <p/>
+ * Once the primary connection of a DataSource has been used for writing, every later read of
+ * that DataSource through this source goes to the primary as well, even after commit, so the
+ * session reads its own writes rather than a replica that may lag behind them. Replica
+ * connections are auto-commit, and are released by commit or rollback along with the
+ * transaction. Reads through them bypass the shared entity and query caches.
+ *
+ * @author John Pile
+ */
+public class RoutingConnectionSource implements ConnectionSource, Transaction {
+
+    private final DatabaseTransaction primary;
+
+    /**
+     * Replica connections held by this session, mapped by primary DataSource name.
+     */
+    private final Map<String, Connection> replicaConnections = new HashMap<String, Connection>();
+
+    /**
+     * Names of the DataSources whose primary this session has used for writing.
+     */
+    private final Set<String> written = new HashSet<String>();
+
+    private boolean readOnly = false;
+
+    private static final Logger logger = Logger.getLogger("persistence.RoutingConnectionSource");
+
+    /**
+     * Route work for a new transaction.
+     */
+    public RoutingConnectionSource() {
+        this(new DatabaseTransaction());
+    }
+
+    /**
+     * Route work for the given transaction, whose connections serve writes.
+     *
+     * @param primary transaction holding the primary connections
+     */
+    public RoutingConnectionSource(DatabaseTransaction primary) {
+        if (primary == null) {
+            throw new IllegalArgumentException("A primary transaction is required.");
+        }
+        this.primary = primary;
+    }
+
+    /**
+     * Obtain a connection for the work of this session: a replica connection while the source is
+     * read-only and the primary has not been used, and otherwise the primary connection.
+     *
+     * @param dataSourceName name of the primary DataSource
+     * @return Connection
+     */
+    public Connection getConnection(String dataSourceName) {
+        if (readOnly) {
+            return getReadConnection(dataSourceName);
+        }
+        return getWriteConnection(dataSourceName);
+    }
+
+    /**
+     * Obtain a connection for a read: a replica connection if the DataSource has healthy
+     * replicas and its primary has not been used for writing by this session, and otherwise
+     * the primary connection.
+     *
+     * @param dataSourceName name of the primary DataSource
+     * @return Connection
+     */
+    public Connection getReadConnection(String dataSourceName) {
+        if (written.contains(dataSourceName) || primary.connections.containsKey(dataSourceName)) {
+            return primary.getConnection(dataSourceName);
+        }
+        Connection conn = replicaConnections.get(dataSourceName);
+        if (conn == null) {
+            ReplicaSet replicas = DatabaseCache.getReplicaSet(dataSourceName);
+            conn = replicas == null ? null : replicas.openConnection();
+            if (conn == null) {
+                return primary.getConnection(dataSourceName);
+            }
+            replicaConnections.put(dataSourceName, conn);
+        }
+        return conn;
+    }
+
+    /**
+     * Obtain the primary connection of a DataSource, to which later reads of the DataSource
+     * through this source will go, in this transaction and those after it.
+     *
+     * @param dataSourceName name of the primary DataSource
+     * @return Connection
+     */
+    public Connection getWriteConnection(String dataSourceName) {
+        written.add(dataSourceName);
+        return primary.getConnection(dataSourceName);
+    }
+
+    /**
+     * Commit the primary connections and release the replica connections.
+     */
+    public void commit() {
+        try {
+            primary.commit();
+        } finally {
+            releaseReplicas();
+        }
+    }
+
+    /**
+     * Roll back the primary connections and release the replica connections.
+     */
+    public void rollback() {
+        try {
+            primary.rollback();
+        } finally {
+            releaseReplicas();
+        }
+    }
+
+    private void releaseReplicas() {
+        for (Iterator<Connection> it = replicaConnections.values().iterator(); it.hasNext(); ) {
+            try {
+                it.next().close();
+            } catch (SQLException ex) {
+                logger.severe("Replica connection close failure: " + ex.getMessage());
+            }
+        }
+        replicaConnections.clear();
+    }
+
+    /**
+     * Send the work of this session to replicas, as a read-only connection would.
+     *
+     * @param readOnly true to read from replicas where possible
+     */
+    public void setReadOnly(boolean readOnly) {
+        this.readOnly = readOnly;
+    }
+
+    /**
+     * @return true if the work of this session is sent to replicas where possible
+     */
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    /**
+     * @return transaction holding the primary connections
+     */
+    public DatabaseTransaction getTransaction() {
+        return primary;
+    }
+
+    /**
+     * Tell whether a connection handed out by this source is a replica connection.
+     *
+     * @param conn connection from this source
+     * @return true if it reads from a replica
+     */
+    public boolean isReplica(Connection conn) {
+        return conn != null && replicaConnections.containsValue(conn);
+    }
+
+}
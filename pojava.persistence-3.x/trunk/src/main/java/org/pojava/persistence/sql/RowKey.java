@@ -0,0 +1,86 @@
+package org.pojava.persistence.sql;
+
+/*
+ Copyright 2008-14 John Pile
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+import java.util.Arrays;
+
+/**
+ * A RowKey identifies the row of a bean by its TableMap and the values of its key fields, as
+ * EntityCache and IdentityMap address the beans they hold.
+ *
+ * @author John Pile
+ */
+final class RowKey {
+
+    private final TableMap<?> map;
+
+    private final Object[] values;
+
+    private final int hash;
+
+    private RowKey(TableMap<?> map, Object[] values) {
+        this.map = map;
+        this.values = values;
+        this.hash = System.identityHashCode(map) * 31 + Arrays.hashCode(values);
+    }
+
+    /**
+     * Form a key from a TableMap and the key field values of a bean.
+     *
+     * @param map  TableMap describing the bean
+     * @param bean bean whose key fields identify the row
+     * @return key, or null if the bean is null, the map has no key fields or a key value is
+     *         null
+     */
+    static <POJO> RowKey of(TableMap<POJO> map, POJO bean) {
+        if (bean == null) {
+            return null;
+        }
+        FieldMap<POJO, ?, ?>[] keyFields = map.statements().keyFields;
+        if (keyFields.length == 0) {
+            return null;
+        }
+        Object[] values = new Object[keyFields.length];
+        for (int i = 0; i < keyFields.length; i++) {
+            values[i] = keyFields[i].getPropertyValue(bean);
+            if (values[i] == null) {
+                return null;
+            }
+        }
+        return new RowKey(map, values);
+    }
+
+    /**
+     * @return true if this key identifies a row of the given TableMap
+     */
+    boolean isOf(TableMap<?> map) {
+        return this.map == map;
+    }
+
+    public int hashCode() {
+        return hash;
+    }
+
+    public boolean equals(Object other) {
+        if (!(other instanceof RowKey)) {
+            return false;
+        }
+        RowKey key = (RowKey) other;
+        return map == key.map && Arrays.equals(values, key.values);
+    }
+
+}
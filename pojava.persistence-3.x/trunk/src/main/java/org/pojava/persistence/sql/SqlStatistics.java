@@ -0,0 +1,266 @@
+package org.pojava.persistence.sql;
+
+/*
+ Copyright 2008-14 John Pile
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+import org.pojava.exception.InitializationException;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * SqlStatistics records, per normalized SQL statement, how often it runs, how long the driver
+ * takes, how many rows it reads or writes, and how long is spent extracting beans from its
+ * rows. Statements are normalized by collapsing whitespace and replacing literal values with
+ * "?", so that queries differing only in their constants are counted together.
+ * <p/>
+ * Once registered with DatabaseCache.setSqlStatistics, every TransConnection subsequently
+ * opened by a DatabaseTransaction instruments the statements it prepares, and SqlTool and
+ * ResultCursor record the rows they read. Statements running longer than the slow query
+ * threshold are logged with their bindings inlined.
+ * <p/>
+ * The statistics can be read through getStatements, or through JMX once registerMBean is
+ * called.
+ *
+ * @author John Pile
+ */
+public class SqlStatistics implements SqlStatisticsMBean {
+
+    /**
+     * Raw SQL strings remembered to skip normalization, beyond which each is normalized anew.
+     */
+    private static final int MAX_RAW_SQL = 10000;
+
+    private static final Logger logger = Logger
+            .getLogger("org.pojava.persistence.sql.SqlStatistics");
+
+    private final ConcurrentHashMap<String, StatementStatistics> statements = new ConcurrentHashMap<String, StatementStatistics>();
+
+    private final ConcurrentHashMap<String, StatementStatistics> rawStatements = new ConcurrentHashMap<String, StatementStatistics>();
+
+    private volatile long slowQueryThresholdNanos = 0;
+
+    /**
+     * Construct statistics that log no slow queries.
+     */
+    public SqlStatistics() {
+    }
+
+    /**
+     * Construct statistics logging statements slower than a threshold.
+     *
+     * @param slowQueryThresholdMillis execution latency above which a statement is logged, or
+     *                                 0 to log none
+     */
+    public SqlStatistics(long slowQueryThresholdMillis) {
+        setSlowQueryThresholdMillis(slowQueryThresholdMillis);
+    }
+
+    /**
+     * Find the statistics of a statement, creating them on first use.
+     *
+     * @param sql SQL text, before normalization
+     * @return statistics of the normalized statement
+     */
+    public StatementStatistics forSql(String sql) {
+        StatementStatistics stats = rawStatements.get(sql);
+        if (stats != null) {
+            return stats;
+        }
+        String normalized = normalize(sql);
+        stats = statements.get(normalized);
+        if (stats == null) {
+            StatementStatistics created = new StatementStatistics(normalized);
+            stats = statements.putIfAbsent(normalized, created);
+            if (stats == null) {
+                stats = created;
+            }
+        }
+        if (rawStatements.size() < MAX_RAW_SQL) {
+            rawStatements.put(sql, stats);
+        }
+        return stats;
+    }
+
+    /**
+     * Record the reading of a query's results.
+     *
+     * @param sql          SQL text of the query
+     * @param rows         rows read
+     * @param fetchNanos   time spent by the driver advancing the ResultSet
+     * @param mappingNanos time spent extracting beans from the rows
+     */
+    public void recordRead(String sql, long rows, long fetchNanos, long mappingNanos) {
+        forSql(sql).recordRead(rows, fetchNanos, mappingNanos);
+    }
+
+    /**
+     * Log a statement whose execution exceeded the slow query threshold.
+     *
+     * @param nanos   time spent executing
+     * @param inlined SQL text with its bindings inlined
+     */
+    void recordSlow(long nanos, String inlined) {
+        logger.warning("Slow query (" + nanos / 1000000 + " ms): " + inlined);
+    }
+
+    /**
+     * @param nanos time spent executing
+     * @return true if the time exceeds the slow query threshold
+     */
+    boolean isSlow(long nanos) {
+        long threshold = slowQueryThresholdNanos;
+        return threshold > 0 && nanos >= threshold;
+    }
+
+    /**
+     * Return the statistics of every statement, those with the most time spent first.
+     *
+     * @return statistics by statement
+     */
+    public List<StatementStatistics> getStatements() {
+        List<StatementStatistics> list = new ArrayList<StatementStatistics>(statements.values());
+        Collections.sort(list, new Comparator<StatementStatistics>() {
+            public int compare(StatementStatistics a, StatementStatistics b) {
+                long ta = a.getDriverNanos() + a.getMappingNanos();
+                long tb = b.getDriverNanos() + b.getMappingNanos();
+                return ta < tb ? 1 : (ta == tb ? 0 : -1);
+            }
+        });
+        return list;
+    }
+
+    public int getStatementCount() {
+        return statements.size();
+    }
+
+    public long getTotalExecutions() {
+        long total = 0;
+        for (Iterator<StatementStatistics> it = statements.values().iterator(); it.hasNext(); ) {
+            total += it.next().getExecutions();
+        }
+        return total;
+    }
+
+    public long getSlowQueryThresholdMillis() {
+        return slowQueryThresholdNanos / 1000000;
+    }
+
+    public void setSlowQueryThresholdMillis(long millis) {
+        this.slowQueryThresholdNanos = Math.max(0, millis) * 1000000;
+    }
+
+    public String[] getSummary() {
+        List<StatementStatistics> list = getStatements();
+        String[] summary = new String[list.size()];
+        for (int i = 0; i < summary.length; i++) {
+            summary[i] = list.get(i).toString();
+        }
+        return summary;
+    }
+
+    public void reset() {
+        for (Iterator<StatementStatistics> it = statements.values().iterator(); it.hasNext(); ) {
+            it.next().reset();
+        }
+    }
+
+    /**
+     * Register these statistics with the platform MBean server.
+     *
+     * @param name value of the name key of the ObjectName, such as a DataSource name
+     * @return ObjectName under which the statistics were registered
+     */
+    public ObjectName registerMBean(String name) {
+        try {
+            ObjectName objectName = new ObjectName("org.pojava.persistence:type=SqlStatistics,name="
+                    + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+            return objectName;
+        } catch (JMException ex) {
+            throw new InitializationException("Cannot register SqlStatistics MBean: "
+                    + ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Reduce SQL to a form shared by statements differing only in whitespace and literal
+     * values.
+     *
+     * @param sql SQL text
+     * @return normalized SQL text
+     */
+    static String normalize(String sql) {
+        StringBuffer sb = new StringBuffer(sql.length());
+        int len = sql.length();
+        boolean space = false;
+        for (int i = 0; i < len; i++) {
+            char c = sql.charAt(i);
+            if (Character.isWhitespace(c)) {
+                space = sb.length() > 0;
+                continue;
+            }
+            if (space) {
+                sb.append(' ');
+                space = false;
+            }
+            if (c == '\'') {
+                i++;
+                while (i < len) {
+                    if (sql.charAt(i) == '\'') {
+                        if (i + 1 < len && sql.charAt(i + 1) == '\'') {
+                            i += 2;
+                            continue;
+                        }
+                        break;
+                    }
+                    i++;
+                }
+                sb.append('?');
+            } else if (Character.isDigit(c) && !partOfName(sb)) {
+                while (i + 1 < len && (Character.isDigit(sql.charAt(i + 1))
+                        || sql.charAt(i + 1) == '.')) {
+                    i++;
+                }
+                sb.append('?');
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return true if the character last appended continues an identifier
+     */
+    private static boolean partOfName(StringBuffer sb) {
+        if (sb.length() == 0) {
+            return false;
+        }
+        char prev = sb.charAt(sb.length() - 1);
+        return Character.isLetterOrDigit(prev) || prev == '_' || prev == '$' || prev == '"';
+    }
+
+}
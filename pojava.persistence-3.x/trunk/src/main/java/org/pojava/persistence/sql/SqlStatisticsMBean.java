@@ -0,0 +1,56 @@
+package org.pojava.persistence.sql;
+
+/*
+ Copyright 2008-14 John Pile
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+/**
+ * Management interface exposing SqlStatistics through JMX.
+ *
+ * @author John Pile
+ */
+public interface SqlStatisticsMBean {
+
+    /**
+     * @return number of distinct statements recorded
+     */
+    int getStatementCount();
+
+    /**
+     * @return executions of all statements
+     */
+    long getTotalExecutions();
+
+    /**
+     * @return execution latency above which a statement is logged, in milliseconds
+     */
+    long getSlowQueryThresholdMillis();
+
+    /**
+     * @param millis execution latency above which a statement is logged, or 0 to log none
+     */
+    void setSlowQueryThresholdMillis(long millis);
+
+    /**
+     * @return one line per statement, those with the most time spent first
+     */
+    String[] getSummary();
+
+    /**
+     * Reset the counters of all statements.
+     */
+    void reset();
+
+}
@@ -0,0 +1,204 @@
+package org.pojava.persistence.sql;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * A StatementCache holds idle PreparedStatements for a single connection, so that identical SQL
+ * is parsed and planned by the database only once per connection. Statements are keyed by their
+ * SQL text and result set options, and the least recently used statement is closed once the
+ * capacity is exceeded.
+ * <p/>
+ * A statement is removed from the cache while it is in use, so it is never shared by two
+ * callers. Closing the statement returns it to the cache.
+ *
+ * @author John Pile
+ */
+public class StatementCache {
+
+    /**
+     * Capacity used when none has been configured for a DataSource.
+     */
+    public static final int DEFAULT_CAPACITY = 32;
+
+    private static Logger log = Logger.getLogger("org.pojava.persistence.sql.StatementCache");
+
+    private final int capacity;
+
+    private final StatementCacheStatistics statistics;
+
+    /**
+     * Idle statements in least-recently-used order.
+     */
+    private final Map<Key, PreparedStatement> idle;
+
+    private boolean closed = false;
+
+    /**
+     * Create a StatementCache with its own statistics.
+     *
+     * @param capacity maximum number of idle statements held
+     */
+    public StatementCache(int capacity) {
+        this(capacity, new StatementCacheStatistics());
+    }
+
+    /**
+     * Create a StatementCache reporting to shared statistics.
+     *
+     * @param capacity   maximum number of idle statements held
+     * @param statistics counters shared by the caches of one DataSource
+     */
+    public StatementCache(int capacity, StatementCacheStatistics statistics) {
+        this.capacity = capacity;
+        this.statistics = statistics;
+        this.idle = new LinkedHashMap<Key, PreparedStatement>(16, 0.75f, true);
+    }
+
+    /**
+     * Remove an idle statement matching the key from the cache.
+     *
+     * @param key SQL and options of the statement
+     * @return cached statement, or null if a new statement must be prepared
+     */
+    synchronized PreparedStatement checkout(Key key) {
+        PreparedStatement stmt = closed ? null : idle.remove(key);
+        if (stmt == null) {
+            statistics.recordMiss();
+        } else {
+            statistics.recordHit();
+        }
+        return stmt;
+    }
+
+    /**
+     * Return a statement to the cache, evicting the least recently used statement if the cache
+     * is full.
+     *
+     * @param key  SQL and options of the statement
+     * @param stmt a statement no longer in use
+     * @return false if the cache did not accept the statement, which the caller must then close
+     */
+    boolean checkin(Key key, PreparedStatement stmt) {
+        PreparedStatement evicted = null;
+        synchronized (this) {
+            if (closed || capacity <= 0 || idle.containsKey(key)) {
+                return false;
+            }
+            idle.put(key, stmt);
+            if (idle.size() > capacity) {
+                Iterator<PreparedStatement> it = idle.values().iterator();
+                evicted = it.next();
+                it.remove();
+            }
+        }
+        if (evicted != null) {
+            statistics.recordEviction();
+            closeQuietly(evicted);
+        }
+        return true;
+    }
+
+    /**
+     * Close all idle statements. Statements in use are closed when they are returned.
+     */
+    public void close() {
+        PreparedStatement[] stmts;
+        synchronized (this) {
+            closed = true;
+            stmts = idle.values().toArray(new PreparedStatement[idle.size()]);
+            idle.clear();
+        }
+        for (int i = 0; i < stmts.length; i++) {
+            closeQuietly(stmts[i]);
+        }
+    }
+
+    private void closeQuietly(PreparedStatement stmt) {
+        try {
+            stmt.close();
+        } catch (SQLException ex) {
+            log.warning("Failed to close cached statement: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * @return maximum number of idle statements held
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return number of idle statements currently held
+     */
+    public synchronized int size() {
+        return idle.size();
+    }
+
+    /**
+     * @return hit, miss and eviction counters
+     */
+    public StatementCacheStatistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * Identifies a prepared statement by its SQL text and result set options.
+     */
+    static final class Key {
+
+        private final String sql;
+
+        private final int resultSetType;
+
+        private final int resultSetConcurrency;
+
+        private final int resultSetHoldability;
+
+        private final int autoGeneratedKeys;
+
+        private final int hash;
+
+        Key(String sql, int resultSetType, int resultSetConcurrency, int resultSetHoldability,
+            int autoGeneratedKeys) {
+            this.sql = sql;
+            this.resultSetType = resultSetType;
+            this.resultSetConcurrency = resultSetConcurrency;
+            this.resultSetHoldability = resultSetHoldability;
+            this.autoGeneratedKeys = autoGeneratedKeys;
+            int h = sql.hashCode();
+            h = h * 31 + resultSetType;
+            h = h * 31 + resultSetConcurrency;
+            h = h * 31 + resultSetHoldability;
+            this.hash = h * 31 + autoGeneratedKeys;
+        }
+
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return hash == other.hash && resultSetType == other.resultSetType
+                    && resultSetConcurrency == other.resultSetConcurrency
+                    && resultSetHoldability == other.resultSetHoldability
+                    && autoGeneratedKeys == other.autoGeneratedKeys && sql.equals(other.sql);
+        }
+
+        public int hashCode() {
+            return hash;
+        }
+
+        public String toString() {
+            return sql;
+        }
+    }
+
+}
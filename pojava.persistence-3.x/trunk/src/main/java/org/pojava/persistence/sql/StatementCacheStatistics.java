@@ -0,0 +1,73 @@
+package org.pojava.persistence.sql;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hit, miss and eviction counters shared by the statement caches of a DataSource.
+ *
+ * @author John Pile
+ */
+public class StatementCacheStatistics {
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    void recordHit() {
+        hits.incrementAndGet();
+    }
+
+    void recordMiss() {
+        misses.incrementAndGet();
+    }
+
+    void recordEviction() {
+        evictions.incrementAndGet();
+    }
+
+    /**
+     * @return number of statements served from a cache
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return number of statements prepared because none was cached
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return number of idle statements closed to make room for others
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * @return fraction of requests served from a cache, or zero if there were none
+     */
+    public double getHitRatio() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total == 0 ? 0.0 : (double) h / total;
+    }
+
+    /**
+     * Reset all counters to zero.
+     */
+    public void reset() {
+        hits.set(0);
+        misses.set(0);
+        evictions.set(0);
+    }
+
+    public String toString() {
+        return "hits=" + getHits() + ", misses=" + getMisses() + ", evictions=" + getEvictions();
+    }
+
+}
@@ -0,0 +1,253 @@
+package org.pojava.persistence.sql;
+
+/*
+ Copyright 2008-14 John Pile
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters describing the executions of one normalized SQL statement. All counters are updated
+ * without locking, so a set of readings taken while statements run may be slightly out of step
+ * with one another.
+ * <p/>
+ * Execution latency is the time the driver spends in execute, executeQuery, executeUpdate or
+ * executeBatch. Rows read afterward are split into fetch time, spent by the driver advancing
+ * the ResultSet, and mapping time, spent extracting beans from the rows.
+ * <p/>
+ * Latencies are kept in a histogram whose buckets are a quarter of a power of two wide, so a
+ * percentile is accurate to within about 25%.
+ *
+ * @author John Pile
+ */
+public class StatementStatistics {
+
+    private static final int BUCKETS = 256;
+
+    private final String sql;
+
+    private final AtomicLong executions = new AtomicLong();
+
+    private final AtomicLong errors = new AtomicLong();
+
+    private final AtomicLong executeNanos = new AtomicLong();
+
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    private final AtomicLong rowsAffected = new AtomicLong();
+
+    private final AtomicLong rowsRead = new AtomicLong();
+
+    private final AtomicLong fetchNanos = new AtomicLong();
+
+    private final AtomicLong mappingNanos = new AtomicLong();
+
+    /**
+     * Count of executions by latency in microseconds.
+     */
+    private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+
+    StatementStatistics(String sql) {
+        this.sql = sql;
+    }
+
+    /**
+     * Record one execution by the driver.
+     *
+     * @param nanos    time spent executing
+     * @param affected rows inserted, updated or deleted, or a negative value for a query
+     */
+    void recordExecution(long nanos, long affected) {
+        executions.incrementAndGet();
+        executeNanos.addAndGet(nanos);
+        histogram.incrementAndGet(bucket(nanos / 1000));
+        long max = maxNanos.get();
+        while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+            max = maxNanos.get();
+        }
+        if (affected > 0) {
+            rowsAffected.addAndGet(affected);
+        }
+    }
+
+    /**
+     * Record an execution that failed.
+     */
+    void recordError() {
+        errors.incrementAndGet();
+    }
+
+    /**
+     * Record the reading of a query's results.
+     *
+     * @param rows    rows read
+     * @param fetch   time spent by the driver advancing the ResultSet
+     * @param mapping time spent extracting beans from the rows
+     */
+    void recordRead(long rows, long fetch, long mapping) {
+        rowsRead.addAndGet(rows);
+        fetchNanos.addAndGet(Math.max(0, fetch));
+        mappingNanos.addAndGet(Math.max(0, mapping));
+    }
+
+    /**
+     * @return normalized SQL text
+     */
+    public String getSql() {
+        return sql;
+    }
+
+    /**
+     * @return number of successful executions
+     */
+    public long getExecutions() {
+        return executions.get();
+    }
+
+    /**
+     * @return number of executions that threw an exception
+     */
+    public long getErrors() {
+        return errors.get();
+    }
+
+    /**
+     * @return rows inserted, updated or deleted
+     */
+    public long getRowsAffected() {
+        return rowsAffected.get();
+    }
+
+    /**
+     * @return rows read from query results
+     */
+    public long getRowsRead() {
+        return rowsRead.get();
+    }
+
+    /**
+     * @return nanoseconds spent by the driver executing and fetching rows
+     */
+    public long getDriverNanos() {
+        return executeNanos.get() + fetchNanos.get();
+    }
+
+    /**
+     * @return nanoseconds spent by the driver executing
+     */
+    public long getExecuteNanos() {
+        return executeNanos.get();
+    }
+
+    /**
+     * @return nanoseconds spent by the driver advancing result sets
+     */
+    public long getFetchNanos() {
+        return fetchNanos.get();
+    }
+
+    /**
+     * @return nanoseconds spent extracting beans from rows
+     */
+    public long getMappingNanos() {
+        return mappingNanos.get();
+    }
+
+    /**
+     * @return longest execution, in nanoseconds
+     */
+    public long getMaxNanos() {
+        return maxNanos.get();
+    }
+
+    /**
+     * Estimate a percentile of execution latency.
+     *
+     * @param fraction percentile as a fraction, such as 0.99
+     * @return latency in nanoseconds, or 0 if there were no executions
+     */
+    public long getPercentileNanos(double fraction) {
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = histogram.get(i);
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(fraction * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= target) {
+                return Math.min(upperBound(i) * 1000, maxNanos.get());
+            }
+        }
+        return maxNanos.get();
+    }
+
+    /**
+     * Reset all counters to zero.
+     */
+    public void reset() {
+        executions.set(0);
+        errors.set(0);
+        executeNanos.set(0);
+        maxNanos.set(0);
+        rowsAffected.set(0);
+        rowsRead.set(0);
+        fetchNanos.set(0);
+        mappingNanos.set(0);
+        for (int i = 0; i < BUCKETS; i++) {
+            histogram.set(i, 0);
+        }
+    }
+
+    /**
+     * Bucket holding a value: values below 4 have their own bucket, and each power of two above
+     * is split into four.
+     */
+    static int bucket(long value) {
+        if (value < 4) {
+            return (int) Math.max(0, value);
+        }
+        int exp = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exp - 2)) & 3;
+        return 4 + (exp - 2) * 4 + sub;
+    }
+
+    /**
+     * Largest value held by a bucket.
+     */
+    static long upperBound(int bucket) {
+        if (bucket < 4) {
+            return bucket;
+        }
+        int exp = (bucket - 4) / 4 + 2;
+        long sub = (bucket - 4) % 4;
+        return ((4 + sub + 1) << (exp - 2)) - 1;
+    }
+
+    public String toString() {
+        return "executions=" + getExecutions() + ", errors=" + getErrors() + ", p50="
+                + getPercentileNanos(0.5) / 1000 + "us, p99=" + getPercentileNanos(0.99) / 1000
+                + "us, max=" + getMaxNanos() / 1000 + "us, rowsRead=" + getRowsRead()
+                + ", rowsAffected=" + getRowsAffected() + ", driver=" + getDriverNanos() / 1000
+                + "us, mapping=" + getMappingNanos() / 1000 + "us: " + sql;
+    }
+
+}
@@ -27,9 +27,12 @@ import org.pojava.util.ReflectionTool;
 import org.pojava.util.StringTool;
 
 import javax.sql.DataSource;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.sql.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Logger;
 
 /**
@@ -40,13 +43,54 @@ import java.util.logging.Logger;
  * @author John Pile
  */
 public class TableMap<POJO> {
-    List<FieldMap<POJO, ?, ?>> keyFields = new ArrayList<FieldMap<POJO, ?, ?>>();
-    List<FieldMap<POJO, ?, ?>> nonKeyFields = new ArrayList<FieldMap<POJO, ?, ?>>();
-    Map<String, FieldMap<POJO, ?, ?>> allFields = new HashMap<String, FieldMap<POJO, ?, ?>>();
+
+    /**
+     * Field mappings, replaced as a whole rather than modified, so that a thread reading them
+     * never sees a mapping half changed by another.
+     */
+    private volatile FieldMapping<POJO> mapping = new FieldMapping<POJO>(
+            new ArrayList<FieldMap<POJO, ?, ?>>());
+
+    /**
+     * Incremented whenever the mapping changes, so that statements compiled from a mapping
+     * since replaced are not kept.
+     */
+    private int mappingVersion = 0;
+
     Class<POJO> javaClass = null;
     String tableName = null;
     String dataSourceName = null;
 
+    /**
+     * CRUD statements compiled from the current mapping, or null until next needed.
+     */
+    private volatile TableStatements<POJO> statements = null;
+
+    /**
+     * No-argument constructor of the bean class, or null until first needed.
+     */
+    private volatile Constructor<POJO> constructor = null;
+
+    /**
+     * Optional cache of beans by key, consulted by DaoTool.find.
+     */
+    private volatile EntityCache<POJO> entityCache = null;
+
+    /**
+     * Optional snapshots of the beans read and written, consulted by DaoTool.update.
+     */
+    private volatile DirtyTracker dirtyTracker = null;
+
+    /**
+     * Read plans by query shape, built from the current mapping.
+     */
+    private final Map<String, ReadPlan<POJO>> readPlans = new ConcurrentHashMap<String, ReadPlan<POJO>>();
+
+    /**
+     * Distinct query shapes remembered before the read plans are discarded.
+     */
+    private static final int MAX_READ_PLANS = 32;
+
     Logger logger = Logger.getLogger("persistence.TableMap");
 
     /**
@@ -168,15 +212,15 @@ public class TableMap<POJO> {
     }
 
     public List<FieldMap<POJO, ?, ?>> getKeyFields() {
-        return keyFields;
+        return mapping.keyFields;
     }
 
     public List<FieldMap<POJO, ?, ?>> getNonKeyFields() {
-        return nonKeyFields;
+        return mapping.nonKeyFields;
     }
 
     public Map<String, FieldMap<POJO, ?, ?>> getAllFields() {
-        return allFields;
+        return mapping.allFields;
     }
 
     /**
@@ -193,12 +237,248 @@ public class TableMap<POJO> {
             field.setSetters(ReflectionTool.setterMethodDrilldown(field.getGetters()));
         }
         field.setTableMap(this);
-        this.allFields.put(field.getProperty(), field);
-        if (field.isKeyField()) {
-            this.keyFields.add(field);
-        } else {
-            this.nonKeyFields.add(field);
+        synchronized (this) {
+            List<FieldMap<POJO, ?, ?>> fields = new ArrayList<FieldMap<POJO, ?, ?>>(
+                    mapping.fields);
+            fields.add(field);
+            this.mapping = new FieldMapping<POJO>(fields);
+        }
+        invalidateStatements();
+    }
+
+    /**
+     * Replace the field mappings of this map with those of another map of the same bean, such
+     * as one freshly built from the database.
+     *
+     * @param source map whose fields are adopted
+     */
+    void replaceFieldMaps(TableMap<POJO> source) {
+        List<FieldMap<POJO, ?, ?>> fields = new ArrayList<FieldMap<POJO, ?, ?>>(source
+                .getAllFields().values());
+        for (Iterator<FieldMap<POJO, ?, ?>> it = fields.iterator(); it.hasNext(); ) {
+            it.next().setTableMap(this);
+        }
+        synchronized (this) {
+            this.mapping = new FieldMapping<POJO>(fields);
+        }
+        invalidateStatements();
+    }
+
+    /**
+     * Discard the compiled statements so they are rebuilt from the current mapping.
+     */
+    public void invalidateStatements() {
+        synchronized (this) {
+            mappingVersion++;
+            this.statements = null;
+        }
+        this.readPlans.clear();
+        EntityCache<POJO> cache = this.entityCache;
+        if (cache != null) {
+            cache.invalidateAll();
+        }
+        if (this.dirtyTracker != null) {
+            this.dirtyTracker = new DirtyTracker();
+        }
+    }
+
+    /**
+     * Cache beans of this map by their key fields, so that DaoTool.find can answer repeated
+     * lookups without querying the database. Any existing cache is replaced.
+     *
+     * @param maxEntries maximum number of beans held
+     * @param ttlMillis  milliseconds a bean may be held, or 0 to hold until evicted
+     * @return the new cache
+     */
+    public EntityCache<POJO> enableEntityCache(int maxEntries, long ttlMillis) {
+        EntityCache<POJO> cache = new EntityCache<POJO>(this, maxEntries, ttlMillis);
+        this.entityCache = cache;
+        return cache;
+    }
+
+    /**
+     * Copy the mapped properties of a bean into a new instance, so that a cached bean can be
+     * handed out without exposing it to modification. Mutable values (arrays and dates) are
+     * copied as well.
+     *
+     * @param bean bean to copy
+     * @return new bean with the same mapped property values
+     */
+    POJO copy(POJO bean) {
+        POJO copy = newBean();
+        FieldMap<POJO, ?, ?>[] fields = statements().allFields;
+        for (int i = 0; i < fields.length; i++) {
+            PropertyAccessor accessor = fields[i].accessor();
+            if (accessor != null && accessor.isWritable()) {
+                accessor.set(copy, DirtyTracker.copyOf(accessor.get(bean)));
+            }
+        }
+        return copy;
+    }
+
+    /**
+     * Stop caching beans of this map.
+     */
+    public void disableEntityCache() {
+        this.entityCache = null;
+    }
+
+    /**
+     * @return cache of beans by key, or null if caching is not enabled
+     */
+    public EntityCache<POJO> getEntityCache() {
+        return entityCache;
+    }
+
+    /**
+     * Record the column values of each bean read or written through this map, so that
+     * DaoTool.update can send only the columns changed since, or skip a bean with no changes.
+     * This costs a copy of the column values per bean, held until the bean is collected.
+     */
+    public void enableDirtyTracking() {
+        if (this.dirtyTracker == null) {
+            this.dirtyTracker = new DirtyTracker();
+        }
+    }
+
+    /**
+     * Stop recording the column values of beans, discarding those recorded.
+     */
+    public void disableDirtyTracking() {
+        this.dirtyTracker = null;
+    }
+
+    /**
+     * @return true if the column values of beans are recorded
+     */
+    public boolean isDirtyTracking() {
+        return dirtyTracker != null;
+    }
+
+    /**
+     * Record the current column values of a bean as those held by the database, if dirty
+     * tracking is enabled.
+     *
+     * @param bean bean just read or written
+     */
+    public void markClean(POJO bean) {
+        DirtyTracker tracker = this.dirtyTracker;
+        if (tracker != null && bean != null) {
+            Object[] values = new Object[statements().allFields.length];
+            outboundValues(bean, values);
+            tracker.put(bean, values);
+        }
+    }
+
+    /**
+     * Forget the column values recorded for a bean, as when its row is deleted or written by
+     * other means, so that its next update sends every field.
+     *
+     * @param bean bean whose row may no longer hold the values recorded
+     */
+    public void markDirty(POJO bean) {
+        DirtyTracker tracker = this.dirtyTracker;
+        if (tracker != null && bean != null) {
+            tracker.remove(bean);
+        }
+    }
+
+    /**
+     * Forget the column values recorded for every bean of this map, as when rows are deleted
+     * by query or a transaction that wrote them is rolled back.
+     */
+    public void markAllDirty() {
+        DirtyTracker tracker = this.dirtyTracker;
+        if (tracker != null) {
+            tracker.clear();
+        }
+    }
+
+    /**
+     * Compare the column values of a bean with those recorded when it was last read or
+     * written.
+     *
+     * @param bean bean to compare
+     * @return positions in getNonKeyFields of the fields changed, empty if none, or null if the
+     *         bean is not tracked or its key has changed
+     */
+    public BitSet changedFields(POJO bean) {
+        DirtyTracker tracker = this.dirtyTracker;
+        Object[] recorded = tracker == null ? null : tracker.get(bean);
+        TableStatements<POJO> compiled = statements();
+        if (recorded == null || recorded.length != compiled.allFields.length) {
+            return null;
+        }
+        Object[] current = new Object[recorded.length];
+        outboundValues(bean, current);
+        for (int i = 0; i < compiled.keyPositions.length; i++) {
+            int position = compiled.keyPositions[i];
+            if (!DirtyTracker.isSame(recorded[position], current[position])) {
+                return null;
+            }
+        }
+        BitSet changed = new BitSet(compiled.nonKeyPositions.length);
+        for (int i = 0; i < compiled.nonKeyPositions.length; i++) {
+            int position = compiled.nonKeyPositions[i];
+            if (!DirtyTracker.isSame(recorded[position], current[position])) {
+                changed.set(i);
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Return the plan for reading beans from a ResultSet of this shape, building it if this
+     * shape has not been seen before.
+     *
+     * @param rsMeta metadata of the ResultSet to read
+     * @return ReadPlan matching the ResultSet's columns to this map's fields
+     * @throws java.sql.SQLException
+     */
+    public ReadPlan<POJO> readPlan(ResultSetMetaData rsMeta) throws SQLException {
+        int cols = rsMeta.getColumnCount();
+        StringBuffer shape = new StringBuffer();
+        for (int column = 1; column <= cols; column++) {
+            shape.append(rsMeta.getColumnLabel(column));
+            shape.append(':');
+            shape.append(rsMeta.getColumnType(column));
+            shape.append(',');
+        }
+        String key = shape.toString();
+        ReadPlan<POJO> plan = readPlans.get(key);
+        if (plan == null) {
+            plan = new ReadPlan<POJO>(this, rsMeta);
+            if (readPlans.size() >= MAX_READ_PLANS) {
+                readPlans.clear();
+            }
+            readPlans.put(key, plan);
         }
+        return plan;
+    }
+
+    /**
+     * Return the CRUD statements compiled from the current mapping, compiling them if needed.
+     *
+     * @return compiled statements
+     */
+    TableStatements<POJO> statements() {
+        TableStatements<POJO> compiled = this.statements;
+        if (compiled == null) {
+            FieldMapping<POJO> fields;
+            int version;
+            synchronized (this) {
+                fields = this.mapping;
+                version = this.mappingVersion;
+            }
+            compiled = new TableStatements<POJO>(this, fields);
+            synchronized (this) {
+                // Keep the statements only if the mapping did not change while compiling.
+                if (version == this.mappingVersion) {
+                    this.statements = compiled;
+                }
+            }
+        }
+        return compiled;
     }
 
     /**
@@ -229,26 +509,9 @@ public class TableMap<POJO> {
         addFieldMap(new FieldMap<POJO, Object, Object>(property, fieldName, isKeyField, adaptor, this));
     }
 
-    /**
-     * Return comma-separated list of all fields.
-     *
-     * @return A CSV of all field names
-     */
-    private String csvAllFields() {
-        StringBuffer sb = new StringBuffer();
-        for (Iterator<FieldMap<POJO, ?, ?>> it = this.allFields.values().iterator(); it
-                .hasNext(); ) {
-            FieldMap<POJO, ?, ?> fieldMap = it.next();
-            sb.append(fieldMap.getColumnName());
-            sb.append(", ");
-        }
-        sb.setLength(Math.max(0, sb.length() - 2));
-        return sb.toString();
-    }
-
     /**
      * Invoke a field's getter for the given bean. Recycle the getter methods where possible to
-     * speed up future calls.
+     * speed up future calls, using the field's compiled accessor once the getters are known.
      *
      * @param field FieldMap describing a field to extract from a POJO
      * @param bean The POJO from which field is accessed
@@ -266,78 +529,582 @@ public class TableMap<POJO> {
                         .getProperty());
                 field.setGetters(getters);
             }
-            propertyObj = ReflectionTool.getNestedValue(field.getGetters(), bean);
+            propertyObj = field.getPropertyValue(bean);
         }
         return propertyObj;
     }
 
     /**
-     * Form a SELECT statement for this map.
+     * Read the value of each field in the order given.
      *
-     * @return SQL select statement
+     * @param fields fields to read
+     * @param bean The POJO from which fields are accessed
+     * @param bindings array to fill
+     * @param offset position of the first binding in the array
+     * @param outbound true to transform values with the field's adaptor
+     * @return false if a key field value was null
      */
-    public BoundString sqlSelect() {
-        BoundString bs = new BoundString();
-        if (this.keyFields.isEmpty()) {
+    @SuppressWarnings("unchecked")
+    private boolean bindFields(FieldMap<POJO, ?, ?>[] fields, POJO bean,
+                               UncheckedBinding[] bindings, int offset, boolean outbound) {
+        try {
+            for (int i = 0; i < fields.length; i++) {
+                FieldMap<POJO, ?, ?> field = fields[i];
+                Object propertyObj = getFieldValue(field, bean);
+                if (outbound) {
+                    bindings[offset + i] = field.getAdaptor().outbound(
+                            new Binding(field.getPropertyClass(), propertyObj));
+                } else if (propertyObj == null) {
+                    return false;
+                } else {
+                    bindings[offset + i] = new UncheckedBinding(field.getPropertyClass(),
+                            propertyObj);
+                }
+            }
+        } catch (NoSuchMethodException ex) {
+            throw new PersistenceException("Bad FieldMap mapping somehow squeaked through. "
+                    + ex.getMessage(), ex);
+        }
+        return true;
+    }
+
+    /**
+     * Bind the value of each field in the order given directly to a statement.
+     *
+     * @param fields fields to bind
+     * @param bean The POJO from which fields are accessed
+     * @param pstmt statement to bind
+     * @param offset number of placeholders preceding the first field
+     * @param outbound true to transform values as the field's adaptor would
+     * @return false if a key field value was null
+     */
+    private boolean bindFields(FieldMap<POJO, ?, ?>[] fields, POJO bean,
+                               PreparedStatement pstmt, int offset, boolean outbound)
+            throws SQLException {
+        try {
+            for (int i = 0; i < fields.length; i++) {
+                FieldMap<POJO, ?, ?> field = fields[i];
+                Object propertyObj = getFieldValue(field, bean);
+                if (outbound) {
+                    field.getBinder().bind(pstmt, offset + i + 1, propertyObj);
+                } else if (propertyObj == null) {
+                    return false;
+                } else {
+                    ParameterBinder.forClass(field.getPropertyClass()).bind(pstmt,
+                            offset + i + 1, propertyObj);
+                }
+            }
+        } catch (NoSuchMethodException ex) {
+            throw new PersistenceException("Bad FieldMap mapping somehow squeaked through. "
+                    + ex.getMessage(), ex);
+        }
+        return true;
+    }
+
+    /**
+     * Fail if no key fields are defined.
+     */
+    private void requireKeyFields(TableStatements<POJO> compiled) {
+        if (compiled.keyFields.length == 0) {
             throw new IllegalStateException("At least one key field must be defined for table "
                     + this.getTableName());
         }
-        bs.append("SELECT ");
-        bs.append(csvAllFields());
-        bs.append(" FROM ");
-        bs.append(this.tableName);
+    }
+
+    /**
+     * Form a BoundString from compiled SQL and its bindings.
+     */
+    private static BoundString boundString(String sql, UncheckedBinding[] bindings) {
+        BoundString bs = new BoundString(sql);
+        for (int i = 0; i < bindings.length; i++) {
+            bs.addBinding(bindings[i]);
+        }
         return bs;
     }
 
     /**
-     * Form a SELECT statement for this map filtered by key fields to a single object.
+     * Compiled SELECT of all mapped columns, without a WHERE clause.
      *
      * @return SQL select statement
      */
-    public BoundString sqlSelect(POJO bean) {
-        BoundString bs = new BoundString();
-        if (this.keyFields.isEmpty()) {
-            throw new IllegalStateException("At least one key field must be defined for table "
-                    + this.getTableName());
+    public String getSelectSql() {
+        TableStatements<POJO> compiled = statements();
+        requireKeyFields(compiled);
+        return compiled.select;
+    }
+
+    /**
+     * Compiled SELECT of all mapped columns, filtered by key fields. Bind it with keyBindings.
+     *
+     * @return SQL select statement
+     */
+    public String getSelectByKeySql() {
+        TableStatements<POJO> compiled = statements();
+        requireKeyFields(compiled);
+        return compiled.selectByKey;
+    }
+
+    /**
+     * Compiled INSERT of all mapped columns. Bind it with insertBindings.
+     *
+     * @return SQL insert statement
+     */
+    public String getInsertSql() {
+        return statements().insert;
+    }
+
+    /**
+     * Compiled INSERT of all mapped columns for several rows in a single VALUES clause. Bind it
+     * with the insertBindings of each row in turn.
+     *
+     * @param rows number of rows inserted by the statement
+     * @return SQL insert statement
+     */
+    public String getInsertSql(int rows) {
+        return statements().insert(rows);
+    }
+
+    /**
+     * Compiled UPDATE of the non-key columns, filtered by key fields. Bind it with
+     * updateBindings.
+     *
+     * @return SQL update statement
+     */
+    public String getUpdateSql() {
+        TableStatements<POJO> compiled = statements();
+        requireKeyFields(compiled);
+        return compiled.update;
+    }
+
+    /**
+     * Compiled DELETE filtered by key fields. Bind it with keyBindings.
+     *
+     * @return SQL delete statement
+     */
+    public String getDeleteSql() {
+        TableStatements<POJO> compiled = statements();
+        requireKeyFields(compiled);
+        return compiled.delete;
+    }
+
+    /**
+     * Bind values of all fields in the column order of getInsertSql.
+     *
+     * @param bean
+     * @return bindings for an insert
+     */
+    public UncheckedBinding[] insertBindings(POJO bean) {
+        TableStatements<POJO> compiled = statements();
+        UncheckedBinding[] bindings = new UncheckedBinding[compiled.allFields.length];
+        bindFields(compiled.allFields, bean, bindings, 0, true);
+        return bindings;
+    }
+
+    /**
+     * Bind values of the non-key fields followed by the key fields, as used by getUpdateSql.
+     *
+     * @param bean
+     * @return bindings for an update, or null if a key field is null
+     */
+    public UncheckedBinding[] updateBindings(POJO bean) {
+        TableStatements<POJO> compiled = statements();
+        requireKeyFields(compiled);
+        int nonKeys = compiled.nonKeyFields.length;
+        UncheckedBinding[] bindings = new UncheckedBinding[nonKeys + compiled.keyFields.length];
+        if (!bindFields(compiled.keyFields, bean, bindings, nonKeys, false)) {
+            return null;
         }
-        bs.append("SELECT ");
-        bs.append(csvAllFields());
-        bs.append(" FROM ");
-        bs.append(this.tableName);
-        bs.append(this.whereKeyFieldsMatch(bean));
-        return bs;
+        bindFields(compiled.nonKeyFields, bean, bindings, 0, true);
+        return bindings;
     }
 
     /**
-     * Form an INSERT statement for this map.
+     * Bind values of the key fields, as used by getSelectByKeySql and getDeleteSql.
      *
      * @param bean
-     * @return SQL insert statement
+     * @return bindings for the key fields, or null if a key field is null
      */
-    public BoundString sqlInsert(POJO bean) {
-        BoundString bs = new BoundString();
-        bs.append("INSERT INTO ");
-        bs.append(this.tableName);
-        bs.append(" (");
-        bs.append(csvAllFields());
-        bs.append(") VALUES (");
+    public UncheckedBinding[] keyBindings(POJO bean) {
+        TableStatements<POJO> compiled = statements();
+        requireKeyFields(compiled);
+        UncheckedBinding[] bindings = new UncheckedBinding[compiled.keyFields.length];
+        if (!bindFields(compiled.keyFields, bean, bindings, 0, false)) {
+            return null;
+        }
+        return bindings;
+    }
+
+    /**
+     * Bind values of all fields to getInsertSql, or to one row of getInsertSql(rows).
+     *
+     * @param pstmt statement to bind
+     * @param bean
+     * @param offset number of placeholders preceding the row, zero for a single-row insert
+     * @throws SQLException
+     */
+    public void bindInsert(PreparedStatement pstmt, POJO bean, int offset) throws SQLException {
+        bindFields(statements().allFields, bean, pstmt, offset, true);
+    }
+
+    /**
+     * Compiled INSERT of the non-key fields, for a bean whose key the database generates.
+     *
+     * @return SQL insert statement, or null if every field is a key field
+     */
+    public String getInsertGeneratedSql() {
+        return statements().insertGenerated;
+    }
+
+    /**
+     * Show whether the database is expected to generate the key of a bean on insert, which is
+     * so when every key field is null and the map has non-key fields to insert.
+     *
+     * @param bean bean about to be inserted
+     * @return true to insert the bean by getInsertGeneratedSql
+     */
+    public boolean isKeyGenerated(POJO bean) {
+        TableStatements<POJO> compiled = statements();
+        if (compiled.keyFields.length == 0 || compiled.insertGenerated == null) {
+            return false;
+        }
         try {
-            for (Iterator<FieldMap<POJO, ?, ?>> it = this.allFields.values().iterator(); it
-                    .hasNext(); ) {
-                FieldMap<POJO, ?, ?> field = it.next();
-                bs.append("?, ");
-                bs.getBindings().add(
-                        field.getAdaptor().outbound(
-                                new Binding(field.getPropertyClass(),
-                                        getFieldValue(field, bean))));
+            for (int i = 0; i < compiled.keyFields.length; i++) {
+                if (getFieldValue(compiled.keyFields[i], bean) != null) {
+                    return false;
+                }
             }
         } catch (NoSuchMethodException ex) {
             throw new PersistenceException("Bad FieldMap mapping somehow squeaked through. "
                     + ex.getMessage(), ex);
         }
-        bs.chop(2);
-        bs.append(")");
-        return bs;
+        return true;
+    }
+
+    /**
+     * Bind values of the non-key fields to getInsertGeneratedSql.
+     *
+     * @param pstmt statement to bind
+     * @param bean
+     * @throws SQLException
+     */
+    public void bindInsertGenerated(PreparedStatement pstmt, POJO bean) throws SQLException {
+        bindFields(statements().nonKeyFields, bean, pstmt, 0, true);
+    }
+
+    /**
+     * Copy the keys reported by Statement.getGeneratedKeys into the key fields of the beans
+     * inserted, one row per bean, in order. Key columns are found by name, or by position if
+     * the map has a single key and the driver names the column otherwise.
+     *
+     * @param rs    generated keys of an insert
+     * @param beans beans inserted, in the order inserted
+     * @return number of beans given keys, which is fewer than inserted if the driver reported
+     *         fewer keys
+     * @throws SQLException
+     */
+    public int readGeneratedKeys(ResultSet rs, List<POJO> beans) throws SQLException {
+        FieldMap<POJO, ?, ?>[] keys = statements().keyFields;
+        ResultSetMetaData rsMeta = rs.getMetaData();
+        int[] columns = new int[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            for (int column = rsMeta.getColumnCount(); column > 0; column--) {
+                if (keys[i].getColumnName().equalsIgnoreCase(rsMeta.getColumnLabel(column))) {
+                    columns[i] = column;
+                }
+            }
+            if (columns[i] == 0) {
+                if (keys.length > 1 || rsMeta.getColumnCount() == 0) {
+                    return 0;
+                }
+                columns[i] = 1;
+            }
+        }
+        int read = 0;
+        while (read < beans.size() && rs.next()) {
+            POJO bean = beans.get(read++);
+            for (int i = 0; i < keys.length; i++) {
+                keys[i].setPropertyValue(rs, columns[i], bean);
+            }
+        }
+        return read;
+    }
+
+    /**
+     * Compiled single-statement insert that updates the existing row when the key is already
+     * present. Bind it with bindUpsert. The key fields must form a primary key or unique
+     * constraint.
+     *
+     * @param metadata metadata describing the platform
+     * @return SQL upsert statement, or null if the platform has no single-statement upsert
+     */
+    public String getUpsertSql(DataSourceMetadata metadata) {
+        return upsertSql(metadata, true);
+    }
+
+    /**
+     * Compiled single-statement insert that leaves the existing row alone when the key is
+     * already present. Bind it with bindInsertIfAbsent.
+     *
+     * @param metadata metadata describing the platform
+     * @return SQL insert statement, or null if the platform has no such statement that reports
+     *         whether the row was inserted
+     */
+    public String getInsertIfAbsentSql(DataSourceMetadata metadata) {
+        return upsertSql(metadata, false);
+    }
+
+    private String upsertSql(DataSourceMetadata metadata, boolean update) {
+        String style = metadata == null ? null : metadata.upsertStyle();
+        TableStatements<POJO> compiled = statements();
+        if (style == null || compiled.keyFields.length == 0) {
+            return null;
+        }
+        if (!update && DataSourceMetadata.UPSERT_ON_DUPLICATE_KEY.equals(style)) {
+            // MySQL counts a duplicate left alone as a found row, and INSERT IGNORE would
+            // also ignore errors other than the duplicate key.
+            return null;
+        }
+        return compiled.upsert(style, update).sql;
+    }
+
+    /**
+     * Bind values of a bean to getUpsertSql, which cannot match a null key.
+     *
+     * @param pstmt    statement to bind
+     * @param bean
+     * @param metadata metadata describing the platform
+     * @return false, leaving the statement partly bound, if a key field is null
+     * @throws SQLException
+     */
+    public boolean bindUpsert(PreparedStatement pstmt, POJO bean, DataSourceMetadata metadata)
+            throws SQLException {
+        return bindUpsert(pstmt, bean, metadata, true);
+    }
+
+    /**
+     * Bind values of a bean to getInsertIfAbsentSql, which cannot match a null key.
+     *
+     * @param pstmt    statement to bind
+     * @param bean
+     * @param metadata metadata describing the platform
+     * @return false, leaving the statement partly bound, if a key field is null
+     * @throws SQLException
+     */
+    public boolean bindInsertIfAbsent(PreparedStatement pstmt, POJO bean,
+                                      DataSourceMetadata metadata) throws SQLException {
+        return bindUpsert(pstmt, bean, metadata, false);
+    }
+
+    private boolean bindUpsert(PreparedStatement pstmt, POJO bean, DataSourceMetadata metadata,
+                               boolean update) throws SQLException {
+        FieldMap<POJO, ?, ?>[] fields = statements().upsert(metadata.upsertStyle(), update).fields;
+        try {
+            for (int i = 0; i < fields.length; i++) {
+                Object propertyObj = getFieldValue(fields[i], bean);
+                if (propertyObj == null && fields[i].isKeyField()) {
+                    return false;
+                }
+                fields[i].getBinder().bind(pstmt, i + 1, propertyObj);
+            }
+        } catch (NoSuchMethodException ex) {
+            throw new PersistenceException("Bad FieldMap mapping somehow squeaked through. "
+                    + ex.getMessage(), ex);
+        }
+        return true;
+    }
+
+    /**
+     * Read the values of all fields in the column order of getInsertSql, as they are sent to the
+     * database after the transformation of each field's adaptor.
+     *
+     * @param bean
+     * @param values array to fill, at least as long as the number of fields
+     */
+    public void outboundValues(POJO bean, Object[] values) {
+        FieldMap<POJO, ?, ?>[] fields = statements().allFields;
+        try {
+            for (int i = 0; i < fields.length; i++) {
+                values[i] = fields[i].getBinder().outboundValue(getFieldValue(fields[i], bean));
+            }
+        } catch (NoSuchMethodException ex) {
+            throw new PersistenceException("Bad FieldMap mapping somehow squeaked through. "
+                    + ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Bind values of the non-key fields followed by the key fields to getUpdateSql.
+     *
+     * @param pstmt statement to bind
+     * @param bean
+     * @return false, leaving the statement partly bound, if a key field is null
+     * @throws SQLException
+     */
+    public boolean bindUpdate(PreparedStatement pstmt, POJO bean) throws SQLException {
+        TableStatements<POJO> compiled = statements();
+        requireKeyFields(compiled);
+        int nonKeys = compiled.nonKeyFields.length;
+        if (!bindFields(compiled.keyFields, bean, pstmt, nonKeys, false)) {
+            return false;
+        }
+        bindFields(compiled.nonKeyFields, bean, pstmt, 0, true);
+        return true;
+    }
+
+    /**
+     * Compiled UPDATE of some of the non-key fields, selected by key. The statement for each
+     * combination of fields is compiled once and reused.
+     *
+     * @param changed positions in getNonKeyFields of the fields to update, as given by
+     *                changedFields, at least one
+     * @return SQL update statement
+     */
+    public String getUpdateSql(BitSet changed) {
+        TableStatements<POJO> compiled = statements();
+        if (changed.cardinality() == compiled.nonKeyFields.length) {
+            return compiled.update;
+        }
+        return compiled.update(changed).sql;
+    }
+
+    /**
+     * Bind values of the given non-key fields followed by the key fields to getUpdateSql.
+     *
+     * @param pstmt   statement to bind
+     * @param bean
+     * @param changed positions in getNonKeyFields of the fields updated
+     * @return false, leaving the statement partly bound, if a key field is null
+     * @throws SQLException
+     */
+    public boolean bindUpdate(PreparedStatement pstmt, POJO bean, BitSet changed)
+            throws SQLException {
+        TableStatements<POJO> compiled = statements();
+        if (changed.cardinality() == compiled.nonKeyFields.length) {
+            return bindUpdate(pstmt, bean);
+        }
+        requireKeyFields(compiled);
+        FieldMap<POJO, ?, ?>[] fields = compiled.update(changed).fields;
+        if (!bindFields(compiled.keyFields, bean, pstmt, fields.length, false)) {
+            return false;
+        }
+        bindFields(fields, bean, pstmt, 0, true);
+        return true;
+    }
+
+    /**
+     * Bind values of the key fields to getSelectByKeySql or getDeleteSql.
+     *
+     * @param pstmt statement to bind
+     * @param bean
+     * @return false, leaving the statement partly bound, if a key field is null
+     * @throws SQLException
+     */
+    public boolean bindKeys(PreparedStatement pstmt, POJO bean) throws SQLException {
+        TableStatements<POJO> compiled = statements();
+        requireKeyFields(compiled);
+        return bindFields(compiled.keyFields, bean, pstmt, 0, false);
+    }
+
+    /**
+     * Choose how many keys the next multi-key SELECT should match, from a few fixed sizes so
+     * that lookups of any number of keys share a few compiled statements.
+     *
+     * @param remaining keys still to look up
+     * @return number of keys for getSelectByKeysSql, possibly more than remaining
+     */
+    public int keyBucket(int remaining) {
+        return TableStatements.keyBucket(remaining);
+    }
+
+    /**
+     * Compiled SELECT of all columns matching any of several keys. Bind it with bindKeyValues.
+     *
+     * @param keys number of keys matched, as given by keyBucket
+     * @return SQL select statement
+     */
+    public String getSelectByKeysSql(int keys) {
+        TableStatements<POJO> compiled = statements();
+        requireKeyFields(compiled);
+        return compiled.selectByKeys(keys);
+    }
+
+    /**
+     * Read the values of the key fields of a bean.
+     *
+     * @param bean
+     * @return values in the order of getKeyFields, or null if any is null
+     */
+    public Object[] keyValues(POJO bean) {
+        FieldMap<POJO, ?, ?>[] fields = statements().keyFields;
+        Object[] values = new Object[fields.length];
+        try {
+            for (int i = 0; i < fields.length; i++) {
+                values[i] = getFieldValue(fields[i], bean);
+                if (values[i] == null) {
+                    return null;
+                }
+            }
+        } catch (NoSuchMethodException ex) {
+            throw new PersistenceException("Bad FieldMap mapping somehow squeaked through. "
+                    + ex.getMessage(), ex);
+        }
+        return values;
+    }
+
+    /**
+     * Bind keys to getSelectByKeysSql, repeating the last key to fill the statement if there
+     * are fewer keys than it matches.
+     *
+     * @param pstmt statement to bind
+     * @param keys  values of the key fields of each key, as given by keyValues
+     * @param size  number of keys the statement matches
+     * @throws SQLException
+     */
+    public void bindKeyValues(PreparedStatement pstmt, List<Object[]> keys, int size)
+            throws SQLException {
+        FieldMap<POJO, ?, ?>[] fields = statements().keyFields;
+        int position = 1;
+        for (int i = 0; i < size; i++) {
+            Object[] values = keys.get(Math.min(i, keys.size() - 1));
+            for (int k = 0; k < fields.length; k++) {
+                ParameterBinder.forClass(fields[k].getPropertyClass()).bind(pstmt, position++,
+                        values[k]);
+            }
+        }
+    }
+
+    /**
+     * Form a SELECT statement for this map.
+     *
+     * @return SQL select statement
+     */
+    public BoundString sqlSelect() {
+        return new BoundString(getSelectSql());
+    }
+
+    /**
+     * Form a SELECT statement for this map filtered by key fields to a single object.
+     *
+     * @return SQL select statement
+     */
+    public BoundString sqlSelect(POJO bean) {
+        UncheckedBinding[] bindings = keyBindings(bean);
+        if (bindings == null) {
+            BoundString bs = new BoundString(statements().select);
+            bs.append(this.whereKeyFieldsMatch(bean));
+            return bs;
+        }
+        return boundString(statements().selectByKey, bindings);
+    }
+
+    /**
+     * Form an INSERT statement for this map.
+     *
+     * @param bean
+     * @return SQL insert statement
+     */
+    public BoundString sqlInsert(POJO bean) {
+        return boundString(getInsertSql(), insertBindings(bean));
     }
 
     /**
@@ -347,38 +1114,22 @@ public class TableMap<POJO> {
      * @return SQL update statement
      */
     public BoundString sqlUpdate(POJO bean) {
+        TableStatements<POJO> compiled = statements();
+        UncheckedBinding[] bindings = updateBindings(bean);
+        if (bindings != null) {
+            return boundString(compiled.update, bindings);
+        }
         BoundString bs = new BoundString();
         bs.append("UPDATE ");
         bs.append(this.tableName);
         bs.append(" SET ");
-        for (Iterator<FieldMap<POJO, ?, ?>> it = this.nonKeyFields.iterator(); it.hasNext(); ) {
-            FieldMap<POJO, ?, ?> field = it.next();
-            Method[] getters = field.getGetters();
-            Object propertyObj = null;
-            bs.append(field.getColumnName());
-            bs.append("=?, ");
-            if (getters == null) {
-                if (field.getProperty().indexOf('[') >= 0) {
-                    propertyObj = ReflectionTool.getNestedValue(field.getProperty(), bean);
-                } else {
-                    try {
-                        getters = ReflectionTool.getterMethodDrilldown(bean.getClass(), field
-                                .getProperty());
-                    } catch (NoSuchMethodException ex) {
-                        throw new PersistenceException(
-                                "Bad FieldMap mapping somehow squeaked through. "
-                                        + ex.getMessage(), ex);
-                    }
-                    field.setGetters(getters);
-                    propertyObj = ReflectionTool.getNestedValue(field.getGetters(), bean);
-                }
-            } else {
-                propertyObj = ReflectionTool.getNestedValue(field.getGetters(), bean);
-            }
-            bs.addBinding(field.getAdaptor().outbound(
-                    new Binding(field.getPropertyClass(), propertyObj)));
+        bindings = new UncheckedBinding[compiled.nonKeyFields.length];
+        bindFields(compiled.nonKeyFields, bean, bindings, 0, true);
+        for (int i = 0; i < bindings.length; i++) {
+            bs.append(compiled.nonKeyFields[i].getColumnName());
+            bs.append(i == bindings.length - 1 ? "=?" : "=?, ");
+            bs.addBinding(bindings[i]);
         }
-        bs.chop(2);
         bs.append(whereKeyFieldsMatch(bean));
         return bs;
     }
@@ -390,11 +1141,15 @@ public class TableMap<POJO> {
      * @return SQL delete statement
      */
     public BoundString sqlDelete(POJO bean) {
-        BoundString bs = new BoundString();
-        bs.append("DELETE FROM ");
-        bs.append(this.tableName);
-        bs.append(whereKeyFieldsMatch(bean));
-        return bs;
+        UncheckedBinding[] bindings = keyBindings(bean);
+        if (bindings == null) {
+            BoundString bs = new BoundString();
+            bs.append("DELETE FROM ");
+            bs.append(this.tableName);
+            bs.append(whereKeyFieldsMatch(bean));
+            return bs;
+        }
+        return boundString(statements().delete, bindings);
     }
 
     /**
@@ -406,14 +1161,14 @@ public class TableMap<POJO> {
     public BoundString whereKeyFieldsMatch(POJO bean) {
         BoundString bs = new BoundString();
         bs.append(" WHERE ");
-        for (Iterator<FieldMap<POJO, ?, ?>> it = this.keyFields.iterator(); it.hasNext(); ) {
+        for (Iterator<FieldMap<POJO, ?, ?>> it = getKeyFields().iterator(); it.hasNext(); ) {
             FieldMap<POJO, ?, ?> field = it.next();
             bs.append(field.getColumnName());
             Object propertyObj = null;
             if (field.getGetters() == null) {
                 propertyObj = ReflectionTool.getNestedValue(field.getProperty(), bean);
             } else {
-                propertyObj = ReflectionTool.getNestedValue(field.getGetters(), bean);
+                propertyObj = field.getPropertyValue(bean);
             }
             if (propertyObj == null) {
                 bs.append(" IS NULL AND ");
@@ -429,36 +1184,20 @@ public class TableMap<POJO> {
     }
 
     /**
-     * Extract an Object specific to this TableMap
+     * Extract an Object specific to this TableMap, reading columns in mapped order. When
+     * reading many rows, readPlan(rs.getMetaData()).read(rs) avoids this per-row overhead.
      *
      * @param rs ResultSet already advanced to next row.
      * @return bean extracted from a ResultSet row.
      */
     public POJO extractObject(ResultSet rs) {
-        POJO obj = null;
+        POJO obj = newBean();
         try {
-            obj = this.javaClass.newInstance();
-            int i = 0;
-            for (Iterator<FieldMap<POJO, ?, ?>> it = allFields.values().iterator(); it
-                    .hasNext(); ) {
-                i++;
-                FieldMap<POJO, ?, ?> fld = it.next();
-                fld.setPropertyValue(rs, i, obj);
+            FieldMap<POJO, ?, ?>[] fields = statements().allFields;
+            for (int i = 0; i < fields.length; i++) {
+                fields[i].setPropertyValue(rs, i + 1, obj);
             }
-        } catch (InstantiationException ex) {
-            StringBuffer sb = new StringBuffer();
-            sb.append("Cannot construct ");
-            sb.append(this.javaClass.getName());
-            sb.append(": ");
-            sb.append(ex.getMessage());
-            throw new PersistenceException(sb.toString(), ex);
-        } catch (IllegalAccessException ex) {
-            StringBuffer sb = new StringBuffer();
-            sb.append("Cannot construct ");
-            sb.append(this.javaClass.getName());
-            sb.append(": ");
-            sb.append(ex.getMessage());
-            throw new PersistenceException(sb.toString(), ex);
+            markClean(obj);
         } catch (SQLException ex) {
             StringBuffer sb = new StringBuffer();
             sb.append("SQL error while constructing ");
@@ -470,4 +1209,68 @@ public class TableMap<POJO> {
         return obj;
     }
 
+    /**
+     * Construct an empty bean through the no-argument constructor of the bean class.
+     *
+     * @return new bean
+     */
+    POJO newBean() {
+        Throwable failure;
+        try {
+            Constructor<POJO> ctor = this.constructor;
+            if (ctor == null || ctor.getDeclaringClass() != javaClass) {
+                ctor = javaClass.getDeclaredConstructor();
+                this.constructor = ctor;
+            }
+            return ctor.newInstance();
+        } catch (NoSuchMethodException ex) {
+            failure = ex;
+        } catch (InstantiationException ex) {
+            failure = ex;
+        } catch (IllegalAccessException ex) {
+            failure = ex;
+        } catch (InvocationTargetException ex) {
+            failure = ex.getCause();
+        }
+        throw new PersistenceException("Cannot construct " + javaClass.getName() + ": "
+                + failure.getMessage(), failure);
+    }
+
+    /**
+     * One version of the field mappings of a TableMap, never modified once built.
+     */
+    static final class FieldMapping<POJO> {
+
+        /**
+         * Fields in the order added, keys and non-keys alike.
+         */
+        final List<FieldMap<POJO, ?, ?>> fields;
+
+        final List<FieldMap<POJO, ?, ?>> keyFields;
+
+        final List<FieldMap<POJO, ?, ?>> nonKeyFields;
+
+        final Map<String, FieldMap<POJO, ?, ?>> allFields;
+
+        FieldMapping(List<FieldMap<POJO, ?, ?>> fields) {
+            List<FieldMap<POJO, ?, ?>> keys = new ArrayList<FieldMap<POJO, ?, ?>>();
+            List<FieldMap<POJO, ?, ?>> nonKeys = new ArrayList<FieldMap<POJO, ?, ?>>();
+            Map<String, FieldMap<POJO, ?, ?>> all =
+                    new LinkedHashMap<String, FieldMap<POJO, ?, ?>>();
+            for (Iterator<FieldMap<POJO, ?, ?>> it = fields.iterator(); it.hasNext(); ) {
+                FieldMap<POJO, ?, ?> field = it.next();
+                all.put(field.getProperty(), field);
+                if (field.isKeyField()) {
+                    keys.add(field);
+                } else {
+                    nonKeys.add(field);
+                }
+            }
+            this.fields = Collections.unmodifiableList(fields);
+            this.keyFields = Collections.unmodifiableList(keys);
+            this.nonKeyFields = Collections.unmodifiableList(nonKeys);
+            this.allFields = Collections.unmodifiableMap(all);
+        }
+    }
+
 }
@@ -0,0 +1,387 @@
+package org.pojava.persistence.sql;
+
+/*
+ Copyright 2008-14 John Pile
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+import org.pojava.exception.InitializationException;
+import org.pojava.transformation.BindingAdaptor;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * A TableMapSnapshot records the resolved mapping of each TableMap (its column names, property
+ * names, column classes, key flags and adaptor classes) so that the maps can be rebuilt at
+ * startup without querying the database. A map with an adaptor that cannot be rebuilt from
+ * its class name, lacking a public no-argument constructor, is left out of the snapshot.
+ * <p/>
+ * The snapshot is stored as UTF-8 text, one tab-separated line per map followed by one per
+ * column:
+ * <code>
+ * map	com.example.Widget	widget	appDs
+ * col	widget_id	widgetId	java.lang.Integer	true	org.pojava.persistence.adaptor.IntegerAdaptor
+ * </code>
+ *
+ * @author John Pile
+ */
+public class TableMapSnapshot {
+
+    private static final String HEADER = "# pojava TableMap snapshot 1";
+
+    private static final Logger logger = Logger.getLogger("persistence.TableMapSnapshot");
+
+    /**
+     * Primitive classes by name, which Class.forName does not resolve.
+     */
+    private static final Map<String, Class<?>> PRIMITIVES = new HashMap<String, Class<?>>();
+
+    static {
+        Class<?>[] primitives = {boolean.class, byte.class, char.class, short.class, int.class,
+                long.class, float.class, double.class};
+        for (int i = 0; i < primitives.length; i++) {
+            PRIMITIVES.put(primitives[i].getName(), primitives[i]);
+        }
+    }
+
+    private final List<Entry> entries;
+
+    private TableMapSnapshot(List<Entry> entries) {
+        this.entries = entries;
+    }
+
+    /**
+     * Record the mapping of each TableMap whose adaptors can be rebuilt.
+     *
+     * @param maps TableMaps to record
+     * @return snapshot of the maps
+     */
+    public static TableMapSnapshot capture(Collection<TableMap<?>> maps) {
+        List<Entry> entries = new ArrayList<Entry>(maps.size());
+        for (Iterator<TableMap<?>> it = maps.iterator(); it.hasNext(); ) {
+            TableMap<?> map = it.next();
+            if (isRestorable(map)) {
+                entries.add(new Entry(map));
+            } else {
+                logger.info("TableMapSnapshot cannot rebuild the adaptors of "
+                        + map.getJavaClass().getName() + " on " + map.getTableName()
+                        + "; leaving it out.");
+            }
+        }
+        return new TableMapSnapshot(entries);
+    }
+
+    /**
+     * Determine whether every adaptor of a TableMap can be rebuilt from its class name.
+     */
+    private static boolean isRestorable(TableMap<?> map) {
+        for (Iterator<? extends FieldMap<?, ?, ?>> it = map.getAllFields().values().iterator(); it
+                .hasNext(); ) {
+            BindingAdaptor<?, ?> adaptor = it.next().getAdaptor();
+            if (adaptor != null) {
+                Class<?> type = adaptor.getClass();
+                if (!Modifier.isPublic(type.getModifiers())) {
+                    return false;
+                }
+                try {
+                    type.getConstructor();
+                } catch (NoSuchMethodException ex) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Resolve a class by name, including the primitive classes.
+     */
+    private static Class<?> classFor(String name, ClassLoader loader)
+            throws ClassNotFoundException {
+        Class<?> primitive = PRIMITIVES.get(name);
+        return primitive != null ? primitive : Class.forName(name, true, loader);
+    }
+
+    /**
+     * Read a snapshot from a file.
+     *
+     * @param file snapshot file
+     * @return snapshot read
+     * @throws IOException if the file cannot be read or is not a snapshot
+     */
+    public static TableMapSnapshot load(File file) throws IOException {
+        List<Entry> entries = new ArrayList<Entry>();
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file),
+                "UTF-8"));
+        try {
+            String line = in.readLine();
+            if (!HEADER.equals(line)) {
+                throw new IOException(file + " is not a TableMap snapshot.");
+            }
+            Entry entry = null;
+            while ((line = in.readLine()) != null) {
+                String[] parts = line.split("\t");
+                if (parts.length == 4 && "map".equals(parts[0])) {
+                    entry = new Entry(parts[1], parts[2], parts[3]);
+                    entries.add(entry);
+                } else if ((parts.length == 5 || parts.length == 6) && "col".equals(parts[0])
+                        && entry != null) {
+                    entry.columns.add(new Column(parts[1], parts[2], parts[3], Boolean
+                            .valueOf(parts[4]).booleanValue(), parts.length == 6 ? parts[5]
+                            : null));
+                } else if (line.trim().length() > 0) {
+                    throw new IOException("Unrecognized line in " + file + ": " + line);
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return new TableMapSnapshot(entries);
+    }
+
+    /**
+     * Write this snapshot to a file, replacing it only once the new copy is complete.
+     *
+     * @param file snapshot file
+     * @throws IOException
+     */
+    public void save(File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(temp),
+                "UTF-8"));
+        try {
+            out.print(HEADER);
+            out.print('\n');
+            for (Iterator<Entry> it = entries.iterator(); it.hasNext(); ) {
+                it.next().write(out);
+            }
+        } finally {
+            out.close();
+        }
+        if (out.checkError()) {
+            throw new IOException("Failed to write " + temp);
+        }
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Cannot replace " + file);
+        }
+        if (!temp.renameTo(file)) {
+            throw new IOException("Cannot rename " + temp + " to " + file);
+        }
+    }
+
+    /**
+     * Rebuild the TableMaps recorded in this snapshot, without consulting the database. A
+     * column whose property no longer exists is skipped, as it would be by TableMap.autoBind.
+     *
+     * @return rebuilt TableMaps
+     */
+    public List<TableMap<?>> restore() {
+        List<TableMap<?>> maps = new ArrayList<TableMap<?>>(entries.size());
+        for (Iterator<Entry> it = entries.iterator(); it.hasNext(); ) {
+            maps.add(it.next().restore());
+        }
+        return maps;
+    }
+
+    /**
+     * @return number of TableMaps recorded
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Determine whether two TableMaps resolve to the same mapping.
+     *
+     * @param a first TableMap
+     * @param b second TableMap
+     * @return true if both have the same columns, properties, column classes and key flags
+     */
+    public static boolean sameMapping(TableMap<?> a, TableMap<?> b) {
+        return new Entry(a).equals(new Entry(b));
+    }
+
+    /**
+     * The recorded mapping of one TableMap.
+     */
+    private static final class Entry {
+
+        final String className;
+
+        final String tableName;
+
+        final String dataSourceName;
+
+        final List<Column> columns = new ArrayList<Column>();
+
+        Entry(String className, String tableName, String dataSourceName) {
+            this.className = className;
+            this.tableName = tableName;
+            this.dataSourceName = dataSourceName;
+        }
+
+        Entry(TableMap<?> map) {
+            this(map.getJavaClass().getName(), map.getTableName(), map.getDataSourceName());
+            for (Iterator<? extends FieldMap<?, ?, ?>> it = map.getAllFields().values()
+                    .iterator(); it.hasNext(); ) {
+                FieldMap<?, ?, ?> field = it.next();
+                Class<?> columnClass = field.getColumnClass();
+                BindingAdaptor<?, ?> adaptor = field.getAdaptor();
+                columns.add(new Column(field.getColumnName(), field.getProperty(),
+                        columnClass == null ? Object.class.getName() : columnClass.getName(),
+                        field.isKeyField(), adaptor == null ? null : adaptor.getClass()
+                        .getName()));
+            }
+        }
+
+        void write(PrintWriter out) {
+            out.print("map\t" + className + "\t" + tableName + "\t" + dataSourceName + "\n");
+            for (Iterator<Column> it = columns.iterator(); it.hasNext(); ) {
+                Column column = it.next();
+                out.print("col\t" + column.columnName + "\t" + column.property + "\t"
+                        + column.columnClassName + "\t" + column.key);
+                if (column.adaptorClassName != null) {
+                    out.print("\t" + column.adaptorClassName);
+                }
+                out.print('\n');
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        TableMap<?> restore() {
+            ClassLoader loader = Thread.currentThread().getContextClassLoader();
+            try {
+                Class<Object> javaClass = (Class<Object>) Class.forName(className, true, loader);
+                TableMap<Object> map = new TableMap<Object>(javaClass, tableName, dataSourceName);
+                for (Iterator<Column> it = columns.iterator(); it.hasNext(); ) {
+                    Column column = it.next();
+                    try {
+                        map.addFieldMap(column.restore(map, loader));
+                    } catch (NoSuchMethodException ex) {
+                        logger.info("TableMapSnapshot cannot find property to match fieldName="
+                                + column.columnName);
+                    }
+                }
+                return map;
+            } catch (ClassNotFoundException ex) {
+                throw new InitializationException("TableMap snapshot names a class not in "
+                        + "classpath: " + ex.getMessage(), ex);
+            }
+        }
+
+        public int hashCode() {
+            return className.hashCode() ^ tableName.hashCode() ^ columns.hashCode();
+        }
+
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Entry)) {
+                return false;
+            }
+            Entry other = (Entry) obj;
+            return className.equals(other.className) && tableName.equals(other.tableName)
+                    && dataSourceName.equals(other.dataSourceName)
+                    && columns.equals(other.columns);
+        }
+
+    }
+
+    /**
+     * The recorded mapping of one column.
+     */
+    private static final class Column {
+
+        final String columnName;
+
+        final String property;
+
+        final String columnClassName;
+
+        final boolean key;
+
+        /**
+         * Class of the field's adaptor, or null if it has none or it was not recorded.
+         */
+        final String adaptorClassName;
+
+        Column(String columnName, String property, String columnClassName, boolean key,
+               String adaptorClassName) {
+            this.columnName = columnName;
+            this.property = property;
+            this.columnClassName = columnClassName;
+            this.key = key;
+            this.adaptorClassName = adaptorClassName;
+        }
+
+        /**
+         * Rebuild the FieldMap of this column, with the adaptor recorded if it is not the one
+         * chosen by default.
+         */
+        @SuppressWarnings("unchecked")
+        FieldMap<Object, Object, Object> restore(TableMap<Object> map, ClassLoader loader)
+                throws ClassNotFoundException, NoSuchMethodException {
+            FieldMap<Object, Object, Object> field = new FieldMap<Object, Object, Object>(
+                    property, columnName, key, (Class<Object>) classFor(columnClassName, loader),
+                    map);
+            BindingAdaptor<Object, Object> adaptor = field.getAdaptor();
+            if (adaptorClassName == null || adaptor != null
+                    && adaptorClassName.equals(adaptor.getClass().getName())) {
+                return field;
+            }
+            try {
+                adaptor = (BindingAdaptor<Object, Object>) classFor(adaptorClassName, loader)
+                        .getConstructor().newInstance();
+            } catch (NoSuchMethodException ex) {
+                throw new InitializationException("TableMap snapshot names adaptor "
+                        + adaptorClassName + " without a public no-argument constructor.", ex);
+            } catch (Exception ex) {
+                throw new InitializationException("Cannot construct adaptor "
+                        + adaptorClassName + ": " + ex.getMessage(), ex);
+            }
+            return new FieldMap<Object, Object, Object>(property, columnName, key, adaptor, map);
+        }
+
+        public int hashCode() {
+            return columnName.hashCode() ^ property.hashCode();
+        }
+
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Column)) {
+                return false;
+            }
+            Column other = (Column) obj;
+            return key == other.key && columnName.equals(other.columnName)
+                    && property.equals(other.property)
+                    && columnClassName.equals(other.columnClassName)
+                    && (adaptorClassName == null ? other.adaptorClassName == null
+                    : adaptorClassName.equals(other.adaptorClassName));
+        }
+
+    }
+
+}
@@ -0,0 +1,467 @@
+package org.pojava.persistence.sql;
+
+/*
+ Copyright 2008-14 John Pile
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * TableStatements holds the CRUD statements of a TableMap, compiled once with a fixed column
+ * order. A TableMap discards its TableStatements whenever its mapping changes.
+ *
+ * @author John Pile
+ */
+final class TableStatements<POJO> {
+
+    /**
+     * All fields, in the column order of the SELECT and INSERT statements.
+     */
+    final FieldMap<POJO, ?, ?>[] allFields;
+
+    final FieldMap<POJO, ?, ?>[] keyFields;
+
+    final FieldMap<POJO, ?, ?>[] nonKeyFields;
+
+    /**
+     * Position in allFields of each key field and each non-key field.
+     */
+    final int[] keyPositions;
+
+    final int[] nonKeyPositions;
+
+    /**
+     * SELECT of all columns, without a WHERE clause.
+     */
+    final String select;
+
+    /**
+     * SELECT of all columns with a placeholder for each key field.
+     */
+    final String selectByKey;
+
+    final String insert;
+
+    /**
+     * INSERT of the non-key columns, leaving the database to generate the key, or null if
+     * every column is a key.
+     */
+    final String insertGenerated;
+
+    /**
+     * INSERT of all columns up to the VALUES keyword, shared by multi-row inserts.
+     */
+    private final String insertPrefix;
+
+    /**
+     * Placeholder list for one row of a multi-row insert.
+     */
+    private final String valuesRow;
+
+    /**
+     * Multi-row inserts by row count. Batches use at most two sizes: full and remainder.
+     */
+    private final Map<Integer, String> multiRowInserts = new ConcurrentHashMap<Integer, String>();
+
+    /**
+     * UPDATE binding each non-key field, then each key field.
+     */
+    final String update;
+
+    final String delete;
+
+    private final String tableName;
+
+    /**
+     * Number of keys matched by each multi-key SELECT, so that a lookup of any number of keys
+     * reuses a few statements, padding its last chunk to the next size up.
+     */
+    private static final int[] KEY_BUCKETS = {1, 4, 16, 64, 256};
+
+    /**
+     * Multi-key SELECTs by number of keys matched.
+     */
+    private final Map<Integer, String> selectsByKeys = new ConcurrentHashMap<Integer, String>();
+
+    /**
+     * UPDATEs of some of the non-key fields, by the set of positions in nonKeyFields updated.
+     */
+    private final Map<BitSet, FieldStatement<POJO>> partialUpdates =
+            new ConcurrentHashMap<BitSet, FieldStatement<POJO>>();
+
+    /**
+     * Partial updates are discarded when this many are held, as the combinations of columns
+     * changed are unbounded for a wide table.
+     */
+    private static final int MAX_PARTIAL_UPDATES = 64;
+
+    /**
+     * Upserts by syntax, and whether a matching row is updated or left alone.
+     */
+    private final Map<String, FieldStatement<POJO>> upserts =
+            new ConcurrentHashMap<String, FieldStatement<POJO>>();
+
+    /**
+     * Compile the statements for one version of the mapping of a TableMap.
+     *
+     * @param map     TableMap to compile
+     * @param mapping field mappings to compile
+     */
+    TableStatements(TableMap<POJO> map, TableMap.FieldMapping<POJO> mapping) {
+        this.allFields = toArray(mapping.allFields.values());
+        this.keyFields = toArray(mapping.keyFields);
+        this.nonKeyFields = toArray(mapping.nonKeyFields);
+        this.keyPositions = positions(keyFields);
+        this.nonKeyPositions = positions(nonKeyFields);
+        this.tableName = map.getTableName();
+        String where = whereKeys();
+
+        StringBuffer sb = new StringBuffer();
+        sb.append("SELECT ");
+        appendColumns(sb, allFields);
+        sb.append(" FROM ");
+        sb.append(tableName);
+        this.select = sb.toString().intern();
+        this.selectByKey = (select + where).intern();
+
+        sb.setLength(0);
+        sb.append("INSERT INTO ");
+        sb.append(tableName);
+        sb.append(" (");
+        appendColumns(sb, allFields);
+        sb.append(") VALUES ");
+        this.insertPrefix = sb.toString();
+        sb.setLength(0);
+        sb.append("(");
+        for (int i = 0; i < allFields.length; i++) {
+            sb.append(i == 0 ? "?" : ", ?");
+        }
+        sb.append(")");
+        this.valuesRow = sb.toString();
+        this.insert = (insertPrefix + valuesRow).intern();
+
+        if (nonKeyFields.length == 0) {
+            this.insertGenerated = null;
+        } else {
+            sb.setLength(0);
+            sb.append("INSERT INTO ");
+            sb.append(tableName);
+            sb.append(" (");
+            appendColumns(sb, nonKeyFields);
+            sb.append(") VALUES (");
+            for (int i = 0; i < nonKeyFields.length; i++) {
+                sb.append(i == 0 ? "?" : ", ?");
+            }
+            sb.append(")");
+            this.insertGenerated = sb.toString().intern();
+        }
+
+        sb.setLength(0);
+        sb.append("UPDATE ");
+        sb.append(tableName);
+        sb.append(" SET ");
+        for (int i = 0; i < nonKeyFields.length; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(nonKeyFields[i].getColumnName());
+            sb.append("=?");
+        }
+        sb.append(where);
+        this.update = sb.toString().intern();
+
+        this.delete = ("DELETE FROM " + tableName + where).intern();
+    }
+
+    /**
+     * Return an INSERT of all columns for the given number of rows.
+     *
+     * @param rows number of rows in the VALUES clause
+     * @return SQL insert statement
+     */
+    String insert(int rows) {
+        if (rows <= 1) {
+            return insert;
+        }
+        Integer key = Integer.valueOf(rows);
+        String sql = multiRowInserts.get(key);
+        if (sql == null) {
+            StringBuffer sb = new StringBuffer(insertPrefix.length() + rows
+                    * (valuesRow.length() + 2));
+            sb.append(insertPrefix);
+            for (int i = 0; i < rows; i++) {
+                if (i > 0) {
+                    sb.append(", ");
+                }
+                sb.append(valuesRow);
+            }
+            sql = sb.toString();
+            multiRowInserts.put(key, sql);
+        }
+        return sql;
+    }
+
+    /**
+     * Choose the number of keys the next multi-key SELECT should match: the smallest bucket
+     * holding all remaining keys, or else the largest bucket.
+     *
+     * @param remaining keys still to look up
+     * @return number of keys to bind, padding with a repeated key if more than remaining
+     */
+    static int keyBucket(int remaining) {
+        for (int i = 0; i < KEY_BUCKETS.length; i++) {
+            if (KEY_BUCKETS[i] >= remaining) {
+                return KEY_BUCKETS[i];
+            }
+        }
+        return KEY_BUCKETS[KEY_BUCKETS.length - 1];
+    }
+
+    /**
+     * Return a SELECT of all columns matching any of the given number of keys, by an IN list
+     * for a single key field, or by OR of the key fields' equalities for a composite key.
+     *
+     * @param keys number of keys matched
+     * @return SQL select statement, binding each key field of each key in turn
+     */
+    String selectByKeys(int keys) {
+        Integer size = Integer.valueOf(keys);
+        String sql = selectsByKeys.get(size);
+        if (sql == null) {
+            StringBuffer sb = new StringBuffer(select.length() + keys * 8 * keyFields.length);
+            sb.append(select);
+            sb.append(" WHERE ");
+            if (keyFields.length == 1) {
+                sb.append(keyFields[0].getColumnName());
+                sb.append(" IN (");
+                for (int i = 0; i < keys; i++) {
+                    sb.append(i == 0 ? "?" : ", ?");
+                }
+                sb.append(")");
+            } else {
+                for (int i = 0; i < keys; i++) {
+                    if (i > 0) {
+                        sb.append(" OR ");
+                    }
+                    sb.append("(");
+                    for (int k = 0; k < keyFields.length; k++) {
+                        if (k > 0) {
+                            sb.append(" AND ");
+                        }
+                        sb.append(keyFields[k].getColumnName());
+                        sb.append("=?");
+                    }
+                    sb.append(")");
+                }
+            }
+            sql = sb.toString();
+            selectsByKeys.put(size, sql);
+        }
+        return sql;
+    }
+
+    /**
+     * Return an UPDATE of the given non-key fields, binding each of them, then each key field.
+     *
+     * @param changed positions in nonKeyFields of the fields to update, at least one
+     * @return SQL update statement and the non-key fields it updates
+     */
+    FieldStatement<POJO> update(BitSet changed) {
+        FieldStatement<POJO> partial = partialUpdates.get(changed);
+        if (partial == null) {
+            FieldMap<POJO, ?, ?>[] fields = FieldMap.<POJO>newArray(changed
+                    .cardinality());
+            StringBuffer sb = new StringBuffer();
+            sb.append("UPDATE ");
+            sb.append(tableName);
+            sb.append(" SET ");
+            int n = 0;
+            for (int i = changed.nextSetBit(0); i >= 0; i = changed.nextSetBit(i + 1)) {
+                if (n > 0) {
+                    sb.append(", ");
+                }
+                sb.append(nonKeyFields[i].getColumnName());
+                sb.append("=?");
+                fields[n++] = nonKeyFields[i];
+            }
+            sb.append(whereKeys());
+            partial = new FieldStatement<POJO>(sb.toString(), fields);
+            if (partialUpdates.size() >= MAX_PARTIAL_UPDATES) {
+                partialUpdates.clear();
+            }
+            partialUpdates.put((BitSet) changed.clone(), partial);
+        }
+        return partial;
+    }
+
+    /**
+     * Return a single statement inserting a row, or updating the row with the same key if one
+     * exists.
+     *
+     * @param style  upsert syntax, as given by DataSourceMetadata.upsertStyle
+     * @param update true to update a matching row, false to leave it alone
+     * @return SQL upsert statement and the fields bound to its placeholders
+     */
+    FieldStatement<POJO> upsert(String style, boolean update) {
+        String key = update ? style : style + " NOTHING";
+        FieldStatement<POJO> upsert = upserts.get(key);
+        if (upsert == null) {
+            upsert = compileUpsert(style, update && nonKeyFields.length > 0);
+            upserts.put(key, upsert);
+        }
+        return upsert;
+    }
+
+    private FieldStatement<POJO> compileUpsert(String style, boolean update) {
+        StringBuffer sb = new StringBuffer();
+        if (DataSourceMetadata.UPSERT_MERGE.equals(style)) {
+            // Placeholders sit where their target column types them; in a VALUES source they
+            // would take the type the driver binds, which some platforms will not convert.
+            sb.append("MERGE INTO ");
+            sb.append(tableName);
+            sb.append(" d USING (VALUES (1)) s (x) ON ");
+            for (int i = 0; i < keyFields.length; i++) {
+                if (i > 0) {
+                    sb.append(" AND ");
+                }
+                sb.append("d.");
+                sb.append(keyFields[i].getColumnName());
+                sb.append("=?");
+            }
+            if (update) {
+                sb.append(" WHEN MATCHED THEN UPDATE SET ");
+                appendAssignments(sb, "?", "");
+            }
+            sb.append(" WHEN NOT MATCHED THEN INSERT (");
+            appendColumns(sb, allFields);
+            sb.append(") VALUES ");
+            sb.append(valuesRow);
+            int updated = update ? nonKeyFields.length : 0;
+            FieldMap<POJO, ?, ?>[] fields = FieldMap.<POJO>newArray(keyFields.length
+                    + updated + allFields.length);
+            System.arraycopy(keyFields, 0, fields, 0, keyFields.length);
+            System.arraycopy(nonKeyFields, 0, fields, keyFields.length, updated);
+            System.arraycopy(allFields, 0, fields, keyFields.length + updated, allFields.length);
+            return new FieldStatement<POJO>(sb.toString(), fields);
+        } else if (DataSourceMetadata.UPSERT_ON_CONFLICT.equals(style)) {
+            sb.append(insert);
+            sb.append(" ON CONFLICT (");
+            appendColumns(sb, keyFields);
+            if (update) {
+                sb.append(") DO UPDATE SET ");
+                appendAssignments(sb, "EXCLUDED.", "");
+            } else {
+                sb.append(") DO NOTHING");
+            }
+        } else if (DataSourceMetadata.UPSERT_ON_DUPLICATE_KEY.equals(style)) {
+            sb.append(insert);
+            sb.append(" ON DUPLICATE KEY UPDATE ");
+            if (update) {
+                appendAssignments(sb, "VALUES(", ")");
+            } else {
+                sb.append(keyFields[0].getColumnName());
+                sb.append("=");
+                sb.append(keyFields[0].getColumnName());
+            }
+        } else {
+            throw new IllegalArgumentException("Unknown upsert syntax " + style);
+        }
+        return new FieldStatement<POJO>(sb.toString(), allFields);
+    }
+
+    /**
+     * Append "column=prefix column suffix" for each non-key field, or "column=?" if the prefix
+     * is a placeholder.
+     */
+    private void appendAssignments(StringBuffer sb, String prefix, String suffix) {
+        for (int i = 0; i < nonKeyFields.length; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            String column = nonKeyFields[i].getColumnName();
+            sb.append(column);
+            sb.append("=");
+            sb.append(prefix);
+            if (!"?".equals(prefix)) {
+                sb.append(column);
+            }
+            sb.append(suffix);
+        }
+    }
+
+    /**
+     * A compiled statement and the fields bound to its leading placeholders, in order.
+     */
+    static final class FieldStatement<POJO> {
+
+        final String sql;
+
+        final FieldMap<POJO, ?, ?>[] fields;
+
+        FieldStatement(String sql, FieldMap<POJO, ?, ?>[] fields) {
+            this.sql = sql;
+            this.fields = fields;
+        }
+    }
+
+    /**
+     * Form a WHERE clause with a placeholder for each key field.
+     */
+    private String whereKeys() {
+        StringBuffer sb = new StringBuffer();
+        sb.append(" WHERE ");
+        for (int i = 0; i < keyFields.length; i++) {
+            if (i > 0) {
+                sb.append(" AND ");
+            }
+            sb.append(keyFields[i].getColumnName());
+            sb.append("=?");
+        }
+        return sb.toString();
+    }
+
+    private static void appendColumns(StringBuffer sb, FieldMap<?, ?, ?>[] fields) {
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(fields[i].getColumnName());
+        }
+    }
+
+    /**
+     * Find the position in allFields of each of the given fields.
+     */
+    private int[] positions(FieldMap<POJO, ?, ?>[] fields) {
+        int[] positions = new int[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            for (int j = 0; j < allFields.length; j++) {
+                if (allFields[j] == fields[i]) {
+                    positions[i] = j;
+                    break;
+                }
+            }
+        }
+        return positions;
+    }
+
+    private static <POJO> FieldMap<POJO, ?, ?>[] toArray(Collection<FieldMap<POJO, ?, ?>> fields) {
+        return fields.toArray(FieldMap.<POJO>newArray(fields.size()));
+    }
+
+}
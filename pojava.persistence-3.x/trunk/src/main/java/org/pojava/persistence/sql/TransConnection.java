@@ -1,8 +1,10 @@
 package org.pojava.persistence.sql;
 
 import java.sql.*;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 import java.util.concurrent.Executor;
 
 /**
@@ -30,6 +32,33 @@ public class TransConnection implements Connection {
 
     private String schema = null;
 
+    /**
+     * Idle prepared statements available for reuse, or null if statements are not cached.
+     */
+    private StatementCache statementCache = null;
+
+    /**
+     * Statistics recorded by the statements prepared, or null if they are not instrumented.
+     */
+    private SqlStatistics statistics = null;
+
+    /**
+     * Beans read or written on this connection in the current transaction, or null if they
+     * are not held.
+     */
+    private IdentityMap identityMap = null;
+
+    /**
+     * TableMaps written in the current transaction, whose rows here may differ from those
+     * committed, so that they are kept out of the shared caches until it ends.
+     */
+    private final Set<TableMap<?>> writtenMaps = new HashSet<TableMap<?>>();
+
+    /**
+     * True if this connection reads from a replica, whose rows may lag behind the primary.
+     */
+    private boolean replica = false;
+
     /**
      * Create a new TransConnection from this connection.
      *
@@ -40,6 +69,64 @@ public class TransConnection implements Connection {
         this.conn = conn;
     }
 
+    /**
+     * Create a new TransConnection from this connection, reusing prepared statements.
+     *
+     * @param conn           Connection
+     * @param statementCache cache of idle statements, or null to disable caching
+     */
+    public TransConnection(Connection conn, StatementCache statementCache) {
+        super();
+        this.conn = conn;
+        this.statementCache = statementCache;
+    }
+
+    /**
+     * Create a new TransConnection from this connection, reusing prepared statements and
+     * recording their executions.
+     *
+     * @param conn           Connection
+     * @param statementCache cache of idle statements, or null to disable caching
+     * @param statistics     statistics to record, or null to disable instrumentation
+     */
+    public TransConnection(Connection conn, StatementCache statementCache,
+                           SqlStatistics statistics) {
+        super();
+        this.conn = conn;
+        this.statementCache = statementCache;
+        this.statistics = statistics;
+    }
+
+    /**
+     * Wrap a prepared statement to record its executions, if instrumented.
+     */
+    private PreparedStatement instrument(String sql, PreparedStatement stmt) {
+        if (statistics == null) {
+            return stmt;
+        }
+        return new InstrumentedPreparedStatement(statistics, sql, this, stmt);
+    }
+
+    /**
+     * Wrap a plain statement to record its executions, if instrumented.
+     */
+    private Statement instrument(Statement stmt) {
+        if (statistics == null) {
+            return stmt;
+        }
+        return InstrumentedStatement.wrap(statistics, this, stmt);
+    }
+
+    /**
+     * Wrap a callable statement to record its executions, if instrumented.
+     */
+    private CallableStatement instrument(String sql, CallableStatement stmt) {
+        if (statistics == null) {
+            return stmt;
+        }
+        return InstrumentedStatement.wrap(statistics, sql, this, stmt);
+    }
+
     /**
      * Clear connection warnings.
      */
@@ -48,26 +135,122 @@ public class TransConnection implements Connection {
     }
 
     /**
-     * Close connection (ignored if closeAllowed is false).
+     * @return beans held for the current transaction, or null if they are not held
+     */
+    public IdentityMap getIdentityMap() {
+        return identityMap;
+    }
+
+    /**
+     * Hold the beans read or written on this connection until it commits or rolls back, so
+     * that DaoTool.find returns the same instance for the same row.
+     *
+     * @param identityMap map to hold the beans, or null to hold none
+     */
+    public void setIdentityMap(IdentityMap identityMap) {
+        this.identityMap = identityMap;
+    }
+
+    private void clearIdentityMap() {
+        if (identityMap != null) {
+            identityMap.clear();
+        }
+    }
+
+    /**
+     * Record a write to the table of a TableMap. Until the transaction ends, reads through
+     * this connection neither consult nor populate the entity cache or query cache of the
+     * table, which would otherwise share rows not yet committed. A write in auto-commit mode
+     * is committed at once, and is not recorded.
+     *
+     * @param map TableMap written
+     */
+    public void markWritten(TableMap<?> map) {
+        try {
+            if (conn.getAutoCommit()) {
+                return;
+            }
+        } catch (SQLException ex) {
+            // Assume the write is uncommitted.
+        }
+        synchronized (writtenMaps) {
+            writtenMaps.add(map);
+        }
+    }
+
+    /**
+     * @param map TableMap
+     * @return true if the table of the TableMap was written in the current transaction
+     */
+    public boolean hasWritten(TableMap<?> map) {
+        synchronized (writtenMaps) {
+            return writtenMaps.contains(map);
+        }
+    }
+
+    /**
+     * Discard the shared cache entries of the tables written, which others may have read from
+     * the database while the transaction was open. If the writes were undone, the column
+     * values recorded for dirty tracking of those tables are discarded as well.
+     *
+     * @param ended  true if the transaction ended, so the tables are no longer written
+     * @param undone true if the writes were rolled back
+     */
+    private void invalidateWritten(boolean ended, boolean undone) {
+        TableMap<?>[] written;
+        synchronized (writtenMaps) {
+            written = writtenMaps.toArray(new TableMap<?>[writtenMaps.size()]);
+            if (ended) {
+                writtenMaps.clear();
+            }
+        }
+        QueryCache queries = DatabaseCache.getQueryCache();
+        for (int i = 0; i < written.length; i++) {
+            EntityCache<?> cache = written[i].getEntityCache();
+            if (cache != null) {
+                cache.invalidateAll();
+            }
+            if (queries != null) {
+                queries.invalidateTable(written[i].getDataSourceName(), written[i]
+                        .getTableName());
+            }
+            if (undone) {
+                written[i].markAllDirty();
+            }
+        }
+    }
+
+    /**
+     * Close connection (ignored if closeAllowed is false). Cached statements are closed along
+     * with the connection.
      */
     public void close() throws SQLException {
         if (closeAllowed) {
+            if (statementCache != null) {
+                statementCache.close();
+            }
             conn.close();
         }
     }
 
     /**
-     * Commit transaction.
+     * Commit transaction, discarding the beans held in the identity map, and the shared cache
+     * entries of the tables written.
      */
     public void commit() throws SQLException {
-        conn.commit();
+        clearIdentityMap();
+        try {
+            conn.commit();
+        } finally {
+            invalidateWritten(true, false);
+        }
     }
 
     /**
      * Create a statement
      */
     public Statement createStatement() throws SQLException {
-        return conn.createStatement();
+        return instrument(conn.createStatement());
     }
 
     /**
@@ -75,7 +258,7 @@ public class TransConnection implements Connection {
      */
     public Statement createStatement(int resultSetType, int resultSetConcurrency)
             throws SQLException {
-        return conn.createStatement(resultSetType, resultSetConcurrency);
+        return instrument(conn.createStatement(resultSetType, resultSetConcurrency));
     }
 
     /**
@@ -83,7 +266,8 @@ public class TransConnection implements Connection {
      */
     public Statement createStatement(int resultSetType, int resultSetConcurrency,
                                      int resultSetHoldability) throws SQLException {
-        return conn.createStatement(resultSetType, resultSetConcurrency, resultSetHoldability);
+        return instrument(conn.createStatement(resultSetType, resultSetConcurrency,
+                resultSetHoldability));
     }
 
     /**
@@ -160,7 +344,7 @@ public class TransConnection implements Connection {
      * Prepare a callable statement.
      */
     public CallableStatement prepareCall(String sql) throws SQLException {
-        return conn.prepareCall(sql);
+        return instrument(sql, conn.prepareCall(sql));
     }
 
     /**
@@ -168,7 +352,7 @@ public class TransConnection implements Connection {
      */
     public CallableStatement prepareCall(String sql, int resultSetType, int resultSetConcurrency)
             throws SQLException {
-        return conn.prepareCall(sql, resultSetType, resultSetConcurrency);
+        return instrument(sql, conn.prepareCall(sql, resultSetType, resultSetConcurrency));
     }
 
     /**
@@ -176,22 +360,41 @@ public class TransConnection implements Connection {
      */
     public CallableStatement prepareCall(String sql, int resultSetType,
                                          int resultSetConcurrency, int resultSetHoldability) throws SQLException {
-        return conn.prepareCall(sql, resultSetType, resultSetConcurrency, resultSetHoldability);
+        return instrument(sql, conn.prepareCall(sql, resultSetType, resultSetConcurrency,
+                resultSetHoldability));
     }
 
     /**
-     * Prepare a prepared statement.
+     * Prepare a prepared statement, or reuse a cached one.
      */
     public PreparedStatement prepareStatement(String sql) throws SQLException {
-        return conn.prepareStatement(sql);
+        if (statementCache == null) {
+            return instrument(sql, conn.prepareStatement(sql));
+        }
+        StatementCache.Key key = new StatementCache.Key(sql, ResultSet.TYPE_FORWARD_ONLY,
+                ResultSet.CONCUR_READ_ONLY, 0, 0);
+        PreparedStatement stmt = statementCache.checkout(key);
+        if (stmt == null) {
+            stmt = conn.prepareStatement(sql);
+        }
+        return instrument(sql, new CachedPreparedStatement(statementCache, key, this, stmt));
     }
 
     /**
-     * Prepare a prepared statement.
+     * Prepare a prepared statement, or reuse a cached one.
      */
     public PreparedStatement prepareStatement(String sql, int autoGeneratedKeys)
             throws SQLException {
-        return conn.prepareStatement(sql, autoGeneratedKeys);
+        if (statementCache == null) {
+            return instrument(sql, conn.prepareStatement(sql, autoGeneratedKeys));
+        }
+        StatementCache.Key key = new StatementCache.Key(sql, ResultSet.TYPE_FORWARD_ONLY,
+                ResultSet.CONCUR_READ_ONLY, 0, autoGeneratedKeys);
+        PreparedStatement stmt = statementCache.checkout(key);
+        if (stmt == null) {
+            stmt = conn.prepareStatement(sql, autoGeneratedKeys);
+        }
+        return instrument(sql, new CachedPreparedStatement(statementCache, key, this, stmt));
     }
 
     /**
@@ -199,7 +402,7 @@ public class TransConnection implements Connection {
      */
     public PreparedStatement prepareStatement(String sql, int[] columnIndexes)
             throws SQLException {
-        return conn.prepareStatement(sql, columnIndexes);
+        return instrument(sql, conn.prepareStatement(sql, columnIndexes));
     }
 
     /**
@@ -207,24 +410,43 @@ public class TransConnection implements Connection {
      */
     public PreparedStatement prepareStatement(String sql, String[] columnNames)
             throws SQLException {
-        return conn.prepareStatement(sql, columnNames);
+        return instrument(sql, conn.prepareStatement(sql, columnNames));
     }
 
     /**
-     * Prepare a prepared statement.
+     * Prepare a prepared statement, or reuse a cached one.
      */
     public PreparedStatement prepareStatement(String sql, int resultSetType,
                                               int resultSetConcurrency) throws SQLException {
-        return conn.prepareStatement(sql, resultSetType, resultSetConcurrency);
+        if (statementCache == null) {
+            return instrument(sql, conn.prepareStatement(sql, resultSetType, resultSetConcurrency));
+        }
+        StatementCache.Key key = new StatementCache.Key(sql, resultSetType,
+                resultSetConcurrency, 0, 0);
+        PreparedStatement stmt = statementCache.checkout(key);
+        if (stmt == null) {
+            stmt = conn.prepareStatement(sql, resultSetType, resultSetConcurrency);
+        }
+        return instrument(sql, new CachedPreparedStatement(statementCache, key, this, stmt));
     }
 
     /**
-     * Prepare a prepared statement.
+     * Prepare a prepared statement, or reuse a cached one.
      */
     public PreparedStatement prepareStatement(String sql, int resultSetType,
                                               int resultSetConcurrency, int resultSetHoldability) throws SQLException {
-        return conn.prepareStatement(sql, resultSetType, resultSetConcurrency,
-                resultSetHoldability);
+        if (statementCache == null) {
+            return instrument(sql, conn.prepareStatement(sql, resultSetType, resultSetConcurrency,
+                    resultSetHoldability));
+        }
+        StatementCache.Key key = new StatementCache.Key(sql, resultSetType,
+                resultSetConcurrency, resultSetHoldability, 0);
+        PreparedStatement stmt = statementCache.checkout(key);
+        if (stmt == null) {
+            stmt = conn.prepareStatement(sql, resultSetType, resultSetConcurrency,
+                    resultSetHoldability);
+        }
+        return instrument(sql, new CachedPreparedStatement(statementCache, key, this, stmt));
     }
 
     /**
@@ -235,17 +457,29 @@ public class TransConnection implements Connection {
     }
 
     /**
-     * Perform rollback
+     * Perform rollback, discarding the beans held in the identity map, and the shared cache
+     * entries of the tables written.
      */
     public void rollback() throws SQLException {
-        conn.rollback();
+        clearIdentityMap();
+        try {
+            conn.rollback();
+        } finally {
+            invalidateWritten(true, true);
+        }
     }
 
     /**
-     * Rollback to savepoint
+     * Rollback to savepoint, discarding the beans held in the identity map, and the shared
+     * cache entries of the tables written.
      */
     public void rollback(Savepoint savepoint) throws SQLException {
-        conn.rollback(savepoint);
+        clearIdentityMap();
+        try {
+            conn.rollback(savepoint);
+        } finally {
+            invalidateWritten(false, true);
+        }
     }
 
     /**
@@ -343,6 +577,34 @@ public class TransConnection implements Connection {
         this.closeAllowed = closeAllowed;
     }
 
+    /**
+     * True if this connection reads from a read replica, whose rows may lag behind those of
+     * the primary, and so are kept out of the shared caches.
+     *
+     * @return true for a replica connection
+     */
+    public boolean isReplica() {
+        return replica;
+    }
+
+    /**
+     * Mark this connection as reading from a read replica.
+     *
+     * @param replica true for a replica connection
+     */
+    void setReplica(boolean replica) {
+        this.replica = replica;
+    }
+
+    /**
+     * Cache of idle prepared statements.
+     *
+     * @return StatementCache, or null if statements are not cached
+     */
+    public StatementCache getStatementCache() {
+        return statementCache;
+    }
+
     /**
      * Unsupported. Included to compile under Java 1.6.
      */
@@ -394,21 +656,18 @@ public class TransConnection implements Connection {
     }
 
     /**
-     * Unsupported. Included to compile under Java 1.6.
+     * Determine whether the underlying connection is still open and responsive.
      */
     public boolean isValid(int timeout) throws SQLException {
-        throw new UnsupportedOperationException();
+        return conn.isValid(timeout);
     }
 
     public void setClientInfo(String name, String value) throws SQLClientInfoException {
         throw new UnsupportedOperationException();
     }
 
-    /**
-     * Unsupported. Included to compile under Java 1.6.
-     */
-    public boolean isWrapperFor(Class<?> arg0) throws SQLException {
-        throw new UnsupportedOperationException();
+    public boolean isWrapperFor(Class<?> type) throws SQLException {
+        return type.isInstance(this) || type.isInstance(conn) || conn.isWrapperFor(type);
     }
 
     /**
@@ -439,10 +698,16 @@ public class TransConnection implements Connection {
     }
 
     /**
-     * Unsupported. Included to compile under Java 1.6.
+     * Return this connection or the wrapped one, such as a driver's own connection class.
      */
-    public <T> T unwrap(Class<T> iface) throws SQLException {
-        throw new UnsupportedOperationException();
+    public <T> T unwrap(Class<T> type) throws SQLException {
+        if (type.isInstance(this)) {
+            return type.cast(this);
+        }
+        if (type.isInstance(conn)) {
+            return type.cast(conn);
+        }
+        return conn.unwrap(type);
     }
 
 
@@ -0,0 +1,111 @@
+package org.pojava.persistence.sql;
+
+/*
+ Copyright 2008-14 John Pile
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A TransactionOutcome reports how each connection of a DatabaseTransaction fared when the
+ * transaction was committed or rolled back, by DataSource name.
+ * <p/>
+ * If verification before commit was requested and a connection failed it, no connection was
+ * committed; the action is then ROLLBACK and the verification failures are reported alongside
+ * the outcome of the rollback.
+ *
+ * @author John Pile
+ */
+public class TransactionOutcome {
+
+    public static final String COMMIT = "commit";
+
+    public static final String ROLLBACK = "rollback";
+
+    private final String action;
+
+    private final List<String> completed = new ArrayList<String>();
+
+    private final Map<String, SQLException> failures = new LinkedHashMap<String, SQLException>();
+
+    private final Map<String, SQLException> verificationFailures;
+
+    TransactionOutcome(String action, Map<String, SQLException> verificationFailures) {
+        this.action = action;
+        this.verificationFailures = verificationFailures == null ? Collections
+                .<String, SQLException>emptyMap() : verificationFailures;
+    }
+
+    void recordCompleted(String dataSourceName) {
+        completed.add(dataSourceName);
+    }
+
+    void recordFailure(String dataSourceName, SQLException ex) {
+        failures.put(dataSourceName, ex);
+    }
+
+    /**
+     * @return COMMIT or ROLLBACK, whichever was applied to the connections
+     */
+    public String getAction() {
+        return action;
+    }
+
+    /**
+     * @return names of the DataSources whose connections completed the action
+     */
+    public List<String> getCompleted() {
+        return Collections.unmodifiableList(completed);
+    }
+
+    /**
+     * @return exceptions by name of the DataSources whose connections failed the action
+     */
+    public Map<String, SQLException> getFailures() {
+        return Collections.unmodifiableMap(failures);
+    }
+
+    /**
+     * @return exceptions by name of the DataSources whose connections failed verification
+     */
+    public Map<String, SQLException> getVerificationFailures() {
+        return Collections.unmodifiableMap(verificationFailures);
+    }
+
+    /**
+     * @return true if every connection completed the requested action
+     */
+    public boolean isSuccessful() {
+        return failures.isEmpty() && verificationFailures.isEmpty();
+    }
+
+    /**
+     * @return true if some connections committed while others failed to
+     */
+    public boolean isPartial() {
+        return COMMIT.equals(action) && !completed.isEmpty() && !failures.isEmpty();
+    }
+
+    public String toString() {
+        return action + " completed=" + completed + ", failed=" + failures.keySet()
+                + ", unverified=" + verificationFailures.keySet();
+    }
+
+}
@@ -0,0 +1,317 @@
+package org.pojava.persistence.util;
+
+/*
+ Copyright 2008-14 John Pile
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+import org.pojava.lang.Processor;
+import org.pojava.persistence.query.SqlQuery;
+import org.pojava.persistence.sql.ConnectionSource;
+import org.pojava.persistence.sql.DatabaseCache;
+import org.pojava.persistence.sql.TableMap;
+import org.pojava.persistence.sql.TransConnection;
+
+import javax.sql.DataSource;
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * AsyncDaoTool runs DaoTool operations on an executor, returning a Future for each, so that a
+ * caller may overlap several independent queries without managing threads itself.
+ * <p/>
+ * Given a ConnectionSource such as a DatabaseTransaction, an operation uses the connection
+ * that source holds for the map's DataSource, resolved on the calling thread. Operations on
+ * the same connection run one at a time, in no guaranteed order, and the caller must wait for
+ * them before committing. Given a null source, each operation borrows an auto-commit
+ * connection from the DataSource and closes it when done, so operations overlap freely.
+ * <p/>
+ * Either way, no more than connectionsPerDataSource operations run at once against one
+ * DataSource. Processors given to processByQuery are called on the executor's threads.
+ *
+ * @author John Pile
+ */
+public class AsyncDaoTool {
+
+    /**
+     * Operations run at once against each DataSource, unless otherwise specified.
+     */
+    public static final int DEFAULT_CONNECTIONS = 10;
+
+    private final ExecutorService executor;
+
+    private final int connectionsPerDataSource;
+
+    /**
+     * Permits of connections in use, mapped by DataSource name.
+     */
+    private final Map<String, Semaphore> permits = new HashMap<String, Semaphore>();
+
+    /**
+     * Locks serializing the operations on each shared connection.
+     */
+    private final Map<Connection, ReentrantLock> locks = new WeakHashMap<Connection,
+            ReentrantLock>();
+
+    /**
+     * Run operations on a new default executor, DEFAULT_CONNECTIONS at a time per DataSource.
+     */
+    public AsyncDaoTool() {
+        this(newDefaultExecutor(DEFAULT_CONNECTIONS), DEFAULT_CONNECTIONS);
+    }
+
+    /**
+     * Run operations on the given executor.
+     *
+     * @param executor                 executor running the operations
+     * @param connectionsPerDataSource operations run at once against each DataSource
+     */
+    public AsyncDaoTool(ExecutorService executor, int connectionsPerDataSource) {
+        if (executor == null) {
+            throw new IllegalArgumentException("An executor is required.");
+        }
+        if (connectionsPerDataSource < 1) {
+            throw new IllegalArgumentException("At least one connection is required.");
+        }
+        this.executor = executor;
+        this.connectionsPerDataSource = connectionsPerDataSource;
+    }
+
+    /**
+     * Create an executor giving each operation a virtual thread where the JVM supports them,
+     * or else a fixed pool of daemon threads.
+     *
+     * @param threads size of the pool used where virtual threads are unavailable
+     * @return a new executor
+     */
+    public static ExecutorService newDefaultExecutor(int threads) {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (Exception ex) {
+            return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "pojava-async-dao");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+    }
+
+    /**
+     * @see DaoTool#insert(Connection, TableMap, Object)
+     */
+    public <T> Future<Integer> insert(ConnectionSource source, final TableMap<T> map,
+                                      final T obj) {
+        return submit(source, map, new Operation<Integer>() {
+            Integer run(Connection conn) {
+                return Integer.valueOf(DaoTool.insert(conn, map, obj));
+            }
+        });
+    }
+
+    /**
+     * @see DaoTool#update(Connection, TableMap, Object)
+     */
+    public <T> Future<Integer> update(ConnectionSource source, final TableMap<T> map,
+                                      final T obj) {
+        return submit(source, map, new Operation<Integer>() {
+            Integer run(Connection conn) {
+                return Integer.valueOf(DaoTool.update(conn, map, obj));
+            }
+        });
+    }
+
+    /**
+     * @see DaoTool#find(Connection, TableMap, Object)
+     */
+    public <T> Future<T> find(ConnectionSource source, final TableMap<T> map, final T obj) {
+        return submit(source, map, new Operation<T>() {
+            T run(Connection conn) {
+                return DaoTool.find(conn, map, obj);
+            }
+        });
+    }
+
+    /**
+     * @see DaoTool#listByQuery(Connection, TableMap, SqlQuery)
+     */
+    public <T> Future<List<T>> listByQuery(ConnectionSource source, final TableMap<T> map,
+                                           final SqlQuery query) {
+        return submit(source, map, new Operation<List<T>>() {
+            List<T> run(Connection conn) {
+                return DaoTool.listByQuery(conn, map, query);
+            }
+        });
+    }
+
+    /**
+     * @see DaoTool#processByQuery(Connection, TableMap, SqlQuery, Processor)
+     */
+    public <T> Future<Integer> processByQuery(ConnectionSource source, final TableMap<T> map,
+                                              final SqlQuery query,
+                                              final Processor<T> objProcessor) {
+        return submit(source, map, new Operation<Integer>() {
+            Integer run(Connection conn) {
+                return Integer.valueOf(DaoTool.processByQuery(conn, map, query, objProcessor));
+            }
+        });
+    }
+
+    /**
+     * @see DaoTool#countByQuery(Connection, TableMap, SqlQuery)
+     */
+    public <T> Future<Integer> countByQuery(ConnectionSource source, final TableMap<T> map,
+                                            final SqlQuery query) {
+        return submit(source, map, new Operation<Integer>() {
+            Integer run(Connection conn) {
+                return Integer.valueOf(DaoTool.countByQuery(conn, map, query));
+            }
+        });
+    }
+
+    /**
+     * @see DaoTool#batchInsert(Connection, TableMap, List)
+     */
+    public <T> Future<int[]> batchInsert(ConnectionSource source, final TableMap<T> map,
+                                         final List<T> list) {
+        return submit(source, map, new Operation<int[]>() {
+            int[] run(Connection conn) {
+                return DaoTool.batchInsert(conn, map, list);
+            }
+        });
+    }
+
+    /**
+     * Stop accepting operations. Those already submitted still run.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * @return executor running the operations
+     */
+    public ExecutorService getExecutor() {
+        return executor;
+    }
+
+    /**
+     * @return operations run at once against each DataSource
+     */
+    public int getConnectionsPerDataSource() {
+        return connectionsPerDataSource;
+    }
+
+    /**
+     * A DaoTool operation against a connection.
+     */
+    private abstract static class Operation<V> {
+        abstract V run(Connection conn);
+    }
+
+    /**
+     * Queue an operation, resolving a source's connection now so that it is the one the
+     * source would hand this thread. An operation on a shared connection takes its permit
+     * only once its turn on the connection comes, so that those waiting their turn hold no
+     * permit from operations on other connections. The turn is taken with a lock rather than
+     * a monitor, which would pin a virtual thread to its carrier while it waits.
+     */
+    private <V> Future<V> submit(ConnectionSource source, TableMap<?> map,
+                                 final Operation<V> operation) {
+        if (map == null) {
+            throw new IllegalArgumentException("Cannot operate on a null TableMap.");
+        }
+        final String dsName = map.getDataSourceName();
+        final Connection shared = source == null ? null : source.getConnection(dsName);
+        final ReentrantLock lock = shared == null ? null : lock(shared);
+        final Semaphore semaphore = permits(dsName);
+        return executor.submit(new Callable<V>() {
+            public V call() throws InterruptedException, SQLException {
+                if (lock != null) {
+                    lock.lockInterruptibly();
+                    try {
+                        semaphore.acquire();
+                        try {
+                            return operation.run(shared);
+                        } finally {
+                            semaphore.release();
+                        }
+                    } finally {
+                        lock.unlock();
+                    }
+                }
+                semaphore.acquire();
+                try {
+                    Connection conn = borrow(dsName);
+                    try {
+                        return operation.run(conn);
+                    } finally {
+                        conn.close();
+                    }
+                } finally {
+                    semaphore.release();
+                }
+            }
+        });
+    }
+
+    /**
+     * Open an auto-commit connection of a DataSource, caching statements as a transaction
+     * would.
+     */
+    private static Connection borrow(String dsName) throws SQLException {
+        DataSource ds = DatabaseCache.getDataSource(dsName);
+        if (ds == null) {
+            throw new IllegalStateException("DataSource " + dsName + " not found.");
+        }
+        TransConnection conn = new TransConnection(ds.getConnection(), DatabaseCache
+                .newStatementCache(dsName), DatabaseCache.getSqlStatistics());
+        conn.setCloseAllowed(true);
+        conn.setAutoCommit(true);
+        return conn;
+    }
+
+    private synchronized ReentrantLock lock(Connection conn) {
+        ReentrantLock lock = locks.get(conn);
+        if (lock == null) {
+            lock = new ReentrantLock(true);
+            locks.put(conn, lock);
+        }
+        return lock;
+    }
+
+    private synchronized Semaphore permits(String dsName) {
+        Semaphore semaphore = permits.get(dsName);
+        if (semaphore == null) {
+            semaphore = new Semaphore(connectionsPerDataSource, true);
+            permits.put(dsName, semaphore);
+        }
+        return semaphore;
+    }
+
+}
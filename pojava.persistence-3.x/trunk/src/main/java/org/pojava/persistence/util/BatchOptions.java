@@ -0,0 +1,129 @@
+package org.pojava.persistence.util;
+
+/*
+ Copyright 2008-14 John Pile
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+/**
+ * BatchOptions control how DaoTool sends a list of beans to the database. The list is split
+ * into chunks, each sent as one JDBC batch, so that neither the driver nor the database must
+ * hold the entire list at once.
+ *
+ * @author John Pile
+ */
+public class BatchOptions {
+
+    /**
+     * Rows per chunk unless otherwise specified.
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 1000;
+
+    private int chunkSize = DEFAULT_CHUNK_SIZE;
+
+    private boolean commitEachChunk = false;
+
+    private boolean multiRowInsert = false;
+
+    private boolean returnGeneratedKeys = false;
+
+    /**
+     * Default constructor.
+     */
+    public BatchOptions() {
+    }
+
+    /**
+     * Construct options with a given chunk size.
+     *
+     * @param chunkSize rows per chunk
+     */
+    public BatchOptions(int chunkSize) {
+        setChunkSize(chunkSize);
+    }
+
+    /**
+     * @return rows sent to the database per chunk
+     */
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Set the number of rows sent to the database per chunk.
+     *
+     * @param chunkSize rows per chunk, at least 1
+     */
+    public void setChunkSize(int chunkSize) {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("Chunk size must be at least 1, not " + chunkSize
+                    + ".");
+        }
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * @return true if the connection is committed after each chunk
+     */
+    public boolean isCommitEachChunk() {
+        return commitEachChunk;
+    }
+
+    /**
+     * Commit the connection after each chunk, so that a long load holds locks and undo space
+     * for one chunk at a time. This has no effect on a connection in auto-commit mode.
+     *
+     * @param commitEachChunk true to commit after each chunk
+     */
+    public void setCommitEachChunk(boolean commitEachChunk) {
+        this.commitEachChunk = commitEachChunk;
+    }
+
+    /**
+     * @return true if inserts may be rewritten as multi-row INSERT statements
+     */
+    public boolean isMultiRowInsert() {
+        return multiRowInsert;
+    }
+
+    /**
+     * Allow a chunk of inserts to be sent as multi-row INSERT ... VALUES (...), (...)
+     * statements on platforms that support them. Platforms that do not support them receive
+     * single-row inserts as usual.
+     *
+     * @param multiRowInsert true to rewrite inserts where supported
+     */
+    public void setMultiRowInsert(boolean multiRowInsert) {
+        this.multiRowInsert = multiRowInsert;
+    }
+
+    /**
+     * @return true if the keys of rows inserted are collected
+     */
+    public boolean isReturnGeneratedKeys() {
+        return returnGeneratedKeys;
+    }
+
+    /**
+     * Collect the key of each row inserted or upserted into the BatchResult, in row order,
+     * including keys the database generated. Not all drivers report generated keys for a
+     * batch, and the keys they do not report are null.
+     *
+     * @param returnGeneratedKeys true to collect generated keys
+     */
+    public void setReturnGeneratedKeys(boolean returnGeneratedKeys) {
+        this.returnGeneratedKeys = returnGeneratedKeys;
+    }
+
+}
@@ -0,0 +1,133 @@
+package org.pojava.persistence.util;
+
+/*
+ Copyright 2008-14 John Pile
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A BatchResult reports the outcome of a chunked batch operation. Statuses follow the order of
+ * the list submitted, and are grouped by the chunk that carried them.
+ *
+ * @author John Pile
+ */
+public class BatchResult {
+
+    private final List<int[]> chunkStatuses = new ArrayList<int[]>();
+
+    private final List<List<Object>> chunkKeys = new ArrayList<List<Object>>();
+
+    private final List<Boolean> chunkCommitted = new ArrayList<Boolean>();
+
+    private int size = 0;
+
+    /**
+     * Record the outcome of a chunk.
+     *
+     * @param statuses  status of each row in the chunk
+     * @param keys      key of each row in the chunk, or null if not collected
+     * @param committed true if the chunk was committed
+     */
+    void addChunk(int[] statuses, List<Object> keys, boolean committed) {
+        chunkStatuses.add(statuses);
+        chunkKeys.add(keys == null ? Collections.<Object>emptyList() : keys);
+        chunkCommitted.add(Boolean.valueOf(committed));
+        size += statuses.length;
+    }
+
+    /**
+     * @return number of chunks sent
+     */
+    public int getChunkCount() {
+        return chunkStatuses.size();
+    }
+
+    /**
+     * Show the status of each row in a chunk, as reported by executeBatch.
+     *
+     * @param chunk index of chunk
+     * @return row count or Statement.SUCCESS_NO_INFO for each row of the chunk
+     */
+    public int[] getChunkStatuses(int chunk) {
+        return chunkStatuses.get(chunk);
+    }
+
+    /**
+     * Show the key of each row in a chunk, including those the database generated, as an
+     * Object[] for a composite key. A key the driver did not report is null.
+     *
+     * @param chunk index of chunk
+     * @return key of each row of the chunk, empty if keys were not collected
+     */
+    public List<Object> getChunkGeneratedKeys(int chunk) {
+        return chunkKeys.get(chunk);
+    }
+
+    /**
+     * @param chunk index of chunk
+     * @return true if the connection was committed after the chunk
+     */
+    public boolean isChunkCommitted(int chunk) {
+        return chunkCommitted.get(chunk).booleanValue();
+    }
+
+    /**
+     * @return status of each row, in the order submitted
+     */
+    public int[] getStatuses() {
+        int[] statuses = new int[size];
+        int offset = 0;
+        for (int[] chunk : chunkStatuses) {
+            System.arraycopy(chunk, 0, statuses, offset, chunk.length);
+            offset += chunk.length;
+        }
+        return statuses;
+    }
+
+    /**
+     * @return key of each row, in the order submitted, empty if keys were not collected
+     */
+    public List<Object> getGeneratedKeys() {
+        List<Object> keys = new ArrayList<Object>();
+        for (List<Object> chunk : chunkKeys) {
+            keys.addAll(chunk);
+        }
+        return keys;
+    }
+
+    /**
+     * Total the rows affected, counting a row reported as SUCCESS_NO_INFO as one.
+     *
+     * @return number of rows affected
+     */
+    public int getRowCount() {
+        int total = 0;
+        for (int[] chunk : chunkStatuses) {
+            for (int i = 0; i < chunk.length; i++) {
+                if (chunk[i] > 0) {
+                    total += chunk[i];
+                } else if (chunk[i] == Statement.SUCCESS_NO_INFO) {
+                    total++;
+                }
+            }
+        }
+        return total;
+    }
+
+}
@@ -0,0 +1,404 @@
+package org.pojava.persistence.util;
+
+/*
+ Copyright 2008-14 John Pile
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+import org.pojava.datetime.DateTime;
+import org.pojava.exception.PersistenceException;
+import org.pojava.persistence.sql.DataSourceMetadata;
+import org.pojava.persistence.sql.DatabaseCache;
+import org.pojava.persistence.sql.FieldMap;
+import org.pojava.persistence.sql.QueryCache;
+import org.pojava.persistence.sql.TableMap;
+import org.pojava.persistence.sql.TransConnection;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * BulkLoader inserts many beans through the platform's native bulk loader, which is far
+ * faster than a batch of INSERT statements. On PostgreSQL the rows are streamed as CSV to
+ * COPY ... FROM STDIN through the driver's CopyManager. On MySQL and MariaDB they are streamed
+ * to LOAD DATA LOCAL INFILE, which requires allowLoadLocalInfile on the connection. Rows are
+ * encoded one at a time as the driver reads them, so the file is never held in memory.
+ * <p/>
+ * Where neither loader is available, rows are inserted in chunks by DaoTool.batchInsert, using
+ * multi-row INSERT statements unless the options say otherwise. Binary columns are sent to
+ * COPY in PostgreSQL's hex format; a table with binary columns is never sent to LOAD DATA,
+ * which has no such format, and is inserted in chunks instead. The drivers are reached by
+ * reflection, so neither is needed to compile or to use the fallback.
+ *
+ * @author John Pile
+ */
+public class BulkLoader {
+
+    /**
+     * Statement interfaces of the drivers able to read LOAD DATA LOCAL INFILE from a stream.
+     */
+    private static final String[] LOCAL_INFILE_STATEMENTS = {"com.mysql.cj.jdbc.JdbcStatement",
+            "com.mysql.jdbc.Statement", "org.mariadb.jdbc.MariaDbStatement"};
+
+    /**
+     * Load a list of beans into the table of a TableMap.
+     *
+     * @param conn Open connection to a database
+     * @param map  TableMap describing bean to table mappings
+     * @param list beans to insert
+     * @return number of rows loaded
+     */
+    public static <T> long load(Connection conn, TableMap<T> map, List<T> list) {
+        if (list == null) {
+            throw new IllegalArgumentException("Cannot load a null list.");
+        }
+        return load(conn, map, list.iterator(), null);
+    }
+
+    /**
+     * Load beans into the table of a TableMap as an iterator supplies them.
+     *
+     * @param conn    Open connection to a database
+     * @param map     TableMap describing bean to table mappings
+     * @param rows    beans to insert
+     * @param options chunking of the batched fallback, or null for multi-row inserts of
+     *                BatchOptions.DEFAULT_CHUNK_SIZE rows
+     * @return number of rows loaded
+     */
+    public static <T> long load(Connection conn, TableMap<T> map, Iterator<T> rows,
+                                BatchOptions options) {
+        if (conn == null || map == null || rows == null) {
+            throw new IllegalArgumentException(
+                    "Cannot load with a null connection, TableMap or iterator.");
+        }
+        try {
+            DataSourceMetadata metadata = DatabaseCache.getDataSourceMetadata(map
+                    .getDataSourceName());
+            long loaded = -1;
+            if (metadata.isCopySupported()) {
+                loaded = copy(conn, map, rows);
+            } else if (metadata.isLoadDataSupported()) {
+                loaded = loadData(conn, map, rows);
+            }
+            if (loaded < 0) {
+                loaded = insertChunks(conn, map, rows, options);
+            }
+            return loaded;
+        } catch (SQLException ex) {
+            throw new PersistenceException("Bulk load into " + map.getTableName() + " failed: "
+                    + ex.getMessage(), ex);
+        } finally {
+            if (conn instanceof TransConnection) {
+                ((TransConnection) conn).markWritten(map);
+            }
+            QueryCache cache = DatabaseCache.getQueryCache();
+            if (cache != null) {
+                cache.invalidateTable(map.getDataSourceName(), map.getTableName());
+            }
+        }
+    }
+
+    /**
+     * Stream rows to COPY through the PostgreSQL driver's CopyManager.
+     *
+     * @return rows copied, or -1 if the driver is not available
+     */
+    private static <T> long copy(Connection conn, TableMap<T> map, Iterator<T> rows)
+            throws SQLException {
+        Object copyManager;
+        Method copyIn;
+        try {
+            Class<?> pgConnection = Class.forName("org.postgresql.PGConnection");
+            if (!conn.isWrapperFor(pgConnection)) {
+                return -1;
+            }
+            copyManager = pgConnection.getMethod("getCopyAPI").invoke(conn.unwrap(pgConnection));
+            copyIn = copyManager.getClass().getMethod("copyIn", String.class, Reader.class);
+        } catch (ClassNotFoundException ex) {
+            return -1;
+        } catch (NoSuchMethodException ex) {
+            return -1;
+        } catch (IllegalAccessException ex) {
+            return -1;
+        } catch (InvocationTargetException ex) {
+            throw failure(ex);
+        }
+        String sql = "COPY " + map.getTableName() + " (" + columns(map) + ") FROM STDIN WITH CSV";
+        try {
+            return ((Number) copyIn.invoke(copyManager, sql, copyReader(map, rows)))
+                    .longValue();
+        } catch (IllegalAccessException ex) {
+            throw new PersistenceException(ex.getMessage(), ex);
+        } catch (InvocationTargetException ex) {
+            throw failure(ex);
+        }
+    }
+
+    /**
+     * Stream rows to LOAD DATA LOCAL INFILE through a MySQL or MariaDB driver.
+     *
+     * @return rows loaded, or -1 if the driver is not available
+     */
+    private static <T> long loadData(Connection conn, TableMap<T> map, Iterator<T> rows)
+            throws SQLException {
+        if (hasBinaryColumns(map)) {
+            return -1;
+        }
+        String sql = "LOAD DATA LOCAL INFILE 'stream' INTO TABLE " + map.getTableName()
+                + " CHARACTER SET utf8mb4 FIELDS TERMINATED BY ',' OPTIONALLY ENCLOSED BY '\"'"
+                + " ESCAPED BY '' LINES TERMINATED BY '\\n' (" + columns(map) + ")";
+        Statement stmt = conn.createStatement();
+        try {
+            for (int i = 0; i < LOCAL_INFILE_STATEMENTS.length; i++) {
+                try {
+                    Class<?> type = Class.forName(LOCAL_INFILE_STATEMENTS[i]);
+                    if (stmt.isWrapperFor(type)) {
+                        Method setStream = type.getMethod("setLocalInfileInputStream",
+                                InputStream.class);
+                        setStream.invoke(stmt.unwrap(type), new CsvRows<T>(map, rows, "NULL",
+                                true).inputStream());
+                        return stmt.executeUpdate(sql);
+                    }
+                } catch (ClassNotFoundException ex) {
+                    // Try the next driver.
+                } catch (NoSuchMethodException ex) {
+                    // Try the next driver.
+                } catch (IllegalAccessException ex) {
+                    // Try the next driver.
+                } catch (InvocationTargetException ex) {
+                    throw failure(ex);
+                }
+            }
+            return -1;
+        } finally {
+            SqlTool.close(stmt);
+        }
+    }
+
+    /**
+     * Insert rows in chunks with DaoTool.batchInsert, holding one chunk at a time.
+     */
+    private static <T> long insertChunks(Connection conn, TableMap<T> map, Iterator<T> rows,
+                                         BatchOptions options) {
+        BatchOptions opts = options;
+        if (opts == null) {
+            opts = new BatchOptions();
+            opts.setMultiRowInsert(true);
+        }
+        long loaded = 0;
+        List<T> chunk = new ArrayList<T>(opts.getChunkSize());
+        while (rows.hasNext()) {
+            chunk.add(rows.next());
+            if (chunk.size() == opts.getChunkSize() || !rows.hasNext()) {
+                loaded += DaoTool.batchInsert(conn, map, chunk, opts).getRowCount();
+                chunk.clear();
+            }
+        }
+        return loaded;
+    }
+
+    /**
+     * Return a reader of rows in the CSV format read by PostgreSQL COPY.
+     */
+    static <T> Reader copyReader(TableMap<T> map, Iterator<T> rows) {
+        return new CsvRows<T>(map, rows, "", false).reader();
+    }
+
+    private static String columns(TableMap<?> map) {
+        StringBuffer sb = new StringBuffer();
+        for (Iterator<? extends FieldMap<?, ?, ?>> it = map.getAllFields().values().iterator(); it
+                .hasNext(); ) {
+            sb.append(it.next().getColumnName());
+            if (it.hasNext()) {
+                sb.append(", ");
+            }
+        }
+        return sb.toString();
+    }
+
+    private static boolean hasBinaryColumns(TableMap<?> map) {
+        for (Iterator<? extends FieldMap<?, ?, ?>> it = map.getAllFields().values().iterator(); it
+                .hasNext(); ) {
+            if (it.next().getColumnClass() == byte[].class) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static SQLException failure(InvocationTargetException ex) {
+        Throwable cause = ex.getCause();
+        if (cause instanceof SQLException) {
+            return (SQLException) cause;
+        }
+        if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        }
+        SQLException wrapped = new SQLException(String.valueOf(cause.getMessage()));
+        wrapped.initCause(cause);
+        return wrapped;
+    }
+
+    /**
+     * Encodes beans as comma-separated rows on demand. Text is always quoted, so an empty
+     * string is distinct from null, which is written as the given null text. Bytes are written
+     * as hex digits following \x, the text form of a PostgreSQL bytea.
+     */
+    private static class CsvRows<T> {
+
+        private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+        private final TableMap<T> map;
+
+        private final Iterator<T> rows;
+
+        private final Object[] values;
+
+        private final String nullText;
+
+        private final boolean numericBooleans;
+
+        private final StringBuilder row = new StringBuilder();
+
+        CsvRows(TableMap<T> map, Iterator<T> rows, String nullText, boolean numericBooleans) {
+            this.map = map;
+            this.rows = rows;
+            this.values = new Object[map.getAllFields().size()];
+            this.nullText = nullText;
+            this.numericBooleans = numericBooleans;
+        }
+
+        /**
+         * @return the next encoded row, ending in a newline, or null after the last
+         */
+        String nextRow() {
+            if (!rows.hasNext()) {
+                return null;
+            }
+            map.outboundValues(rows.next(), values);
+            row.setLength(0);
+            for (int i = 0; i < values.length; i++) {
+                if (i > 0) {
+                    row.append(',');
+                }
+                append(values[i]);
+            }
+            row.append('\n');
+            return row.toString();
+        }
+
+        private void append(Object value) {
+            if (value == null) {
+                row.append(nullText);
+            } else if (value instanceof BigDecimal) {
+                row.append(((BigDecimal) value).toPlainString());
+            } else if (value instanceof Number) {
+                row.append(value);
+            } else if (value instanceof Boolean) {
+                boolean b = ((Boolean) value).booleanValue();
+                row.append(numericBooleans ? (b ? "1" : "0") : (b ? "true" : "false"));
+            } else if (value instanceof DateTime) {
+                row.append(new Timestamp(((DateTime) value).toMillis()));
+            } else if (value instanceof Timestamp || value instanceof java.sql.Date
+                    || value instanceof Time) {
+                row.append(value);
+            } else if (value instanceof java.util.Date) {
+                row.append(new Timestamp(((java.util.Date) value).getTime()));
+            } else if (value instanceof byte[]) {
+                byte[] bytes = (byte[]) value;
+                row.append("\\x");
+                for (int i = 0; i < bytes.length; i++) {
+                    row.append(HEX_DIGITS[(bytes[i] >> 4) & 0xf]);
+                    row.append(HEX_DIGITS[bytes[i] & 0xf]);
+                }
+            } else {
+                String text = value.toString();
+                row.append('"');
+                for (int i = 0; i < text.length(); i++) {
+                    char c = text.charAt(i);
+                    if (c == '"') {
+                        row.append('"');
+                    }
+                    row.append(c);
+                }
+                row.append('"');
+            }
+        }
+
+        Reader reader() {
+            return new Reader() {
+                private String pending = "";
+                private int pos = 0;
+
+                public int read(char[] cbuf, int off, int len) {
+                    while (pos == pending.length()) {
+                        String next = nextRow();
+                        if (next == null) {
+                            return -1;
+                        }
+                        pending = next;
+                        pos = 0;
+                    }
+                    int n = Math.min(len, pending.length() - pos);
+                    pending.getChars(pos, pos + n, cbuf, off);
+                    pos += n;
+                    return n;
+                }
+
+                public void close() {
+                }
+            };
+        }
+
+        InputStream inputStream() {
+            return new InputStream() {
+                private byte[] pending = new byte[0];
+                private int pos = 0;
+
+                public int read() throws IOException {
+                    byte[] b = new byte[1];
+                    return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+                }
+
+                public int read(byte[] b, int off, int len) throws IOException {
+                    while (pos == pending.length) {
+                        String next = nextRow();
+                        if (next == null) {
+                            return -1;
+                        }
+                        pending = next.getBytes("UTF-8");
+                        pos = 0;
+                    }
+                    int n = Math.min(len, pending.length - pos);
+                    System.arraycopy(pending, pos, b, off, n);
+                    pos += n;
+                    return n;
+                }
+            };
+        }
+    }
+
+}
@@ -22,17 +22,35 @@ import org.pojava.lang.Processor;
 import org.pojava.persistence.processor.ResultSetToInt;
 import org.pojava.persistence.processor.ResultSetToList;
 import org.pojava.persistence.processor.ResultSetToProcessor;
+import org.pojava.persistence.processor.ResultSetToProjection;
 import org.pojava.persistence.query.PreparedSql;
+import org.pojava.persistence.query.Projection;
 import org.pojava.persistence.query.SqlQuery;
+import org.pojava.persistence.sql.DataSourceMetadata;
+import org.pojava.persistence.sql.DatabaseCache;
+import org.pojava.persistence.sql.EntityCache;
 import org.pojava.persistence.sql.FieldMap;
+import org.pojava.persistence.sql.IdentityMap;
+import org.pojava.persistence.sql.QueryCache;
+import org.pojava.persistence.sql.ResultCursor;
 import org.pojava.persistence.sql.TableMap;
+import org.pojava.persistence.sql.TransConnection;
 
 import java.sql.Connection;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
 
 /**
  * DaoTool provides a consistent assortment of database operations for your DAO objects to
@@ -48,6 +66,16 @@ public class DaoTool {
      */
     private static int DEFAULT_MAXROWS = 0;
 
+    private static final int BATCH_INSERT = 0;
+    private static final int BATCH_UPDATE = 1;
+    private static final int BATCH_DELETE = 2;
+    private static final int BATCH_UPSERT = 3;
+
+    /**
+     * Rows fetched per round trip by a cursor whose query gives no fetch size.
+     */
+    public static final int DEFAULT_STREAM_FETCHSIZE = 500;
+
     /**
      * Validate parameters common to various operations.
      *
@@ -72,7 +100,8 @@ public class DaoTool {
      * @param obj Target object
      * @param action action
      */
-    private static final <T> void validateParamsList(TableMap<T> map, List<T> obj, String action) {
+    private static final <T> void validateParamsList(TableMap<T> map, Collection<?> obj,
+                                                     String action) {
         if (obj == null) {
             StringBuffer msg = new StringBuffer();
             msg.append("Cannot perform ");
@@ -128,6 +157,10 @@ public class DaoTool {
      * Perform a single insert, throwing an exception if the attempted insert fails. This will
      * throw an SQLException if an existing record matches the primary key defined in the
      * TableMap.
+     * <p/>
+     * If every key field of the object is null, the key columns are left out of the insert,
+     * and the key the database generates is written back to the object where the driver
+     * reports it.
      *
      * @param conn
      * @param map
@@ -137,16 +170,35 @@ public class DaoTool {
     public static final <T> int insert(Connection conn, TableMap<T> map, T obj) {
         validateParams(map, obj, "insert");
         try {
-            PreparedSql query = new PreparedSql(map.sqlInsert(obj), DEFAULT_MAXROWS);
-            return SqlTool.executeUpdate(query, conn);
+            boolean generated = map.isKeyGenerated(obj);
+            PreparedStatement pstmt = prepare(conn, generated ? map.getInsertGeneratedSql() : map
+                    .getInsertSql(), generated);
+            try {
+                if (generated) {
+                    map.bindInsertGenerated(pstmt, obj);
+                } else {
+                    map.bindInsert(pstmt, obj, 0);
+                }
+                int ct = pstmt.executeUpdate();
+                if (generated) {
+                    assignGeneratedKeys(pstmt, map, Collections.singletonList(obj));
+                }
+                stored(conn, map, obj);
+                return ct;
+            } finally {
+                SqlTool.close(pstmt);
+            }
         } catch (SQLException ex) {
             throw new PersistenceException(ex.getMessage(), ex);
+        } finally {
+            invalidate(conn, map, obj);
         }
     }
 
     /**
      * Perform a batch insert, throwing an exception if the attempted insert fails. Pair this
-     * with processByQuery for fast high-volume transfers.
+     * with processByQuery for fast high-volume transfers. The list is sent in chunks of
+     * BatchOptions.DEFAULT_CHUNK_SIZE rows.
      *
      * @param conn Open connection to a databases
      * @param map  TableMap describing bean to table mappings
@@ -154,38 +206,494 @@ public class DaoTool {
      * @return array of success values in same order as list
      */
     public static final <T> int[] batchInsert(Connection conn, TableMap<T> map, List<T> list) {
-        PreparedStatement pstmt = null;
-        validateParamsList(map, list, "batchInsert");
-        if (list == null || list.size() == 0) {
-            return new int[0];
+        return batchInsert(conn, map, list, new BatchOptions()).getStatuses();
+    }
+
+    /**
+     * Insert a list of objects in chunks, each chunk sent as one batch. Depending on the
+     * options, inserts may be rewritten as multi-row INSERT statements, the connection may be
+     * committed after each chunk, and generated keys may be collected.
+     *
+     * @param conn    Open connection to a databases
+     * @param map     TableMap describing bean to table mappings
+     * @param list    List of objects of the class specified in map
+     * @param options chunking options, or null for the defaults
+     * @return statuses and generated keys of each chunk
+     */
+    public static final <T> BatchResult batchInsert(Connection conn, TableMap<T> map,
+                                                    List<T> list, BatchOptions options) {
+        return runBatch(conn, map, list, options, BATCH_INSERT, "batchInsert");
+    }
+
+    /**
+     * Update a list of existing objects by their key fields in a single batch per chunk.
+     *
+     * @param conn Open connection to a databases
+     * @param map  TableMap describing bean to table mappings
+     * @param list List of objects of the class specified in map
+     * @return number of rows updated for each object, in same order as list
+     */
+    public static final <T> int[] batchUpdate(Connection conn, TableMap<T> map, List<T> list) {
+        return batchUpdate(conn, map, list, new BatchOptions()).getStatuses();
+    }
+
+    /**
+     * Update a list of existing objects by their key fields, in chunks.
+     *
+     * @param conn    Open connection to a databases
+     * @param map     TableMap describing bean to table mappings
+     * @param list    List of objects of the class specified in map
+     * @param options chunking options, or null for the defaults
+     * @return statuses of each chunk
+     */
+    public static final <T> BatchResult batchUpdate(Connection conn, TableMap<T> map,
+                                                    List<T> list, BatchOptions options) {
+        return runBatch(conn, map, list, options, BATCH_UPDATE, "batchUpdate");
+    }
+
+    /**
+     * Delete a list of objects by their key fields in a single batch per chunk.
+     *
+     * @param conn Open connection to a databases
+     * @param map  TableMap describing bean to table mappings
+     * @param list List of objects of the class specified in map
+     * @return number of rows deleted for each object, in same order as list
+     */
+    public static final <T> int[] batchDelete(Connection conn, TableMap<T> map, List<T> list) {
+        return batchDelete(conn, map, list, new BatchOptions()).getStatuses();
+    }
+
+    /**
+     * Delete a list of objects by their key fields, in chunks.
+     *
+     * @param conn    Open connection to a databases
+     * @param map     TableMap describing bean to table mappings
+     * @param list    List of objects of the class specified in map
+     * @param options chunking options, or null for the defaults
+     * @return statuses of each chunk
+     */
+    public static final <T> BatchResult batchDelete(Connection conn, TableMap<T> map,
+                                                    List<T> list, BatchOptions options) {
+        return runBatch(conn, map, list, options, BATCH_DELETE, "batchDelete");
+    }
+
+    /**
+     * Update a list of objects by their key fields, inserting those not already present. Each
+     * chunk is sent as a batch of updates, followed by a batch of inserts for the rows the
+     * updates did not find.
+     *
+     * @param conn Open connection to a databases
+     * @param map  TableMap describing bean to table mappings
+     * @param list List of objects of the class specified in map
+     * @return number of rows updated or inserted for each object, in same order as list
+     */
+    public static final <T> int[] batchUpsert(Connection conn, TableMap<T> map, List<T> list) {
+        return batchUpsert(conn, map, list, new BatchOptions()).getStatuses();
+    }
+
+    /**
+     * Update a list of objects by their key fields, inserting those not already present, in
+     * chunks. A driver reporting SUCCESS_NO_INFO for an update is taken to have found the row.
+     *
+     * @param conn    Open connection to a databases
+     * @param map     TableMap describing bean to table mappings
+     * @param list    List of objects of the class specified in map
+     * @param options chunking options, or null for the defaults
+     * @return statuses and generated keys of each chunk
+     */
+    public static final <T> BatchResult batchUpsert(Connection conn, TableMap<T> map,
+                                                    List<T> list, BatchOptions options) {
+        return runBatch(conn, map, list, options, BATCH_UPSERT, "batchUpsert");
+    }
+
+    /**
+     * Discard a bean from the entity cache of its TableMap, and the cached results of queries
+     * against its table.
+     */
+    private static <T> void invalidate(Connection conn, TableMap<T> map, T obj) {
+        EntityCache<T> cache = map.getEntityCache();
+        if (cache != null) {
+            cache.invalidate(obj);
+            if (!seesEnd(conn)) {
+                cache.awaitCommit(conn);
+            }
+        }
+        invalidateQueries(conn, map);
+    }
+
+    /**
+     * Tell whether DaoTool learns how a write through a connection ends: at once in
+     * auto-commit mode, or through the commit or rollback of a TransConnection. A write
+     * through any other connection may yet be rolled back unseen.
+     */
+    private static boolean seesEnd(Connection conn) {
+        if (conn instanceof TransConnection) {
+            return true;
         }
-        T obj = list.get(0);
         try {
-            BoundString sql = map.sqlInsert(obj);
-            pstmt = conn.prepareStatement(sql.getString());
+            return conn.getAutoCommit();
+        } catch (SQLException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Record a bean just written as clean, if its write cannot be rolled back unseen, and hold
+     * it in the identity map of the connection, if any.
+     */
+    private static <T> void stored(Connection conn, TableMap<T> map, T obj) {
+        if (seesEnd(conn)) {
+            map.markClean(obj);
+        } else {
+            map.markDirty(obj);
+        }
+        hold(conn, map, obj);
+    }
+
+    /**
+     * Tell whether reads through a connection may consult and populate the shared entity and
+     * query caches of a table, which hold only committed rows of the primary. A replica
+     * connection may not, as its rows may lag behind. A transaction's connection may not once
+     * it has written the table. Any other connection may only in auto-commit mode, as its
+     * writes cannot be seen.
+     */
+    private static boolean sharesCaches(Connection conn, TableMap<?> map) {
+        if (conn instanceof TransConnection) {
+            TransConnection trans = (TransConnection) conn;
+            return !trans.isReplica() && !trans.hasWritten(map);
+        }
+        try {
+            return conn.getAutoCommit();
+        } catch (SQLException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Return the identity map of a transaction's connection, or null if it holds no beans.
+     */
+    private static IdentityMap identityMap(Connection conn) {
+        return conn instanceof TransConnection ? ((TransConnection) conn).getIdentityMap()
+                : null;
+    }
+
+    /**
+     * Hold a bean just written in the identity map of the connection, if any.
+     */
+    private static <T> void hold(Connection conn, TableMap<T> map, T obj) {
+        IdentityMap identities = identityMap(conn);
+        if (identities != null) {
+            identities.put(map, obj);
+        }
+    }
+
+    /**
+     * Replace each bean of a list with the bean already held for its row in the identity map
+     * of the connection, if any, and hold the others.
+     */
+    private static <T> List<T> merge(Connection conn, TableMap<T> map, List<T> list) {
+        IdentityMap identities = identityMap(conn);
+        if (identities != null) {
+            for (ListIterator<T> it = list.listIterator(); it.hasNext(); ) {
+                it.set(identities.merge(map, it.next()));
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Discard the cached results of queries against the table of a TableMap, and keep reads
+     * of the table through a transaction's connection out of the shared caches until it ends.
+     */
+    private static void invalidateQueries(Connection conn, TableMap<?> map) {
+        if (conn instanceof TransConnection) {
+            ((TransConnection) conn).markWritten(map);
+        }
+        QueryCache cache = DatabaseCache.getQueryCache();
+        if (cache != null) {
+            cache.invalidateTable(map.getDataSourceName(), map.getTableName());
+        }
+    }
+
+    /**
+     * Split a list into chunks and send each to the database with the given operation.
+     */
+    private static <T> BatchResult runBatch(Connection conn, TableMap<T> map, List<T> list,
+                                            BatchOptions options, int operation, String action) {
+        validateParamsList(map, list, action);
+        BatchOptions opts = options == null ? new BatchOptions() : options;
+        BatchResult result = new BatchResult();
+        int chunkSize = opts.getChunkSize();
+        int offset = 0;
+        try {
+            int rowsPerInsert = 1;
+            if (operation == BATCH_INSERT && opts.isMultiRowInsert() && list.size() > 1) {
+                DataSourceMetadata metadata = DatabaseCache.getDataSourceMetadata(map
+                        .getDataSourceName());
+                rowsPerInsert = Math.min(chunkSize, metadata.multiRowInsertLimit(map
+                        .getAllFields().size()));
+            }
+            for (; offset < list.size(); offset += chunkSize) {
+                List<T> chunk = list.subList(offset, Math.min(list.size(), offset + chunkSize));
+                int[] statuses;
+                List<Object> keys = null;
+                if (operation == BATCH_INSERT) {
+                    statuses = rowsPerInsert > 1 ? insertRows(conn, map, chunk, rowsPerInsert)
+                            : insertChunk(conn, map, chunk);
+                } else if (operation == BATCH_UPSERT) {
+                    statuses = upsertChunk(conn, map, chunk);
+                } else {
+                    statuses = keyedChunk(conn, map, chunk, operation == BATCH_DELETE);
+                }
+                if (opts.isReturnGeneratedKeys() && (operation == BATCH_INSERT
+                        || operation == BATCH_UPSERT)) {
+                    keys = keysOf(map, chunk);
+                }
+                result.addChunk(statuses, keys, commitChunk(conn, opts));
+            }
+        } catch (SQLException ex) {
+            throw new PersistenceException(action + " failed in chunk starting at row "
+                    + offset + ": " + ex.getMessage(), ex);
+        } finally {
+            EntityCache<T> cache = map.getEntityCache();
+            if (cache != null && !seesEnd(conn)) {
+                cache.awaitCommit(conn);
+            }
+            IdentityMap identities = identityMap(conn);
             for (Iterator<T> it = list.iterator(); it.hasNext(); ) {
-                obj = it.next();
-                sql = map.sqlInsert(obj);
-                SqlTool.prepareBindings(pstmt, sql.getBindings());
+                T obj = it.next();
+                if (cache != null) {
+                    cache.invalidate(obj);
+                }
+                if (identities != null) {
+                    identities.remove(map, obj);
+                }
+                map.markDirty(obj);
+            }
+            invalidateQueries(conn, map);
+        }
+        return result;
+    }
+
+    /**
+     * Insert a chunk as a batch of single-row inserts. Rows whose keys the database generates
+     * are sent as a second batch, and given the keys the driver reports, matched in order.
+     */
+    private static <T> int[] insertChunk(Connection conn, TableMap<T> map, List<T> chunk)
+            throws SQLException {
+        List<T> supplied = new ArrayList<T>(chunk.size());
+        List<T> generated = new ArrayList<T>();
+        for (Iterator<T> it = chunk.iterator(); it.hasNext(); ) {
+            T obj = it.next();
+            (map.isKeyGenerated(obj) ? generated : supplied).add(obj);
+        }
+        int[] statuses = new int[chunk.size()];
+        int[] suppliedStatuses = insertBatch(conn, map, supplied, false);
+        int[] generatedStatuses = insertBatch(conn, map, generated, true);
+        int nextSupplied = 0;
+        int nextGenerated = 0;
+        for (int i = 0; i < statuses.length; i++) {
+            if (nextGenerated < generated.size() && chunk.get(i) == generated.get(nextGenerated)) {
+                statuses[i] = generatedStatuses[nextGenerated++];
+            } else {
+                statuses[i] = suppliedStatuses[nextSupplied++];
+            }
+            if (statuses[i] == Statement.SUCCESS_NO_INFO) {
+                statuses[i] = 1;
+            }
+        }
+        return statuses;
+    }
+
+    /**
+     * Insert rows as one batch, either with their keys or leaving the keys to the database.
+     */
+    private static <T> int[] insertBatch(Connection conn, TableMap<T> map, List<T> rows,
+                                         boolean generated) throws SQLException {
+        if (rows.isEmpty()) {
+            return new int[0];
+        }
+        PreparedStatement pstmt = prepare(conn, generated ? map.getInsertGeneratedSql() : map
+                .getInsertSql(), generated);
+        try {
+            for (Iterator<T> it = rows.iterator(); it.hasNext(); ) {
+                if (generated) {
+                    map.bindInsertGenerated(pstmt, it.next());
+                } else {
+                    map.bindInsert(pstmt, it.next(), 0);
+                }
                 pstmt.addBatch();
             }
             int[] statuses = pstmt.executeBatch();
-            for (int i = 0; i < statuses.length; i++) {
-                if (statuses[i] == -2) {
-                    statuses[i] = 1;
-                }
+            if (generated) {
+                assignGeneratedKeys(pstmt, map, rows);
             }
             return statuses;
+        } finally {
+            SqlTool.close(pstmt);
+        }
+    }
+
+    /**
+     * Write the keys generated by an insert back to the beans inserted, matching the key
+     * columns by name. A driver unable to report generated keys, as some cannot for a batch,
+     * leaves the keys null rather than failing the insert that succeeded.
+     */
+    private static <T> void assignGeneratedKeys(Statement stmt, TableMap<T> map, List<T> rows) {
+        try {
+            ResultSet rs = stmt.getGeneratedKeys();
+            try {
+                map.readGeneratedKeys(rs, rows);
+            } finally {
+                rs.close();
+            }
         } catch (SQLException ex) {
-            throw new PersistenceException(ex.getMessage(), ex);
+            // The keys stay null.
+        }
+    }
+
+    /**
+     * Collect the key of each row of a chunk, in row order, once any generated keys have been
+     * written back to the beans: the value of the key field, or an Object[] of the values of
+     * the key fields of a composite key.
+     */
+    private static <T> List<Object> keysOf(TableMap<T> map, List<T> chunk) {
+        List<FieldMap<T, ?, ?>> fields = map.getKeyFields();
+        List<Object> keys = new ArrayList<Object>(chunk.size());
+        for (Iterator<T> it = chunk.iterator(); it.hasNext(); ) {
+            T obj = it.next();
+            if (fields.size() == 1) {
+                keys.add(fields.get(0).getPropertyValue(obj));
+            } else {
+                Object[] key = new Object[fields.size()];
+                for (int i = 0; i < key.length; i++) {
+                    key[i] = fields.get(i).getPropertyValue(obj);
+                }
+                keys.add(key);
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Insert a chunk as a series of multi-row inserts of up to rowsPerInsert rows each. A
+     * chunk with rows whose keys the database generates is sent as single-row inserts instead,
+     * since drivers differ in reporting the keys of a multi-row insert.
+     */
+    private static <T> int[] insertRows(Connection conn, TableMap<T> map, List<T> chunk,
+                                        int rowsPerInsert) throws SQLException {
+        for (Iterator<T> it = chunk.iterator(); it.hasNext(); ) {
+            if (map.isKeyGenerated(it.next())) {
+                return insertChunk(conn, map, chunk);
+            }
+        }
+        int[] statuses = new int[chunk.size()];
+        int columns = map.getAllFields().size();
+        for (int start = 0; start < chunk.size(); start += rowsPerInsert) {
+            int rows = Math.min(rowsPerInsert, chunk.size() - start);
+            PreparedStatement pstmt = conn.prepareStatement(map.getInsertSql(rows));
+            try {
+                for (int i = 0; i < rows; i++) {
+                    map.bindInsert(pstmt, chunk.get(start + i), i * columns);
+                }
+                int ct = pstmt.executeUpdate();
+                for (int i = 0; i < rows; i++) {
+                    statuses[start + i] = ct == rows ? 1 : Statement.SUCCESS_NO_INFO;
+                }
+            } finally {
+                SqlTool.close(pstmt);
+            }
+        }
+        return statuses;
+    }
+
+    /**
+     * Update or delete a chunk by key fields. Rows with a null key field cannot use the
+     * compiled statement, and are sent individually.
+     */
+    private static <T> int[] keyedChunk(Connection conn, TableMap<T> map, List<T> chunk,
+                                        boolean delete) throws SQLException {
+        int[] statuses = new int[chunk.size()];
+        int[] positions = new int[chunk.size()];
+        int rows = 0;
+        PreparedStatement pstmt = prepare(conn, delete ? map.getDeleteSql() : map.getUpdateSql(),
+                false);
+        try {
+            for (int i = 0; i < chunk.size(); i++) {
+                T obj = chunk.get(i);
+                if (delete ? map.bindKeys(pstmt, obj) : map.bindUpdate(pstmt, obj)) {
+                    positions[rows++] = i;
+                    pstmt.addBatch();
+                } else {
+                    statuses[i] = delete ? delete(conn, map, obj) : update(conn, map, obj);
+                }
+            }
+            if (rows > 0) {
+                int[] batched = pstmt.executeBatch();
+                for (int i = 0; i < batched.length; i++) {
+                    statuses[positions[i]] = batched[i];
+                }
+            }
         } finally {
             SqlTool.close(pstmt);
         }
+        return statuses;
+    }
+
+    /**
+     * Update a chunk, then insert the rows the update did not find.
+     */
+    private static <T> int[] upsertChunk(Connection conn, TableMap<T> map, List<T> chunk)
+            throws SQLException {
+        int[] statuses = keyedChunk(conn, map, chunk, false);
+        List<T> missing = new ArrayList<T>();
+        int[] positions = new int[chunk.size()];
+        for (int i = 0; i < statuses.length; i++) {
+            if (statuses[i] == 0) {
+                positions[missing.size()] = i;
+                missing.add(chunk.get(i));
+            } else if (statuses[i] == Statement.SUCCESS_NO_INFO) {
+                statuses[i] = 1;
+            }
+        }
+        if (!missing.isEmpty()) {
+            int[] inserted = insertChunk(conn, map, missing);
+            for (int i = 0; i < inserted.length; i++) {
+                statuses[positions[i]] = inserted[i];
+            }
+        }
+        return statuses;
+    }
+
+    private static PreparedStatement prepare(Connection conn, String sql, boolean generatedKeys)
+            throws SQLException {
+        if (generatedKeys) {
+            return conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
+        }
+        return conn.prepareStatement(sql);
+    }
+
+    /**
+     * Commit after a chunk if requested.
+     *
+     * @return true if the chunk has been committed
+     */
+    private static boolean commitChunk(Connection conn, BatchOptions options)
+            throws SQLException {
+        if (conn.getAutoCommit()) {
+            return true;
+        }
+        if (options.isCommitEachChunk()) {
+            conn.commit();
+            return true;
+        }
+        return false;
     }
 
     /**
      * Update an existing object in the table according to the primary key, and insert a new
-     * record if one does not already exist.
+     * record if one does not already exist. Where the platform has a single-statement upsert,
+     * it is used instead of an UPDATE followed by an INSERT.
      *
      * @param conn
      * @param map
@@ -194,7 +702,11 @@ public class DaoTool {
      */
     public static final <T> int updateInsert(Connection conn, TableMap<T> map, T obj) {
         validateParams(map, obj, "updateInsert");
-        int ct = update(conn, map, obj);
+        int ct = upsert(conn, map, obj, true);
+        if (ct >= 0) {
+            return ct;
+        }
+        ct = update(conn, map, obj);
         if (ct == 0) {
             ct = insert(conn, map, obj);
         }
@@ -203,7 +715,8 @@ public class DaoTool {
 
     /**
      * Insert a new record into a table, but only if that record is not already present
-     * according to its primary key.
+     * according to its primary key. Where the platform allows, this is a single statement
+     * rather than a find followed by an insert.
      *
      * @param conn
      * @param map
@@ -212,29 +725,101 @@ public class DaoTool {
      */
     public static final <T> int passiveInsert(Connection conn, TableMap<T> map, T obj) {
         validateParams(map, obj, "passiveInsert");
+        int ct = upsert(conn, map, obj, false);
+        if (ct >= 0) {
+            return ct;
+        }
         if (null == find(conn, map, obj)) {
             return insert(conn, map, obj);
         }
         return 0;
     }
 
+    /**
+     * Insert a row, updating or keeping the row with the same key, in a single statement.
+     *
+     * @param update true to update a matching row, false to leave it alone
+     * @return rows inserted or updated, or -1 if the platform has no such statement or a key
+     *         field is null
+     */
+    private static <T> int upsert(Connection conn, TableMap<T> map, T obj, boolean update) {
+        try {
+            DataSourceMetadata metadata = DatabaseCache.getDataSourceMetadata(map
+                    .getDataSourceName());
+            String sql = update ? map.getUpsertSql(metadata) : map.getInsertIfAbsentSql(metadata);
+            if (sql == null) {
+                return -1;
+            }
+            PreparedStatement pstmt = conn.prepareStatement(sql);
+            try {
+                boolean bound = update ? map.bindUpsert(pstmt, obj, metadata) : map
+                        .bindInsertIfAbsent(pstmt, obj, metadata);
+                if (!bound) {
+                    return -1;
+                }
+                // MySQL counts an updated row twice.
+                int ct = Math.min(1, pstmt.executeUpdate());
+                if (ct > 0) {
+                    stored(conn, map, obj);
+                } else {
+                    map.markDirty(obj);
+                }
+                return ct;
+            } finally {
+                SqlTool.close(pstmt);
+            }
+        } catch (SQLException ex) {
+            throw new PersistenceException(ex.getMessage(), ex);
+        } finally {
+            invalidate(conn, map, obj);
+        }
+    }
+
     /**
      * Update an existing record in a table. The record is selected by its key fields and its
      * non-key fields are updated. This does not throw an exception if the record does not
      * already exist.
+     * <p/>
+     * If the map tracks dirty beans and this bean was read or written through it, only the
+     * fields changed since are updated, and a bean with no changes is not sent at all. Every
+     * field is updated through a connection in manual commit mode that is not a
+     * TransConnection, as its rollback would go unseen.
      *
      * @param conn
      * @param map
      * @param obj
-     * @return Number of rows updated.
+     * @return Number of rows updated, or 1 if the bean has not changed since it was stored.
      */
     public static final <T> int update(Connection conn, TableMap<T> map, T obj) {
         validateParams(map, obj, "update");
+        BitSet changed = seesEnd(conn) ? map.changedFields(obj) : null;
+        if (changed != null && changed.isEmpty()) {
+            return 1;
+        }
         try {
-            PreparedSql query = new PreparedSql(map.sqlUpdate(obj), DEFAULT_MAXROWS);
-            return SqlTool.executeUpdate(query, conn);
+            PreparedStatement pstmt = conn.prepareStatement(changed == null ? map
+                    .getUpdateSql() : map.getUpdateSql(changed));
+            try {
+                boolean bound = changed == null ? map.bindUpdate(pstmt, obj) : map.bindUpdate(
+                        pstmt, obj, changed);
+                if (bound) {
+                    int ct = pstmt.executeUpdate();
+                    if (ct > 0) {
+                        stored(conn, map, obj);
+                    }
+                    return ct;
+                }
+            } finally {
+                SqlTool.close(pstmt);
+            }
+            // A null key is matched with IS NULL, which the compiled statement cannot express.
+            map.markDirty(obj);
+            return SqlTool.executeUpdate(new PreparedSql(map.sqlUpdate(obj), DEFAULT_MAXROWS),
+                    conn);
         } catch (SQLException ex) {
             throw new PersistenceException(ex.getMessage(), ex);
+        } finally {
+            invalidate(conn, map, obj);
         }
     }
 
@@ -249,16 +834,34 @@ public class DaoTool {
     public static final <T> int delete(Connection conn, TableMap<T> map, T obj) {
         validateParams(map, obj, "delete");
         try {
-            PreparedSql query = new PreparedSql(map.sqlDelete(obj), DEFAULT_MAXROWS);
-            return SqlTool.executeUpdate(query, conn);
+            PreparedStatement pstmt = conn.prepareStatement(map.getDeleteSql());
+            try {
+                if (map.bindKeys(pstmt, obj)) {
+                    return pstmt.executeUpdate();
+                }
+            } finally {
+                SqlTool.close(pstmt);
+            }
+            return SqlTool.executeUpdate(new PreparedSql(map.sqlDelete(obj), DEFAULT_MAXROWS),
+                    conn);
         } catch (SQLException ex) {
             throw new PersistenceException(ex.getMessage(), ex);
+        } finally {
+            IdentityMap identities = identityMap(conn);
+            if (identities != null) {
+                identities.remove(map, obj);
+            }
+            map.markDirty(obj);
+            invalidate(conn, map, obj);
         }
 
     }
 
     /**
-     * Retrieve a single record according to its primary key.
+     * Retrieve a single record according to its primary key. If the TableMap has an entity
+     * cache, a copy of the cached bean is returned when present, and a bean read from the
+     * database is cached. If the connection belongs to a DatabaseTransaction holding an
+     * identity map, the bean held for the row is returned without a query.
      *
      * @param conn
      * @param map
@@ -267,16 +870,48 @@ public class DaoTool {
      */
     public static final <T> T find(Connection conn, TableMap<T> map, T obj) {
         validateParams(map, obj, "find");
+        IdentityMap identities = identityMap(conn);
+        if (identities != null) {
+            T held = identities.get(map, obj);
+            if (held != null) {
+                return held;
+            }
+        }
+        EntityCache<T> cache = sharesCaches(conn, map) ? map.getEntityCache() : null;
+        long generation = 0;
+        if (cache != null) {
+            T cached = cache.get(obj);
+            if (cached != null) {
+                return identities == null ? cached : identities.merge(map, cached);
+            }
+            generation = cache.getGeneration();
+        }
         try {
-            PreparedSql query = new PreparedSql(map.sqlSelect(obj), DEFAULT_MAXROWS);
             List<T> list = new ArrayList<T>();
             ResultSetToList<T> processor = new ResultSetToList<T>(map, list);
-            int ct = SqlTool.executeQuery(query, conn, processor);
+            String sql = map.getSelectByKeySql();
+            int ct = -1;
+            PreparedStatement pstmt = conn.prepareStatement(sql);
+            try {
+                if (map.bindKeys(pstmt, obj)) {
+                    ct = SqlTool.executeQuery(pstmt, sql, processor);
+                }
+            } finally {
+                SqlTool.close(pstmt);
+            }
+            if (ct < 0) {
+                ct = SqlTool.executeQuery(new PreparedSql(map.sqlSelect(obj), DEFAULT_MAXROWS),
+                        conn, processor);
+            }
             if (ct == 0) {
                 return null;
             }
             if (ct == 1) {
-                return list.get(0);
+                T found = list.get(0);
+                if (cache != null) {
+                    cache.put(found, generation);
+                }
+                return identities == null ? found : identities.merge(map, found);
             }
             StringBuffer msg = new StringBuffer();
             msg.append("Data integrity violation.  TableMap for class=");
@@ -298,27 +933,210 @@ public class DaoTool {
     }
 
     /**
-     * Return a packaged list of objects matching the query.
+     * Retrieve the records having the primary keys of the given beans, matching many keys per
+     * query rather than issuing a find for each. Keys are looked up in chunks whose sizes are
+     * drawn from a few fixed buckets, the last chunk padded by repeating a key, so that lookups
+     * of any number of keys reuse a few cached statements.
+     * <p/>
+     * As with find, a bean held in the identity map of the connection or in the entity cache
+     * of the TableMap is returned without a query, and beans read are cached and held. Beans
+     * with a null key field are skipped.
+     *
+     * @param conn
+     * @param map
+     * @param beans beans whose key fields identify the records
+     * @return beans found, mapped by key: the key value for a single key field, or a List of
+     *         the key values in the order of the key fields for a composite key
+     */
+    public static final <T> Map<Object, T> findAll(Connection conn, TableMap<T> map,
+                                                   Collection<T> beans) {
+        validateParamsList(map, beans, "findAll");
+        Map<Object, T> found = new LinkedHashMap<Object, T>();
+        Map<Object, Object[]> missing = new LinkedHashMap<Object, Object[]>();
+        IdentityMap identities = identityMap(conn);
+        EntityCache<T> cache = sharesCaches(conn, map) ? map.getEntityCache() : null;
+        long generation = cache == null ? 0 : cache.getGeneration();
+        for (Iterator<T> it = beans.iterator(); it.hasNext(); ) {
+            T obj = it.next();
+            Object[] values = obj == null ? null : map.keyValues(obj);
+            if (values == null) {
+                continue;
+            }
+            Object key = resultKey(values);
+            if (found.containsKey(key) || missing.containsKey(key)) {
+                continue;
+            }
+            T held = identities == null ? null : identities.get(map, obj);
+            if (held == null && cache != null) {
+                held = cache.get(obj);
+                if (held != null && identities != null) {
+                    held = identities.merge(map, held);
+                }
+            }
+            if (held == null) {
+                missing.put(key, values);
+            } else {
+                found.put(key, held);
+            }
+        }
+        findByKeyValues(conn, map, new ArrayList<Object[]>(missing.values()), found, cache,
+                generation);
+        return found;
+    }
+
+    /**
+     * Retrieve the records having the given primary keys, matching many keys per query as
+     * findAll does. Each key is the key value for a single key field, or a List or array of
+     * the key values in the order of the key fields for a composite key. Beans read are held
+     * in the identity map of the connection and put in the entity cache of the TableMap, but
+     * neither is consulted, as there is no bean to look up.
+     *
+     * @param conn
+     * @param map
+     * @param keys key values identifying the records
+     * @return beans found, mapped by key as for findAll
+     */
+    public static final <T> Map<Object, T> findAllByKey(Connection conn, TableMap<T> map,
+                                                        Collection<?> keys) {
+        validateParamsList(map, keys, "findAllByKey");
+        int keyCount = map.getKeyFields().size();
+        Map<Object, Object[]> unique = new LinkedHashMap<Object, Object[]>();
+        for (Iterator<?> it = keys.iterator(); it.hasNext(); ) {
+            Object key = it.next();
+            Object[] values;
+            if (key instanceof Object[]) {
+                values = (Object[]) key;
+            } else if (key instanceof List) {
+                values = ((List<?>) key).toArray();
+            } else {
+                values = new Object[]{key};
+            }
+            if (values.length != keyCount) {
+                throw new IllegalArgumentException("Cannot perform findAllByKey because key "
+                        + Arrays.asList(values) + " does not have the " + keyCount
+                        + " values of the key fields of " + map.getTableName() + ".");
+            }
+            if (!Arrays.asList(values).contains(null)) {
+                unique.put(resultKey(values), values);
+            }
+        }
+        EntityCache<T> cache = sharesCaches(conn, map) ? map.getEntityCache() : null;
+        Map<Object, T> found = new LinkedHashMap<Object, T>();
+        findByKeyValues(conn, map, new ArrayList<Object[]>(unique.values()), found, cache,
+                cache == null ? 0 : cache.getGeneration());
+        return found;
+    }
+
+    /**
+     * Query the records having the given key values in chunks, adding each bean read to the
+     * results by its key.
+     */
+    private static <T> void findByKeyValues(Connection conn, TableMap<T> map,
+                                            List<Object[]> keys, Map<Object, T> found,
+                                            EntityCache<T> cache, long generation) {
+        IdentityMap identities = identityMap(conn);
+        List<T> list = new ArrayList<T>();
+        ResultSetToList<T> processor = new ResultSetToList<T>(map, list);
+        try {
+            int start = 0;
+            while (start < keys.size()) {
+                int size = map.keyBucket(keys.size() - start);
+                int end = Math.min(keys.size(), start + size);
+                String sql = map.getSelectByKeysSql(size);
+                PreparedStatement pstmt = conn.prepareStatement(sql);
+                try {
+                    map.bindKeyValues(pstmt, keys.subList(start, end), size);
+                    SqlTool.executeQuery(pstmt, sql, processor);
+                } finally {
+                    SqlTool.close(pstmt);
+                }
+                start = end;
+            }
+        } catch (SQLException ex) {
+            throw new PersistenceException(ex.getMessage(), ex);
+        }
+        for (Iterator<T> it = list.iterator(); it.hasNext(); ) {
+            T bean = it.next();
+            if (cache != null) {
+                cache.put(bean, generation);
+            }
+            if (identities != null) {
+                bean = identities.merge(map, bean);
+            }
+            found.put(resultKey(map.keyValues(bean)), bean);
+        }
+    }
+
+    /**
+     * Key under which findAll returns a bean: its single key value, or a List of its key
+     * values.
+     */
+    private static Object resultKey(Object[] values) {
+        return values.length == 1 ? values[0] : Arrays.asList(values);
+    }
+
+    /**
+     * Return a packaged list of objects matching the query. If the connection belongs to a
+     * DatabaseTransaction holding an identity map, a row already held is returned as the bean
+     * held, and the other beans are held.
      *
      * @param conn
      * @param map
      * @param query
      * @return a List of objects matching the query.
      */
-    public static final <T> List<T> listByQuery(Connection conn, TableMap<T> map, SqlQuery query) {
+    public static final <T> List<T> listByQuery(final Connection conn, final TableMap<T> map,
+                                                SqlQuery query) {
         validateParamsQuery(map, query, "listByQuery");
         try {
-            PreparedSql sql = query.generatePreparedSql(map.sqlSelect());
-            List<T> list = new ArrayList<T>();
-            ResultSetToList<T> processor = new ResultSetToList<T>(map, list);
-            SqlTool.executeQuery(sql, conn, processor);
-            return list;
+            final PreparedSql sql = selectSql(map, query);
+            QueryCache.Loader<List<T>> loader = new QueryCache.Loader<List<T>>() {
+                public List<T> load() throws SQLException {
+                    List<T> list = new ArrayList<T>();
+                    ResultSetToList<T> processor = new ResultSetToList<T>(map, list);
+                    SqlTool.executeQuery(sql, conn, processor);
+                    return list;
+                }
+            };
+            QueryCache cache = DatabaseCache.getQueryCache();
+            if (cache == null || query.getCacheTtlMillis() == SqlQuery.CACHE_NEVER
+                    || !sharesCaches(conn, map)) {
+                return merge(conn, map, loader.load());
+            }
+            return merge(conn, map, cache.list(map, sql, query.getCacheTtlMillis(), loader));
         } catch (SQLException ex) {
             throw new PersistenceException(ex.getMessage(), ex);
         }
 
     }
 
+    /**
+     * Return the projected rows matching the query, selecting only the columns of the
+     * projection and reading each row into its result class rather than the bean of the
+     * TableMap. The results are not cached or held in an identity map, being not beans.
+     *
+     * @param conn
+     * @param projection columns selected and the result they populate
+     * @param query
+     * @return a List of results matching the query.
+     */
+    public static final <R> List<R> listByQuery(Connection conn, Projection<R> projection,
+                                                SqlQuery query) {
+        if (projection == null) {
+            throw new IllegalArgumentException(
+                    "Cannot perform listByQuery using a null projection.");
+        }
+        validateParamsQuery(projection.getTableMap(), query, "listByQuery");
+        try {
+            List<R> list = new ArrayList<R>();
+            SqlTool.executeQuery(selectSql(projection.getTableMap(), projection.sqlSelect(),
+                    query), conn, new ResultSetToProjection<R>(projection, list));
+            return list;
+        } catch (SQLException ex) {
+            throw new PersistenceException(ex.getMessage(), ex);
+        }
+    }
+
     /**
      * Process a list of objects matching the query using the user-defined class extending
      * Processor. Each row is packaged into a bean according to the TableMap, and then
@@ -337,13 +1155,77 @@ public class DaoTool {
         validateParamsQuery(map, query, "processByQuery");
         try {
             ResultSetToProcessor<T> processor = new ResultSetToProcessor<T>(map, objProcessor);
-            return SqlTool.executeQuery(query.generatePreparedSql(map.sqlSelect()), conn,
-                    processor);
+            return SqlTool.executeQuery(selectSql(map, query), conn, processor);
         } catch (SQLException ex) {
             throw new PersistenceException(ex.getMessage(), ex);
         }
     }
 
+    /**
+     * Return a cursor over the objects matching the query. Each row is packaged into a bean
+     * only when the cursor reaches it, and the driver is asked to fetch rows in batches of the
+     * query's fetch size (or DEFAULT_STREAM_FETCHSIZE if none is given), so very large results
+     * can be exported without holding them in memory. The cursor closes itself after the last
+     * row; a caller that stops early must close it.
+     *
+     * @param conn
+     * @param map
+     * @param query
+     * @return an open cursor over the objects matching the query
+     */
+    public static final <T> ResultCursor<T> streamByQuery(Connection conn, TableMap<T> map,
+                                                          SqlQuery query) {
+        int fetchSize = query == null ? 0 : query.getFetchSize();
+        return streamByQuery(conn, map, query, fetchSize > 0 ? fetchSize
+                : DEFAULT_STREAM_FETCHSIZE);
+    }
+
+    /**
+     * Return a cursor over the objects matching the query, fetching the given number of rows
+     * per round trip.
+     *
+     * @param conn
+     * @param map
+     * @param query
+     * @param fetchSize rows fetched per round trip
+     * @return an open cursor over the objects matching the query
+     */
+    public static final <T> ResultCursor<T> streamByQuery(Connection conn, TableMap<T> map,
+                                                          SqlQuery query, int fetchSize) {
+        validateParamsQuery(map, query, "streamByQuery");
+        try {
+            PreparedSql generated = selectSql(map, query);
+            PreparedSql sql = new PreparedSql(generated.getSql(), generated.getMaxRows(),
+                    fetchSize, generated.getQueryTimeout());
+            DataSourceMetadata metadata = DatabaseCache.getDataSourceMetadata(map
+                    .getDataSourceName());
+            return SqlTool.openCursor(sql, conn, map, metadata);
+        } catch (SQLException ex) {
+            throw new PersistenceException(ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Generate the SELECT statement of a query, limited in the platform's dialect if the query
+     * is paginated.
+     */
+    private static <T> PreparedSql selectSql(TableMap<T> map, SqlQuery query)
+            throws SQLException {
+        return selectSql(map, map.sqlSelect(), query);
+    }
+
+    /**
+     * Generate the SQL of a query from the given SELECT of a TableMap's table.
+     */
+    private static PreparedSql selectSql(TableMap<?> map, BoundString select, SqlQuery query)
+            throws SQLException {
+        if (query.getKeyset() == null) {
+            return query.generatePreparedSql(select);
+        }
+        return query.generatePreparedSql(select, DatabaseCache.getDataSourceMetadata(map
+                .getDataSourceName()));
+    }
+
     /**
      * Return a count of rows matching your query.
      *
@@ -351,17 +1233,27 @@ public class DaoTool {
      * @param query
      * @return intValue of first column of first row of ResultSet
      */
-    public static final <T> int countByQuery(Connection conn, TableMap<T> map, SqlQuery query) {
+    public static final <T> int countByQuery(final Connection conn, TableMap<T> map,
+                                             SqlQuery query) {
         try {
             if (query == null) {
                 StringBuffer msg = new StringBuffer();
                 msg.append("Cannot perform countByQuery using a null query.");
                 throw new IllegalArgumentException(msg.toString());
             }
-            PreparedSql sql = query.generatePreparedSql("SELECT COUNT(*) FROM "
+            final PreparedSql sql = query.generateUnpagedSql("SELECT COUNT(*) FROM "
                     + map.getTableName());
-            ResultSetToInt processor = new ResultSetToInt();
-            return SqlTool.executeQuery(sql, conn, processor);
+            QueryCache.Loader<Integer> loader = new QueryCache.Loader<Integer>() {
+                public Integer load() throws SQLException {
+                    return Integer.valueOf(SqlTool.executeQuery(sql, conn, new ResultSetToInt()));
+                }
+            };
+            QueryCache cache = DatabaseCache.getQueryCache();
+            if (cache == null || query.getCacheTtlMillis() == SqlQuery.CACHE_NEVER
+                    || !sharesCaches(conn, map)) {
+                return loader.load().intValue();
+            }
+            return cache.count(map, sql, query.getCacheTtlMillis(), loader);
         } catch (SQLException ex) {
             throw new PersistenceException(ex.getMessage(), ex);
         }
@@ -381,10 +1273,24 @@ public class DaoTool {
                 msg.append("Cannot perform deleteQuery using a null query.");
                 throw new IllegalArgumentException(msg.toString());
             }
-            PreparedSql sql = query.generatePreparedSql("DELETE FROM " + map.getTableName());
+            PreparedSql sql = query.generateUnpagedSql("DELETE FROM " + map.getTableName());
             return SqlTool.executeUpdate(sql, conn);
         } catch (SQLException ex) {
             throw new PersistenceException(ex.getMessage(), ex);
+        } finally {
+            IdentityMap identities = identityMap(conn);
+            if (identities != null) {
+                identities.removeAll(map);
+            }
+            map.markAllDirty();
+            EntityCache<T> cache = map.getEntityCache();
+            if (cache != null) {
+                cache.invalidateAll();
+                if (!seesEnd(conn)) {
+                    cache.awaitCommit(conn);
+                }
+            }
+            invalidateQueries(conn, map);
         }
     }
 
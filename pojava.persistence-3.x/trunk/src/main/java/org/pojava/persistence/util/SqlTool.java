@@ -16,15 +16,22 @@ package org.pojava.persistence.util;
  limitations under the License.
  */
 
-import org.pojava.datetime.DateTime;
 import org.pojava.exception.InitializationException;
 import org.pojava.exception.PersistenceException;
 import org.pojava.lang.BoundString;
 import org.pojava.lang.UncheckedBinding;
 import org.pojava.persistence.jndi.DriverManagerDataSource;
+import org.pojava.persistence.jndi.PooledDataSource;
 import org.pojava.persistence.processor.ResultSetProcessor;
+import org.pojava.persistence.processor.ResultSetTimer;
 import org.pojava.persistence.processor.ResultSetToInt;
 import org.pojava.persistence.query.PreparedSql;
+import org.pojava.persistence.sql.DataSourceMetadata;
+import org.pojava.persistence.sql.DatabaseCache;
+import org.pojava.persistence.sql.ParameterBinder;
+import org.pojava.persistence.sql.ReadPlan;
+import org.pojava.persistence.sql.ResultCursor;
+import org.pojava.persistence.sql.SqlStatistics;
 import org.pojava.persistence.sql.TableMap;
 
 import javax.naming.Context;
@@ -34,7 +41,6 @@ import javax.sql.DataSource;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.math.BigDecimal;
 import java.sql.*;
 import java.util.Enumeration;
 import java.util.Iterator;
@@ -65,9 +71,31 @@ public class SqlTool {
      */
     public static int executeUpdate(PreparedSql query, Connection conn) throws SQLException {
         PreparedStatement pstmt = generatePreparedStatement(query, conn);
-        int result = pstmt.executeUpdate();
-        pstmt.close();
-        return result;
+        try {
+            return pstmt.executeUpdate();
+        } finally {
+            pstmt.close();
+        }
+    }
+
+    /**
+     * Execute an insert/update/delete statement with positional bindings, returning row count.
+     *
+     * @param sql      SQL statement, such as one compiled by a TableMap
+     * @param bindings values bound to the statement placeholders
+     * @param conn
+     * @return row count applicable to statement executed
+     * @throws java.sql.SQLException
+     */
+    public static int executeUpdate(String sql, UncheckedBinding[] bindings, Connection conn)
+            throws SQLException {
+        PreparedStatement pstmt = conn.prepareStatement(sql);
+        try {
+            prepareBindings(pstmt, bindings);
+            return pstmt.executeUpdate();
+        } finally {
+            pstmt.close();
+        }
     }
 
     /**
@@ -86,12 +114,124 @@ public class SqlTool {
             pstmt = generatePreparedStatement(query, conn);
             rs = pstmt.executeQuery();
             int result = processor.process(rs);
+            recordRead(query.getSql().getString(), processor, result);
+            return result;
+        } finally {
+            close(rs, pstmt);
+        }
+    }
+
+    /**
+     * Execute a select statement with positional bindings, processing its ResultSet.
+     *
+     * @param sql       SQL statement, such as one compiled by a TableMap
+     * @param bindings  values bound to the statement placeholders
+     * @param conn
+     * @param processor
+     * @return ResultSetProcessor return value, typically number of rows processed
+     * @throws java.sql.SQLException
+     */
+    public static int executeQuery(String sql, UncheckedBinding[] bindings, Connection conn,
+                                   ResultSetProcessor processor) throws SQLException {
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        try {
+            pstmt = conn.prepareStatement(sql);
+            prepareBindings(pstmt, bindings);
+            rs = pstmt.executeQuery();
+            int result = processor.process(rs);
+            recordRead(sql, processor, result);
             return result;
         } finally {
             close(rs, pstmt);
         }
     }
 
+    /**
+     * Execute a select statement whose placeholders are already bound, processing its
+     * ResultSet. The ResultSet is closed, but the statement is left to the caller.
+     *
+     * @param pstmt     bound statement
+     * @param sql       SQL of the statement, used to record statistics
+     * @param processor
+     * @return ResultSetProcessor return value, typically number of rows processed
+     * @throws java.sql.SQLException
+     */
+    public static int executeQuery(PreparedStatement pstmt, String sql,
+                                   ResultSetProcessor processor) throws SQLException {
+        ResultSet rs = pstmt.executeQuery();
+        try {
+            int result = processor.process(rs);
+            recordRead(sql, processor, result);
+            return result;
+        } finally {
+            rs.close();
+        }
+    }
+
+    /**
+     * Record the rows read by a processor that measures its time, if statistics are kept.
+     */
+    private static void recordRead(String sql, ResultSetProcessor processor, int rows) {
+        SqlStatistics statistics = DatabaseCache.getSqlStatistics();
+        if (statistics != null && processor instanceof ResultSetTimer) {
+            ResultSetTimer timer = (ResultSetTimer) processor;
+            statistics.recordRead(sql, rows, timer.getFetchNanos(), timer.getMappingNanos());
+        }
+    }
+
+    /**
+     * Execute a select query, returning a cursor that extracts beans from the rows as they are
+     * read. The statement is forward-only and read-only, and its fetch size is adjusted for the
+     * platform so that the driver streams rows rather than buffering the whole result. If the
+     * platform only streams within a transaction, auto-commit is turned off until the cursor is
+     * closed.
+     *
+     * @param query     query with fetch size and timeout hints
+     * @param conn      JDBC Connection
+     * @param map       TableMap describing the beans
+     * @param metadata  metadata describing the platform of the Connection
+     * @return open ResultCursor, which the caller must close if not read to the end
+     * @throws java.sql.SQLException
+     */
+    public static <T> ResultCursor<T> openCursor(PreparedSql query, Connection conn,
+                                                 TableMap<T> map, DataSourceMetadata metadata) throws SQLException {
+        boolean restoreAutoCommit = false;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        try {
+            if (metadata.isStreamingTransactional() && conn.getAutoCommit()) {
+                conn.setAutoCommit(false);
+                restoreAutoCommit = true;
+            }
+            BoundString bs = query.getSql();
+            pstmt = conn.prepareStatement(bs.getString(), ResultSet.TYPE_FORWARD_ONLY,
+                    ResultSet.CONCUR_READ_ONLY);
+            prepareBindings(pstmt, bs.getBindings());
+            pstmt.setMaxRows(query.getMaxRows());
+            if (query.getQueryTimeout() > 0) {
+                pstmt.setQueryTimeout(query.getQueryTimeout());
+            }
+            pstmt.setFetchSize(metadata.streamingFetchSize(query.getFetchSize()));
+            rs = pstmt.executeQuery();
+            ReadPlan<T> plan = map.readPlan(rs.getMetaData());
+            return new ResultCursor<T>(conn, pstmt, rs, plan, restoreAutoCommit, DatabaseCache
+                    .getSqlStatistics(), bs.getString());
+        } catch (SQLException ex) {
+            close(rs, pstmt);
+            if (restoreAutoCommit) {
+                conn.setAutoCommit(true);
+            }
+            throw ex;
+        } catch (RuntimeException ex) {
+            close(rs, pstmt);
+            if (restoreAutoCommit) {
+                conn.setAutoCommit(true);
+            }
+            throw ex;
+        }
+    }
+
     /**
      * Return an integer value (such as a count) from your query. This assumes your query yields
      * a single integer result and returns the intValue of the first column of the ResultSet.
@@ -128,6 +268,12 @@ public class SqlTool {
         PreparedStatement pstmt = conn.prepareStatement(bs.getString());
         prepareBindings(pstmt, bs.getBindings());
         pstmt.setMaxRows(preparedSql.getMaxRows());
+        if (preparedSql.getFetchSize() > 0) {
+            pstmt.setFetchSize(preparedSql.getFetchSize());
+        }
+        if (preparedSql.getQueryTimeout() > 0) {
+            pstmt.setQueryTimeout(preparedSql.getQueryTimeout());
+        }
         return pstmt;
     }
 
@@ -143,49 +289,30 @@ public class SqlTool {
         int i = 0;
         for (Iterator<UncheckedBinding> it = list.iterator(); it.hasNext(); ) {
             i++;
-            UncheckedBinding binding = it.next();
-            int sqlType = sqlTypeFromClass(binding.getType());
-            Object o = binding.getObj();
-            if (o == null) {
-                pstmt.setNull(i, sqlType);
-            } else {
-                pstmt.setObject(i, o, sqlType);
-            }
+            bind(pstmt, i, it.next());
         }
     }
 
     /**
-     * Multi-purpose class to SQL type translation
+     * Bind an array of bindings to a prepared statement
      *
-     * @param c Class of java object to persist
-     * @return A Types constant compatible with the value type
+     * @param pstmt    PreparedStatement needing bindings
+     * @param bindings Bindings in placeholder order
+     * @throws java.sql.SQLException
      */
-    private static int sqlTypeFromClass(Class<?> c) {
-        int type = 0;
-        if (c.equals(Integer.class) || c.equals(int.class)) {
-            type = Types.INTEGER;
-        } else if (c.equals(Long.class) || c.equals(long.class)) {
-            type = Types.BIGINT;
-        } else if (c.equals(Boolean.class) || c.equals(boolean.class)) {
-            type = Types.BIT;
-        } else if (c.equals(Character.class) || c.equals(char.class)) {
-            type = Types.CHAR;
-        } else if (c.equals(Date.class)) {
-            type = Types.DATE;
-        } else if (c.equals(DateTime.class) || c.equals(java.util.Date.class)
-                || c.equals(Timestamp.class)) {
-            type = Types.TIMESTAMP;
-        } else if (c.equals(Double.class) || c.equals(double.class) || c.equals(Float.class)
-                || c.equals(float.class) || c.equals(BigDecimal.class)) {
-            type = Types.NUMERIC;
-        } else if (c.equals(Time.class)) {
-            type = Types.TIME;
-        } else if (c.equals(Byte.class) || c.equals(byte.class)) {
-            type = Types.TINYINT;
-        } else {
-            type = Types.VARCHAR;
+    public static void prepareBindings(PreparedStatement pstmt, UncheckedBinding[] bindings)
+            throws SQLException {
+        for (int i = 0; i < bindings.length; i++) {
+            bind(pstmt, i + 1, bindings[i]);
         }
-        return type;
+    }
+
+    /**
+     * Bind a single value to a prepared statement placeholder.
+     */
+    private static void bind(PreparedStatement pstmt, int position, UncheckedBinding binding)
+            throws SQLException {
+        ParameterBinder.forClass(binding.getType()).bind(pstmt, position, binding.getObj());
     }
 
     /**
@@ -348,7 +475,9 @@ public class SqlTool {
     }
 
     /**
-     * Registers a DataSource into the InitialContext.
+     * Registers a DataSource into the InitialContext. If "${dsName}.pool.maxSize" is specified,
+     * the DataSource is wrapped in a PooledDataSource. The number of statements cached per
+     * connection may be set with "${dsName}.statementCacheSize".
      *
      * @param props  A Properties object pre-populated with data
      * @param dsName The name of the DataSource to register in JNDI.
@@ -379,6 +508,8 @@ public class SqlTool {
         }
         DataSource ds = new DriverManagerDataSource(props.getProperty(dsName + ".url"), props
                 .getProperty(dsName + ".user"), props.getProperty(dsName + ".password"));
+        ds = PooledDataSource.configure(props, dsName, ds);
+        DatabaseCache.configureStatementCache(props, dsName);
         ctx.bind("java:/comp/env/jdbc/" + dsName.trim(), ds);
 
     }
@@ -397,7 +528,7 @@ public class SqlTool {
         Class.forName(props.getProperty(dsName + ".driver"));
         DataSource ds = new DriverManagerDataSource(props.getProperty(dsName + ".url"), props
                 .getProperty(dsName + ".user"), props.getProperty(dsName + ".password"));
-        return ds;
+        return PooledDataSource.configure(props, dsName, ds);
     }
 
 }
@@ -4,6 +4,7 @@ import org.pojava.lang.Processor;
 import org.pojava.persistence.query.SqlQuery;
 import org.pojava.persistence.sql.ConnectionSource;
 import org.pojava.persistence.sql.DatabaseCache;
+import org.pojava.persistence.sql.ResultCursor;
 import org.pojava.persistence.sql.TableMap;
 import org.pojava.persistence.util.DaoTool;
 
@@ -56,6 +57,11 @@ public class TypeTestDao {
                 query);
     }
 
+    public static ResultCursor<TypeTest> streamByQuery(ConnectionSource connector,
+                                                       SqlQuery query) throws SQLException {
+        return DaoTool.streamByQuery(connector.getConnection(DS_NAME), MAP, query);
+    }
+
     public static int deleteByQuery(ConnectionSource connector, SqlQuery query)
             throws SQLException {
         return DaoTool.deleteByQuery(connector.getConnection(DS_NAME), MAP, query);
@@ -0,0 +1,148 @@
+package org.pojava.persistence.jndi;
+
+import junit.framework.TestCase;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Properties;
+
+public class PooledDataSourceTester extends TestCase {
+
+    private PooledDataSource pool;
+
+    public void setUp() throws Exception {
+        JNDIRegistry.getInitialContext();
+        JNDIRegistry.registerDatasourcesFromFile("config/ds_test.properties");
+        DataSource ds = JNDIRegistry.lookupDataSource("pojava_test");
+        this.pool = new PooledDataSource(ds, 2);
+        pool.setBorrowTimeout(100);
+    }
+
+    public void tearDown() throws Exception {
+        pool.close();
+    }
+
+    public void testReuse() throws Exception {
+        Connection conn = pool.getConnection();
+        String physical = conn.toString();
+        assertEquals(1, pool.getActiveCount());
+        conn.close();
+        assertEquals(0, pool.getActiveCount());
+        assertEquals(1, pool.getIdleCount());
+        conn = pool.getConnection();
+        assertEquals(physical, conn.toString());
+        conn.close();
+        assertEquals(1, pool.getCreatedCount());
+        assertEquals(2, pool.getBorrowCount());
+    }
+
+    public void testClosedConnection() throws Exception {
+        Connection conn = pool.getConnection();
+        conn.close();
+        assertTrue(conn.isClosed());
+        conn.close();
+        assertEquals(1, pool.getIdleCount());
+        try {
+            conn.createStatement();
+            fail("Expected SQLException");
+        } catch (SQLException ex) {
+            assertTrue(ex.getMessage().contains("returned"));
+        }
+    }
+
+    public void testStatementsClosedOnReturn() throws Exception {
+        Connection conn = pool.getConnection();
+        PreparedStatement pstmt = conn.prepareStatement("SELECT 1");
+        Statement stmt = conn.createStatement();
+        assertSame(conn, pstmt.getConnection());
+        assertSame(conn, stmt.getConnection());
+        stmt.close();
+        conn.close();
+        assertTrue(pstmt.isClosed());
+        try {
+            pstmt.executeQuery();
+            fail("Expected SQLException");
+        } catch (SQLException ex) {
+            // The statement was closed with the borrow.
+        }
+    }
+
+    public void testBorrowTimeout() throws Exception {
+        Connection conn1 = pool.getConnection();
+        Connection conn2 = pool.getConnection();
+        try {
+            pool.getConnection();
+            fail("Expected SQLException");
+        } catch (SQLException ex) {
+            assertEquals(1, pool.getTimeoutCount());
+        }
+        conn1.close();
+        conn2.close();
+        assertEquals(2, pool.getIdleCount());
+    }
+
+    public void testResetOnReturn() throws Exception {
+        Connection conn = pool.getConnection();
+        boolean autoCommit = conn.getAutoCommit();
+        conn.setAutoCommit(!autoCommit);
+        conn.close();
+        conn = pool.getConnection();
+        assertEquals(autoCommit, conn.getAutoCommit());
+        conn.close();
+    }
+
+    public void testSessionStateResetOnReturn() throws Exception {
+        Connection conn = pool.getConnection();
+        int holdability = conn.getHoldability();
+        int changed = holdability == ResultSet.HOLD_CURSORS_OVER_COMMIT
+                ? ResultSet.CLOSE_CURSORS_AT_COMMIT : ResultSet.HOLD_CURSORS_OVER_COMMIT;
+        conn.setHoldability(changed);
+        conn.close();
+        conn = pool.getConnection();
+        assertEquals(holdability, conn.getHoldability());
+        conn.close();
+    }
+
+    public void testUnwrapKeepsPhysicalConnection() throws Exception {
+        Connection conn = pool.getConnection();
+        String physical = conn.toString();
+        Connection unwrapped = conn.unwrap(Connection.class);
+        assertSame(conn, unwrapped);
+        conn.close();
+        assertEquals(1, pool.getIdleCount());
+        conn = pool.getConnection();
+        assertEquals(physical, conn.toString());
+        assertFalse(conn.isClosed());
+        conn.close();
+        assertEquals(1, pool.getCreatedCount());
+    }
+
+    public void testMaxLifetime() throws Exception {
+        pool.setMaxLifetime(1);
+        Connection conn = pool.getConnection();
+        conn.close();
+        Thread.sleep(5);
+        conn = pool.getConnection();
+        conn.close();
+        assertEquals(2, pool.getCreatedCount());
+        assertTrue(pool.getDestroyedCount() >= 1);
+    }
+
+    public void testConfigure() throws Exception {
+        DataSource ds = JNDIRegistry.lookupDataSource("pojava_test");
+        Properties props = new Properties();
+        assertSame(ds, PooledDataSource.configure(props, "pojava_test", ds));
+        props.setProperty("pojava_test.pool.maxSize", "5");
+        props.setProperty("pojava_test.pool.borrowTimeout", "250");
+        PooledDataSource configured = (PooledDataSource) PooledDataSource.configure(props,
+                "pojava_test", ds);
+        assertEquals(5, configured.getMaxSize());
+        assertEquals(250, configured.getBorrowTimeout());
+        configured.close();
+    }
+
+}
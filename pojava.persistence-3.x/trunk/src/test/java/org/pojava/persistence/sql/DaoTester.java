@@ -11,9 +11,15 @@ import org.pojava.persistence.jndi.JNDIRegistry;
 import org.pojava.persistence.util.SqlTool;
 import org.pojava.util.StringTool;
 
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class DaoTester extends TestCase {
 
@@ -176,6 +182,149 @@ public class DaoTester extends TestCase {
         assertEquals(2, objs.size());
     }
 
+    public void testStreamByQuery() throws Exception {
+        insertSampleDataForAll();
+        TypeTestQuery ptq = new TypeTestQuery().forAll();
+        ptq.setFetchSize(1);
+        ResultCursor<TypeTest> cursor = TypeTestDao.streamByQuery(trans, ptq);
+        int ct = 0;
+        for (TypeTest obj : cursor) {
+            assertNotNull(obj.getTestId());
+            ct++;
+        }
+        assertEquals(3, ct);
+        assertEquals(3, cursor.getRowCount());
+        assertTrue(cursor.isClosed());
+        assertFalse(cursor.hasNext());
+    }
+
+    public void testStreamByQueryStoppedEarly() throws Exception {
+        insertSampleDataForAll();
+        ResultCursor<TypeTest> cursor = TypeTestDao.streamByQuery(trans, new TypeTestQuery()
+                .forAll());
+        try {
+            assertTrue(cursor.hasNext());
+            assertNotNull(cursor.next());
+            assertFalse(cursor.isClosed());
+        } finally {
+            cursor.close();
+        }
+        assertTrue(cursor.isClosed());
+        cursor.close();
+        try {
+            cursor.next();
+            fail("Expected NoSuchElementException");
+        } catch (NoSuchElementException ex) {
+            // expected
+        }
+        assertEquals(3, TypeTestDao.countByQuery(trans, new TypeTestQuery().forAll()));
+    }
+
+    public void testEntityCache() throws Exception {
+        TypeTest obj = Mock.newTypeTest(5);
+        assertEquals(1, TypeTestDao.insert(trans, obj));
+        // Only committed rows are shared through the cache.
+        trans.commit();
+        TableMap<TypeTest> map = TypeTestDao.newTableMap();
+        EntityCache<TypeTest> cache = map.enableEntityCache(10, 60000);
+        try {
+            TypeTest first = TypeTestDao.find(trans, obj);
+            assertEquals(1, cache.size());
+            assertEquals(1, cache.getStatistics().getMisses());
+            first.setTestVarchar5("dirty");
+            TypeTest second = TypeTestDao.find(trans, obj);
+            assertNotSame(first, second);
+            assertEquals(obj.getTestVarchar5(), second.getTestVarchar5());
+            assertEquals(1, cache.getStatistics().getHits());
+            obj.setTestVarchar5("new");
+            assertEquals(1, TypeTestDao.update(trans, obj));
+            assertEquals(0, cache.size());
+            assertEquals("new", TypeTestDao.find(trans, obj).getTestVarchar5());
+            TypeTestDao.deleteByQuery(trans, new TypeTestQuery().forAll());
+            assertEquals(0, cache.size());
+            assertNull(TypeTestDao.find(trans, obj));
+        } finally {
+            map.disableEntityCache();
+            TypeTestDao.deleteByQuery(trans, new TypeTestQuery().forAll());
+            trans.commit();
+        }
+    }
+
+    public void testEntityCacheCopiesDates() throws Exception {
+        TypeTest obj = Mock.newTypeTest(5);
+        assertEquals(1, TypeTestDao.insert(trans, obj));
+        trans.commit();
+        TableMap<TypeTest> map = TypeTestDao.newTableMap();
+        map.enableEntityCache(10, 60000);
+        try {
+            long time = TypeTestDao.find(trans, obj).getTestTimeWithTz().getTime();
+            TypeTest cached = TypeTestDao.find(trans, obj);
+            cached.getTestTimeWithTz().setTime(time + 1000);
+            assertEquals(time, TypeTestDao.find(trans, obj).getTestTimeWithTz().getTime());
+        } finally {
+            map.disableEntityCache();
+            TypeTestDao.deleteByQuery(trans, new TypeTestQuery().forAll());
+            trans.commit();
+        }
+    }
+
+    public void testUncommittedRowsNotCached() throws Exception {
+        TypeTest obj = Mock.newTypeTest(5);
+        assertEquals(1, TypeTestDao.insert(trans, obj));
+        trans.commit();
+        TableMap<TypeTest> map = TypeTestDao.newTableMap();
+        EntityCache<TypeTest> cache = map.enableEntityCache(10, 60000);
+        try {
+            assertNotNull(TypeTestDao.find(trans, obj));
+            assertEquals(1, cache.size());
+            obj.setTestVarchar5("new");
+            assertEquals(1, TypeTestDao.update(trans, obj));
+            assertEquals("new", TypeTestDao.find(trans, obj).getTestVarchar5());
+            assertEquals(0, cache.size());
+            trans.rollback();
+            assertEquals(0, cache.size());
+            assertEquals(Mock.newTypeTest(5).getTestVarchar5(), TypeTestDao.find(trans, obj)
+                    .getTestVarchar5());
+            assertEquals(1, cache.size());
+        } finally {
+            map.disableEntityCache();
+            TypeTestDao.deleteByQuery(trans, new TypeTestQuery().forAll());
+            trans.commit();
+        }
+    }
+
+    public void testQueryCache() throws Exception {
+        insertSampleDataForAll();
+        // Only committed rows are shared through the cache.
+        trans.commit();
+        QueryCache cache = new QueryCache(100, 60000);
+        DatabaseCache.setQueryCache(cache);
+        try {
+            TypeTestQuery ptq = new TypeTestQuery().forAll();
+            assertEquals(3, TypeTestDao.listByQuery(trans, ptq).size());
+            assertEquals(3, TypeTestDao.listByQuery(trans, ptq).size());
+            assertEquals(1, cache.getStatistics().getHits());
+            assertEquals(3, TypeTestDao.countByQuery(trans, ptq));
+            TypeTestDao.insert(trans, Mock.newTypeTest(5));
+            long misses = cache.getStatistics().getMisses();
+            assertEquals(4, TypeTestDao.countByQuery(trans, ptq));
+            assertEquals(4, TypeTestDao.listByQuery(trans, ptq).size());
+            // The transaction's own writes bypass the cache until it ends.
+            assertEquals(misses, cache.getStatistics().getMisses());
+            trans.rollback();
+            assertEquals(3, TypeTestDao.listByQuery(trans, ptq).size());
+            assertEquals(misses + 1, cache.getStatistics().getMisses());
+            ptq.setCacheTtlMillis(TypeTestQuery.CACHE_NEVER);
+            misses = cache.getStatistics().getMisses();
+            assertEquals(3, TypeTestDao.listByQuery(trans, ptq).size());
+            assertEquals(misses, cache.getStatistics().getMisses());
+        } finally {
+            DatabaseCache.setQueryCache(null);
+            TypeTestDao.deleteByQuery(trans, new TypeTestQuery().forAll());
+            trans.commit();
+        }
+    }
+
     public void testDeleteByQueryForAll() throws Exception {
         insertSampleDataForAll();
         TypeTestQuery ptq = new TypeTestQuery().forAll();
@@ -252,4 +401,97 @@ public class DaoTester extends TestCase {
         }
     }
 
+    public void testReadPlanByLabel() throws Exception {
+        TypeTest obj = Mock.newTypeTest(4);
+        assertEquals(1, TypeTestDao.insert(trans, obj));
+        TableMap<TypeTest> map = TypeTestDao.newTableMap();
+        Connection conn = trans.getConnection("pojava_test");
+        PreparedStatement pstmt = conn
+                .prepareStatement("SELECT test_varchar5, test_bigint, test_id FROM type_test");
+        ResultSet rs = pstmt.executeQuery();
+        try {
+            ReadPlan<TypeTest> plan = map.readPlan(rs.getMetaData());
+            assertSame(plan, map.readPlan(rs.getMetaData()));
+            assertEquals(3, plan.getColumnCount());
+            assertTrue(rs.next());
+            TypeTest got = plan.read(rs);
+            assertEquals(obj.getTestId(), got.getTestId());
+            assertEquals(obj.getTestBigint(), got.getTestBigint());
+            assertEquals(obj.getTestVarchar5(), got.getTestVarchar5());
+            assertNull(got.getTestDouble());
+        } finally {
+            SqlTool.close(rs, pstmt);
+        }
+    }
+
+    public void testCommitAll() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            trans.setExecutor(executor);
+            trans.setVerifyBeforeCommit(true);
+            TypeTest obj = Mock.newTypeTest(5);
+            assertEquals(1, TypeTestDao.insert(trans, obj));
+            TransactionOutcome outcome = trans.commitAll();
+            assertEquals(TransactionOutcome.COMMIT, outcome.getAction());
+            assertTrue(outcome.isSuccessful());
+            assertFalse(outcome.isPartial());
+            assertEquals(1, outcome.getCompleted().size());
+            assertEquals("pojava_test", outcome.getCompleted().get(0));
+            trans = new DatabaseTransaction();
+            assertNotNull(TypeTestDao.find(trans, obj));
+            TypeTestDao.deleteByQuery(trans, new TypeTestQuery().forAll());
+            outcome = trans.commitAll();
+            assertTrue(outcome.isSuccessful());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    public void testKeysetPagination() throws Exception {
+        for (int i = 1; i <= 6; i++) {
+            assertEquals(1, TypeTestDao.insert(trans, Mock.newTypeTest(i)));
+        }
+        TableMap<TypeTest> map = TypeTestDao.newTableMap();
+        TypeTestQuery query = new TypeTestQuery();
+        query.forIdGreaterThan(1).seek(map, 4);
+        List<TypeTest> page = TypeTestDao.listByQuery(trans, query);
+        assertEquals(4, page.size());
+        assertEquals(Integer.valueOf(2), page.get(0).getTestId());
+        assertEquals(Integer.valueOf(5), page.get(3).getTestId());
+        String token = query.continuationToken(page);
+        assertNotNull(token);
+        page = TypeTestDao.listByQuery(trans, query.after(token));
+        assertEquals(1, page.size());
+        assertEquals(Integer.valueOf(6), page.get(0).getTestId());
+        assertNull(query.continuationToken(page));
+        // Counting a paged query counts every row matched, not the page.
+        String count = query.generateUnpagedSql("SELECT COUNT(*) FROM type_test").getSql()
+                .getString();
+        assertFalse(count, count.contains("ORDER BY"));
+        assertEquals(5, TypeTestDao.countByQuery(trans, query));
+
+        TypeTestQuery desc = new TypeTestQuery();
+        desc.seek(map, 2, new String[] { "testSmallint DESC", "testId" });
+        DataSourceMetadata metadata = DatabaseCache.getDataSourceMetadata("pojava_test");
+        String sql = desc.generatePreparedSql(map.sqlSelect(), metadata).getSql().getString();
+        assertTrue(sql, sql.endsWith("ORDER BY test_smallint DESC, test_id"
+                + metadata.rowLimitClause(2)));
+        int expected = 6;
+        token = null;
+        do {
+            page = TypeTestDao.listByQuery(trans, desc.after(token));
+            for (int i = 0; i < page.size(); i++) {
+                assertEquals(Integer.valueOf(expected--), page.get(i).getTestId());
+            }
+            token = desc.continuationToken(page);
+        } while (token != null);
+        assertEquals(0, expected);
+        try {
+            query.after(desc.continuationToken(TypeTestDao.listByQuery(trans, desc.after(null))));
+            fail("Expected IllegalArgumentException for a token of another ordering.");
+        } catch (IllegalArgumentException ex) {
+            // expected
+        }
+    }
+
 }
@@ -1,13 +1,21 @@
 package org.pojava.persistence.sql;
 
 import junit.framework.TestCase;
+import org.pojava.persistence.adaptor.PassthroughAdaptor;
+import org.pojava.persistence.examples.PrimitiveTest;
+import org.pojava.persistence.examples.TypeTest;
 import org.pojava.persistence.jndi.DriverManagerDataSource;
 import org.pojava.persistence.jndi.JNDIRegistry;
 import org.pojava.util.StringTool;
 
 import javax.sql.DataSource;
+import java.io.File;
 import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class DatabaseCacheTester extends TestCase {
 
@@ -142,6 +150,83 @@ public class DatabaseCacheTester extends TestCase {
 
     }
 
+    public void testTableMapSnapshot() throws Exception {
+        DatabaseCache.registerDataSource("pojava_snapshot", DatabaseCache
+                .getDataSource("pojava_test"));
+        TableMap<TypeTest> partial = new TableMap<TypeTest>(TypeTest.class, "type_test",
+                "pojava_snapshot");
+        partial.addFieldMap(new FieldMap<TypeTest, Integer, Integer>("testId", "test_id", true,
+                Integer.class, partial));
+        partial.addFieldMap(new FieldMap<TypeTest, String, String>("testVarchar5",
+                "test_varchar5", false, String.class, partial));
+        List<TableMap<?>> maps = new ArrayList<TableMap<?>>();
+        maps.add(partial);
+        File file = File.createTempFile("tablemaps", ".txt");
+        try {
+            TableMapSnapshot.capture(maps).save(file);
+            TableMapSnapshot snapshot = TableMapSnapshot.load(file);
+            assertEquals(1, snapshot.size());
+            assertTrue(TableMapSnapshot.sameMapping(partial, snapshot.restore().get(0)));
+
+            assertEquals(1, DatabaseCache.loadTableMapSnapshot(file));
+            TableMap<TypeTest> restored = DatabaseCache.getTableMap(TypeTest.class,
+                    "type_test", "pojava_snapshot");
+            assertEquals(2, restored.getAllFields().size());
+            ExecutorService executor = Executors.newSingleThreadExecutor();
+            try {
+                List<String> changed = DatabaseCache.verifyTableMaps(executor).get();
+                assertEquals(1, changed.size());
+            } finally {
+                executor.shutdown();
+            }
+            assertSame(restored, DatabaseCache.getTableMap(TypeTest.class, "type_test",
+                    "pojava_snapshot"));
+            assertTrue(restored.getAllFields().size() > 2);
+            assertTrue(restored.getInsertSql().indexOf("test_bigint") > 0);
+        } finally {
+            file.delete();
+        }
+    }
+
+    public void testTableMapSnapshotAdaptors() throws Exception {
+        TableMap<PrimitiveTest> map = new TableMap<PrimitiveTest>(PrimitiveTest.class,
+                "type_test", "pojava_test");
+        map.addFieldMap(new FieldMap<PrimitiveTest, Integer, Integer>("testId", "test_id",
+                true, int.class, map));
+        map.addFieldMap(new FieldMap<PrimitiveTest, Object, Object>("testBigint",
+                "test_bigint", false, new PassthroughAdaptor<Object, Object>(), map));
+        List<TableMap<?>> maps = new ArrayList<TableMap<?>>();
+        maps.add(map);
+        File file = File.createTempFile("tablemaps", ".txt");
+        try {
+            TableMapSnapshot.capture(maps).save(file);
+            TableMap<?> restored = TableMapSnapshot.load(file).restore().get(0);
+            assertTrue(TableMapSnapshot.sameMapping(map, restored));
+            assertSame(int.class, restored.getAllFields().get("testId").getColumnClass());
+            assertSame(PassthroughAdaptor.class, restored.getAllFields().get("testBigint")
+                    .getAdaptor().getClass());
+        } finally {
+            file.delete();
+        }
+    }
+
+    public void testPrewarmTableMaps() {
+        DatabaseCache.registerDataSource("pojava_prewarm", DatabaseCache
+                .getDataSource("pojava_test"));
+        DatabaseCache.declareTableMap(TypeTest.class, "type_test", "pojava_prewarm");
+        assertEquals(1, DatabaseCache.prewarmTableMaps(4));
+        TableMap<TypeTest> built = DatabaseCache.getTableMap(TypeTest.class, "type_test",
+                "pojava_prewarm");
+        assertTrue(built.getAllFields().size() > 0);
+        assertEquals(0, DatabaseCache.prewarmTableMaps(4));
+        assertSame(built, DatabaseCache.getTableMap(TypeTest.class, "type_test",
+                "pojava_prewarm"));
+        TableMap<TypeTest> map = new TableMap<TypeTest>(TypeTest.class, "registered",
+                "pojava_test");
+        DatabaseCache.registerTableMap(map);
+        assertSame(map, DatabaseCache.getTableMap(TypeTest.class, "registered", "pojava_test"));
+    }
+
     public void testDataSourceMetaData() throws Exception {
         JNDIRegistry.getInitialContext();
         JNDIRegistry.registerDatasourcesFromFile("config/ds_test.properties");
@@ -0,0 +1,40 @@
+package org.pojava.persistence.sql;
+
+import junit.framework.TestCase;
+import org.pojava.persistence.examples.Person;
+import org.pojava.util.ReflectionTool;
+
+import java.lang.reflect.Method;
+
+public class PropertyAccessorTester extends TestCase {
+
+    public void testSimpleProperty() throws Exception {
+        Method[] getters = ReflectionTool.getterMethodDrilldown(Person.class, "name");
+        PropertyAccessor accessor = PropertyAccessor.compile(getters, ReflectionTool
+                .setterMethodDrilldown(getters));
+        Person person = new Person();
+        accessor.set(person, "Alice");
+        assertEquals("Alice", person.getName());
+        assertEquals("Alice", accessor.get(person));
+    }
+
+    public void testNestedProperty() throws Exception {
+        Method[] getters = ReflectionTool.getterMethodDrilldown(Person.class, "parent.name");
+        PropertyAccessor accessor = PropertyAccessor.compile(getters, ReflectionTool
+                .setterMethodDrilldown(getters));
+        Person person = new Person();
+        assertNull(accessor.get(person));
+        accessor.set(person, "Bob");
+        assertNotNull(person.getParent());
+        assertEquals("Bob", person.getParent().getName());
+        assertEquals("Bob", accessor.get(person));
+    }
+
+    public void testReadOnly() throws Exception {
+        Method[] getters = ReflectionTool.getterMethodDrilldown(Person.class, "name");
+        PropertyAccessor accessor = PropertyAccessor.compile(getters, null);
+        assertFalse(accessor.isWritable());
+        assertNull(PropertyAccessor.compile(null, null));
+    }
+
+}
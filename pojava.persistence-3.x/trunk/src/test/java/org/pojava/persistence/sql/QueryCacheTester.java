@@ -0,0 +1,139 @@
+package org.pojava.persistence.sql;
+
+import junit.framework.TestCase;
+import org.pojava.lang.BoundString;
+import org.pojava.persistence.examples.Mock;
+import org.pojava.persistence.examples.TypeTest;
+import org.pojava.persistence.query.PreparedSql;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class QueryCacheTester extends TestCase {
+
+    private final TableMap<TypeTest> map = new TableMap<TypeTest>(TypeTest.class, "type_test",
+            "pojava_test");
+
+    protected void setUp() throws Exception {
+        map.addFieldMap(new FieldMap<TypeTest, Integer, Integer>("testId", "test_id", true,
+                Integer.class, map));
+        map.addFieldMap(new FieldMap<TypeTest, String, String>("testVarchar5",
+                "test_varchar5", false, String.class, map));
+    }
+
+    private PreparedSql query(int id) {
+        BoundString sql = new BoundString("SELECT COUNT(*) FROM type_test WHERE test_id=?");
+        sql.addBinding(Integer.class, new Integer(id));
+        return new PreparedSql(sql, 0);
+    }
+
+    private QueryCache.Loader<Integer> counting(final AtomicInteger loads, final int value) {
+        return new QueryCache.Loader<Integer>() {
+            public Integer load() throws SQLException {
+                loads.incrementAndGet();
+                return new Integer(value);
+            }
+        };
+    }
+
+    public void testHitAndInvalidate() throws Exception {
+        QueryCache cache = new QueryCache(100, 0);
+        AtomicInteger loads = new AtomicInteger();
+        assertEquals(7, cache.count(map, query(1), -1, counting(loads, 7)));
+        assertEquals(7, cache.count(map, query(1), -1, counting(loads, 8)));
+        assertEquals(1, loads.get());
+        assertEquals(9, cache.count(map, query(2), -1, counting(loads, 9)));
+        assertEquals(2, loads.get());
+        cache.invalidateTable("pojava_test", "TYPE_TEST");
+        assertEquals(10, cache.count(map, query(1), -1, counting(loads, 10)));
+        assertEquals(3, loads.get());
+        assertEquals(1, cache.getStatistics().getHits());
+    }
+
+    public void testDataSourcesHeldApart() throws Exception {
+        TableMap<TypeTest> other = new TableMap<TypeTest>(TypeTest.class, "type_test",
+                "pojava_other");
+        other.addFieldMap(new FieldMap<TypeTest, Integer, Integer>("testId", "test_id", true,
+                Integer.class, other));
+        QueryCache cache = new QueryCache(100, 0);
+        AtomicInteger loads = new AtomicInteger();
+        assertEquals(7, cache.count(map, query(1), -1, counting(loads, 7)));
+        assertEquals(8, cache.count(other, query(1), -1, counting(loads, 8)));
+        assertEquals(2, loads.get());
+        // A write through one data source leaves the other's results alone.
+        cache.invalidateTable("pojava_other", "type_test");
+        assertEquals(7, cache.count(map, query(1), -1, counting(loads, 9)));
+        assertEquals(10, cache.count(other, query(1), -1, counting(loads, 10)));
+        assertEquals(3, loads.get());
+    }
+
+    public void testListCopiesAndEviction() throws Exception {
+        QueryCache cache = new QueryCache(5, 0);
+        final List<TypeTest> rows = new ArrayList<TypeTest>();
+        rows.add(Mock.newTypeTest(1));
+        rows.add(Mock.newTypeTest(2));
+        QueryCache.Loader<List<TypeTest>> loader = new QueryCache.Loader<List<TypeTest>>() {
+            public List<TypeTest> load() throws SQLException {
+                return rows;
+            }
+        };
+        List<TypeTest> first = cache.list(map, query(1), -1, loader);
+        assertNotSame(rows.get(0), first.get(0));
+        first.get(0).setTestVarchar5("dirty");
+        List<TypeTest> second = cache.list(map, query(1), -1, loader);
+        assertEquals(rows.get(0).getTestVarchar5(), second.get(0).getTestVarchar5());
+        assertEquals(3, cache.getHeldRows());
+        cache.list(map, query(2), -1, loader);
+        assertEquals(1, cache.size());
+        assertEquals(1, cache.getStatistics().getEvictions());
+    }
+
+    public void testSingleFlight() throws Exception {
+        final QueryCache cache = new QueryCache(100, 0);
+        final AtomicInteger loads = new AtomicInteger();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final QueryCache.Loader<Integer> slow = new QueryCache.Loader<Integer>() {
+            public Integer load() throws SQLException {
+                loads.incrementAndGet();
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException ex) {
+                    throw new SQLException("interrupted");
+                }
+                return new Integer(42);
+            }
+        };
+        final int[] results = new int[4];
+        Thread[] threads = new Thread[results.length];
+        for (int i = 0; i < threads.length; i++) {
+            final int slot = i;
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        results[slot] = cache.count(map, query(1), -1, slow);
+                    } catch (SQLException ex) {
+                        results[slot] = -1;
+                    }
+                }
+            };
+        }
+        threads[0].start();
+        started.await();
+        for (int i = 1; i < threads.length; i++) {
+            threads[i].start();
+        }
+        Thread.sleep(100);
+        release.countDown();
+        for (int i = 0; i < threads.length; i++) {
+            threads[i].join();
+            assertEquals(42, results[i]);
+        }
+        assertEquals(1, loads.get());
+    }
+
+}
@@ -0,0 +1,164 @@
+package org.pojava.persistence.sql;
+
+import junit.framework.TestCase;
+import org.pojava.persistence.jndi.DriverManagerDataSource;
+import org.pojava.persistence.jndi.JNDIRegistry;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+public class RoutingConnectionSourceTester extends TestCase {
+
+    private static final String DS_NAME = "pojava_test";
+
+    private static final String[] REPLICAS = {"pojava_replica_a", "pojava_replica_b"};
+
+    private static final String DOWN = "pojava_replica_down";
+
+    protected void setUp() throws Exception {
+        JNDIRegistry.getInitialContext();
+        Properties dsp = TestHelper.fetchDataSourceProperties();
+        Class.forName(dsp.getProperty("driver"));
+        DatabaseCache.registerDataSource(DS_NAME, new DriverManagerDataSource(dsp
+                .getProperty("url"), dsp.getProperty("user"), dsp.getProperty("password")));
+        for (int i = 0; i < REPLICAS.length; i++) {
+            DatabaseCache.registerDataSource(REPLICAS[i], new DriverManagerDataSource(
+                    "jdbc:h2:mem:" + REPLICAS[i] + ";DB_CLOSE_DELAY=-1", "sa", ""));
+            Connection conn = DatabaseCache.getDataSource(REPLICAS[i]).getConnection();
+            try {
+                Statement stmt = conn.createStatement();
+                stmt.execute("CREATE TABLE IF NOT EXISTS replica_probe (name VARCHAR(20))");
+                stmt.execute("DELETE FROM replica_probe");
+                stmt.execute("INSERT INTO replica_probe VALUES ('" + REPLICAS[i] + "')");
+                stmt.close();
+            } finally {
+                conn.close();
+            }
+        }
+        // A database that does not exist refuses connections.
+        DatabaseCache.registerDataSource(DOWN, new DriverManagerDataSource("jdbc:h2:mem:" + DOWN
+                + ";IFEXISTS=TRUE", "sa", ""));
+    }
+
+    private static ReplicaSet register(int balancing, String[] names) {
+        List<String> list = new ArrayList<String>();
+        for (int i = 0; i < names.length; i++) {
+            list.add(names[i]);
+        }
+        ReplicaSet replicas = new ReplicaSet(DS_NAME, list, balancing);
+        DatabaseCache.registerReplicaSet(replicas);
+        return replicas;
+    }
+
+    private static String probe(Connection conn) throws Exception {
+        PreparedStatement ps = conn.prepareStatement("SELECT name FROM replica_probe");
+        try {
+            ResultSet rs = ps.executeQuery();
+            assertTrue(rs.next());
+            return rs.getString(1);
+        } finally {
+            ps.close();
+        }
+    }
+
+    public void testRoundRobin() throws Exception {
+        ReplicaSet replicas = register(ReplicaSet.ROUND_ROBIN, REPLICAS);
+        List<String> served = new ArrayList<String>();
+        for (int i = 0; i < 4; i++) {
+            RoutingConnectionSource source = new RoutingConnectionSource();
+            source.setReadOnly(true);
+            try {
+                Connection conn = source.getConnection(DS_NAME);
+                assertTrue(source.isReplica(conn));
+                assertSame(conn, source.getConnection(DS_NAME));
+                served.add(probe(conn));
+            } finally {
+                source.rollback();
+            }
+        }
+        assertEquals(served.get(0), served.get(2));
+        assertEquals(served.get(1), served.get(3));
+        assertFalse(served.get(0).equals(served.get(1)));
+        ReplicaSet.Replica first = replicas.getReplicas().get(0);
+        assertEquals(0, first.getOutstanding());
+        assertEquals(2, first.getConnections());
+        assertEquals(2, first.getStatistics().getTotalExecutions());
+    }
+
+    public void testReadYourWrites() throws Exception {
+        register(ReplicaSet.LEAST_OUTSTANDING, REPLICAS);
+        RoutingConnectionSource source = new RoutingConnectionSource();
+        try {
+            Connection primary = source.getConnection(DS_NAME);
+            assertFalse(source.isReplica(primary));
+            source.setReadOnly(true);
+            assertSame(primary, source.getConnection(DS_NAME));
+            assertSame(primary, source.getReadConnection(DS_NAME));
+            // Reads stay on the primary after the write is committed.
+            source.commit();
+            Connection conn = source.getReadConnection(DS_NAME);
+            assertFalse(source.isReplica(conn));
+            assertFalse(((TransConnection) conn).isReplica());
+        } finally {
+            source.rollback();
+        }
+        source = new RoutingConnectionSource();
+        try {
+            Connection replica = source.getReadConnection(DS_NAME);
+            assertTrue(source.isReplica(replica));
+            assertTrue(((TransConnection) replica).isReplica());
+        } finally {
+            source.rollback();
+        }
+    }
+
+    public void testLeastOutstanding() throws Exception {
+        ReplicaSet replicas = register(ReplicaSet.LEAST_OUTSTANDING, REPLICAS);
+        RoutingConnectionSource one = new RoutingConnectionSource();
+        RoutingConnectionSource two = new RoutingConnectionSource();
+        try {
+            String first = probe(one.getReadConnection(DS_NAME));
+            String second = probe(two.getReadConnection(DS_NAME));
+            assertFalse(first.equals(second));
+            assertEquals(1, replicas.getReplicas().get(0).getOutstanding());
+            assertEquals(1, replicas.getReplicas().get(1).getOutstanding());
+        } finally {
+            one.rollback();
+            two.rollback();
+        }
+    }
+
+    public void testEjection() throws Exception {
+        ReplicaSet replicas = register(ReplicaSet.ROUND_ROBIN, new String[]{DOWN, REPLICAS[0]});
+        for (int i = 0; i < 2; i++) {
+            RoutingConnectionSource source = new RoutingConnectionSource();
+            source.setReadOnly(true);
+            try {
+                assertEquals(REPLICAS[0], probe(source.getConnection(DS_NAME)));
+            } finally {
+                source.rollback();
+            }
+        }
+        ReplicaSet.Replica down = replicas.getReplicas().get(0);
+        assertTrue(down.isEjected());
+        assertEquals(1, down.getFailures());
+        assertEquals(1, replicas.checkHealth(1));
+
+        // With no replica left, reads go to the primary.
+        ReplicaSet none = register(ReplicaSet.ROUND_ROBIN, new String[]{DOWN});
+        RoutingConnectionSource source = new RoutingConnectionSource();
+        source.setReadOnly(true);
+        try {
+            assertFalse(source.isReplica(source.getConnection(DS_NAME)));
+            assertTrue(none.getReplicas().get(0).isEjected());
+        } finally {
+            source.rollback();
+        }
+    }
+
+}
@@ -0,0 +1,112 @@
+package org.pojava.persistence.sql;
+
+import junit.framework.TestCase;
+import org.pojava.persistence.examples.Mock;
+import org.pojava.persistence.examples.TypeTest;
+import org.pojava.persistence.examples.TypeTestDao;
+import org.pojava.persistence.examples.TypeTestQuery;
+import org.pojava.persistence.jndi.JNDIRegistry;
+import org.pojava.persistence.util.SqlTool;
+
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+
+public class SqlStatisticsTester extends TestCase {
+
+    private DatabaseTransaction trans = null;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        JNDIRegistry.getInitialContext();
+        Properties dsp = SqlTool.fetchProperties("config/ds_test.properties");
+        SqlTool.registerDataSource(dsp, "pojava_test");
+    }
+
+    protected void tearDown() throws Exception {
+        DatabaseCache.setSqlStatistics(null);
+        if (trans != null) {
+            trans.rollback();
+        }
+    }
+
+    public void testNormalize() {
+        assertEquals("SELECT * FROM t1 WHERE a=? AND b=? AND c=?", SqlStatistics
+                .normalize("  SELECT *\n FROM t1\tWHERE a=12 AND b='it''s' AND c=? "));
+        assertEquals("SELECT col2 FROM t WHERE x IN (?, ?)", SqlStatistics
+                .normalize("SELECT col2 FROM t WHERE x IN (1.5, 'a')"));
+    }
+
+    public void testPercentiles() {
+        StatementStatistics stats = new StatementStatistics("SELECT 1");
+        assertEquals(0, stats.getPercentileNanos(0.5));
+        for (int i = 1; i <= 100; i++) {
+            stats.recordExecution(i * 1000000L, -1);
+        }
+        assertEquals(100, stats.getExecutions());
+        assertEquals(100000000L, stats.getMaxNanos());
+        long p50 = stats.getPercentileNanos(0.5);
+        assertTrue("p50=" + p50, p50 >= 50000000L && p50 <= 63000000L);
+        long p99 = stats.getPercentileNanos(0.99);
+        assertTrue("p99=" + p99, p99 >= 99000000L && p99 <= 100000000L);
+        for (int i = 0; i < 200; i++) {
+            assertTrue(StatementStatistics.upperBound(StatementStatistics.bucket(i)) >= i);
+        }
+        stats.reset();
+        assertEquals(0, stats.getExecutions());
+    }
+
+    public void testInstrumentedTransaction() throws Exception {
+        SqlStatistics statistics = new SqlStatistics();
+        DatabaseCache.setSqlStatistics(statistics);
+        trans = new DatabaseTransaction();
+        TypeTestDao.deleteByQuery(trans, new TypeTestQuery().forAll());
+        for (int i = 1; i <= 3; i++) {
+            assertEquals(1, TypeTestDao.insert(trans, Mock.newTypeTest(i)));
+        }
+        List<TypeTest> list = TypeTestDao.listByQuery(trans, new TypeTestQuery().forAll());
+        assertEquals(3, list.size());
+        StatementStatistics insert = null;
+        StatementStatistics select = null;
+        for (Iterator<StatementStatistics> it = statistics.getStatements().iterator(); it
+                .hasNext(); ) {
+            StatementStatistics stats = it.next();
+            if (stats.getSql().startsWith("INSERT INTO type_test")) {
+                insert = stats;
+            } else if (stats.getSql().startsWith("SELECT") && stats.getRowsRead() > 0) {
+                select = stats;
+            }
+        }
+        assertNotNull(insert);
+        assertEquals(3, insert.getExecutions());
+        assertEquals(3, insert.getRowsAffected());
+        assertNotNull(select);
+        assertEquals(1, select.getExecutions());
+        assertEquals(3, select.getRowsRead());
+        assertTrue(select.getMappingNanos() > 0);
+        assertTrue(statistics.getTotalExecutions() >= 5);
+        assertEquals(statistics.getStatementCount(), statistics.getSummary().length);
+    }
+
+    public void testInstrumentedStatements() throws Exception {
+        SqlStatistics statistics = new SqlStatistics();
+        DatabaseCache.setSqlStatistics(statistics);
+        trans = new DatabaseTransaction();
+        Connection conn = trans.getConnection("pojava_test");
+        Statement stmt = conn.createStatement();
+        try {
+            assertSame(conn, stmt.getConnection());
+            stmt.executeUpdate("DELETE FROM type_test WHERE test_id=-1");
+            stmt.executeQuery("SELECT COUNT(*) FROM type_test").close();
+        } finally {
+            stmt.close();
+        }
+        StatementStatistics delete = statistics.forSql("DELETE FROM type_test WHERE test_id=-1");
+        assertEquals(1, delete.getExecutions());
+        assertEquals(0, delete.getRowsAffected());
+        assertEquals(1, statistics.forSql("SELECT COUNT(*) FROM type_test").getExecutions());
+    }
+
+}
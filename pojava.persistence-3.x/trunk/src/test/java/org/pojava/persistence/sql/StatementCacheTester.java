@@ -0,0 +1,149 @@
+package org.pojava.persistence.sql;
+
+import junit.framework.TestCase;
+import org.pojava.persistence.jndi.DriverManagerDataSource;
+import org.pojava.persistence.jndi.JNDIRegistry;
+
+import javax.sql.DataSource;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.Properties;
+
+public class StatementCacheTester extends TestCase {
+
+    private DataSource ds;
+
+    protected void setUp() throws Exception {
+        JNDIRegistry.getInitialContext();
+        Properties dsp = TestHelper.fetchDataSourceProperties();
+        Class.forName(dsp.getProperty("driver"));
+        ds = new DriverManagerDataSource(dsp.getProperty("url"), dsp.getProperty("user"), dsp
+                .getProperty("password"));
+    }
+
+    public void testReuse() throws Exception {
+        StatementCache cache = new StatementCache(2);
+        TransConnection conn = new TransConnection(ds.getConnection(), cache);
+        conn.setCloseAllowed(true);
+        try {
+            PreparedStatement ps = conn.prepareStatement("select count(*) from type_test");
+            PreparedStatement physical = ps.unwrap(PreparedStatement.class);
+            assertNotSame(ps, physical);
+            ps.close();
+            assertTrue(ps.isClosed());
+            assertEquals(1, cache.size());
+            ps = conn.prepareStatement("select count(*) from type_test");
+            assertSame(physical, ps.unwrap(PreparedStatement.class));
+            assertSame(conn, ps.getConnection());
+            assertEquals(0, cache.size());
+            ResultSet rs = ps.executeQuery();
+            assertTrue(rs.next());
+            rs.close();
+            ps.close();
+            assertEquals(1, cache.getStatistics().getHits());
+            assertEquals(1, cache.getStatistics().getMisses());
+        } finally {
+            conn.close();
+        }
+        assertEquals(0, cache.size());
+    }
+
+    public void testResultSetsClosedOnReturn() throws Exception {
+        StatementCache cache = new StatementCache(2);
+        TransConnection conn = new TransConnection(ds.getConnection(), cache);
+        conn.setCloseAllowed(true);
+        try {
+            PreparedStatement ps = conn.prepareStatement("select count(*) from type_test");
+            ResultSet rs = ps.executeQuery();
+            assertSame(ps, rs.getStatement());
+            ps.close();
+            assertTrue(rs.isClosed());
+            assertEquals(1, cache.size());
+            ps = conn.prepareStatement("select count(*) from type_test");
+            rs = ps.executeQuery();
+            assertTrue(rs.next());
+            assertFalse(rs.next());
+            ps.close();
+        } finally {
+            conn.close();
+        }
+    }
+
+    public void testInUseNotShared() throws Exception {
+        StatementCache cache = new StatementCache(2);
+        TransConnection conn = new TransConnection(ds.getConnection(), cache);
+        conn.setCloseAllowed(true);
+        try {
+            PreparedStatement ps1 = conn.prepareStatement("select 1");
+            PreparedStatement ps2 = conn.prepareStatement("select 1");
+            assertNotSame(ps1.unwrap(PreparedStatement.class), ps2
+                    .unwrap(PreparedStatement.class));
+            ps1.close();
+            ps2.close();
+            assertEquals(1, cache.size());
+        } finally {
+            conn.close();
+        }
+    }
+
+    public void testEviction() throws Exception {
+        StatementCache cache = new StatementCache(2);
+        TransConnection conn = new TransConnection(ds.getConnection(), cache);
+        conn.setCloseAllowed(true);
+        try {
+            PreparedStatement first = conn.prepareStatement("select 1");
+            PreparedStatement physical = first.unwrap(PreparedStatement.class);
+            first.close();
+            conn.prepareStatement("select 2").close();
+            conn.prepareStatement("select 3").close();
+            assertEquals(2, cache.size());
+            assertEquals(1, cache.getStatistics().getEvictions());
+            assertTrue(physical.isClosed());
+        } finally {
+            conn.close();
+        }
+    }
+
+    public void testLimitsRestored() throws Exception {
+        StatementCache cache = new StatementCache(2);
+        TransConnection conn = new TransConnection(ds.getConnection(), cache);
+        conn.setCloseAllowed(true);
+        try {
+            PreparedStatement ps = conn.prepareStatement("select 1");
+            int maxRows = ps.getMaxRows();
+            ps.setMaxRows(maxRows + 1);
+            ps.close();
+            assertEquals(1, cache.size());
+            ps = conn.prepareStatement("select 1");
+            assertEquals(maxRows, ps.getMaxRows());
+            ps.close();
+        } finally {
+            conn.close();
+        }
+    }
+
+    public void testModifiedNotCached() throws Exception {
+        StatementCache cache = new StatementCache(2);
+        TransConnection conn = new TransConnection(ds.getConnection(), cache);
+        conn.setCloseAllowed(true);
+        try {
+            PreparedStatement ps = conn.prepareStatement("select 1");
+            ps.setEscapeProcessing(false);
+            ps.close();
+            assertEquals(0, cache.size());
+        } finally {
+            conn.close();
+        }
+    }
+
+    public void testStatementCacheSize() {
+        assertEquals(StatementCache.DEFAULT_CAPACITY, DatabaseCache
+                .getStatementCacheSize("unconfigured"));
+        Properties props = new Properties();
+        props.setProperty("sized.statementCacheSize", "0");
+        DatabaseCache.configureStatementCache(props, "sized");
+        assertEquals(0, DatabaseCache.getStatementCacheSize("sized"));
+        assertNull(DatabaseCache.newStatementCache("sized"));
+    }
+
+}
@@ -1,20 +1,47 @@
 package org.pojava.persistence.util;
 
 import junit.framework.TestCase;
+import org.pojava.datetime.DateTime;
+import org.pojava.lang.Binding;
+import org.pojava.lang.BoundString;
+import org.pojava.lang.UncheckedBinding;
 import org.pojava.persistence.examples.Mock;
 import org.pojava.persistence.examples.TypeTest;
 import org.pojava.persistence.examples.TypeTestDao;
 import org.pojava.persistence.examples.TypeTestQuery;
+import org.pojava.persistence.processor.ColumnBatch;
+import org.pojava.persistence.processor.ResultSetToColumns;
+import org.pojava.persistence.query.PreparedSql;
+import org.pojava.persistence.query.Projection;
 import org.pojava.persistence.jndi.DriverManagerDataSource;
 import org.pojava.persistence.jndi.JNDIRegistry;
 import org.pojava.persistence.sql.DatabaseCache;
 import org.pojava.persistence.sql.DatabaseTransaction;
+import org.pojava.persistence.sql.DataSourceMetadata;
+import org.pojava.persistence.sql.EntityCache;
+import org.pojava.persistence.sql.FieldMap;
+import org.pojava.persistence.sql.IdentityMap;
+import org.pojava.persistence.sql.ParameterBinder;
 import org.pojava.persistence.sql.TableMap;
 import org.pojava.persistence.sql.TestHelper;
 
 import javax.sql.DataSource;
+import java.io.Reader;
+import java.sql.Connection;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class DaoToolTester extends TestCase {
 
@@ -68,4 +95,544 @@ public class DaoToolTester extends TestCase {
         }
     }
 
+    public void testCompiledSql() throws Exception {
+        TableMap<TypeTest> map = new TableMap<TypeTest>(JAVA_CLASS, TABLE_NAME, DS_NAME);
+        map.addFieldMap(new FieldMap<TypeTest, Integer, Integer>("testId", "test_id", true,
+                Integer.class, map));
+        map.addFieldMap(new FieldMap<TypeTest, String, String>("testVarchar5",
+                "test_varchar5", false, String.class, map));
+        String insert = map.getInsertSql();
+        assertEquals("INSERT INTO type_test (test_id, test_varchar5) VALUES (?, ?)", insert);
+        assertSame(insert, map.getInsertSql());
+        assertEquals("UPDATE type_test SET test_varchar5=? WHERE test_id=?", map.getUpdateSql());
+        TypeTest obj = Mock.newTypeTest(3);
+        UncheckedBinding[] bindings = map.updateBindings(obj);
+        assertEquals(2, bindings.length);
+        assertEquals(obj.getTestId(), bindings[1].getObj());
+        assertEquals("SELECT test_id, test_varchar5 FROM type_test WHERE test_id=?", map
+                .sqlSelect(obj).getString());
+        obj.setTestId(null);
+        assertNull(map.keyBindings(obj));
+        assertTrue(map.sqlDelete(obj).getString().endsWith("test_id IS NULL"));
+        map.addFieldMap(new FieldMap<TypeTest, Long, Long>("testBigint", "test_bigint", false,
+                Long.class, map));
+        assertEquals("INSERT INTO type_test (test_id, test_varchar5, test_bigint) VALUES (?, ?, ?)",
+                map.getInsertSql());
+        assertEquals("INSERT INTO type_test (test_id, test_varchar5, test_bigint) VALUES "
+                + "(?, ?, ?), (?, ?, ?)", map.getInsertSql(2));
+    }
+
+    @SuppressWarnings("unchecked")
+    public void testParameterBinders() throws Exception {
+        assertEquals(Types.INTEGER, ParameterBinder.forClass(int.class).getSqlType());
+        assertEquals(Types.TIMESTAMP, ParameterBinder.forClass(DateTime.class).getSqlType());
+        assertEquals(Types.VARCHAR, ParameterBinder.forClass(Object.class).getSqlType());
+        // Each field binds nulls as the type its adaptor would have produced.
+        for (Iterator<FieldMap<TypeTest, ?, ?>> it = MAP.getAllFields().values().iterator(); it
+                .hasNext(); ) {
+            FieldMap<TypeTest, ?, ?> field = it.next();
+            Binding out = field.getAdaptor().outbound(new Binding(field.getPropertyClass(),
+                    null));
+            assertEquals(field.getProperty(), ParameterBinder.forClass(out.getType())
+                    .getSqlType(), field.getBinder().getSqlType());
+        }
+    }
+
+    public void testBatchOperations() throws Exception {
+        List<TypeTest> list = new ArrayList<TypeTest>();
+        for (int i = 1; i <= 5; i++) {
+            list.add(Mock.newTypeTest(i));
+        }
+        BatchOptions options = new BatchOptions(2);
+        options.setMultiRowInsert(true);
+        BatchResult result = DaoTool.batchInsert(trans.getConnection(DS_NAME), MAP, list,
+                options);
+        assertEquals(3, result.getChunkCount());
+        assertEquals(1, result.getChunkStatuses(2).length);
+        assertEquals(5, result.getRowCount());
+        assertFalse(result.isChunkCommitted(0));
+        assertEquals(5, TypeTestDao.countByQuery(trans, new TypeTestQuery().forAll()));
+
+        int[] statuses = DaoTool.batchUpdate(trans.getConnection(DS_NAME), MAP, list);
+        assertEquals(5, statuses.length);
+        for (int i = 0; i < statuses.length; i++) {
+            assertEquals(1, statuses[i]);
+        }
+
+        List<TypeTest> upserts = new ArrayList<TypeTest>(list.subList(3, 5));
+        upserts.add(Mock.newTypeTest(6));
+        statuses = DaoTool.batchUpsert(trans.getConnection(DS_NAME), MAP, upserts);
+        assertEquals(3, statuses.length);
+        assertEquals(6, TypeTestDao.countByQuery(trans, new TypeTestQuery().forAll()));
+
+        result = DaoTool.batchDelete(trans.getConnection(DS_NAME), MAP, upserts, options);
+        assertEquals(2, result.getChunkCount());
+        assertEquals(3, result.getRowCount());
+        assertEquals(3, TypeTestDao.countByQuery(trans, new TypeTestQuery().forAll()));
+    }
+
+    public void testNativeUpsert() throws Exception {
+        DataSourceMetadata metadata = DatabaseCache.getDataSourceMetadata(DS_NAME);
+        String style = metadata.upsertStyle();
+        String sql = MAP.getUpsertSql(metadata);
+        if (DataSourceMetadata.UPSERT_ON_CONFLICT.equals(style)) {
+            assertTrue(sql, sql.startsWith("INSERT INTO type_test ("));
+            assertTrue(sql, sql.indexOf(" ON CONFLICT (test_id) DO UPDATE SET ") > 0);
+        } else if (DataSourceMetadata.UPSERT_MERGE.equals(style)) {
+            assertTrue(sql, sql.startsWith("MERGE INTO type_test d USING"));
+        } else if (style == null) {
+            assertNull(sql);
+        }
+        DataSourceMetadata postgres = new DataSourceMetadata();
+        postgres.setPlatform("PostgreSQL");
+        postgres.setMajorVersion(9);
+        postgres.setMinorVersion(5);
+        assertEquals(DataSourceMetadata.UPSERT_ON_CONFLICT, postgres.upsertStyle());
+        sql = MAP.getUpsertSql(postgres);
+        assertTrue(sql, sql.indexOf(") ON CONFLICT (test_id) DO UPDATE SET ") > 0);
+        assertTrue(sql, sql.indexOf("test_varchar5=EXCLUDED.test_varchar5") > 0);
+        Connection conn = trans.getConnection(DS_NAME);
+        TypeTest obj = Mock.newTypeTest(11);
+        assertEquals(1, DaoTool.updateInsert(conn, MAP, obj));
+        obj.setTestVarchar5("upd");
+        assertEquals(1, DaoTool.updateInsert(conn, MAP, obj));
+        assertEquals("upd", DaoTool.find(conn, MAP, obj).getTestVarchar5());
+        assertEquals(0, DaoTool.passiveInsert(conn, MAP, Mock.newTypeTest(11)));
+        assertEquals("upd", DaoTool.find(conn, MAP, obj).getTestVarchar5());
+        assertEquals(1, DaoTool.passiveInsert(conn, MAP, Mock.newTypeTest(12)));
+        assertEquals(2, TypeTestDao.countByQuery(trans, new TypeTestQuery().forAll()));
+    }
+
+    public void testDirtyTracking() throws Exception {
+        TableMap<TypeTest> map = new TableMap<TypeTest>(JAVA_CLASS, TABLE_NAME, DS_NAME);
+        map.addFieldMap(new FieldMap<TypeTest, Integer, Integer>("testId", "test_id", true,
+                Integer.class, map));
+        map.addFieldMap(new FieldMap<TypeTest, String, String>("testVarchar5",
+                "test_varchar5", false, String.class, map));
+        map.addFieldMap(new FieldMap<TypeTest, Long, Long>("testBigint", "test_bigint", false,
+                Long.class, map));
+        map.enableDirtyTracking();
+        Connection conn = trans.getConnection(DS_NAME);
+        TypeTest obj = Mock.newTypeTest(3);
+        assertNull(map.changedFields(obj));
+        assertEquals(1, DaoTool.insert(conn, map, obj));
+        assertTrue(map.changedFields(obj).isEmpty());
+        // An unchanged bean is not sent.
+        assertEquals(1, DaoTool.update(conn, map, obj));
+        obj.setTestVarchar5("dirty");
+        BitSet changed = map.changedFields(obj);
+        assertEquals("UPDATE type_test SET test_varchar5=? WHERE test_id=?", map
+                .getUpdateSql(changed));
+        assertSame(map.getUpdateSql(changed), map.getUpdateSql(changed));
+        assertEquals(1, DaoTool.update(conn, map, obj));
+        assertTrue(map.changedFields(obj).isEmpty());
+        TypeTest found = DaoTool.find(conn, map, Mock.newTypeTest(3));
+        assertEquals("dirty", found.getTestVarchar5());
+        assertTrue(map.changedFields(found).isEmpty());
+        found.setTestId(Integer.valueOf(4));
+        assertNull(map.changedFields(found));
+        map.disableDirtyTracking();
+        assertNull(map.changedFields(obj));
+    }
+
+    public void testDirtyTrackingAfterOtherWrites() throws Exception {
+        TableMap<TypeTest> map = new TableMap<TypeTest>(JAVA_CLASS, TABLE_NAME, DS_NAME);
+        map.addFieldMap(new FieldMap<TypeTest, Integer, Integer>("testId", "test_id", true,
+                Integer.class, map));
+        map.addFieldMap(new FieldMap<TypeTest, String, String>("testVarchar5",
+                "test_varchar5", false, String.class, map));
+        map.enableDirtyTracking();
+        Connection conn = trans.getConnection(DS_NAME);
+        TypeTest obj = Mock.newTypeTest(3);
+        obj.setTestVarchar5("one");
+        assertEquals(1, DaoTool.insert(conn, map, obj));
+        // A batch write leaves the bean's recorded values behind, so reverting is sent.
+        obj.setTestVarchar5("two");
+        DaoTool.batchUpdate(conn, map, Collections.singletonList(obj));
+        assertNull(map.changedFields(obj));
+        obj.setTestVarchar5("one");
+        assertEquals(1, DaoTool.update(conn, map, obj));
+        assertEquals("one", DaoTool.find(conn, map, Mock.newTypeTest(3)).getTestVarchar5());
+        // A deleted row is inserted again rather than taken as unchanged.
+        assertEquals(1, DaoTool.delete(conn, map, obj));
+        assertNull(map.changedFields(obj));
+        assertEquals(1, DaoTool.updateInsert(conn, map, obj));
+        assertEquals("one", DaoTool.find(conn, map, Mock.newTypeTest(3)).getTestVarchar5());
+        assertEquals(1, DaoTool.deleteByQuery(conn, map, new TypeTestQuery().forAll()));
+        assertNull(map.changedFields(obj));
+        // Values written by a transaction rolled back are not the database's.
+        assertEquals(1, DaoTool.insert(conn, map, obj));
+        assertTrue(map.changedFields(obj).isEmpty());
+        trans.rollback();
+        assertNull(map.changedFields(obj));
+    }
+
+    public void testDirtyTrackingOnPlainConnection() throws Exception {
+        TableMap<TypeTest> map = new TableMap<TypeTest>(JAVA_CLASS, TABLE_NAME, DS_NAME);
+        map.addFieldMap(new FieldMap<TypeTest, Integer, Integer>("testId", "test_id", true,
+                Integer.class, map));
+        map.addFieldMap(new FieldMap<TypeTest, String, String>("testVarchar5",
+                "test_varchar5", false, String.class, map));
+        map.enableDirtyTracking();
+        EntityCache<TypeTest> cache = map.enableEntityCache(10, 60000);
+        DataSource ds = DatabaseCache.getDataSource(DS_NAME);
+        Connection plain = ds.getConnection();
+        Connection reader = ds.getConnection();
+        TypeTest obj = new TypeTest();
+        obj.setTestId(Integer.valueOf(5));
+        obj.setTestVarchar5("one");
+        try {
+            plain.setAutoCommit(false);
+            assertEquals(1, DaoTool.insert(plain, map, obj));
+            plain.commit();
+            // Values written in manual commit mode may yet be rolled back unseen.
+            assertNull(map.changedFields(obj));
+            obj.setTestVarchar5("two");
+            assertEquals(1, DaoTool.update(plain, map, obj));
+            assertNull(map.changedFields(obj));
+            // A reader cannot cache the row as it was before the writer commits.
+            assertEquals("one", DaoTool.find(reader, map, obj).getTestVarchar5());
+            assertEquals(0, cache.size());
+            plain.rollback();
+            assertEquals(1, DaoTool.update(plain, map, obj));
+            plain.commit();
+            assertEquals("two", DaoTool.find(reader, map, obj).getTestVarchar5());
+            assertEquals(0, cache.size());
+            plain.setAutoCommit(true);
+            assertEquals("two", DaoTool.find(reader, map, obj).getTestVarchar5());
+            assertEquals(1, cache.size());
+        } finally {
+            map.disableEntityCache();
+            DaoTool.delete(reader, map, obj);
+            plain.close();
+            reader.close();
+        }
+    }
+
+    public void testGeneratedKeys() throws Exception {
+        Connection conn = trans.getConnection(DS_NAME);
+        Statement ddl = conn.createStatement();
+        ddl.execute("CREATE TABLE gen_key_test (gen_id INTEGER GENERATED BY DEFAULT AS "
+                + "IDENTITY PRIMARY KEY, gen_name VARCHAR(5))");
+        try {
+            TableMap<TypeTest> map = new TableMap<TypeTest>(JAVA_CLASS, "gen_key_test",
+                    DS_NAME);
+            map.addFieldMap(new FieldMap<TypeTest, Integer, Integer>("testId", "gen_id", true,
+                    Integer.class, map));
+            map.addFieldMap(new FieldMap<TypeTest, String, String>("testVarchar5", "gen_name",
+                    false, String.class, map));
+            assertEquals("INSERT INTO gen_key_test (gen_name) VALUES (?)", map
+                    .getInsertGeneratedSql());
+            TypeTest obj = new TypeTest();
+            obj.setTestVarchar5("one");
+            assertEquals(1, DaoTool.insert(conn, map, obj));
+            assertEquals(Integer.valueOf(1), obj.getTestId());
+
+            List<TypeTest> list = new ArrayList<TypeTest>();
+            for (int i = 0; i < 3; i++) {
+                list.add(new TypeTest());
+                list.get(i).setTestVarchar5("row" + i);
+            }
+            list.add(1, Mock.newTypeTest(10));
+            BatchOptions options = new BatchOptions();
+            options.setReturnGeneratedKeys(true);
+            BatchResult result = DaoTool.batchInsert(conn, map, list, options);
+            assertEquals(4, result.getRowCount());
+            assertEquals(Integer.valueOf(2), list.get(0).getTestId());
+            assertEquals(Integer.valueOf(10), list.get(1).getTestId());
+            assertEquals(Integer.valueOf(4), list.get(3).getTestId());
+            // Keys follow the rows submitted, supplied and generated alike.
+            List<Object> keys = result.getGeneratedKeys();
+            assertEquals(4, keys.size());
+            for (int i = 0; i < keys.size(); i++) {
+                assertEquals(list.get(i).getTestId(), keys.get(i));
+            }
+            assertEquals("row2", DaoTool.find(conn, map, list.get(3)).getTestVarchar5());
+        } finally {
+            ddl.execute("DROP TABLE gen_key_test");
+            ddl.close();
+        }
+    }
+
+    public void testIdentityMap() throws Exception {
+        trans.setIdentityMapEnabled(true);
+        Connection conn = trans.getConnection(DS_NAME);
+        for (int i = 1; i <= 3; i++) {
+            DaoTool.insert(conn, MAP, Mock.newTypeTest(i));
+        }
+        IdentityMap identities = trans.getIdentityMap();
+        assertEquals(3, identities.size());
+        identities.clear();
+        TypeTest found = DaoTool.find(conn, MAP, Mock.newTypeTest(2));
+        assertSame(found, DaoTool.find(conn, MAP, Mock.newTypeTest(2)));
+        List<TypeTest> list = TypeTestDao.listByQuery(trans, new TypeTestQuery().forAll());
+        assertEquals(3, list.size());
+        assertSame(found, list.get(1));
+        assertSame(list.get(2), DaoTool.find(conn, MAP, Mock.newTypeTest(3)));
+        DaoTool.delete(conn, MAP, found);
+        assertNull(DaoTool.find(conn, MAP, Mock.newTypeTest(2)));
+        TypeTest replacement = Mock.newTypeTest(3);
+        DaoTool.update(conn, MAP, replacement);
+        assertSame(replacement, DaoTool.find(conn, MAP, Mock.newTypeTest(3)));
+        conn.rollback();
+        assertEquals(0, identities.size());
+    }
+
+    public void testFindAll() throws Exception {
+        Connection conn = trans.getConnection(DS_NAME);
+        List<TypeTest> keys = new ArrayList<TypeTest>();
+        for (int i = 1; i <= 6; i++) {
+            DaoTool.insert(conn, MAP, Mock.newTypeTest(i));
+            keys.add(Mock.newTypeTest(i));
+        }
+        keys.add(Mock.newTypeTest(2));
+        assertEquals(16, MAP.keyBucket(6));
+        assertEquals(256, MAP.keyBucket(1000));
+        Map<Object, TypeTest> found = DaoTool.findAll(conn, MAP, keys);
+        assertEquals(6, found.size());
+        assertEquals(Integer.valueOf(5), found.get(Integer.valueOf(5)).getTestId());
+        List<Object> ids = new ArrayList<Object>();
+        ids.add(Integer.valueOf(3));
+        ids.add(Integer.valueOf(99));
+        found = DaoTool.findAllByKey(conn, MAP, ids);
+        assertEquals(1, found.size());
+        assertEquals(Integer.valueOf(3), found.get(Integer.valueOf(3)).getTestId());
+        assertTrue(DaoTool.findAllByKey(conn, MAP, new ArrayList<Object>()).isEmpty());
+    }
+
+    public void testProjection() throws Exception {
+        Connection conn = trans.getConnection(DS_NAME);
+        for (int i = 1; i <= 3; i++) {
+            DaoTool.insert(conn, MAP, Mock.newTypeTest(i));
+        }
+        Projection<Object[]> rows = Projection.rows(MAP).property("testId").property(
+                "testVarchar5");
+        assertEquals("SELECT test_id, test_varchar5 FROM type_test", rows.sqlSelect()
+                .getString());
+        List<Object[]> tuples = DaoTool.listByQuery(conn, rows, new TypeTestQuery()
+                .forIdGreaterThan(1));
+        assertEquals(2, tuples.size());
+        assertEquals("2", tuples.get(0)[1]);
+
+        Projection<IdName> dtos = new Projection<IdName>(MAP, IdName.class).property("testId")
+                .property("testVarchar5");
+        List<IdName> constructed = DaoTool.listByQuery(conn, dtos, new TypeTestQuery().forAll());
+        assertEquals(3, constructed.size());
+        assertEquals(Integer.valueOf(3), constructed.get(2).id);
+
+        Projection<Labelled> beans = new Projection<Labelled>(MAP, Labelled.class).property(
+                "testId").expression("test_smallint * 10", "label", String.class);
+        List<Labelled> populated = DaoTool.listByQuery(conn, beans, new TypeTestQuery()
+                .forAll());
+        assertEquals("20", populated.get(1).label);
+
+        Projection<Integer> count = new Projection<Integer>(MAP, Integer.class).expression(
+                "COUNT(*)", "total", Integer.class);
+        assertEquals(Integer.valueOf(3), DaoTool.listByQuery(conn, count, new TypeTestQuery()
+                .forAll()).get(0));
+    }
+
+    public void testColumnarProcessor() throws Exception {
+        Connection conn = trans.getConnection(DS_NAME);
+        for (int i = 1; i <= 4; i++) {
+            TypeTest row = Mock.newTypeTest(i);
+            if (i == 4) {
+                row.setTestDouble(null);
+            }
+            DaoTool.insert(conn, MAP, row);
+        }
+        ResultSetToColumns processor = new ResultSetToColumns(new String[]{"test_id",
+                "test_bigint", "test_double", "test_varchar1"});
+        assertEquals(4, SqlTool.executeQuery(new PreparedSql(new BoundString(
+                "SELECT * FROM type_test ORDER BY test_id")), conn, processor));
+        ColumnBatch batch = processor.getBatch();
+        assertEquals(4, batch.getRowCount());
+        ColumnBatch.Column ids = batch.getColumn("TEST_ID");
+        assertEquals(ColumnBatch.INT, ids.getType());
+        assertEquals(10L, ids.longSum());
+        assertEquals(1.0, ids.min(), 0);
+        assertEquals(4.0, ids.max(), 0);
+        assertEquals(ColumnBatch.LONG, batch.getColumn("test_bigint").getType());
+        ColumnBatch.Column doubles = batch.getColumn("test_double");
+        assertTrue(doubles.isNull(3));
+        assertEquals(1, doubles.getNullCount());
+        assertEquals(6.0 / 7, doubles.sum(), 0.0001);
+        ColumnBatch.Column chars = batch.getColumn("test_varchar1");
+        assertEquals(ColumnBatch.STRING, chars.getType());
+        assertEquals("C", chars.getString(1));
+        assertEquals(4, chars.getDictionary().size());
+        // A NUMERIC of no declared precision may hold fractions, so it is not read as long.
+        processor = new ResultSetToColumns();
+        SqlTool.executeQuery(new PreparedSql(new BoundString("SELECT CAST(test_id AS "
+                + "NUMERIC(10, 0)) AS whole, CAST(test_id AS NUMERIC) / 8 AS part "
+                + "FROM type_test ORDER BY test_id")), conn, processor);
+        batch = processor.getBatch();
+        assertEquals(ColumnBatch.LONG, batch.getColumn("whole").getType());
+        ColumnBatch.Column parts = batch.getColumn("part");
+        assertEquals(ColumnBatch.DOUBLE, parts.getType());
+        assertEquals(0.125, parts.min(), 0.0001);
+    }
+
+    public void testAsyncDaoTool() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            AsyncDaoTool async = new AsyncDaoTool(executor, 2);
+            List<TypeTest> list = new ArrayList<TypeTest>();
+            for (int i = 1; i <= 3; i++) {
+                list.add(Mock.newTypeTest(i));
+            }
+            Future<int[]> batch = async.batchInsert(trans, MAP, list);
+            Future<Integer> insert = async.insert(trans, MAP, Mock.newTypeTest(4));
+            assertEquals(3, batch.get().length);
+            assertEquals(Integer.valueOf(1), insert.get());
+            Future<Integer> count = async.countByQuery(trans, MAP, new TypeTestQuery().forAll());
+            Future<List<TypeTest>> some = async.listByQuery(trans, MAP, new TypeTestQuery()
+                    .forIdGreaterThan(2));
+            Future<TypeTest> found = async.find(trans, MAP, Mock.newTypeTest(2));
+            assertEquals(Integer.valueOf(4), count.get());
+            assertEquals(2, some.get().size());
+            assertEquals(Integer.valueOf(2), found.get().getTestId());
+            // A borrowed connection does not see the uncommitted rows.
+            assertEquals(Integer.valueOf(0), async.countByQuery(null, MAP,
+                    new TypeTestQuery().forAll()).get());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    public void testBulkLoad() throws Exception {
+        List<TypeTest> list = new ArrayList<TypeTest>();
+        for (int i = 1; i <= 5; i++) {
+            list.add(Mock.newTypeTest(i));
+        }
+        // PostgreSQL loads the rows with COPY.
+        assertEquals(5, BulkLoader.load(trans.getConnection(DS_NAME), MAP, list.iterator(),
+                new BatchOptions(2)));
+        assertEquals(5, TypeTestDao.countByQuery(trans, new TypeTestQuery().forAll()));
+
+        TableMap<TypeTest> map = new TableMap<TypeTest>(JAVA_CLASS, TABLE_NAME, DS_NAME);
+        map.addFieldMap(new FieldMap<TypeTest, Integer, Integer>("testId", "test_id", true,
+                Integer.class, map));
+        map.addFieldMap(new FieldMap<TypeTest, String, String>("testVarchar5",
+                "test_varchar5", false, String.class, map));
+        TypeTest quoted = Mock.newTypeTest(8);
+        quoted.setTestVarchar5("a\"b");
+        TypeTest empty = Mock.newTypeTest(9);
+        empty.setTestVarchar5(null);
+        List<TypeTest> rows = new ArrayList<TypeTest>();
+        rows.add(quoted);
+        rows.add(empty);
+        Reader reader = BulkLoader.copyReader(map, rows.iterator());
+        StringBuffer csv = new StringBuffer();
+        char[] buf = new char[4];
+        for (int n = reader.read(buf, 0, buf.length); n >= 0; n = reader.read(buf, 0, buf
+                .length)) {
+            csv.append(buf, 0, n);
+        }
+        assertEquals("8,\"a\"\"b\"\n9,\n", csv.toString());
+    }
+
+    public void testBulkLoadBinary() throws Exception {
+        TableMap<BinaryRow> map = new TableMap<BinaryRow>(BinaryRow.class, "binary_test",
+                DS_NAME);
+        map.addFieldMap(new FieldMap<BinaryRow, Integer, Integer>("binId", "bin_id", true,
+                Integer.class, map));
+        map.addFieldMap(new FieldMap<BinaryRow, byte[], byte[]>("binData", "bin_data", false,
+                byte[].class, map));
+        BinaryRow row = new BinaryRow();
+        row.setBinId(Integer.valueOf(1));
+        row.setBinData(new byte[]{0, -1, 0x7f, '"', ','});
+        Reader reader = BulkLoader.copyReader(map, Collections.singletonList(row).iterator());
+        StringBuffer csv = new StringBuffer();
+        char[] buf = new char[4];
+        for (int n = reader.read(buf, 0, buf.length); n >= 0; n = reader.read(buf, 0, buf
+                .length)) {
+            csv.append(buf, 0, n);
+        }
+        // Bytes go to COPY as a bytea in hex format, not as the array's toString.
+        assertEquals("1,\\x00ff7f222c\n", csv.toString());
+    }
+
+    public static class BinaryRow {
+
+        private Integer binId;
+
+        private byte[] binData;
+
+        public Integer getBinId() {
+            return binId;
+        }
+
+        public void setBinId(Integer binId) {
+            this.binId = binId;
+        }
+
+        public byte[] getBinData() {
+            return binData;
+        }
+
+        public void setBinData(byte[] binData) {
+            this.binData = binData;
+        }
+    }
+
+    public void testBulkLoadInChunks() throws Exception {
+        String dsName = "bulk_h2";
+        DatabaseCache.registerDataSource(dsName, new DriverManagerDataSource(
+                "jdbc:h2:mem:bulk;DB_CLOSE_DELAY=-1", "sa", ""));
+        DataSourceMetadata metadata = DatabaseCache.getDataSourceMetadata(dsName);
+        assertFalse(metadata.isCopySupported() || metadata.isLoadDataSupported());
+        Connection conn = DatabaseCache.getDataSource(dsName).getConnection();
+        try {
+            Statement ddl = conn.createStatement();
+            ddl.execute("CREATE TABLE IF NOT EXISTS bulk_test (bulk_id INTEGER PRIMARY KEY, "
+                    + "bulk_name VARCHAR(5))");
+            ddl.execute("DELETE FROM bulk_test");
+            ddl.close();
+            TableMap<TypeTest> map = new TableMap<TypeTest>(JAVA_CLASS, "bulk_test", dsName);
+            map.addFieldMap(new FieldMap<TypeTest, Integer, Integer>("testId", "bulk_id", true,
+                    Integer.class, map));
+            map.addFieldMap(new FieldMap<TypeTest, String, String>("testVarchar5",
+                    "bulk_name", false, String.class, map));
+            List<TypeTest> list = new ArrayList<TypeTest>();
+            for (int i = 1; i <= 8; i++) {
+                TypeTest row = new TypeTest();
+                row.setTestId(Integer.valueOf(i));
+                row.setTestVarchar5("r" + i);
+                list.add(row);
+            }
+            // With no native loader, rows go in multi-row inserts, or batches if configured.
+            assertEquals(5, BulkLoader.load(conn, map, list.subList(0, 5)));
+            assertEquals(3, BulkLoader.load(conn, map, list.subList(5, 8).iterator(),
+                    new BatchOptions(2)));
+            Statement query = conn.createStatement();
+            ResultSet rs = query.executeQuery("SELECT COUNT(*), MAX(bulk_name) FROM bulk_test");
+            assertTrue(rs.next());
+            assertEquals(8, rs.getInt(1));
+            assertEquals("r8", rs.getString(2));
+            query.close();
+        } finally {
+            conn.close();
+        }
+    }
+
+    public static class IdName {
+        private final Integer id;
+
+        public IdName(Integer id, String name) {
+            this.id = id;
+        }
+    }
+
+    public static class Labelled {
+        private String label;
+
+        public void setTestId(int testId) {
+        }
+
+        public void setLabel(String label) {
+            this.label = label;
+        }
+    }
+
 }